@@ -0,0 +1,260 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.roklenarcic.util.strings.threshold.RangeNodeThreshold;
+import com.roklenarcic.util.strings.threshold.Thresholder;
+
+// Standard Aho-Corasick map
+// It matches all occurences of the strings in the map anywhere.
+// It is highly optimized for this particular use.
+// Values are longs. The trie is built by an AhoCorasickMap over the keyword indexes, which are then
+// replaced by the values in long columns, so there's no boxing when matching.
+public class AhoCorasickLongMap implements StringLongMap {
+
+    private final AhoCorasickMap<Integer> map;
+    // Value of each node's own match by node id and of each suffix match in the map's outputs.
+    private final long[] values;
+    private final long[] outputValues;
+
+    public AhoCorasickLongMap(final Iterable<String> keywords, final long[] values, boolean caseSensitive) {
+        this(keywords, values, caseSensitive, new RangeNodeThreshold());
+    }
+
+    public AhoCorasickLongMap(final Iterable<String> keywords, final long[] values, boolean caseSensitive, final Thresholder thresholdStrategy) {
+        this.map = new AhoCorasickMap<Integer>(keywords, ids(values.length), caseSensitive, thresholdStrategy);
+        this.values = column(map.values, values);
+        this.outputValues = column(map.outputValues, values);
+        // The map's boxed keyword indexes aren't needed anymore.
+        map.values = null;
+        map.outputValues = null;
+    }
+
+    // Index of each value, the map stores these instead of the values.
+    private static List<Integer> ids(int count) {
+        List<Integer> ids = new ArrayList<Integer>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(i);
+        }
+        return ids;
+    }
+
+    // Values at the keyword indexes, slots without an index stay 0.
+    private static long[] column(Object[] ids, long[] values) {
+        long[] column = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != null) {
+                column[i] = values[(Integer) ids[i]];
+            }
+        }
+        return column;
+    }
+
+    // Node statistics for tuning the thresholder, see TrieDiagnostics.
+    public TrieDiagnostics diagnostics() {
+        return map.diagnostics();
+    }
+
+    public void matchChars(final char[] haystack, final int from, final int to, final CharSequenceLongMapMatchListener listener) {
+        // Listeners see the array as a char sequence, positions are array indexes.
+        final CharSequence sequence = CharBuffer.wrap(haystack);
+        final char[] charClasses = map.charClasses;
+        // Start with the root node.
+        final TrieCursor<Integer> cursor = new TrieCursor<Integer>(map.root);
+        int idx = from;
+        while (idx < to) {
+            cursor.step(charClasses[haystack[idx]]);
+            // Output any matches on the current node and increase the index
+            if (!outputSequence(cursor.node, sequence, listener, ++idx)) {
+                break;
+            }
+        }
+    }
+
+    public void matchSequence(final CharSequence haystack, final CharSequenceLongMapMatchListener listener) {
+        final char[] charClasses = map.charClasses;
+        // Start with the root node.
+        final TrieCursor<Integer> cursor = new TrieCursor<Integer>(map.root);
+        int idx = 0;
+        final int len = haystack.length();
+        while (idx < len) {
+            cursor.step(charClasses[haystack.charAt(idx)]);
+            // Output any matches on the current node and increase the index
+            if (!outputSequence(cursor.node, haystack, listener, ++idx)) {
+                break;
+            }
+        }
+    }
+
+    public void match(final Readable haystack, final ReadableLongMatchListener listener) throws IOException {
+        final char[] charClasses = map.charClasses;
+        // Start with the root node.
+        final TrieCursor<Integer> cursor = new TrieCursor<Integer>(map.root);
+        CharBuffer buf = CharBuffer.allocate(map.charBufferSize);
+        while (haystack.read(buf) != -1) {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                cursor.step(charClasses[buf.get()]);
+                // Output any matches on the current node
+                if (!output(cursor.node, listener)) {
+                    return;
+                }
+            }
+            buf.clear();
+        }
+    }
+
+    public void match(final String haystack, final LongMapMatchListener listener) {
+        final char[] charClasses = map.charClasses;
+        // Start with the root node.
+        final TrieCursor<Integer> cursor = new TrieCursor<Integer>(map.root);
+        int idx = 0;
+        final int len = haystack.length();
+        while (idx < len) {
+            cursor.step(charClasses[haystack.charAt(idx)]);
+            // Output any matches on the current node and increase the index
+            if (!output(cursor.node, haystack, listener, ++idx)) {
+                break;
+            }
+        }
+    }
+
+    // Matcher for text that arrives in chunks, it finds the same matches as match would in all of the text.
+    public Matcher matcher(final StreamLongMapMatchListener listener) {
+        return new StreamMatcher(listener);
+    }
+
+    // Match the file decoded with the charset. The file is memory mapped a window at a time, so it can be
+    // larger than 2GB, and positions are char offsets into the decoded text.
+    public void matchFile(final Path file, final Charset charset, final StreamLongMapMatchListener listener) throws IOException {
+        MappedText.feed(file, charset, matcher(listener));
+    }
+
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = map.memoryUsage();
+        usage.addArray(MemoryUsage.VALUES, values);
+        usage.addArray(MemoryUsage.VALUES, outputValues);
+        return usage;
+    }
+
+    // Re-optimize the trie for text like the sample, see AhoCorasickMap.train.
+    public void train(String sample) {
+        map.train(sample);
+    }
+
+    public void train(String sample, Thresholder thresholdStrategy) {
+        map.train(sample, thresholdStrategy);
+    }
+
+    // State of the match loop between chunks.
+    private final class StreamMatcher implements Matcher {
+
+        private final TrieCursor<Integer> cursor = new TrieCursor<Integer>(map.root);
+        private final StreamLongMapMatchListener listener;
+        // Position of the next character in the text.
+        private long position = 0;
+        private boolean stopped = false;
+
+        private StreamMatcher(StreamLongMapMatchListener listener) {
+            this.listener = listener;
+        }
+
+        public boolean feed(final char[] chunk, final int off, final int len) {
+            if (stopped) {
+                return false;
+            }
+            final char[] charClasses = map.charClasses;
+            // Position of the chunk array start in the text.
+            final long base = position - off;
+            final int end = off + len;
+            int idx = off;
+            while (idx < end) {
+                cursor.step(charClasses[chunk[idx]]);
+                if (!output(cursor.node, listener, base + ++idx)) {
+                    stopped = true;
+                    return false;
+                }
+            }
+            position = base + end;
+            return true;
+        }
+
+        public void finish() {
+            // Matches are reported as soon as they end, nothing waits for the end of the text.
+            cursor.reset();
+            position = 0;
+            stopped = false;
+        }
+    }
+
+    // Report matches at this node. Use at matching.
+    private boolean output(TrieNode<Integer> node, ReadableLongMatchListener listener) {
+        boolean ret = true;
+        if (node.matchLength > 0) {
+            ret = listener.match(values[node.id]);
+            final int[] outputs = map.outputs;
+            final int offset = map.outputOffset[node.id];
+            final int end = offset + outputs[offset];
+            for (int i = offset + 1; i <= end && ret; i++) {
+                ret = listener.match(outputValues[i]);
+            }
+        }
+        return ret;
+    }
+
+    // Report matches at this node. Use at matching.
+    private boolean output(TrieNode<Integer> node, String haystack, LongMapMatchListener listener, int idx) {
+        // since idx is the last character in the match
+        // position it past the match (to be consistent with conventions)
+        boolean ret = true;
+        final int matchLength = node.matchLength;
+        if (matchLength > 0) {
+            ret = listener.match(haystack, idx - matchLength, idx, values[node.id]);
+            final int[] outputs = map.outputs;
+            final int offset = map.outputOffset[node.id];
+            final int end = offset + outputs[offset];
+            for (int i = offset + 1; i <= end && ret; i++) {
+                ret = listener.match(haystack, idx - outputs[i], idx, outputValues[i]);
+            }
+        }
+        return ret;
+    }
+
+    private boolean output(TrieNode<Integer> node, StreamLongMapMatchListener listener, long idx) {
+        boolean ret = true;
+        final int matchLength = node.matchLength;
+        if (matchLength > 0) {
+            ret = listener.match(idx - matchLength, idx, values[node.id]);
+            final int[] outputs = map.outputs;
+            final int offset = map.outputOffset[node.id];
+            final int end = offset + outputs[offset];
+            for (int i = offset + 1; i <= end && ret; i++) {
+                ret = listener.match(idx - outputs[i], idx, outputValues[i]);
+            }
+        }
+        return ret;
+    }
+
+    private boolean outputSequence(TrieNode<Integer> node, CharSequence haystack, CharSequenceLongMapMatchListener listener, int idx) {
+        // since idx is the last character in the match
+        // position it past the match (to be consistent with conventions)
+        boolean ret = true;
+        final int matchLength = node.matchLength;
+        if (matchLength > 0) {
+            ret = listener.match(haystack, idx - matchLength, idx, values[node.id]);
+            final int[] outputs = map.outputs;
+            final int offset = map.outputOffset[node.id];
+            final int end = offset + outputs[offset];
+            for (int i = offset + 1; i <= end && ret; i++) {
+                ret = listener.match(haystack, idx - outputs[i], idx, outputValues[i]);
+            }
+        }
+        return ret;
+    }
+
+}
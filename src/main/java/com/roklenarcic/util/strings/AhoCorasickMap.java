@@ -2,20 +2,38 @@ package com.roklenarcic.util.strings;
 
 import java.io.IOException;
 import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
 
+import com.roklenarcic.util.strings.threshold.ProfileThreshold;
 import com.roklenarcic.util.strings.threshold.RangeNodeThreshold;
 import com.roklenarcic.util.strings.threshold.Thresholder;
 
 // Standard Aho-Corasick map
 // It matches all occurences of the strings in the map anywhere.
 // It is highly optimized for this particular use.
-public class AhoCorasickMap<T> implements StringMap<T> {
-
-    private boolean caseSensitive = true;
-    private int charBufferSize = 0;
-    private TrieNode<T> root;
+public class AhoCorasickMap<T> implements StringMap<T>, MemoryAccountable {
+
+    private Alphabet alphabet;
+    // Fields that aren't private are read by AhoCorasickIntMap and AhoCorasickLongMap, they match over
+    // this trie with loops of their own and keep the values in primitive columns.
+    int charBufferSize = 0;
+    char[] charClasses;
+    private int longestKeyword = 0;
+    // Fields of the nodes read on a match, by node id. Values are all T.
+    // Start of the suffix match list of the node in outputs.
+    int[] outputOffset;
+    private TrieNode<T>[] suffixMatch;
+    Object[] values = new Object[16];
+    // Suffix match lengths of all nodes and their values at the same index, see buildOutputs.
+    int[] outputs;
+    Object[] outputValues;
+    TrieNode<T> root;
 
     public AhoCorasickMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive) {
         this(keywords, values, caseSensitive, new RangeNodeThreshold());
@@ -24,11 +42,11 @@ public class AhoCorasickMap<T> implements StringMap<T> {
     public AhoCorasickMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive, final Thresholder thresholdStrategy) {
         Iterator<String> keywordsIter = keywords.iterator();
         Iterator<? extends T> valuesIter = values.iterator();
-        this.caseSensitive = caseSensitive;
+        alphabet = new Alphabet(caseSensitive);
         // Create the root node
-        root = new HashmapNode<T>(true);
+        root = new HashmapNode<T>();
+        int nodeCount = 1;
         // Add all keywords
-        int longestKeyword = 0;
         while (keywordsIter.hasNext() && valuesIter.hasNext()) {
             final String keyword = keywordsIter.next();
             T value = valuesIter.next();
@@ -42,15 +60,24 @@ public class AhoCorasickMap<T> implements StringMap<T> {
                 // fill out the tree.
                 HashmapNode<T> currentNode = (HashmapNode<T>) root;
                 for (int idx = 0; idx < keyword.length(); idx++) {
-                    currentNode = currentNode.getOrAddChild(caseSensitive ? keyword.charAt(idx) : Character.toLowerCase(keyword.charAt(idx)));
+                    currentNode = currentNode.getOrAddChild(alphabet.add(keyword.charAt(idx)), nodeCount);
+                    if (currentNode.id == nodeCount) {
+                        nodeCount++;
+                    }
+                }
+                if (nodeCount > this.values.length) {
+                    this.values = Arrays.copyOf(this.values, nodeCount * 2);
                 }
                 // Last node will contains the keyword as a match.
                 // Suffix matches will be added later.
                 currentNode.matchLength = keyword.length();
-                currentNode.value = value;
+                this.values[currentNode.id] = value;
             }
         }
+        charClasses = alphabet.classes();
         charBufferSize = longestKeyword > 2048 ? longestKeyword * 2 : 4096;
+        this.values = Arrays.copyOf(this.values, nodeCount);
+        suffixMatch = TrieNode.newArray(nodeCount);
         // Go through nodes breadth first, swap any hashmap nodes,
         // whose size is close to the size of range of keys with
         // flat array based nodes.
@@ -60,8 +87,15 @@ public class AhoCorasickMap<T> implements StringMap<T> {
         // calculating for a 3 letter word requires having done the calculation
         // for all 2 letter words.
         //
+        final Thresholder plannedStrategy = plan((HashmapNode<T>) root, !thresholdStrategy.isOverRootTableThreshold(alphabet.size()), thresholdStrategy);
         final Queue<TrieNode<T>> queue = new Queue<TrieNode<T>>();
-        root = root.optimizeNode(0, thresholdStrategy);
+        if (thresholdStrategy.isOverRootTableThreshold(alphabet.size())) {
+            // Root table has a slot for every class id. Slots without a child lead back to the root,
+            // so root lookups never miss.
+            root = new RangeNode<T>((HashmapNode<T>) root, (char) 0, (char) (alphabet.size() - 1), true);
+        } else {
+            root = root.optimizeNode(0, plannedStrategy);
+        }
         queue.push(root);
         queue.push(null);
         // Need to use array to get mutateable state for anonymous class
@@ -71,11 +105,11 @@ public class AhoCorasickMap<T> implements StringMap<T> {
 
             public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
                 // First optimize node
-                value = value.optimizeNode(level[0], thresholdStrategy);
+                value = value.optimizeNode(level[0], plannedStrategy);
                 parent.updateTransition(key, value);
 
                 // Get fail transiton of the parent.
-                TrieNode<T> parentFail = parent.getFailTransition();
+                TrieNode<T> parentFail = parent.failTransition;
                 // Since root node has null fail transition, first level nodes have null parentFail.
                 if (parentFail == null) {
                     // First level nodes have one possible fail transition, which is
@@ -95,12 +129,13 @@ public class AhoCorasickMap<T> implements StringMap<T> {
                         final TrieNode<T> matchContinuation = parentFail.getTransition(key);
                         if (matchContinuation != null) {
                             value.failTransition = matchContinuation;
+                        } else if (parentFail == root) {
+                            // Root without a key mapping, the only suffix left is an empty string.
+                            value.failTransition = root;
                         } else {
                             // If parentFail didn't have key mapping
                             // take parentFail's failTransition and try again
-                            // The last fail transition is the root node, which
-                            // always has a key mapping.
-                            parentFail = parentFail.getFailTransition();
+                            parentFail = parentFail.failTransition;
                         }
                     } while (value.failTransition == null);
                     // Now that we have a fail transition, this node matches all
@@ -128,10 +163,10 @@ public class AhoCorasickMap<T> implements StringMap<T> {
                     if (fail.matchLength > 0) {
                         if (value.matchLength == 0) {
                             value.matchLength = fail.matchLength;
-                            value.suffixMatch = fail.suffixMatch;
-                            value.value = fail.value;
+                            suffixMatch[value.id] = suffixMatch[fail.id];
+                            AhoCorasickMap.this.values[value.id] = AhoCorasickMap.this.values[fail.id];
                         } else {
-                            value.suffixMatch = fail;
+                            suffixMatch[value.id] = fail;
                         }
                     }
                 }
@@ -203,448 +238,570 @@ public class AhoCorasickMap<T> implements StringMap<T> {
                 node.mapEntries(enqueueNodesVisitor);
             }
         }
+        compressChains(thresholdStrategy);
+        buildOutputs();
     }
 
-    public void match(final Readable haystack, final ReadableMatchListener<T> listener) throws IOException {
-
-        // Start with the root node.
-        TrieNode<T> currentNode = root;
-
-        CharBuffer buf = CharBuffer.allocate(charBufferSize);
+    // Node statistics for tuning the thresholder, see TrieDiagnostics.
+    public TrieDiagnostics diagnostics() {
+        final TrieDiagnostics diagnostics = new TrieDiagnostics();
+        final ArrayList<TrieNode<T>> nodes = new ArrayList<TrieNode<T>>();
+        final IdentityHashMap<TrieNode<T>, Integer> levels = new IdentityHashMap<TrieNode<T>, Integer>();
+        // Number of children, smallest and largest key of the visited node.
+        final int[] entries = new int[3];
+        EntryVisitor<T> visitor = new EntryVisitor<T>() {
 
-        // For each character.
-        // Putting this if into the loop worsens the performance so we'll sadly
-        // have to deal with duplicated code.
-        if (caseSensitive) {
-            while (haystack.read(buf) != -1) {
-                buf.flip();
-                while (buf.hasRemaining()) {
-                    final char c = buf.get();
-                    // Try to transition from the current node using the character
-                    TrieNode<T> nextNode = currentNode.getTransition(c);
-
-                    // If cannot transition, follow the fail transition until finding
-                    // node X where you can transition to another node Y using this
-                    // character. Take the transition.
-                    while (nextNode == null) {
-                        // Transition follow one fail transition
-                        currentNode = currentNode.getFailTransition();
-                        // See if you can transition to another node with this
-                        // character. Note that root node will return itself for any
-                        // missing transition.
-                        nextNode = currentNode.getTransition(c);
-                    }
-                    // Take the transition.
-                    currentNode = nextNode;
-                    // Output any matches on the current node and increase the index
-                    if (!currentNode.output(listener)) {
-                        return;
-                    }
+            public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
+                entries[0]++;
+                entries[1] = Math.min(entries[1], key);
+                entries[2] = Math.max(entries[2], key);
+                if (!levels.containsKey(value)) {
+                    levels.put(value, levels.get(parent) + 1);
+                    nodes.add(value);
                 }
-                buf.clear();
             }
-        } else {
-            while (haystack.read(buf) != -1) {
-                buf.flip();
-                while (buf.hasRemaining()) {
-                    final char c = Character.toLowerCase(buf.get());
-                    // Try to transition from the current node using the character
-                    TrieNode<T> nextNode = currentNode.getTransition(c);
-
-                    // If cannot transition, follow the fail transition until finding
-                    // node X where you can transition to another node Y using this
-                    // character. Take the transition.
-                    while (nextNode == null) {
-                        // Transition follow one fail transition
-                        currentNode = currentNode.getFailTransition();
-                        // See if you can transition to another node with this
-                        // character. Note that root node will return itself for any
-                        // missing transition.
-                        nextNode = currentNode.getTransition(c);
-                    }
-                    // Take the transition.
-                    currentNode = nextNode;
-                    // Output any matches on the current node and increase the index
-                    if (!currentNode.output(listener)) {
-                        return;
-                    }
+
+        };
+        levels.put(root, 0);
+        nodes.add(root);
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieNode<T> node = nodes.get(i);
+            int level = levels.get(node);
+            entries[0] = 0;
+            entries[1] = Character.MAX_VALUE;
+            entries[2] = 0;
+            if (node instanceof ChainNode) {
+                // Chain stands in for a run of single child nodes, its child is at the end of the run.
+                ChainNode<T> chain = (ChainNode<T>) node;
+                entries[0] = 1;
+                entries[1] = entries[2] = chain.label[0];
+                if (!levels.containsKey(chain.child)) {
+                    levels.put(chain.child, level + chain.label.length);
+                    nodes.add(chain.child);
                 }
-                buf.clear();
+            } else {
+                node.mapEntries(visitor);
+            }
+            int failChainLength = 0;
+            for (TrieNode<T> n = node; n != root && n != null; n = n.failTransition) {
+                failChainLength++;
             }
+            int slots = node instanceof RangeNode ? ((RangeNode<T>) node).size : 0;
+            diagnostics.add(node.getClass().getSimpleName(), level, entries[0], entries[2] - entries[1] + 1, failChainLength, slots);
         }
+        return diagnostics;
     }
 
-    public void match(final String haystack, final MapMatchListener<T> listener) {
-
+    public void matchChars(final char[] haystack, final int from, final int to, final CharSequenceMapMatchListener<T> listener) {
+        // Listeners see the array as a char sequence, positions are array indexes.
+        final CharSequence sequence = CharBuffer.wrap(haystack);
         // Start with the root node.
-        TrieNode<T> currentNode = root;
+        final TrieCursor<T> cursor = new TrieCursor<T>(root);
+        int idx = from;
+        while (idx < to) {
+            cursor.step(charClasses[haystack[idx]]);
+            // Output any matches on the current node and increase the index
+            if (!outputSequence(cursor.node, sequence, listener, ++idx)) {
+                break;
+            }
+        }
+    }
 
+    public void matchSequence(final CharSequence haystack, final CharSequenceMapMatchListener<T> listener) {
+        // Start with the root node.
+        final TrieCursor<T> cursor = new TrieCursor<T>(root);
         int idx = 0;
-        // For each character.
         final int len = haystack.length();
-        // Putting this if into the loop worsens the performance so we'll sadly
-        // have to deal with duplicated code.
-        if (caseSensitive) {
-            while (idx < len) {
-                final char c = haystack.charAt(idx);
-                // Try to transition from the current node using the character
-                TrieNode<T> nextNode = currentNode.getTransition(c);
-
-                // If cannot transition, follow the fail transition until finding
-                // node X where you can transition to another node Y using this
-                // character. Take the transition.
-                while (nextNode == null) {
-                    // Transition follow one fail transition
-                    currentNode = currentNode.getFailTransition();
-                    // See if you can transition to another node with this
-                    // character. Note that root node will return itself for any
-                    // missing transition.
-                    nextNode = currentNode.getTransition(c);
-                }
-                // Take the transition.
-                currentNode = nextNode;
-                // Output any matches on the current node and increase the index
-                if (!currentNode.output(haystack, listener, ++idx)) {
-                    break;
-                }
+        while (idx < len) {
+            cursor.step(charClasses[haystack.charAt(idx)]);
+            // Output any matches on the current node and increase the index
+            if (!outputSequence(cursor.node, haystack, listener, ++idx)) {
+                break;
             }
-        } else {
-            while (idx < len) {
-                final char c = Character.toLowerCase(haystack.charAt(idx));
-                // Try to transition from the current node using the character
-                TrieNode<T> nextNode = currentNode.getTransition(c);
-
-                // If cannot transition, follow the fail transition until finding
-                // node X where you can transition to another node Y using this
-                // character. Take the transition.
-                while (nextNode == null) {
-                    // Transition follow one fail transition
-                    currentNode = currentNode.getFailTransition();
-                    // See if you can transition to another node with this
-                    // character. Note that root node will return itself for any
-                    // missing transition.
-                    nextNode = currentNode.getTransition(c);
-                }
-                // Take the transition.
-                currentNode = nextNode;
-                // Output any matches on the current node and increase the index
-                if (!currentNode.output(haystack, listener, ++idx)) {
-                    break;
+        }
+    }
+
+    public void match(final Readable haystack, final ReadableMatchListener<T> listener) throws IOException {
+        // Start with the root node.
+        final TrieCursor<T> cursor = new TrieCursor<T>(root);
+        CharBuffer buf = CharBuffer.allocate(charBufferSize);
+        while (haystack.read(buf) != -1) {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                cursor.step(charClasses[buf.get()]);
+                // Output any matches on the current node
+                if (!output(cursor.node, listener)) {
+                    return;
                 }
             }
+            buf.clear();
         }
     }
 
-    private interface EntryVisitor<T> {
-        void visit(TrieNode<T> parent, char key, TrieNode<T> value);
+    public void match(final String haystack, final MapMatchListener<T> listener) {
+        match(haystack, 0, haystack.length(), listener);
     }
 
-    // An open addressing hashmap implementation with linear probing
-    // and capacity of 2^n
-    private final static class HashmapNode<T> extends TrieNode<T> {
-
-        // Start with capacity of 1 and resize as needed.
-        @SuppressWarnings("unchecked")
-        private TrieNode<T>[] children = new TrieNode[1];
-        private char[] keys = new char[1];
-        // Since capacity is a power of 2, we calculate mod by just
-        // bitwise AND with the right mask.
-        private int modulusMask = keys.length - 1;
-        private int numEntries = 0;
-
-        protected HashmapNode(boolean root) {
-            super(root);
+    public void match(final String haystack, final int offset, final int len, final MapMatchListener<T> listener) {
+        // Start with the root node.
+        final TrieCursor<T> cursor = new TrieCursor<T>(root);
+        int idx = offset;
+        while (idx < len) {
+            cursor.step(charClasses[haystack.charAt(idx)]);
+            // Output any matches on the current node and increase the index
+            if (!output(cursor.node, haystack, listener, ++idx)) {
+                break;
+            }
         }
+    }
 
-        @Override
-        public TrieNode<T> getTransition(final char key) {
-            int defaultSlot = hash(key) & modulusMask;
-            int currentSlot = defaultSlot;
-            // Linear probing to find the entry for key.
-            do {
-                if (keys[currentSlot] == key) {
-                    return children[currentSlot];
-                } else if (children[currentSlot] == null) {
-                    return defaultTransition;
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
-                }
-            } while (currentSlot != defaultSlot);
-            return defaultTransition;
-        }
+    // Matches the haystack in chunks on the common pool, with the same matches as match. Ordered matches come
+    // in the same order, otherwise they come as chunks finish, from the pool threads but one at a time.
+    public void matchParallel(final String haystack, final MapMatchListener<T> listener, boolean ordered) {
+        matchParallel(haystack, listener, ordered, ForkJoinPool.commonPool());
+    }
 
-        @Override
-        public boolean isEmpty() {
-            return numEntries == 0;
-        }
+    public void matchParallel(final String haystack, final MapMatchListener<T> listener, boolean ordered, ForkJoinPool pool) {
+        matchParallel(haystack, listener, ordered, pool, ParallelScan.CHUNK_CHARS);
+    }
 
-        @Override
-        public void mapEntries(EntryVisitor<T> visitor) {
-            for (int i = 0; i < keys.length; i++) {
-                if (children[i] != null) {
-                    visitor.visit(this, keys[i], children[i]);
-                }
+    @SuppressWarnings("unchecked")
+    void matchParallel(final String haystack, final MapMatchListener<T> listener, boolean ordered, ForkJoinPool pool, int chunkChars) {
+        new ParallelScan(new ParallelScan.Scanner() {
+
+            public void scan(String haystack, int from, int to, final ParallelScan.Matches matches) {
+                match(haystack, from, to, new MapMatchListener<T>() {
+
+                    public boolean match(String haystack, int startPosition, int endPosition, T value) {
+                        return matches.add(startPosition, endPosition, value);
+                    }
+                });
             }
-        }
+        }, longestKeyword, false, null).match(haystack, new ParallelScan.Listener() {
 
-        @Override
-        public void updateTransition(char c, TrieNode<T> node) {
-            int defaultSlot = hash(c) & modulusMask;
-            int currentSlot = defaultSlot;
-            do {
-                if (children[currentSlot] == null) {
-                    throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
-                } else if (keys[currentSlot] == c) {
-                    children[currentSlot] = node;
-                    return;
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
-                }
-            } while (currentSlot != defaultSlot);
-            throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+            public boolean match(int startPosition, int endPosition, Object value) {
+                return listener.match(haystack, startPosition, endPosition, (T) value);
+            }
+        }, ordered, pool, chunkChars);
+    }
+
+    // Matcher for text that arrives in chunks, it finds the same matches as match would in all of the text.
+    public Matcher matcher(final StreamMapMatchListener<T> listener) {
+        return new StreamMatcher(listener);
+    }
+
+    // Match the file decoded with the charset. The file is memory mapped a window at a time, so it can be
+    // larger than 2GB, and positions are char offsets into the decoded text.
+    public void matchFile(final Path file, final Charset charset, final StreamMapMatchListener<T> listener) throws IOException {
+        MappedText.feed(file, charset, matcher(listener));
+    }
+
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = new MemoryUsage();
+        usage.addTrie(root, TrieNode.class);
+        usage.addArray(MemoryUsage.NODE_FIELDS, outputOffset);
+        usage.addArray(MemoryUsage.NODE_FIELDS, suffixMatch);
+        usage.addArray(MemoryUsage.VALUES, values);
+        usage.addArray(MemoryUsage.OUTPUTS, outputs);
+        usage.addArray(MemoryUsage.VALUES, outputValues);
+        usage.addObject(MemoryUsage.ALPHABET, alphabet);
+        usage.addArray(MemoryUsage.ALPHABET, charClasses);
+        return usage;
+    }
+
+    // Re-optimize the trie for text like the sample, which is walked like it would be matched. Nodes with
+    // many lookups become range nodes when the thresholder finds them over the profile threshold, hashmap
+    // nodes get the keys with the most transitions taken moved to their default slots. Nodes the sample
+    // doesn't reach don't change. Matches don't change either. Don't train while other threads match.
+    public void train(String sample) {
+        train(sample, new ProfileThreshold());
+    }
+
+    public void train(String sample, Thresholder thresholdStrategy) {
+        final IdentityHashMap<TrieNode<T>, long[]> hits = profile(sample);
+        long totalLookups = 0;
+        for (long[] count : hits.values()) {
+            totalLookups += count[0];
         }
+        final IdentityHashMap<TrieNode<T>, TrieNode<T>> replacements = new IdentityHashMap<TrieNode<T>, TrieNode<T>>();
+        final ArrayList<TrieNode<T>> nodes = new ArrayList<TrieNode<T>>();
+        EntryVisitor<T> collectNodesVisitor = new EntryVisitor<T>() {
 
-        @Override
-        protected TrieNode<T> optimizeNode(int level, Thresholder thresholdStrategy) {
-            char minKey = '\uffff';
-            char maxKey = 0;
-            // Find you the min and max key on the node.
-            int size = numEntries;
-            for (int i = 0; i < children.length; i++) {
-                if (children[i] != null) {
-                    if (keys[i] > maxKey) {
-                        maxKey = keys[i];
-                    }
-                    if (keys[i] < minKey) {
-                        minKey = keys[i];
-                    }
+            public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
+                if (!replacements.containsKey(value)) {
+                    replacements.put(value, value);
+                    nodes.add(value);
                 }
             }
-            // If difference between min and max key are small
-            // or only slightly larger than number of entries, use a range node
-            int keyIntervalSize = maxKey - minKey + 1;
-            if (thresholdStrategy.isOverThreshold(size, level, keyIntervalSize)) {
-                return new RangeNode<T>(this, minKey, maxKey);
+
+        };
+        collectNodesVisitor.visit(null, (char) 0, root);
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieNode<T> node = nodes.get(i);
+            if (node instanceof ChainNode) {
+                collectNodesVisitor.visit(node, (char) 0, ((ChainNode<T>) node).child);
             } else {
-                return this;
+                node.mapEntries(collectNodesVisitor);
             }
         }
-
-        // Double the capacity of the node, calculate the new mask,
-        // rehash and reinsert the entries.
-        private void enlarge() {
-            char[] biggerKeys = new char[keys.length * 2];
-            @SuppressWarnings("unchecked")
-            TrieNode<T>[] biggerChildren = new TrieNode[children.length * 2];
-            int biggerMask = biggerKeys.length - 1;
-            for (int i = 0; i < children.length; i++) {
-                char key = keys[i];
-                TrieNode<T> node = children[i];
-                if (node != null) {
-                    int defaultSlot = hash(key) & biggerMask;
-                    int currentSlot = defaultSlot;
-                    do {
-                        if (biggerChildren[currentSlot] == null) {
-                            biggerKeys[currentSlot] = key;
-                            biggerChildren[currentSlot] = node;
-                            break;
-                        } else if (biggerKeys[currentSlot] == key) {
-                            throw new IllegalStateException();
-                        } else {
-                            currentSlot = ++currentSlot & biggerMask;
-                        }
-                    } while (currentSlot != defaultSlot);
+        for (TrieNode<T> node : nodes) {
+            long[] count = hits.get(node);
+            // Leaf, single, range and chain nodes are as fast as they get.
+            if (count != null && !(node instanceof LeafNode || node instanceof SingleNode || node instanceof RangeNode || node instanceof ChainNode)) {
+                // Number of children, smallest and largest key.
+                final int[] entries = { 0, Character.MAX_VALUE, 0 };
+                node.mapEntries(new EntryVisitor<T>() {
+
+                    public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
+                        entries[0]++;
+                        entries[1] = Math.min(entries[1], key);
+                        entries[2] = Math.max(entries[2], key);
+                    }
+                });
+                if (thresholdStrategy.isOverProfileThreshold(entries[0], entries[2] - entries[1] + 1, count[0], totalLookups)) {
+                    replacements.put(node, new RangeNode<T>(node, (char) entries[1], (char) entries[2]));
+                } else if (node instanceof HashmapNode) {
+                    ((HashmapNode<T>) node).reorder(hits);
                 }
             }
-            this.keys = biggerKeys;
-            this.children = biggerChildren;
-            this.modulusMask = biggerMask;
         }
+        for (TrieNode<T> node : nodes) {
+            replacements.get(node).relink(replacements);
+        }
+        TrieNode.relink(suffixMatch, replacements);
+        root = replacements.get(root);
+    }
+
+    // Snapshot the trie into flat arrays, compact engines are compiled from that.
+    FlatTrie flatten() {
+        final FlatTrie trie = new FlatTrie();
+        final IdentityHashMap<TrieNode<T>, Integer> states = new IdentityHashMap<TrieNode<T>, Integer>();
+        final ArrayList<TrieNode<T>> nodes = new ArrayList<TrieNode<T>>();
+        // Chain nodes get a state for each position in their label, this is the position of the state.
+        final ArrayList<Integer> chainPositions = new ArrayList<Integer>();
+        final int[] parentState = new int[1];
+        states.put(root, trie.addState(0));
+        nodes.add(root);
+        chainPositions.add(0);
+        EntryVisitor<T> childrenVisitor = new EntryVisitor<T>() {
+
+            public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
+                // Nodes are numbered breadth first. Range node gap filling only adds shortcuts
+                // to nodes that aren't deeper than the parent, so any node seen before is
+                // a shortcut and not a trie edge.
+                if (!states.containsKey(value)) {
+                    int state = trie.addState(trie.depth[parentState[0]] + 1);
+                    states.put(value, state);
+                    nodes.add(value);
+                    chainPositions.add(0);
+                    trie.addChild(alphabet.charOf(key), state);
+                }
+            }
 
-        // Return the node for a key or create a new hashmap node for that key
-        // and return that.
-        private HashmapNode<T> getOrAddChild(char key) {
-            // Check if we need to resize. Capacity of 2^16 doesn't need to resize.
-            // If capacity is <16 and arrays are full or capacity is >16 and
-            // arrays are 90% full, resize
-            if (keys.length < 0x10000 && ((numEntries >= keys.length) || (numEntries > 16 && (numEntries >= keys.length * 0.90f)))) {
-                enlarge();
-            }
-            int defaultSlot = hash(key) & modulusMask;
-            int currentSlot = defaultSlot;
-            do {
-                if (children[currentSlot] == null) {
-                    keys[currentSlot] = key;
-                    HashmapNode<T> newChild = new HashmapNode<T>(false);
-                    children[currentSlot] = newChild;
-                    ++numEntries;
-                    return newChild;
-                } else if (keys[currentSlot] == key) {
-                    return (HashmapNode<T>) children[currentSlot];
+        };
+        for (int i = 0; i < nodes.size(); i++) {
+            parentState[0] = i;
+            trie.startChildren(i);
+            TrieNode<T> node = nodes.get(i);
+            if (node instanceof ChainNode) {
+                // Expand the chain, the next position or the child after the chain is the only child.
+                ChainNode<T> chain = (ChainNode<T>) node;
+                int position = chainPositions.get(i);
+                int state = trie.addState(trie.depth[i] + 1);
+                if (position + 1 < chain.label.length) {
+                    nodes.add(chain);
+                    chainPositions.add(position + 1);
                 } else {
-                    currentSlot = ++currentSlot & modulusMask;
+                    states.put(chain.child, state);
+                    nodes.add(chain.child);
+                    chainPositions.add(0);
                 }
-            } while (currentSlot != defaultSlot);
-            throw new IllegalStateException();
+                trie.addChild(alphabet.charOf(chain.label[position]), state);
+            } else {
+                node.mapEntries(childrenVisitor);
+            }
         }
-
-        // FNV-1a hash
-        private int hash(char c) {
-            // HASH_BASIS = 0x811c9dc5;
-            final int HASH_PRIME = 16777619;
-            return (((0x811c9dc5 ^ (c >> 8)) * HASH_PRIME) ^ (c & 0xff)) * HASH_PRIME;
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieNode<T> node = nodes.get(i);
+            if (node instanceof ChainNode) {
+                // Positions in a chain have no matches.
+                trie.setOutput(i, states.get(((ChainNode<T>) node).fails[chainPositions.get(i)]), 0, FlatTrie.NONE, null);
+            } else {
+                TrieNode<T> fail = node.failTransition;
+                TrieNode<T> suffix = suffixMatch[node.id];
+                int failState = fail == null ? FlatTrie.NONE : states.get(fail);
+                int suffixState = suffix == null ? FlatTrie.NONE : states.get(suffix);
+                trie.setOutput(i, failState, node.matchLength, suffixState, values[node.id]);
+            }
         }
-
+        return trie;
     }
 
-    // This node is good at representing dense ranges of keys.
-    // It has a single array of nodes and a base key value.
-    // Child at array index 3 has key of baseChar + 3.
-    private static final class RangeNode<T> extends TrieNode<T> {
-
-        private char baseChar = 0;
-        private TrieNode<T>[] children;
-        private int size = 0;
-
-        @SuppressWarnings("unchecked")
-        private RangeNode(HashmapNode<T> oldNode, char from, char to) {
-            super(oldNode.defaultTransition != null);
-            // Value of the first character
-            this.baseChar = from;
-            this.value = oldNode.value;
-            this.size = to - from + 1;
-            this.matchLength = oldNode.matchLength;
-            // Avoid even allocating a children array if size is 0.
-            if (size <= 0) {
-                size = 0;
-            } else {
-                this.children = new TrieNode[size];
-                // If original node is root node, prefill everything with yourself.
-                // This is done to allow the "fillRangeNodeVisitor" to work correctly
-                // on the root node, which would otherwise return null on empty slots,
-                // and cause a NPE.
-                if (oldNode.defaultTransition != null) {
-                    Arrays.fill(children, this);
+    // Replace runs of single child nodes without matches by chain nodes. Nodes that are a fail
+    // transition of any node can't be in a chain, that way fail transitions still lead to real nodes
+    // and range node gaps, which are filled with children of fail transitions, can only lead to the start
+    // of a chain.
+    private void compressChains(final Thresholder thresholdStrategy) {
+        final IdentityHashMap<TrieNode<T>, TrieNode<T>> failTargets = new IdentityHashMap<TrieNode<T>, TrieNode<T>>();
+        final ArrayList<TrieNode<T>> nodes = new ArrayList<TrieNode<T>>();
+        final Queue<TrieNode<T>> queue = new Queue<TrieNode<T>>();
+        EntryVisitor<T> collectNodesVisitor = new EntryVisitor<T>() {
+
+            public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
+                TrieNode<T> fail = value.failTransition;
+                if (!failTargets.containsKey(fail)) {
+                    failTargets.put(fail, fail);
                 }
-                // Grab the children of the old node.
-                for (int i = 0; i < oldNode.children.length; i++) {
-                    if (oldNode.children[i] != null) {
-                        children[oldNode.keys[i] - from] = oldNode.children[i];
-                    }
+                if (!value.isEmpty()) {
+                    queue.push(value);
                 }
             }
-        }
 
-        @Override
-        public TrieNode<T> getTransition(char c) {
-            // First check if the key is between max and min value.
-            // Here we use the fact that char type is unsigned to figure it out
-            // with a single condition.
-            int idx = (char) (c - baseChar);
-            if (idx < size) {
-                return children[idx];
+        };
+        // Range node gaps lead to nodes that were already queued, those are skipped.
+        final IdentityHashMap<TrieNode<T>, TrieNode<T>> seen = new IdentityHashMap<TrieNode<T>, TrieNode<T>>();
+        queue.push(root);
+        while (!queue.isEmpty()) {
+            TrieNode<T> node = queue.take();
+            if (!seen.containsKey(node)) {
+                seen.put(node, node);
+                nodes.add(node);
+                node.mapEntries(collectNodesVisitor);
             }
-            return defaultTransition;
-        }
-
-        @Override
-        public boolean isEmpty() {
-            return size == 0;
         }
+        // Find the runs, each run starts with a child of a node that isn't in a run.
+        final IdentityHashMap<TrieNode<T>, ChainNode<T>> chains = new IdentityHashMap<TrieNode<T>, ChainNode<T>>();
+        EntryVisitor<T> findChainsVisitor = new EntryVisitor<T>() {
 
-        @Override
-        public void mapEntries(EntryVisitor<T> visitor) {
-            if (children != null) {
-                for (int i = 0; i < children.length; i++) {
-                    if (children[i] != null && children[i] != this) {
-                        visitor.visit(this, (char) (baseChar + i), children[i]);
+            public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
+                if (isChainLink(value, failTargets) && !chains.containsKey(value)) {
+                    int length = 0;
+                    for (TrieNode<T> n = value; isChainLink(n, failTargets); n = ((SingleNode<T>) n).child) {
+                        length++;
                     }
+                    chains.put(value, thresholdStrategy.isOverChainThreshold(length) ? new ChainNode<T>((SingleNode<T>) value, length, true) : null);
                 }
             }
+
+        };
+        for (TrieNode<T> node : nodes) {
+            if (!isChainLink(node, failTargets)) {
+                node.mapEntries(findChainsVisitor);
+            }
         }
+        // Replace the starts of the runs with chain nodes in trie edges and range node gaps.
+        EntryVisitor<T> replaceVisitor = new EntryVisitor<T>() {
 
-        @Override
-        public void updateTransition(char c, TrieNode<T> node) {
-            // First check if the key is between max and min value.
-            // Here we use the fact that char type is unsigned to figure it out
-            // with a single condition.
-            int idx = (char) (c - baseChar);
-            if (idx < size) {
-                if (children[idx] != null) {
-                    children[idx] = node;
-                    return;
-                } else {
-                    throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+            public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
+                ChainNode<T> chain = chains.get(value);
+                if (chain != null) {
+                    parent.updateTransition(key, chain);
                 }
             }
-            throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+
+        };
+        for (TrieNode<T> node : nodes) {
+            node.mapEntries(replaceVisitor);
         }
+    }
 
+    private boolean isChainLink(TrieNode<T> node, IdentityHashMap<TrieNode<T>, TrieNode<T>> failTargets) {
+        return node instanceof SingleNode && !node.isEmpty() && node.matchLength == 0 && !failTargets.containsKey(node);
     }
 
-    // Basic node for both
-    private static abstract class TrieNode<T> {
+    // Lay out the suffix matches of every node in one array, so reporting them doesn't chase suffix match
+    // references from node to node. A node's own match stays in matchLength, its outputOffset points
+    // at the number of its suffix matches, followed by their lengths. The values are in a parallel array.
+    // Nodes with the same suffix match share the list, offset 0 is the empty list.
+    private void buildOutputs() {
+        final IdentityHashMap<TrieNode<T>, Integer> offsets = new IdentityHashMap<TrieNode<T>, Integer>();
+        int[] outputs = new int[16];
+        Object[] outputValues = new Object[16];
+        int size = 1;
+        outputOffset = new int[suffixMatch.length];
+        for (int id = 0; id < suffixMatch.length; id++) {
+            if (suffixMatch[id] != null) {
+                Integer offset = offsets.get(suffixMatch[id]);
+                if (offset == null) {
+                    offset = size;
+                    int count = 0;
+                    for (TrieNode<T> n = suffixMatch[id]; n != null; n = suffixMatch[n.id]) {
+                        count++;
+                    }
+                    if (size + count + 1 > outputs.length) {
+                        outputs = Arrays.copyOf(outputs, Math.max(outputs.length * 2, size + count + 1));
+                        outputValues = Arrays.copyOf(outputValues, outputs.length);
+                    }
+                    outputs[size++] = count;
+                    for (TrieNode<T> n = suffixMatch[id]; n != null; n = suffixMatch[n.id]) {
+                        outputValues[size] = values[n.id];
+                        outputs[size++] = n.matchLength;
+                    }
+                    offsets.put(suffixMatch[id], offset);
+                }
+                outputOffset[id] = offset;
+            }
+        }
+        this.outputs = Arrays.copyOf(outputs, size);
+        this.outputValues = Arrays.copyOf(outputValues, size);
+    }
 
-        protected TrieNode<T> defaultTransition = null;
-        protected TrieNode<T> failTransition;
-        protected int matchLength = 0;
-        protected TrieNode<T> suffixMatch;
-        protected T value = null;
 
-        protected TrieNode(boolean root) {
-            this.defaultTransition = root ? this : null;
+    // Walk the sample like the match loop does and count lookups on each node (index 0 of the counts) and
+    // transitions taken to it (index 1), see train. Lookups after fail transitions count on the node the
+    // fail transition leads to.
+    private IdentityHashMap<TrieNode<T>, long[]> profile(String sample) {
+        TrieCursor.Profile<T> cursor = new TrieCursor.Profile<T>(root);
+        for (int idx = 0; idx < sample.length(); idx++) {
+            cursor.step(charClasses[sample.charAt(idx)]);
         }
+        return cursor.hits;
+    }
 
-        // Get fail transition
-        public final TrieNode<T> getFailTransition() {
-            return failTransition;
+    // Let the thresholder plan node types with a view of the whole trie, see Thresholder.plan. Reports
+    // every node with at least 2 children, the root only if it's optimized like the other nodes.
+    private static <T> Thresholder plan(HashmapNode<T> root, boolean optimizeRoot, Thresholder thresholdStrategy) {
+        int[] sizes = new int[16];
+        int[] levels = new int[16];
+        int[] keyIntervalSizes = new int[16];
+        int count = 0;
+        ArrayList<HashmapNode<T>> layer = new ArrayList<HashmapNode<T>>();
+        layer.add(root);
+        for (int level = 0; !layer.isEmpty(); level++) {
+            ArrayList<HashmapNode<T>> nextLayer = new ArrayList<HashmapNode<T>>();
+            for (HashmapNode<T> node : layer) {
+                char minKey = '\uffff';
+                char maxKey = 0;
+                for (int i = 0; i < node.children.length; i++) {
+                    if (node.children[i] != null) {
+                        minKey = (char) Math.min(minKey, node.keys[i]);
+                        maxKey = (char) Math.max(maxKey, node.keys[i]);
+                        nextLayer.add((HashmapNode<T>) node.children[i]);
+                    }
+                }
+                if (node.numEntries > 1 && (level > 0 || optimizeRoot)) {
+                    if (count == sizes.length) {
+                        sizes = Arrays.copyOf(sizes, count * 2);
+                        levels = Arrays.copyOf(levels, count * 2);
+                        keyIntervalSizes = Arrays.copyOf(keyIntervalSizes, count * 2);
+                    }
+                    sizes[count] = node.numEntries;
+                    levels[count] = level;
+                    keyIntervalSizes[count++] = maxKey - minKey + 1;
+                }
+            }
+            layer = nextLayer;
         }
+        return thresholdStrategy.plan(Arrays.copyOf(sizes, count), Arrays.copyOf(levels, count), Arrays.copyOf(keyIntervalSizes, count));
+    }
 
-        // Get transition (root node returns something non-null for all characters - itself)
-        public abstract TrieNode<T> getTransition(char c);
+    // State of the match loop between chunks.
+    private final class StreamMatcher implements Matcher {
 
-        public abstract boolean isEmpty();
+        private final TrieCursor<T> cursor = new TrieCursor<T>(root);
+        private final StreamMapMatchListener<T> listener;
+        // Position of the next character in the text.
+        private long position = 0;
+        private boolean stopped = false;
 
-        public abstract void mapEntries(final EntryVisitor<T> visitor);
+        private StreamMatcher(StreamMapMatchListener<T> listener) {
+            this.listener = listener;
+        }
 
-        // Report matches at this node. Use at matching.
-        public final boolean output(ReadableMatchListener<T> listener) {
-            // since idx is the last character in the match
-            // position it past the match (to be consistent with conventions)
-            boolean ret = true;
-            if (matchLength > 0) {
-                ret = listener.match(value);
-                TrieNode<T> suffixMatch = this.suffixMatch;
-                while (suffixMatch != null && ret) {
-                    ret = listener.match(suffixMatch.value);
-                    suffixMatch = suffixMatch.suffixMatch;
+        public boolean feed(final char[] chunk, final int off, final int len) {
+            if (stopped) {
+                return false;
+            }
+            // Position of the chunk array start in the text.
+            final long base = position - off;
+            final int end = off + len;
+            int idx = off;
+            while (idx < end) {
+                cursor.step(charClasses[chunk[idx]]);
+                if (!output(cursor.node, listener, base + ++idx)) {
+                    stopped = true;
+                    return false;
                 }
             }
-            return ret;
+            position = base + end;
+            return true;
         }
 
-        // Report matches at this node. Use at matching.
-        public final boolean output(String haystack, MapMatchListener<T> listener, int idx) {
-            // since idx is the last character in the match
-            // position it past the match (to be consistent with conventions)
-            boolean ret = true;
-            if (matchLength > 0) {
-                ret = listener.match(haystack, idx - matchLength, idx, value);
-                TrieNode<T> suffixMatch = this.suffixMatch;
-                while (suffixMatch != null && ret) {
-                    ret = listener.match(haystack, idx - suffixMatch.matchLength, idx, suffixMatch.value);
-                    suffixMatch = suffixMatch.suffixMatch;
-                }
+        public void finish() {
+            // Matches are reported as soon as they end, nothing waits for the end of the text.
+            cursor.reset();
+            position = 0;
+            stopped = false;
+        }
+    }
+
+    // Report matches at this node. Use at matching.
+    @SuppressWarnings("unchecked")
+    private boolean output(TrieNode<T> node, ReadableMatchListener<T> listener) {
+        // since idx is the last character in the match
+        // position it past the match (to be consistent with conventions)
+        boolean ret = true;
+        final int matchLength = node.matchLength;
+        if (matchLength > 0) {
+            ret = listener.match((T) values[node.id]);
+            final int offset = outputOffset[node.id];
+            final int end = offset + outputs[offset];
+            for (int i = offset + 1; i <= end && ret; i++) {
+                ret = listener.match((T) outputValues[i]);
             }
-            return ret;
         }
+        return ret;
+    }
 
-        public abstract void updateTransition(char c, TrieNode<T> node);
+    // Report matches at this node. Use at matching.
+    @SuppressWarnings("unchecked")
+    private boolean output(TrieNode<T> node, StreamMapMatchListener<T> listener, long idx) {
+        boolean ret = true;
+        final int matchLength = node.matchLength;
+        if (matchLength > 0) {
+            ret = listener.match(idx - matchLength, idx, (T) values[node.id]);
+            final int offset = outputOffset[node.id];
+            final int end = offset + outputs[offset];
+            for (int i = offset + 1; i <= end && ret; i++) {
+                ret = listener.match(idx - outputs[i], idx, (T) outputValues[i]);
+            }
+        }
+        return ret;
+    }
 
-        protected TrieNode<T> optimizeNode(int level, Thresholder thresholdStrategy) {
-            return this;
+    // Report matches at this node. Use at matching.
+    @SuppressWarnings("unchecked")
+    private boolean output(TrieNode<T> node, String haystack, MapMatchListener<T> listener, int idx) {
+        // since idx is the last character in the match
+        // position it past the match (to be consistent with conventions)
+        boolean ret = true;
+        final int matchLength = node.matchLength;
+        if (matchLength > 0) {
+            ret = listener.match(haystack, idx - matchLength, idx, (T) values[node.id]);
+            final int offset = outputOffset[node.id];
+            final int end = offset + outputs[offset];
+            for (int i = offset + 1; i <= end && ret; i++) {
+                ret = listener.match(haystack, idx - outputs[i], idx, (T) outputValues[i]);
+            }
         }
+        return ret;
+    }
 
+    @SuppressWarnings("unchecked")
+    private boolean outputSequence(TrieNode<T> node, CharSequence haystack, CharSequenceMapMatchListener<T> listener, int idx) {
+        // since idx is the last character in the match
+        // position it past the match (to be consistent with conventions)
+        boolean ret = true;
+        final int matchLength = node.matchLength;
+        if (matchLength > 0) {
+            ret = listener.match(haystack, idx - matchLength, idx, (T) values[node.id]);
+            final int offset = outputOffset[node.id];
+            final int end = offset + outputs[offset];
+            for (int i = offset + 1; i <= end && ret; i++) {
+                ret = listener.match(haystack, idx - outputs[i], idx, (T) outputValues[i]);
+            }
+        }
+        return ret;
     }
 
 }
@@ -1,26 +1,42 @@
 package com.roklenarcic.util.strings;
 
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinPool;
 
+import com.roklenarcic.util.strings.threshold.ProfileThreshold;
 import com.roklenarcic.util.strings.threshold.RangeNodeThreshold;
 import com.roklenarcic.util.strings.threshold.Thresholder;
 
 // Standard Aho-Corasick set
 // It matches all occurences of the strings in the set anywhere.
 // It is highly optimized for this particular use.
-public class AhoCorasickSet implements StringSet {
+public class AhoCorasickSet implements StringSet, MemoryAccountable {
 
     private static Pattern whitespaceNormalizer = Pattern.compile("\\s+");
 
-    private boolean caseSensitive = true;
+    private Alphabet alphabet;
+    private char[] charClasses;
     private boolean collapseWhitespace = false;
+    private int longestKeyword = 0;
 
     static WhitespaceReader NoOpWhiteSpaceReaderInstance = new NoOpWhitespaceReader();
     static WhitespaceReader SkipWhiteSpaceReaderInstance = new SkipWhitespaceReader();
     private WhitespaceReader whitespaceReader;
 
-    private TrieNode root;
+    // Fields of the nodes read on a match, by node id.
+    // Start of the suffix match list of the node in outputs.
+    private int[] outputOffset;
+    private TrieNode<Void>[] suffixMatch;
+    // Suffix match lengths of all nodes, see buildOutputs.
+    private int[] outputs;
+    private TrieNode<Void> root;
 
     public AhoCorasickSet(final Iterable<String> keywords, boolean caseSensitive, boolean collapseWhitespace) {
         this(keywords, caseSensitive, collapseWhitespace, new RangeNodeThreshold());
@@ -28,8 +44,9 @@ public class AhoCorasickSet implements StringSet {
 
     public AhoCorasickSet(final Iterable<String> keywords, boolean caseSensitive, boolean collapseWhitespace, final Thresholder thresholdStrategy) {
         // Create the root node
-        root = new HashmapNode(true);
-        this.caseSensitive = caseSensitive;
+        root = new HashmapNode<Void>();
+        int nodeCount = 1;
+        alphabet = new Alphabet(caseSensitive);
         this.collapseWhitespace = collapseWhitespace;
         if(this.collapseWhitespace) {
             whitespaceReader = SkipWhiteSpaceReaderInstance;
@@ -50,12 +67,18 @@ public class AhoCorasickSet implements StringSet {
                 }
 
                 if(normalizedKeyword.length() > 0) {
+                    if (normalizedKeyword.length() > longestKeyword) {
+                        longestKeyword = normalizedKeyword.length();
+                    }
                     // Start with the current node and traverse the tree
                     // character by character. Add nodes as needed to
                     // fill out the tree.
-                    HashmapNode currentNode = (HashmapNode) root;
+                    HashmapNode<Void> currentNode = (HashmapNode<Void>) root;
                     for (int idx = 0; idx < normalizedKeyword.length(); idx++) {
-                        currentNode = currentNode.getOrAddChild(caseSensitive ? normalizedKeyword.charAt(idx) : Character.toLowerCase(normalizedKeyword.charAt(idx)));
+                        currentNode = currentNode.getOrAddChild(alphabet.add(normalizedKeyword.charAt(idx)), nodeCount);
+                        if (currentNode.id == nodeCount) {
+                            nodeCount++;
+                        }
                     }
                     // Last node will contains the keyword as a match.
                     // Suffix matches will be added later.
@@ -63,6 +86,8 @@ public class AhoCorasickSet implements StringSet {
                 }
             }
         }
+        charClasses = alphabet.classes();
+        suffixMatch = TrieNode.newArray(nodeCount);
         // Go through nodes breadth first, swap any hashmap nodes,
         // whose size is close to the size of range of keys with
         // flat array based nodes.
@@ -72,22 +97,29 @@ public class AhoCorasickSet implements StringSet {
         // calculating for a 3 letter word requires having done the calculation
         // for all 2 letter words.
         //
-        final Queue<TrieNode> queue = new Queue<TrieNode>();
-        root = root.optimizeNode(0, thresholdStrategy);
+        final Thresholder plannedStrategy = plan((HashmapNode<Void>) root, !thresholdStrategy.isOverRootTableThreshold(alphabet.size()), thresholdStrategy);
+        final Queue<TrieNode<Void>> queue = new Queue<TrieNode<Void>>();
+        if (thresholdStrategy.isOverRootTableThreshold(alphabet.size())) {
+            // Root table has a slot for every class id. Slots without a child lead back to the root,
+            // so root lookups never miss.
+            root = new RangeNode<Void>((HashmapNode<Void>) root, (char) 0, (char) (alphabet.size() - 1), true);
+        } else {
+            root = root.optimizeNode(0, plannedStrategy);
+        }
         queue.push(root);
         queue.push(null);
         // Need to use array to get mutateable state for anonymous class
         final int[] level = new int[] { 1 };
 
-        EntryVisitor failTransAndOutputsVisitor = new EntryVisitor() {
+        EntryVisitor<Void> failTransAndOutputsVisitor = new EntryVisitor<Void>() {
 
-            public void visit(TrieNode parent, char key, TrieNode value) {
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
                 // First optimize node
-                value = value.optimizeNode(level[0], thresholdStrategy);
+                value = value.optimizeNode(level[0], plannedStrategy);
                 parent.updateTransition(key, value);
 
                 // Get fail transiton of the parent.
-                TrieNode parentFail = parent.getFailTransition();
+                TrieNode<Void> parentFail = parent.failTransition;
                 // Since root node has null fail transition, first level nodes have null parentFail.
                 if (parentFail == null) {
                     // First level nodes have one possible fail transition, which is
@@ -104,15 +136,16 @@ public class AhoCorasickSet implements StringSet {
                         // parentFail ----char----> valueFail
                         // e.g. "ab" -> c -> "abc"
                         // "b" -> c -> "bc"
-                        final TrieNode matchContinuation = parentFail.getTransition(key);
+                        final TrieNode<Void> matchContinuation = parentFail.getTransition(key);
                         if (matchContinuation != null) {
                             value.failTransition = matchContinuation;
+                        } else if (parentFail == root) {
+                            // Root without a key mapping, the only suffix left is an empty string.
+                            value.failTransition = root;
                         } else {
                             // If parentFail didn't have key mapping
                             // take parentFail's failTransition and try again
-                            // The last fail transition is the root node, which
-                            // always has a key mapping.
-                            parentFail = parentFail.getFailTransition();
+                            parentFail = parentFail.failTransition;
                         }
                     } while (value.failTransition == null);
                     // Now that we have a fail transition, this node matches all
@@ -133,16 +166,16 @@ public class AhoCorasickSet implements StringSet {
                     // introduce another if. That is why in case of nodes without matches we store the suffix
                     // match directly on the node and instead link the next suffix match as this node's suffix
                     // match.
-                    TrieNode fail = value.failTransition;
+                    TrieNode<Void> fail = value.failTransition;
                     while (fail != root && fail.matchLength == 0) {
                         fail = fail.failTransition;
                     }
                     if (fail.matchLength > 0) {
                         if (value.matchLength == 0) {
                             value.matchLength = fail.matchLength;
-                            value.suffixMatch = fail.suffixMatch;
+                            suffixMatch[value.id] = suffixMatch[fail.id];
                         } else {
-                            value.suffixMatch = fail;
+                            suffixMatch[value.id] = fail;
                         }
                     }
                 }
@@ -154,7 +187,7 @@ public class AhoCorasickSet implements StringSet {
 
         };
         while (!queue.isEmpty()) {
-            TrieNode n = queue.take();
+            TrieNode<Void> n = queue.take();
             if (n == null) {
                 if (!queue.isEmpty()) {
                     queue.push(null);
@@ -170,9 +203,9 @@ public class AhoCorasickSet implements StringSet {
         // chain to find a node with a transition for that char. Instead of wasting space on empty slots
         // we can do that beforehand and add that transition to the node. We need to do that in depth first
         // fashion, otherwise an endless loop can form.
-        EntryVisitor enqueueNodesVisitor = new EntryVisitor() {
+        EntryVisitor<Void> enqueueNodesVisitor = new EntryVisitor<Void>() {
 
-            public void visit(TrieNode parent, char key, TrieNode value) {
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
                 // go depth first
                 if (!value.isEmpty()) {
                     queue.push(value);
@@ -182,23 +215,23 @@ public class AhoCorasickSet implements StringSet {
         };
         root.mapEntries(enqueueNodesVisitor);
         while (!queue.isEmpty()) {
-            TrieNode node = queue.pop();
+            TrieNode<Void> node = queue.pop();
             if (node == null) {
                 node = queue.pop();
                 if (node instanceof RangeNode) {
                     // Range nodes have gaps (null values) in their array. We can put this wasted
                     // memory to work by filling these gaps with the correct next node for that character
                     // which we can figure out by following failure transitions.
-                    RangeNode rangeNode = (RangeNode) node;
+                    RangeNode<Void> rangeNode = (RangeNode<Void>) node;
                     for (int i = 0; i < rangeNode.size; i++) {
                         if (rangeNode.children[i] == null) {
                             char charOfMissingTransition = (char) (rangeNode.baseChar + i);
                             // Walk up fail transition until you run out of them (and do nothing)
                             // or one of them has a transition for this char. Put that node
                             // into the empty slot on the range node.
-                            TrieNode n = rangeNode.failTransition;
+                            TrieNode<Void> n = rangeNode.failTransition;
                             while (n != null) {
-                                TrieNode nextNode = n.getTransition(charOfMissingTransition);
+                                TrieNode<Void> nextNode = n.getTransition(charOfMissingTransition);
                                 if (nextNode == null) {
                                     n = n.failTransition;
                                 } else {
@@ -214,386 +247,620 @@ public class AhoCorasickSet implements StringSet {
                 node.mapEntries(enqueueNodesVisitor);
             }
         }
+        compressChains(thresholdStrategy);
+        buildOutputs();
     }
 
-    public void match(final String haystack, final SetMatchListener listener) {
-        match(haystack, 0, haystack.length(), listener);
+    // Node statistics for tuning the thresholder, see TrieDiagnostics.
+    public TrieDiagnostics diagnostics() {
+        final TrieDiagnostics diagnostics = new TrieDiagnostics();
+        final ArrayList<TrieNode<Void>> nodes = new ArrayList<TrieNode<Void>>();
+        final IdentityHashMap<TrieNode<Void>, Integer> levels = new IdentityHashMap<TrieNode<Void>, Integer>();
+        // Number of children, smallest and largest key of the visited node.
+        final int[] entries = new int[3];
+        EntryVisitor<Void> visitor = new EntryVisitor<Void>() {
+
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                entries[0]++;
+                entries[1] = Math.min(entries[1], key);
+                entries[2] = Math.max(entries[2], key);
+                if (!levels.containsKey(value)) {
+                    levels.put(value, levels.get(parent) + 1);
+                    nodes.add(value);
+                }
+            }
+
+        };
+        levels.put(root, 0);
+        nodes.add(root);
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieNode<Void> node = nodes.get(i);
+            int level = levels.get(node);
+            entries[0] = 0;
+            entries[1] = Character.MAX_VALUE;
+            entries[2] = 0;
+            if (node instanceof ChainNode) {
+                // Chain stands in for a run of single child nodes, its child is at the end of the run.
+                ChainNode<Void> chain = (ChainNode<Void>) node;
+                entries[0] = 1;
+                entries[1] = entries[2] = chain.label[0];
+                if (!levels.containsKey(chain.child)) {
+                    levels.put(chain.child, level + chain.label.length);
+                    nodes.add(chain.child);
+                }
+            } else {
+                node.mapEntries(visitor);
+            }
+            int failChainLength = 0;
+            for (TrieNode<Void> n = node; n != root && n != null; n = n.failTransition) {
+                failChainLength++;
+            }
+            int slots = node instanceof RangeNode ? ((RangeNode<Void>) node).size : 0;
+            diagnostics.add(node.getClass().getSimpleName(), level, entries[0], entries[2] - entries[1] + 1, failChainLength, slots);
+        }
+        return diagnostics;
     }
 
-    public void match(final String haystack, final int offset, final int len, final SetMatchListener listener) {
+    public void matchChars(final char[] haystack, final int from, final int to, final CharSequenceSetMatchListener listener) {
+        // Listeners see the array as a char sequence, positions are array indexes.
+        final CharSequence sequence = CharBuffer.wrap(haystack);
+        final int len = to;
 
         // Start with the root node.
-        TrieNode currentNode = root;
+        final TrieCursor<Void> cursor = new TrieCursor<Void>(root);
 
         boolean skipWhitespace = whitespaceReader.enabled();
 
         int skipped = 0;
-        int idx = offset;
-        // Putting this if into the loop worsens the performance so we'll sadly
-        // have to deal with duplicated code.
-        if (caseSensitive) {
-            while (idx < len) {
-                char c = haystack.charAt(idx);
-                boolean skippedWhitespace = skipWhitespace && currentNode != root && whitespaceReader.isWhitespace(c);
-                if(skippedWhitespace) {
-                    while (++idx < len && whitespaceReader.isWhitespace(haystack.charAt(idx))) {
-                        ++skipped;
-                    }
-                    --idx;
-                    c = ' ';
-                }
-                // Try to transition from the current node using the character
-                TrieNode nextNode = currentNode.getTransition(c);
-
-                // If cannot transition, follow the fail transition until finding
-                // node X where you can transition to another node Y using this
-                // character. Take the transition.
-                while (nextNode == null) {
-//                    skipped = 0;
-                    // Transition follow one fail transition
-                    currentNode = currentNode.getFailTransition();
-                    // See if you can transition to another node with this
-                    // character. Note that root node will return itself for any
-                    // missing transition.
-                    nextNode = currentNode.getTransition(c);
+        int idx = from;
+        while (idx < len) {
+            char c = haystack[idx];
+            boolean skippedWhitespace = skipWhitespace && cursor.node != root && whitespaceReader.isWhitespace(c);
+            if(skippedWhitespace) {
+                while (++idx < len && whitespaceReader.isWhitespace(haystack[idx])) {
+                    ++skipped;
                 }
+                --idx;
+                c = ' ';
+            }
+            cursor.step(charClasses[c]);
+            if (cursor.node == root) {
+                skipped = 0;
+            }
+            // Output any matches on the current node and increase the index
+            if (!outputSequence(cursor.node, sequence, listener, ++idx, skipped)) {
+                return;
+            }
+        }
+    }
 
-                if(nextNode == root) skipped = 0;
+    public void matchSequence(final CharSequence haystack, final CharSequenceSetMatchListener listener) {
+        final int len = haystack.length();
 
-                // Take the transition.
-                currentNode = nextNode;
-                // Output any matches on the current node and increase the index
-                if (!currentNode.output(haystack, listener, ++idx, skipped)) {
-                    return;
-                }
-            }
-        } else {
-            while (idx < len) {
-                char c = Character.toLowerCase(haystack.charAt(idx));
-                boolean skippedWhitespace = skipWhitespace && currentNode != root && whitespaceReader.isWhitespace(c);
-                if(skippedWhitespace) {
-                    while (++idx < len && whitespaceReader.isWhitespace(haystack.charAt(idx))) {
-                        ++skipped;
-                    }
-                    --idx;
-                    c = ' ';
-                }
-                // Try to transition from the current node using the character
-                TrieNode nextNode = currentNode.getTransition(c);
-
-                // If cannot transition, follow the fail transition until finding
-                // node X where you can transition to another node Y using this
-                // character. Take the transition.
-                while (nextNode == null) {
-                    // Transition follow one fail transition
-                    currentNode = currentNode.getFailTransition();
-                    // See if you can transition to another node with this
-                    // character. Note that root node will return itself for any
-                    // missing transition.
-                    nextNode = currentNode.getTransition(c);
-                }
+        // Start with the root node.
+        final TrieCursor<Void> cursor = new TrieCursor<Void>(root);
 
-                if(nextNode == root) skipped = 0; // restart matching from root.
+        boolean skipWhitespace = whitespaceReader.enabled();
 
-                // Take the transition.
-                currentNode = nextNode;
-                // Output any matches on the current node and increase the index
-                if (!currentNode.output(haystack, listener, ++idx, skipped)) {
-                    return;
+        int skipped = 0;
+        int idx = 0;
+        while (idx < len) {
+            char c = haystack.charAt(idx);
+            boolean skippedWhitespace = skipWhitespace && cursor.node != root && whitespaceReader.isWhitespace(c);
+            if(skippedWhitespace) {
+                while (++idx < len && whitespaceReader.isWhitespace(haystack.charAt(idx))) {
+                    ++skipped;
                 }
+                --idx;
+                c = ' ';
+            }
+            cursor.step(charClasses[c]);
+            if (cursor.node == root) {
+                skipped = 0;
+            }
+            // Output any matches on the current node and increase the index
+            if (!outputSequence(cursor.node, haystack, listener, ++idx, skipped)) {
+                return;
             }
         }
     }
 
-    private interface EntryVisitor {
-        void visit(TrieNode parent, char key, TrieNode value);
+    public void match(final String haystack, final SetMatchListener listener) {
+        match(haystack, 0, haystack.length(), listener);
     }
 
-    // An open addressing hashmap implementation with linear probing
-    // and capacity of 2^n
-    private final static class HashmapNode extends TrieNode {
-
-        // Start with capacity of 1 and resize as needed.
-        private TrieNode[] children = new TrieNode[1];
-        private char[] keys = new char[1];
-        // Since capacity is a power of 2, we calculate mod by just
-        // bitwise AND with the right mask.
-        private int modulusMask = keys.length - 1;
-        private int numEntries = 0;
-
-        protected HashmapNode(boolean root) {
-            super(root);
-        }
-
-        @Override
-        public TrieNode getTransition(final char key) {
-            int defaultSlot = hash(key) & modulusMask;
-            int currentSlot = defaultSlot;
-            // Linear probing to find the entry for key.
-            do {
-                if (keys[currentSlot] == key) {
-                    return children[currentSlot];
-                } else if (children[currentSlot] == null) {
-                    return defaultTransition;
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
+    public void match(final String haystack, final int offset, final int len, final SetMatchListener listener) {
+
+        // Start with the root node.
+        final TrieCursor<Void> cursor = new TrieCursor<Void>(root);
+
+        boolean skipWhitespace = whitespaceReader.enabled();
+
+        int skipped = 0;
+        int idx = offset;
+        while (idx < len) {
+            char c = haystack.charAt(idx);
+            boolean skippedWhitespace = skipWhitespace && cursor.node != root && whitespaceReader.isWhitespace(c);
+            if(skippedWhitespace) {
+                while (++idx < len && whitespaceReader.isWhitespace(haystack.charAt(idx))) {
+                    ++skipped;
                 }
-            } while (currentSlot != defaultSlot);
-            return defaultTransition;
+                --idx;
+                c = ' ';
+            }
+            cursor.step(charClasses[c]);
+            if (cursor.node == root) {
+                skipped = 0;
+            }
+            // Output any matches on the current node and increase the index
+            if (!output(cursor.node, haystack, listener, ++idx, skipped)) {
+                return;
+            }
         }
+    }
+
+    // Matches the haystack in chunks on the common pool, with the same matches as match. Ordered matches come
+    // in the same order, otherwise they come as chunks finish, from the pool threads but one at a time.
+    public void matchParallel(final String haystack, final SetMatchListener listener, boolean ordered) {
+        matchParallel(haystack, listener, ordered, ForkJoinPool.commonPool());
+    }
+
+    public void matchParallel(final String haystack, final SetMatchListener listener, boolean ordered, ForkJoinPool pool) {
+        matchParallel(haystack, listener, ordered, pool, ParallelScan.CHUNK_CHARS);
+    }
 
-        @Override
-        public boolean isEmpty() {
-            return numEntries == 0;
+    void matchParallel(final String haystack, final SetMatchListener listener, boolean ordered, ForkJoinPool pool, int chunkChars) {
+        if (collapseWhitespace) {
+            // Collapsed whitespace matches can be any length, so chunks can't overlap by the longest keyword.
+            match(haystack, listener);
+            return;
         }
+        new ParallelScan(new ParallelScan.Scanner() {
 
-        @Override
-        public void mapEntries(EntryVisitor visitor) {
-            for (int i = 0; i < keys.length; i++) {
-                if (children[i] != null) {
-                    visitor.visit(this, keys[i], children[i]);
-                }
+            public void scan(String haystack, int from, int to, final ParallelScan.Matches matches) {
+                match(haystack, from, to, new SetMatchListener() {
+
+                    public boolean match(String haystack, int startPosition, int endPosition) {
+                        return matches.add(startPosition, endPosition, null);
+                    }
+                });
             }
-        }
+        }, longestKeyword, false, null).match(haystack, new ParallelScan.Listener() {
 
-        @Override
-        public void updateTransition(char c, TrieNode node) {
-            int defaultSlot = hash(c) & modulusMask;
-            int currentSlot = defaultSlot;
-            do {
-                if (children[currentSlot] == null) {
-                    throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
-                } else if (keys[currentSlot] == c) {
-                    children[currentSlot] = node;
-                    return;
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
+            public boolean match(int startPosition, int endPosition, Object value) {
+                return listener.match(haystack, startPosition, endPosition);
+            }
+        }, ordered, pool, chunkChars);
+    }
+
+    // Matcher for text that arrives in chunks, it finds the same matches as match would in all of the text.
+    public Matcher matcher(final StreamSetMatchListener listener) {
+        return new StreamMatcher(listener);
+    }
+
+    // Match the file decoded with the charset. The file is memory mapped a window at a time, so it can be
+    // larger than 2GB, and positions are char offsets into the decoded text.
+    public void matchFile(final Path file, final Charset charset, final StreamSetMatchListener listener) throws IOException {
+        MappedText.feed(file, charset, matcher(listener));
+    }
+
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = new MemoryUsage();
+        usage.addTrie(root, TrieNode.class);
+        usage.addArray(MemoryUsage.NODE_FIELDS, outputOffset);
+        usage.addArray(MemoryUsage.NODE_FIELDS, suffixMatch);
+        usage.addArray(MemoryUsage.OUTPUTS, outputs);
+        usage.addObject(MemoryUsage.ALPHABET, alphabet);
+        usage.addArray(MemoryUsage.ALPHABET, charClasses);
+        return usage;
+    }
+
+    // Re-optimize the trie for text like the sample, which is walked like it would be matched. Nodes with
+    // many lookups become range nodes when the thresholder finds them over the profile threshold, hashmap
+    // nodes get the keys with the most transitions taken moved to their default slots. Nodes the sample
+    // doesn't reach don't change. Matches don't change either. Don't train while other threads match.
+    public void train(String sample) {
+        train(sample, new ProfileThreshold());
+    }
+
+    public void train(String sample, Thresholder thresholdStrategy) {
+        final IdentityHashMap<TrieNode<Void>, long[]> hits = profile(sample);
+        long totalLookups = 0;
+        for (long[] count : hits.values()) {
+            totalLookups += count[0];
+        }
+        final IdentityHashMap<TrieNode<Void>, TrieNode<Void>> replacements = new IdentityHashMap<TrieNode<Void>, TrieNode<Void>>();
+        final ArrayList<TrieNode<Void>> nodes = new ArrayList<TrieNode<Void>>();
+        EntryVisitor<Void> collectNodesVisitor = new EntryVisitor<Void>() {
+
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                if (!replacements.containsKey(value)) {
+                    replacements.put(value, value);
+                    nodes.add(value);
                 }
-            } while (currentSlot != defaultSlot);
-            throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
-        }
-
-        @Override
-        protected TrieNode optimizeNode(int level, Thresholder thresholdStrategy) {
-            char minKey = '\uffff';
-            char maxKey = 0;
-            // Find you the min and max key on the node.
-            int size = numEntries;
-            for (int i = 0; i < children.length; i++) {
-                if (children[i] != null) {
-                    if (keys[i] > maxKey) {
-                        maxKey = keys[i];
-                    }
-                    if (keys[i] < minKey) {
-                        minKey = keys[i];
+            }
+
+        };
+        collectNodesVisitor.visit(null, (char) 0, root);
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieNode<Void> node = nodes.get(i);
+            if (node instanceof ChainNode) {
+                collectNodesVisitor.visit(node, (char) 0, ((ChainNode<Void>) node).child);
+            } else {
+                node.mapEntries(collectNodesVisitor);
+            }
+        }
+        for (TrieNode<Void> node : nodes) {
+            long[] count = hits.get(node);
+            // Leaf, single, range and chain nodes are as fast as they get.
+            if (count != null && !(node instanceof LeafNode || node instanceof SingleNode || node instanceof RangeNode || node instanceof ChainNode)) {
+                // Number of children, smallest and largest key.
+                final int[] entries = { 0, Character.MAX_VALUE, 0 };
+                node.mapEntries(new EntryVisitor<Void>() {
+
+                    public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                        entries[0]++;
+                        entries[1] = Math.min(entries[1], key);
+                        entries[2] = Math.max(entries[2], key);
                     }
+                });
+                if (thresholdStrategy.isOverProfileThreshold(entries[0], entries[2] - entries[1] + 1, count[0], totalLookups)) {
+                    replacements.put(node, new RangeNode<Void>(node, (char) entries[1], (char) entries[2]));
+                } else if (node instanceof HashmapNode) {
+                    ((HashmapNode<Void>) node).reorder(hits);
                 }
             }
-            // If difference between min and max key are small
-            // or only slightly larger than number of entries, use a range node
-            int keyIntervalSize = maxKey - minKey + 1;
-            if (thresholdStrategy.isOverThreshold(size, level, keyIntervalSize)) {
-                return new RangeNode(this, minKey, maxKey);
-            } else {
-                return this;
-            }
-        }
-
-        // Double the capacity of the node, calculate the new mask,
-        // rehash and reinsert the entries.
-        private void enlarge() {
-            char[] biggerKeys = new char[keys.length * 2];
-            TrieNode[] biggerChildren = new TrieNode[children.length * 2];
-            int biggerMask = biggerKeys.length - 1;
-            for (int i = 0; i < children.length; i++) {
-                char key = keys[i];
-                TrieNode node = children[i];
-                if (node != null) {
-                    int defaultSlot = hash(key) & biggerMask;
-                    int currentSlot = defaultSlot;
-                    do {
-                        if (biggerChildren[currentSlot] == null) {
-                            biggerKeys[currentSlot] = key;
-                            biggerChildren[currentSlot] = node;
-                            break;
-                        } else if (biggerKeys[currentSlot] == key) {
-                            throw new IllegalStateException();
-                        } else {
-                            currentSlot = ++currentSlot & biggerMask;
-                        }
-                    } while (currentSlot != defaultSlot);
+        }
+        for (TrieNode<Void> node : nodes) {
+            replacements.get(node).relink(replacements);
+        }
+        TrieNode.relink(suffixMatch, replacements);
+        root = replacements.get(root);
+    }
+
+    // Snapshot the trie into flat arrays, compact engines are compiled from that.
+    FlatTrie flatten() {
+        final FlatTrie trie = new FlatTrie();
+        final IdentityHashMap<TrieNode<Void>, Integer> states = new IdentityHashMap<TrieNode<Void>, Integer>();
+        final ArrayList<TrieNode<Void>> nodes = new ArrayList<TrieNode<Void>>();
+        // Chain nodes get a state for each position in their label, this is the position of the state.
+        final ArrayList<Integer> chainPositions = new ArrayList<Integer>();
+        final int[] parentState = new int[1];
+        states.put(root, trie.addState(0));
+        nodes.add(root);
+        chainPositions.add(0);
+        EntryVisitor<Void> childrenVisitor = new EntryVisitor<Void>() {
+
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                // Nodes are numbered breadth first. Range node gap filling only adds shortcuts
+                // to nodes that aren't deeper than the parent, so any node seen before is
+                // a shortcut and not a trie edge.
+                if (!states.containsKey(value)) {
+                    int state = trie.addState(trie.depth[parentState[0]] + 1);
+                    states.put(value, state);
+                    nodes.add(value);
+                    chainPositions.add(0);
+                    trie.addChild(alphabet.charOf(key), state);
                 }
             }
-            this.keys = biggerKeys;
-            this.children = biggerChildren;
-            this.modulusMask = biggerMask;
-        }
-
-        // Return the node for a key or create a new hashmap node for that key
-        // and return that.
-        private HashmapNode getOrAddChild(char key) {
-            // Check if we need to resize. Capacity of 2^16 doesn't need to resize.
-            // If capacity is <16 and arrays are full or capacity is >16 and
-            // arrays are 90% full, resize
-            if (keys.length < 0x10000 && ((numEntries >= keys.length) || (numEntries > 16 && (numEntries >= keys.length * 0.90f)))) {
-                enlarge();
-            }
-            int defaultSlot = hash(key) & modulusMask;
-            int currentSlot = defaultSlot;
-            do {
-                if (children[currentSlot] == null) {
-                    keys[currentSlot] = key;
-                    HashmapNode newChild = new HashmapNode(false);
-                    children[currentSlot] = newChild;
-                    ++numEntries;
-                    return newChild;
-                } else if (keys[currentSlot] == key) {
-                    return (HashmapNode) children[currentSlot];
+
+        };
+        for (int i = 0; i < nodes.size(); i++) {
+            parentState[0] = i;
+            trie.startChildren(i);
+            TrieNode<Void> node = nodes.get(i);
+            if (node instanceof ChainNode) {
+                // Expand the chain, the next position or the child after the chain is the only child.
+                ChainNode<Void> chain = (ChainNode<Void>) node;
+                int position = chainPositions.get(i);
+                int state = trie.addState(trie.depth[i] + 1);
+                if (position + 1 < chain.label.length) {
+                    nodes.add(chain);
+                    chainPositions.add(position + 1);
                 } else {
-                    currentSlot = ++currentSlot & modulusMask;
+                    states.put(chain.child, state);
+                    nodes.add(chain.child);
+                    chainPositions.add(0);
                 }
-            } while (currentSlot != defaultSlot);
-            throw new IllegalStateException();
+                trie.addChild(alphabet.charOf(chain.label[position]), state);
+            } else {
+                node.mapEntries(childrenVisitor);
+            }
         }
-
-        // FNV-1a hash
-        private int hash(char c) {
-            // HASH_BASIS = 0x811c9dc5;
-            final int HASH_PRIME = 16777619;
-            return (((0x811c9dc5 ^ (c >> 8)) * HASH_PRIME) ^ (c & 0xff)) * HASH_PRIME;
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieNode<Void> node = nodes.get(i);
+            if (node instanceof ChainNode) {
+                // Positions in a chain have no matches.
+                trie.setOutput(i, states.get(((ChainNode<Void>) node).fails[chainPositions.get(i)]), 0, FlatTrie.NONE, null);
+            } else {
+                TrieNode<Void> fail = node.failTransition;
+                TrieNode<Void> suffix = suffixMatch[node.id];
+                int failState = fail == null ? FlatTrie.NONE : states.get(fail);
+                int suffixState = suffix == null ? FlatTrie.NONE : states.get(suffix);
+                trie.setOutput(i, failState, node.matchLength, suffixState, null);
+            }
         }
-
+        return trie;
     }
 
-    // This node is good at representing dense ranges of keys.
-    // It has a single array of nodes and a base key value.
-    // Child at array index 3 has key of baseChar + 3.
-    private static final class RangeNode extends TrieNode {
-
-        private char baseChar = 0;
-        private TrieNode[] children;
-        private int size = 0;
-
-        private RangeNode(HashmapNode oldNode, char from, char to) {
-            super(oldNode.defaultTransition != null);
-            // Value of the first character
-            this.baseChar = from;
-            this.size = to - from + 1;
-            this.matchLength = oldNode.matchLength;
-            // Avoid even allocating a children array if size is 0.
-            if (size <= 0) {
-                size = 0;
-            } else {
-                this.children = new TrieNode[size];
-                // If original node is root node, prefill everything with yourself.
-                // This is done to allow the "fillRangeNodeVisitor" to work correctly
-                // on the root node, which would otherwise return null on empty slots,
-                // and cause a NPE.
-                if (oldNode.defaultTransition != null) {
-                    Arrays.fill(children, this);
+    // Replace runs of single child nodes without matches by chain nodes. Nodes that are a fail
+    // transition of any node can't be in a chain, that way fail transitions still lead to real nodes
+    // and range node gaps, which are filled with children of fail transitions, can only lead to the start
+    // of a chain.
+    private void compressChains(final Thresholder thresholdStrategy) {
+        final IdentityHashMap<TrieNode<Void>, TrieNode<Void>> failTargets = new IdentityHashMap<TrieNode<Void>, TrieNode<Void>>();
+        final ArrayList<TrieNode<Void>> nodes = new ArrayList<TrieNode<Void>>();
+        final Queue<TrieNode<Void>> queue = new Queue<TrieNode<Void>>();
+        EntryVisitor<Void> collectNodesVisitor = new EntryVisitor<Void>() {
+
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                TrieNode<Void> fail = value.failTransition;
+                if (!failTargets.containsKey(fail)) {
+                    failTargets.put(fail, fail);
                 }
-                // Grab the children of the old node.
-                for (int i = 0; i < oldNode.children.length; i++) {
-                    if (oldNode.children[i] != null) {
-                        children[oldNode.keys[i] - from] = oldNode.children[i];
-                    }
+                if (!value.isEmpty()) {
+                    queue.push(value);
                 }
             }
-        }
 
-        @Override
-        public TrieNode getTransition(char c) {
-            // First check if the key is between max and min value.
-            // Here we use the fact that char type is unsigned to figure it out
-            // with a single condition.
-            int idx = (char) (c - baseChar);
-            if (idx < size) {
-                return children[idx];
+        };
+        // Range node gaps lead to nodes that were already queued, those are skipped.
+        final IdentityHashMap<TrieNode<Void>, TrieNode<Void>> seen = new IdentityHashMap<TrieNode<Void>, TrieNode<Void>>();
+        queue.push(root);
+        while (!queue.isEmpty()) {
+            TrieNode<Void> node = queue.take();
+            if (!seen.containsKey(node)) {
+                seen.put(node, node);
+                nodes.add(node);
+                node.mapEntries(collectNodesVisitor);
             }
-            return defaultTransition;
-        }
-
-        @Override
-        public boolean isEmpty() {
-            return size == 0;
         }
-
-        @Override
-        public void mapEntries(EntryVisitor visitor) {
-            if (children != null) {
-                for (int i = 0; i < children.length; i++) {
-                    if (children[i] != null && children[i] != this) {
-                        visitor.visit(this, (char) (baseChar + i), children[i]);
+        // Find the runs, each run starts with a child of a node that isn't in a run.
+        final IdentityHashMap<TrieNode<Void>, ChainNode<Void>> chains = new IdentityHashMap<TrieNode<Void>, ChainNode<Void>>();
+        EntryVisitor<Void> findChainsVisitor = new EntryVisitor<Void>() {
+
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                if (isChainLink(value, failTargets) && !chains.containsKey(value)) {
+                    int length = 0;
+                    for (TrieNode<Void> n = value; isChainLink(n, failTargets); n = ((SingleNode<Void>) n).child) {
+                        length++;
                     }
+                    chains.put(value, thresholdStrategy.isOverChainThreshold(length) ? new ChainNode<Void>((SingleNode<Void>) value, length, true) : null);
                 }
             }
+
+        };
+        for (TrieNode<Void> node : nodes) {
+            if (!isChainLink(node, failTargets)) {
+                node.mapEntries(findChainsVisitor);
+            }
         }
+        // Replace the starts of the runs with chain nodes in trie edges and range node gaps.
+        EntryVisitor<Void> replaceVisitor = new EntryVisitor<Void>() {
 
-        @Override
-        public void updateTransition(char c, TrieNode node) {
-            // First check if the key is between max and min value.
-            // Here we use the fact that char type is unsigned to figure it out
-            // with a single condition.
-            int idx = (char) (c - baseChar);
-            if (idx < size) {
-                if (children[idx] != null) {
-                    children[idx] = node;
-                    return;
-                } else {
-                    throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                ChainNode<Void> chain = chains.get(value);
+                if (chain != null) {
+                    parent.updateTransition(key, chain);
                 }
             }
-            throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+
+        };
+        for (TrieNode<Void> node : nodes) {
+            node.mapEntries(replaceVisitor);
         }
+    }
 
+    private boolean isChainLink(TrieNode<Void> node, IdentityHashMap<TrieNode<Void>, TrieNode<Void>> failTargets) {
+        return node instanceof SingleNode && !node.isEmpty() && node.matchLength == 0 && !failTargets.containsKey(node);
     }
 
-    // Basic node for both
-    private static abstract class TrieNode {
+    // Lay out the suffix matches of every node in one array, so reporting them doesn't chase suffix match
+    // references from node to node. A node's own match stays in matchLength, its outputOffset points
+    // at the number of its suffix matches, followed by their lengths. Nodes with the same suffix match
+    // share the list, offset 0 is the empty list.
+    private void buildOutputs() {
+        final IdentityHashMap<TrieNode<Void>, Integer> offsets = new IdentityHashMap<TrieNode<Void>, Integer>();
+        int[] outputs = new int[16];
+        int size = 1;
+        outputOffset = new int[suffixMatch.length];
+        for (int id = 0; id < suffixMatch.length; id++) {
+            if (suffixMatch[id] != null) {
+                Integer offset = offsets.get(suffixMatch[id]);
+                if (offset == null) {
+                    offset = size;
+                    int count = 0;
+                    for (TrieNode<Void> n = suffixMatch[id]; n != null; n = suffixMatch[n.id]) {
+                        count++;
+                    }
+                    if (size + count + 1 > outputs.length) {
+                        outputs = Arrays.copyOf(outputs, Math.max(outputs.length * 2, size + count + 1));
+                    }
+                    outputs[size++] = count;
+                    for (TrieNode<Void> n = suffixMatch[id]; n != null; n = suffixMatch[n.id]) {
+                        outputs[size++] = n.matchLength;
+                    }
+                    offsets.put(suffixMatch[id], offset);
+                }
+                outputOffset[id] = offset;
+            }
+        }
+        this.outputs = Arrays.copyOf(outputs, size);
+    }
 
-        protected TrieNode defaultTransition = null;
-        protected TrieNode failTransition;
-        protected int matchLength = 0;
-        protected TrieNode suffixMatch;
 
-        protected TrieNode(boolean root) {
-            this.defaultTransition = root ? this : null;
+    // Walk the sample like the match loop does and count lookups on each node (index 0 of the counts) and
+    // transitions taken to it (index 1), see train. Lookups after fail transitions count on the node the
+    // fail transition leads to.
+    private IdentityHashMap<TrieNode<Void>, long[]> profile(String sample) {
+        TrieCursor.Profile<Void> cursor = new TrieCursor.Profile<Void>(root);
+        for (int idx = 0; idx < sample.length(); idx++) {
+            cursor.step(charClasses[sample.charAt(idx)]);
         }
+        return cursor.hits;
+    }
 
-        // Get fail transition
-        public final TrieNode getFailTransition() {
-            return failTransition;
+    // Let the thresholder plan node types with a view of the whole trie, see Thresholder.plan. Reports
+    // every node with at least 2 children, the root only if it's optimized like the other nodes.
+    private static Thresholder plan(HashmapNode<Void> root, boolean optimizeRoot, Thresholder thresholdStrategy) {
+        int[] sizes = new int[16];
+        int[] levels = new int[16];
+        int[] keyIntervalSizes = new int[16];
+        int count = 0;
+        ArrayList<HashmapNode<Void>> layer = new ArrayList<HashmapNode<Void>>();
+        layer.add(root);
+        for (int level = 0; !layer.isEmpty(); level++) {
+            ArrayList<HashmapNode<Void>> nextLayer = new ArrayList<HashmapNode<Void>>();
+            for (HashmapNode<Void> node : layer) {
+                char minKey = '\uffff';
+                char maxKey = 0;
+                for (int i = 0; i < node.children.length; i++) {
+                    if (node.children[i] != null) {
+                        minKey = (char) Math.min(minKey, node.keys[i]);
+                        maxKey = (char) Math.max(maxKey, node.keys[i]);
+                        nextLayer.add((HashmapNode<Void>) node.children[i]);
+                    }
+                }
+                if (node.numEntries > 1 && (level > 0 || optimizeRoot)) {
+                    if (count == sizes.length) {
+                        sizes = Arrays.copyOf(sizes, count * 2);
+                        levels = Arrays.copyOf(levels, count * 2);
+                        keyIntervalSizes = Arrays.copyOf(keyIntervalSizes, count * 2);
+                    }
+                    sizes[count] = node.numEntries;
+                    levels[count] = level;
+                    keyIntervalSizes[count++] = maxKey - minKey + 1;
+                }
+            }
+            layer = nextLayer;
         }
+        return thresholdStrategy.plan(Arrays.copyOf(sizes, count), Arrays.copyOf(levels, count), Arrays.copyOf(keyIntervalSizes, count));
+    }
 
-        // Get transition (root node returns something non-null for all characters - itself)
-        public abstract TrieNode getTransition(char c);
+    // State of the match loop between chunks. A whitespace run is collapsed when it ends, which can be in
+    // a later chunk, so its transition waits till then.
+    private final class StreamMatcher implements Matcher {
 
-        public abstract boolean isEmpty();
+        private final TrieCursor<Void> cursor = new TrieCursor<Void>(root);
+        private final StreamSetMatchListener listener;
+        // Position of the next character in the text.
+        private long position = 0;
+        private int skipped = 0;
+        private boolean stopped = false;
+        private boolean whitespaceRun = false;
 
-        public abstract void mapEntries(final EntryVisitor visitor);
+        private StreamMatcher(StreamSetMatchListener listener) {
+            this.listener = listener;
+        }
 
-        // Report matches at this node. Use at matching.
-        public final boolean output(String haystack, SetMatchListener listener, int idx, int skipped) {
-            // since idx is the last character in the match
-            // position it past the match (to be consistent with conventions)
-            boolean ret = true;
-            if (matchLength > 0) {
-                ret = listener.match(haystack, idx - skipped - matchLength, idx);
-                TrieNode suffixMatch = this.suffixMatch;
-                while (suffixMatch != null && ret) {
-                    ret = listener.match(haystack, idx - skipped - suffixMatch.matchLength, idx);
-                    suffixMatch = suffixMatch.suffixMatch;
+        public boolean feed(final char[] chunk, final int off, final int len) {
+            if (stopped) {
+                return false;
+            }
+            // Local copies of the state for the loop.
+            final boolean skipWhitespace = whitespaceReader.enabled();
+            int skipped = this.skipped;
+            boolean whitespaceRun = this.whitespaceRun;
+            // Position of the chunk array start in the text.
+            final long base = position - off;
+            final int end = off + len;
+            int idx = off;
+            while (idx < end) {
+                char c = chunk[idx];
+                if (whitespaceRun) {
+                    if (whitespaceReader.isWhitespace(c)) {
+                        ++skipped;
+                        ++idx;
+                        continue;
+                    }
+                    // The run is over, take its transition now and look at this character in the next
+                    // iteration.
+                    whitespaceRun = false;
+                    c = ' ';
+                } else if (skipWhitespace && cursor.node != root && whitespaceReader.isWhitespace(c)) {
+                    whitespaceRun = true;
+                    ++idx;
+                    continue;
+                } else {
+                    ++idx;
+                }
+                cursor.step(charClasses[c]);
+                if (cursor.node == root) {
+                    skipped = 0;
+                }
+                if (!output(cursor.node, listener, base + idx, skipped)) {
+                    stopped = true;
+                    return false;
+                }
+            }
+            this.skipped = skipped;
+            this.whitespaceRun = whitespaceRun;
+            position = base + end;
+            return true;
+        }
+
+        public void finish() {
+            if (whitespaceRun && !stopped) {
+                // Text ends with a whitespace run, take its transition.
+                cursor.step(charClasses[' ']);
+                if (cursor.node == root) {
+                    skipped = 0;
                 }
+                output(cursor.node, listener, position, skipped);
             }
-            return ret;
+            cursor.reset();
+            position = 0;
+            skipped = 0;
+            stopped = false;
+            whitespaceRun = false;
         }
+    }
 
-        public abstract void updateTransition(char c, TrieNode node);
+    // Report matches at this node. Use at matching.
+    private boolean output(TrieNode<Void> node, String haystack, SetMatchListener listener, int idx, int skipped) {
+        // since idx is the last character in the match
+        // position it past the match (to be consistent with conventions)
+        boolean ret = true;
+        final int matchLength = node.matchLength;
+        if (matchLength > 0) {
+            ret = listener.match(haystack, idx - skipped - matchLength, idx);
+            final int offset = outputOffset[node.id];
+            final int end = offset + outputs[offset];
+            for (int i = offset + 1; i <= end && ret; i++) {
+                ret = listener.match(haystack, idx - skipped - outputs[i], idx);
+            }
+        }
+        return ret;
+    }
 
-        protected TrieNode optimizeNode(int level, Thresholder thresholdStrategy) {
-            return this;
+    private boolean outputSequence(TrieNode<Void> node, CharSequence haystack, CharSequenceSetMatchListener listener, int idx, int skipped) {
+        // since idx is the last character in the match
+        // position it past the match (to be consistent with conventions)
+        boolean ret = true;
+        final int matchLength = node.matchLength;
+        if (matchLength > 0) {
+            ret = listener.match(haystack, idx - skipped - matchLength, idx);
+            final int offset = outputOffset[node.id];
+            final int end = offset + outputs[offset];
+            for (int i = offset + 1; i <= end && ret; i++) {
+                ret = listener.match(haystack, idx - skipped - outputs[i], idx);
+            }
         }
+        return ret;
+    }
 
+    private boolean output(TrieNode<Void> node, StreamSetMatchListener listener, long idx, int skipped) {
+        boolean ret = true;
+        final int matchLength = node.matchLength;
+        if (matchLength > 0) {
+            ret = listener.match(idx - skipped - matchLength, idx);
+            final int offset = outputOffset[node.id];
+            final int end = offset + outputs[offset];
+            for (int i = offset + 1; i <= end && ret; i++) {
+                ret = listener.match(idx - skipped - outputs[i], idx);
+            }
+        }
+        return ret;
     }
 
     public static String trimSpaces(String value) {
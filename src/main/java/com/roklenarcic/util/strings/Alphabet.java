@@ -0,0 +1,70 @@
+package com.roklenarcic.util.strings;
+
+import java.util.Arrays;
+
+// Maps characters to dense class ids, the trie nodes are keyed by class ids instead of
+// raw characters. Keyword characters get ids 1, 2, 3... in order of appearance, characters
+// that don't appear in any keyword all share class 0. Case insensitive alphabets map every
+// character to the class of its lower case, so matching doesn't need to lower case the input.
+//
+// Small dense keys keep range nodes small and make them usable at many more trie levels,
+// especially for dictionaries in scripts far from the start of the character table.
+final class Alphabet {
+
+    private final boolean caseSensitive;
+    // Character for each class id.
+    private char[] chars = new char[16];
+    // Class id for each character.
+    private char[] classes = new char[65536];
+    private boolean folded = false;
+    private int size = 1;
+
+    Alphabet(boolean caseSensitive) {
+        this.caseSensitive = caseSensitive;
+    }
+
+    // Returns class id for a keyword character, adding a new class if needed.
+    char add(char c) {
+        if (!caseSensitive) {
+            c = Character.toLowerCase(c);
+        }
+        char id = classes[c];
+        // When all 65535 other ids are used up, the one character left gets class 0, which is
+        // then no longer shared with anything.
+        if (id == 0 && size < 0x10000) {
+            if (size == chars.length) {
+                chars = Arrays.copyOf(chars, Math.min(size * 2, 0x10000));
+            }
+            id = (char) size++;
+            classes[c] = id;
+            chars[id] = c;
+        } else if (id == 0) {
+            chars[0] = c;
+        }
+        return id;
+    }
+
+    // Character a class id was created for, case insensitive alphabets return the lower case.
+    char charOf(char id) {
+        return chars[id];
+    }
+
+    // Number of class ids, including class 0.
+    int size() {
+        return size;
+    }
+
+    // Returns the lookup table for the match loops. No classes can be added after.
+    char[] classes() {
+        if (!caseSensitive && !folded) {
+            char[] lowerCaseClasses = new char[65536];
+            for (int c = 0; c < lowerCaseClasses.length; c++) {
+                lowerCaseClasses[c] = classes[Character.toLowerCase((char) c)];
+            }
+            classes = lowerCaseClasses;
+            folded = true;
+        }
+        return classes;
+    }
+
+}
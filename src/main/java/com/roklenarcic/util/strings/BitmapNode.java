@@ -0,0 +1,125 @@
+package com.roklenarcic.util.strings;
+
+import java.util.IdentityHashMap;
+
+// This node is good at representing sparse ranges of keys, too spread out for a range node.
+// A bitmap over the key range marks the keys that have a child, children are packed in
+// key order and the position of a child is the number of set bits before its key.
+final class BitmapNode<T> extends TrieNode<T> {
+
+    private char baseChar = 0;
+    private TrieNode<T>[] children;
+    // Bitmap words, each followed by the number of children before that word.
+    private int[] index;
+    private int size = 0;
+
+    BitmapNode(HashmapNode<T> oldNode, char from, char to) {
+        oldNode.copyTo(this);
+        this.baseChar = from;
+        this.size = to - from + 1;
+        // Avoid even allocating arrays if size is 0.
+        if (size <= 0) {
+            size = 0;
+        } else {
+            this.index = new int[((size + 31) >>> 5) * 2];
+            for (int i = 0; i < oldNode.children.length; i++) {
+                if (oldNode.children[i] != null) {
+                    int idx = oldNode.keys[i] - from;
+                    index[(idx >>> 5) << 1] |= 1 << idx;
+                }
+            }
+            int rank = 0;
+            for (int i = 0; i < index.length; i += 2) {
+                index[i + 1] = rank;
+                rank += Integer.bitCount(index[i]);
+            }
+            this.children = TrieNode.newArray(rank);
+            for (int i = 0; i < oldNode.children.length; i++) {
+                if (oldNode.children[i] != null) {
+                    children[rank(oldNode.keys[i] - from)] = oldNode.children[i];
+                }
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        children = null;
+        index = null;
+        size = 0;
+    }
+
+    @Override
+    protected void relink(IdentityHashMap<TrieNode<T>, TrieNode<T>> replacements) {
+        super.relink(replacements);
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                children[i] = replacements.get(children[i]);
+            }
+        }
+    }
+
+    @Override
+    public TrieNode<T> getTransition(char c) {
+        // First check if the key is between max and min value.
+        // Here we use the fact that char type is unsigned to figure it out
+        // with a single condition.
+        int idx = (char) (c - baseChar);
+        if (idx < size) {
+            int word = (idx >>> 5) << 1;
+            int bits = index[word];
+            // Shift distance only uses the low 5 bits of idx.
+            int bit = 1 << idx;
+            if ((bits & bit) != 0) {
+                return children[index[word + 1] + Integer.bitCount(bits & (bit - 1))];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void mapEntries(EntryVisitor<T> visitor) {
+        if (children != null) {
+            int child = 0;
+            for (int i = 0; i < index.length; i += 2) {
+                int bits = index[i];
+                while (bits != 0) {
+                    visitor.visit(this, (char) (baseChar + (i << 4) + Integer.numberOfTrailingZeros(bits)), children[child++]);
+                    bits &= bits - 1;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void updateTransition(char c, TrieNode<T> node) {
+        // First check if the key is between max and min value.
+        // Here we use the fact that char type is unsigned to figure it out
+        // with a single condition.
+        int idx = (char) (c - baseChar);
+        if (idx < size) {
+            int child = rank(idx);
+            if (child != -1) {
+                children[child] = node;
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+    }
+
+    // Position of the child for a key offset, -1 if there's no child.
+    private int rank(int idx) {
+        int word = (idx >>> 5) << 1;
+        int bit = 1 << idx;
+        if ((index[word] & bit) == 0) {
+            return -1;
+        }
+        return index[word + 1] + Integer.bitCount(index[word] & (bit - 1));
+    }
+
+}
@@ -0,0 +1,193 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Standard Aho-Corasick map over bytes, for matching UTF-8 text or binary data without decoding it.
+// Keywords are encoded to UTF-8, or given as raw byte patterns. Same matches as AhoCorasickMap would
+// find in the text, but positions are byte offsets. The automaton is compiled into a full DFA, see
+// DfaAhoCorasickMap, with at most 256 columns.
+public class ByteAhoCorasickMap<T> implements ByteMap<T> {
+
+    private int alphabetSize;
+    // Table column for each input byte.
+    private char[] classes;
+    private Dfa dfa;
+    // Key for each input byte.
+    private char[] keys;
+    private int[] matchLength;
+    private int rows;
+    private int[] suffix;
+    private int[] table;
+    private Object[] values;
+
+    // Raw byte patterns, matched exactly.
+    public ByteAhoCorasickMap(final Iterable<byte[]> patterns, final Iterable<? extends T> values) {
+        this(patterns, values, DfaAhoCorasickMap.DEFAULT_MAX_TABLE_BYTES);
+    }
+
+    public ByteAhoCorasickMap(final Iterable<byte[]> patterns, final Iterable<? extends T> values, int maxTableBytes) {
+        this(new AhoCorasickMap<T>(ByteKeywords.patterns(patterns), values, true, DfaAhoCorasickMap.HASHMAP_NODES_ONLY).flatten(), true,
+                maxTableBytes);
+    }
+
+    // Keywords encoded to UTF-8, case insensitive maps ignore the case of ASCII letters only.
+    public ByteAhoCorasickMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive) {
+        this(keywords, values, caseSensitive, DfaAhoCorasickMap.DEFAULT_MAX_TABLE_BYTES);
+    }
+
+    public ByteAhoCorasickMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive, int maxTableBytes) {
+        this(new AhoCorasickMap<T>(ByteKeywords.utf8(keywords, caseSensitive), values, true, DfaAhoCorasickMap.HASHMAP_NODES_ONLY).flatten(),
+                caseSensitive, maxTableBytes);
+    }
+
+    private ByteAhoCorasickMap(FlatTrie trie, boolean caseSensitive, int maxTableBytes) {
+        this.dfa = new Dfa(trie, maxTableBytes);
+        this.alphabetSize = dfa.alphabetSize;
+        this.keys = ByteKeywords.keys(caseSensitive);
+        this.classes = new char[256];
+        for (int b = 0; b < classes.length; b++) {
+            classes[b] = dfa.alphabet[keys[b]];
+        }
+        this.rows = dfa.rows;
+        this.table = dfa.table;
+        this.matchLength = Arrays.copyOf(trie.matchLength, trie.size);
+        this.suffix = Arrays.copyOf(trie.suffixState, trie.size);
+        this.values = Arrays.copyOf(trie.values, trie.size);
+    }
+
+    public void match(final byte[] haystack, final ByteMapMatchListener<T> listener) {
+        match(haystack, 0, haystack.length, 0, listener);
+    }
+
+    public void match(final byte[] haystack, final int from, final int to, final ByteMapMatchListener<T> listener) {
+        match(haystack, from, to, 0, listener);
+    }
+
+    public void match(final ByteBuffer haystack, final ByteMapMatchListener<T> listener) {
+        if (haystack.hasArray()) {
+            int offset = haystack.arrayOffset();
+            match(haystack.array(), offset + haystack.position(), offset + haystack.limit(), offset, listener);
+            return;
+        }
+        // Local copy of the array for the loop.
+        final int[] matchLength = this.matchLength;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        int idx = haystack.position();
+        final int to = haystack.limit();
+        while (idx < to) {
+            final int b = haystack.get(idx) & 0xFF;
+            currentState = step(currentState, b);
+            ++idx;
+            // Output any matches on the current state
+            if (matchLength[currentState] > 0 && !output(listener, currentState, idx)) {
+                return;
+            }
+        }
+    }
+
+    public void matchFile(final Path file, final FileMapMatchListener<T> listener) throws IOException {
+        matchFile(file, listener, ByteAhoCorasickSet.WINDOW_BYTES);
+    }
+
+    // Match the file mapped in windows of the given size.
+    void matchFile(final Path file, final FileMapMatchListener<T> listener, final int windowBytes) throws IOException {
+        // Local copy of the array for the loop.
+        final int[] matchLength = this.matchLength;
+
+        // Start with the root state, the state carries over from one window to the next.
+        int currentState = 0;
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            final long size = channel.size();
+            for (long windowStart = 0; windowStart < size; windowStart += windowBytes) {
+                MappedByteBuffer window = channel.map(MapMode.READ_ONLY, windowStart, Math.min(windowBytes, size - windowStart));
+                int idx = 0;
+                final int to = window.limit();
+                while (idx < to) {
+                    final int b = window.get(idx) & 0xFF;
+                    currentState = step(currentState, b);
+                    ++idx;
+                    // Output any matches on the current state
+                    if (matchLength[currentState] > 0 && !outputFile(listener, currentState, windowStart + idx)) {
+                        return;
+                    }
+                }
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = new MemoryUsage();
+        usage.addArray(MemoryUsage.ALPHABET, classes);
+        usage.addArray(MemoryUsage.ALPHABET, keys);
+        usage.addArray(MemoryUsage.STATES, matchLength);
+        usage.addArray(MemoryUsage.STATES, suffix);
+        usage.addArray(MemoryUsage.STATES, table);
+        usage.addObject(MemoryUsage.STATES, dfa);
+        usage.addArray(MemoryUsage.VALUES, values);
+        return usage;
+    }
+
+    // Positions are reported relative to offset, which is where a heap buffer starts in its array.
+    private void match(final byte[] haystack, final int from, final int to, final int offset, final ByteMapMatchListener<T> listener) {
+        // Local copy of the array for the loop.
+        final int[] matchLength = this.matchLength;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        int idx = from;
+        while (idx < to) {
+            final int b = haystack[idx] & 0xFF;
+            currentState = step(currentState, b);
+            ++idx;
+            // Output any matches on the current state
+            if (matchLength[currentState] > 0 && !output(listener, currentState, idx - offset)) {
+                return;
+            }
+        }
+    }
+
+    // Take the transition from the state on the byte, states without a table row take the slow path.
+    private int step(final int state, final int b) {
+        return state < rows ? table[state * alphabetSize + classes[b]] : dfa.slowTransition(state, keys[b]);
+    }
+
+    // Report matches at this state, including all suffix matches.
+    @SuppressWarnings("unchecked")
+    private boolean outputFile(FileMapMatchListener<T> listener, int state, long idx) {
+        boolean ret = listener.match(idx - matchLength[state], idx, (T) values[state]);
+        int suffixState = suffix[state];
+        while (suffixState != FlatTrie.NONE && ret) {
+            ret = listener.match(idx - matchLength[suffixState], idx, (T) values[suffixState]);
+            suffixState = suffix[suffixState];
+        }
+        return ret;
+    }
+
+    // Report matches at this state, including all suffix matches.
+    @SuppressWarnings("unchecked")
+    private boolean output(ByteMapMatchListener<T> listener, int state, int idx) {
+        boolean ret = listener.match(idx - matchLength[state], idx, (T) values[state]);
+        int suffixState = suffix[state];
+        while (suffixState != FlatTrie.NONE && ret) {
+            ret = listener.match(idx - matchLength[suffixState], idx, (T) values[suffixState]);
+            suffixState = suffix[suffixState];
+        }
+        return ret;
+    }
+
+}
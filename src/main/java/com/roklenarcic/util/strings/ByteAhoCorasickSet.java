@@ -0,0 +1,191 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Standard Aho-Corasick set over bytes, for matching UTF-8 text or binary data without decoding it.
+// Keywords are encoded to UTF-8, or given as raw byte patterns. Same matches as AhoCorasickSet would
+// find in the text, but positions are byte offsets. The automaton is compiled into a full DFA, see
+// DfaAhoCorasickMap, with at most 256 columns.
+public class ByteAhoCorasickSet implements ByteSet {
+
+    // Size of the windows files are mapped in.
+    static final int WINDOW_BYTES = 1 << 30;
+
+    private int alphabetSize;
+    // Table column for each input byte.
+    private char[] classes;
+    private Dfa dfa;
+    // Key for each input byte.
+    private char[] keys;
+    private int[] matchLength;
+    private int rows;
+    private int[] suffix;
+    private int[] table;
+
+    // Raw byte patterns, matched exactly.
+    public ByteAhoCorasickSet(final Iterable<byte[]> patterns) {
+        this(patterns, DfaAhoCorasickMap.DEFAULT_MAX_TABLE_BYTES);
+    }
+
+    public ByteAhoCorasickSet(final Iterable<byte[]> patterns, int maxTableBytes) {
+        this(new AhoCorasickSet(ByteKeywords.patterns(patterns), true, false, DfaAhoCorasickMap.HASHMAP_NODES_ONLY).flatten(), true,
+                maxTableBytes);
+    }
+
+    // Keywords encoded to UTF-8, case insensitive sets ignore the case of ASCII letters only.
+    public ByteAhoCorasickSet(final Iterable<String> keywords, boolean caseSensitive) {
+        this(keywords, caseSensitive, DfaAhoCorasickMap.DEFAULT_MAX_TABLE_BYTES);
+    }
+
+    public ByteAhoCorasickSet(final Iterable<String> keywords, boolean caseSensitive, int maxTableBytes) {
+        this(new AhoCorasickSet(ByteKeywords.utf8(keywords, caseSensitive), true, false, DfaAhoCorasickMap.HASHMAP_NODES_ONLY).flatten(), caseSensitive,
+                maxTableBytes);
+    }
+
+    private ByteAhoCorasickSet(FlatTrie trie, boolean caseSensitive, int maxTableBytes) {
+        this.dfa = new Dfa(trie, maxTableBytes);
+        this.alphabetSize = dfa.alphabetSize;
+        this.keys = ByteKeywords.keys(caseSensitive);
+        this.classes = new char[256];
+        for (int b = 0; b < classes.length; b++) {
+            classes[b] = dfa.alphabet[keys[b]];
+        }
+        this.rows = dfa.rows;
+        this.table = dfa.table;
+        this.matchLength = Arrays.copyOf(trie.matchLength, trie.size);
+        this.suffix = Arrays.copyOf(trie.suffixState, trie.size);
+    }
+
+    public void match(final byte[] haystack, final ByteSetMatchListener listener) {
+        match(haystack, 0, haystack.length, 0, listener);
+    }
+
+    public void match(final byte[] haystack, final int from, final int to, final ByteSetMatchListener listener) {
+        match(haystack, from, to, 0, listener);
+    }
+
+    public void match(final ByteBuffer haystack, final ByteSetMatchListener listener) {
+        if (haystack.hasArray()) {
+            int offset = haystack.arrayOffset();
+            match(haystack.array(), offset + haystack.position(), offset + haystack.limit(), offset, listener);
+            return;
+        }
+        // Local copy of the array for the loop.
+        final int[] matchLength = this.matchLength;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        int idx = haystack.position();
+        final int to = haystack.limit();
+        while (idx < to) {
+            final int b = haystack.get(idx) & 0xFF;
+            currentState = step(currentState, b);
+            ++idx;
+            // Output any matches on the current state
+            if (matchLength[currentState] > 0 && !output(listener, currentState, idx)) {
+                return;
+            }
+        }
+    }
+
+    public void matchFile(final Path file, final FileSetMatchListener listener) throws IOException {
+        matchFile(file, listener, WINDOW_BYTES);
+    }
+
+    // Match the file mapped in windows of the given size.
+    void matchFile(final Path file, final FileSetMatchListener listener, final int windowBytes) throws IOException {
+        // Local copy of the array for the loop.
+        final int[] matchLength = this.matchLength;
+
+        // Start with the root state, the state carries over from one window to the next.
+        int currentState = 0;
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            final long size = channel.size();
+            for (long windowStart = 0; windowStart < size; windowStart += windowBytes) {
+                MappedByteBuffer window = channel.map(MapMode.READ_ONLY, windowStart, Math.min(windowBytes, size - windowStart));
+                int idx = 0;
+                final int to = window.limit();
+                while (idx < to) {
+                    final int b = window.get(idx) & 0xFF;
+                    currentState = step(currentState, b);
+                    ++idx;
+                    // Output any matches on the current state
+                    if (matchLength[currentState] > 0 && !outputFile(listener, currentState, windowStart + idx)) {
+                        return;
+                    }
+                }
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = new MemoryUsage();
+        usage.addArray(MemoryUsage.ALPHABET, classes);
+        usage.addArray(MemoryUsage.ALPHABET, keys);
+        usage.addArray(MemoryUsage.STATES, matchLength);
+        usage.addArray(MemoryUsage.STATES, suffix);
+        usage.addArray(MemoryUsage.STATES, table);
+        usage.addObject(MemoryUsage.STATES, dfa);
+        return usage;
+    }
+
+    // Positions are reported relative to offset, which is where a heap buffer starts in its array.
+    private void match(final byte[] haystack, final int from, final int to, final int offset, final ByteSetMatchListener listener) {
+        // Local copy of the array for the loop.
+        final int[] matchLength = this.matchLength;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        int idx = from;
+        while (idx < to) {
+            final int b = haystack[idx] & 0xFF;
+            currentState = step(currentState, b);
+            ++idx;
+            // Output any matches on the current state
+            if (matchLength[currentState] > 0 && !output(listener, currentState, idx - offset)) {
+                return;
+            }
+        }
+    }
+
+    // Take the transition from the state on the byte, states without a table row take the slow path.
+    private int step(final int state, final int b) {
+        return state < rows ? table[state * alphabetSize + classes[b]] : dfa.slowTransition(state, keys[b]);
+    }
+
+    // Report matches at this state, including all suffix matches.
+    private boolean outputFile(FileSetMatchListener listener, int state, long idx) {
+        boolean ret = listener.match(idx - matchLength[state], idx);
+        int suffixState = suffix[state];
+        while (suffixState != FlatTrie.NONE && ret) {
+            ret = listener.match(idx - matchLength[suffixState], idx);
+            suffixState = suffix[suffixState];
+        }
+        return ret;
+    }
+
+    // Report matches at this state, including all suffix matches.
+    private boolean output(ByteSetMatchListener listener, int state, int idx) {
+        boolean ret = listener.match(idx - matchLength[state], idx);
+        int suffixState = suffix[state];
+        while (suffixState != FlatTrie.NONE && ret) {
+            ret = listener.match(idx - matchLength[suffixState], idx);
+            suffixState = suffix[suffixState];
+        }
+        return ret;
+    }
+
+}
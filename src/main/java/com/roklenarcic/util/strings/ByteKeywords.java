@@ -0,0 +1,92 @@
+package com.roklenarcic.util.strings;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Byte engines build the char based automaton over keywords where every char is a byte (0 - 255) and
+// compile that. This turns keywords into such strings and input bytes into such chars.
+final class ByteKeywords {
+
+    private ByteKeywords() {
+    }
+
+    // Chars for input bytes. Case insensitive engines only lower case ASCII letters, in UTF-8 all other
+    // letters take more than one byte and their case can't be changed a byte at a time.
+    static char[] keys(boolean caseSensitive) {
+        char[] keys = new char[256];
+        for (int b = 0; b < keys.length; b++) {
+            keys[b] = (char) (!caseSensitive && b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b);
+        }
+        return keys;
+    }
+
+    // Raw byte patterns, always case sensitive.
+    static List<String> patterns(Iterable<byte[]> patterns) {
+        List<String> ret = new ArrayList<String>();
+        for (byte[] pattern : patterns) {
+            ret.add(pattern == null ? null : new String(pattern, StandardCharsets.ISO_8859_1));
+        }
+        return ret;
+    }
+
+    // Keywords encoded to UTF-8.
+    static List<String> utf8(Iterable<String> keywords, boolean caseSensitive) {
+        char[] keys = keys(caseSensitive);
+        List<String> ret = new ArrayList<String>();
+        for (String keyword : keywords) {
+            if (keyword == null) {
+                ret.add(null);
+            } else {
+                byte[] bytes = keyword.getBytes(StandardCharsets.UTF_8);
+                char[] chars = new char[bytes.length];
+                for (int i = 0; i < bytes.length; i++) {
+                    chars[i] = keys[bytes[i] & 0xFF];
+                }
+                ret.add(new String(chars));
+            }
+        }
+        return ret;
+    }
+
+    // Whole word keywords encoded to UTF-8. The char based map rejects keywords with non-word characters,
+    // but it would report them as one char per byte, so they're checked here and the message has the
+    // keyword decoded back from UTF-8.
+    static List<String> words(Iterable<String> keywords, boolean caseSensitive, boolean[] wordChars) {
+        List<String> ret = utf8(keywords, caseSensitive);
+        for (String keyword : ret) {
+            if (keyword != null) {
+                keyword = WordCharacters.trim(keyword, wordChars);
+                for (int i = 0; i < keyword.length(); i++) {
+                    if (!wordChars[keyword.charAt(i)]) {
+                        throw new IllegalArgumentException(new String(keyword.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8)
+                                + " contains non-word characters.");
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    // ASCII letters and digits, '-' and '_', and all bytes of multi-byte UTF-8 sequences, so
+    // letters outside ASCII are word characters (as are other characters outside ASCII).
+    static char[] wordBytes() {
+        StringBuilder sb = new StringBuilder("-_");
+        for (char c = 0; c < 256; c++) {
+            if (c >= 0x80 || Character.isLetterOrDigit(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString().toCharArray();
+    }
+
+    // Given word bytes.
+    static char[] wordBytes(byte[] wordBytes) {
+        char[] ret = new char[wordBytes.length];
+        for (int i = 0; i < wordBytes.length; i++) {
+            ret[i] = (char) (wordBytes[i] & 0xFF);
+        }
+        return ret;
+    }
+
+}
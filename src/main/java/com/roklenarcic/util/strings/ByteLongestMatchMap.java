@@ -0,0 +1,215 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Matches leftmost longest matches over bytes, for matching UTF-8 text or binary data without decoding
+// it. Keywords are encoded to UTF-8, or given as raw byte patterns. Same matches as LongestMatchMap would
+// find in the text, but positions are byte offsets. The automaton is compiled into a double array, see
+// DoubleArrayAhoCorasickMap.
+public class ByteLongestMatchMap<T> implements ByteMap<T> {
+
+    private int[] base;
+    private int[] check;
+    private int[] fail;
+    // Key for each input byte.
+    private char[] keys;
+    private int[] level;
+    private int[] matchLength;
+    private int[] suffix;
+    private Object[] values;
+
+    // Raw byte patterns, matched exactly.
+    public ByteLongestMatchMap(final Iterable<byte[]> patterns, final Iterable<? extends T> values) {
+        this(new LongestMatchMap<T>(ByteKeywords.patterns(patterns), values, true).flatten(), true);
+    }
+
+    // Keywords encoded to UTF-8, case insensitive maps ignore the case of ASCII letters only.
+    public ByteLongestMatchMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive) {
+        this(new LongestMatchMap<T>(ByteKeywords.utf8(keywords, caseSensitive), values, true).flatten(), caseSensitive);
+    }
+
+    private ByteLongestMatchMap(FlatTrie trie, boolean caseSensitive) {
+        DoubleArray doubleArray = new DoubleArray(trie, 256);
+        this.base = doubleArray.base;
+        this.check = doubleArray.check;
+        this.fail = doubleArray.placeStates(trie.failState);
+        this.keys = ByteKeywords.keys(caseSensitive);
+        this.level = doubleArray.placeInts(trie.depth);
+        this.matchLength = doubleArray.placeInts(trie.matchLength);
+        this.suffix = doubleArray.placeStates(trie.suffixState);
+        this.values = doubleArray.place(trie.values);
+    }
+
+    public void match(final byte[] haystack, final ByteMapMatchListener<T> listener) {
+        match(haystack, 0, haystack.length, 0, listener);
+    }
+
+    public void match(final byte[] haystack, final int from, final int to, final ByteMapMatchListener<T> listener) {
+        match(haystack, from, to, 0, listener);
+    }
+
+    public void match(final ByteBuffer haystack, final ByteMapMatchListener<T> listener) {
+        if (haystack.hasArray()) {
+            int offset = haystack.arrayOffset();
+            match(haystack.array(), offset + haystack.position(), offset + haystack.limit(), offset, listener);
+            return;
+        }
+        // Local copies of the arrays for the loop.
+        final char[] keys = this.keys;
+        final int[] level = this.level;
+
+        // Start with the root state.
+        int currentState = 0;
+        MapMatchQueue<T> queue = new MapMatchQueue<T>();
+
+        int idx = haystack.position();
+        final int to = haystack.limit();
+        while (idx < to) {
+            final char c = keys[haystack.get(idx) & 0xFF];
+            // A fail transition was followed if the state comes back complemented.
+            int nextState = step(currentState, c);
+            final boolean failTransition = nextState < 0;
+            currentState = failTransition ? ~nextState : nextState;
+            // Output any matches on the current state
+            output(queue, currentState, ++idx);
+            // If fail transition was taken, we can flush the match queue.
+            // We flush all matches that end before the start of the of the fail transition taken.
+            if (failTransition && !queue.matchAndClear(listener, idx - level[currentState])) {
+                return;
+            }
+        }
+        // Flush the rest of the matches.
+        queue.matchAndClear(listener, Integer.MAX_VALUE);
+    }
+
+    public void matchFile(final Path file, final FileMapMatchListener<T> listener) throws IOException {
+        matchFile(file, listener, ByteAhoCorasickSet.WINDOW_BYTES);
+    }
+
+    // Match the file mapped in windows of the given size.
+    void matchFile(final Path file, final FileMapMatchListener<T> listener, final int windowBytes) throws IOException {
+        // Local copies of the arrays for the loop.
+        final char[] keys = this.keys;
+        final int[] level = this.level;
+
+        // Start with the root state, the state carries over from one window to the next.
+        int currentState = 0;
+        // Queued matches are relative to the start of the current window.
+        MapMatchQueue<T> queue = new MapMatchQueue<T>();
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            final long size = channel.size();
+            long windowStart = 0;
+            while (windowStart < size) {
+                MappedByteBuffer window = channel.map(MapMode.READ_ONLY, windowStart, Math.min(windowBytes, size - windowStart));
+                int idx = 0;
+                final int to = window.limit();
+                while (idx < to) {
+                    final char c = keys[window.get(idx) & 0xFF];
+                    // A fail transition was followed if the state comes back complemented.
+                    int nextState = step(currentState, c);
+                    final boolean failTransition = nextState < 0;
+                    currentState = failTransition ? ~nextState : nextState;
+                    // Output any matches on the current state
+                    output(queue, currentState, ++idx);
+                    // If fail transition was taken, we can flush the match queue.
+                    // We flush all matches that end before the start of the of the fail transition taken.
+                    if (failTransition && !queue.matchAndClearFile(listener, idx - level[currentState], windowStart)) {
+                        return;
+                    }
+                }
+                queue.shift(to);
+                windowStart += to;
+            }
+            // Flush the rest of the matches.
+            queue.matchAndClearFile(listener, Integer.MAX_VALUE, windowStart);
+        } finally {
+            channel.close();
+        }
+    }
+
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = new MemoryUsage();
+        usage.addArray(MemoryUsage.ALPHABET, keys);
+        usage.addArray(MemoryUsage.STATES, base);
+        usage.addArray(MemoryUsage.STATES, check);
+        usage.addArray(MemoryUsage.STATES, fail);
+        usage.addArray(MemoryUsage.STATES, level);
+        usage.addArray(MemoryUsage.STATES, matchLength);
+        usage.addArray(MemoryUsage.STATES, suffix);
+        usage.addArray(MemoryUsage.VALUES, values);
+        return usage;
+    }
+
+    // Positions are reported relative to offset, which is where a heap buffer starts in its array.
+    private void match(final byte[] haystack, final int from, final int to, final int offset, final ByteMapMatchListener<T> listener) {
+        // Local copies of the arrays for the loop.
+        final char[] keys = this.keys;
+        final int[] level = this.level;
+
+        // Start with the root state.
+        int currentState = 0;
+        MapMatchQueue<T> queue = new MapMatchQueue<T>();
+
+        int idx = from;
+        while (idx < to) {
+            final char c = keys[haystack[idx] & 0xFF];
+            // A fail transition was followed if the state comes back complemented.
+            int nextState = step(currentState, c);
+            final boolean failTransition = nextState < 0;
+            currentState = failTransition ? ~nextState : nextState;
+            // Output any matches on the current state
+            output(queue, currentState, ++idx - offset);
+            // If fail transition was taken, we can flush the match queue.
+            // We flush all matches that end before the start of the of the fail transition taken.
+            if (failTransition && !queue.matchAndClear(listener, idx - offset - level[currentState])) {
+                return;
+            }
+        }
+        // Flush the rest of the matches.
+        queue.matchAndClear(listener, Integer.MAX_VALUE);
+    }
+
+    // Take the transition from the state on the byte. If there is none, follow fail transitions until
+    // finding a state that has one. Root takes itself for any missing transition, that isn't a fail
+    // transition. Returns the state complemented (~) if a fail transition was followed.
+    private int step(int state, final char c) {
+        // Local copies of the arrays for the loop.
+        final int[] base = this.base;
+        final int[] check = this.check;
+        boolean failTransition = false;
+        int nextState = base[state] + c;
+        while (check[nextState] != state) {
+            if (state == 0) {
+                nextState = 0;
+                break;
+            }
+            failTransition = true;
+            state = fail[state];
+            nextState = base[state] + c;
+        }
+        return failTransition ? ~nextState : nextState;
+    }
+
+    // Push matches at this state into the queue. Since all matches at one state are
+    // overlapping suffix matches in descending length, first match accepted into the
+    // queue means subsequent matches won't be, so we stop there.
+    @SuppressWarnings("unchecked")
+    private void output(MapMatchQueue<T> queue, int state, int idx) {
+        if (matchLength[state] != 0) {
+            boolean matchAccepted = false;
+            while (state != FlatTrie.NONE && !matchAccepted) {
+                matchAccepted = queue.push(matchLength[state], idx, (T) values[state]);
+                state = suffix[state];
+            }
+        }
+    }
+
+}
@@ -0,0 +1,18 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+// Positions are byte offsets into the array or buffer, a buffer is matched from its position to its limit.
+// Files are memory mapped a window at a time, so they can be larger than 2GB, and positions are offsets
+// into the file.
+public interface ByteMap<T> extends MemoryAccountable {
+    void match(final byte[] haystack, final ByteMapMatchListener<T> listener);
+
+    void match(final byte[] haystack, final int from, final int to, final ByteMapMatchListener<T> listener);
+
+    void match(final ByteBuffer haystack, final ByteMapMatchListener<T> listener);
+
+    void matchFile(final Path file, final FileMapMatchListener<T> listener) throws IOException;
+}
@@ -0,0 +1,8 @@
+package com.roklenarcic.util.strings;
+
+public interface ByteMapMatchListener<T> {
+
+    // return true to continue matching
+    boolean match(final int startPosition, final int endPosition, final T value);
+
+}
@@ -0,0 +1,18 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+// Positions are byte offsets into the array or buffer, a buffer is matched from its position to its limit.
+// Files are memory mapped a window at a time, so they can be larger than 2GB, and positions are offsets
+// into the file.
+public interface ByteSet extends MemoryAccountable {
+    void match(final byte[] haystack, final ByteSetMatchListener listener);
+
+    void match(final byte[] haystack, final int from, final int to, final ByteSetMatchListener listener);
+
+    void match(final ByteBuffer haystack, final ByteSetMatchListener listener);
+
+    void matchFile(final Path file, final FileSetMatchListener listener) throws IOException;
+}
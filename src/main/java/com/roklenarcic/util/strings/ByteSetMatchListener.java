@@ -0,0 +1,8 @@
+package com.roklenarcic.util.strings;
+
+public interface ByteSetMatchListener {
+
+    // return true to continue matching
+    boolean match(final int startPosition, final int endPosition);
+
+}
@@ -0,0 +1,301 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Whole word longest match map over bytes, for matching UTF-8 text without decoding it. Keywords are
+// encoded to UTF-8. Same matches as WholeWordLongestMatchMap would find in the text, but positions are
+// byte offsets. The automaton is compiled into a double array, see DoubleArrayAhoCorasickMap.
+public class ByteWholeWordLongestMatchMap<T> implements ByteMap<T> {
+
+    private int[] base;
+    private int[] check;
+    // Fail match is the last normal match up the trie before the state, by state.
+    private int[] failMatchLength;
+    private int[] failMatchOffset;
+    private Object[] failValues;
+    // Key for each input byte.
+    private char[] keys;
+    private int[] matchLength;
+    private Object[] values;
+    private boolean[] wordBytes;
+
+    // Map where ASCII letters and digits, '-', '_' and all bytes of characters outside ASCII are
+    // considered word characters.
+    public ByteWholeWordLongestMatchMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive) {
+        this(keywords, values, caseSensitive, ByteKeywords.wordBytes());
+    }
+
+    // Map where the bytes in the given array are considered word characters. Case insensitive maps
+    // ignore the case of ASCII letters only.
+    public ByteWholeWordLongestMatchMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive,
+            byte[] wordCharacters) {
+        this(keywords, values, caseSensitive, ByteKeywords.wordBytes(wordCharacters));
+    }
+
+    private ByteWholeWordLongestMatchMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive,
+            char[] wordCharacters) {
+        this.keys = ByteKeywords.keys(caseSensitive);
+        // Keys are lower cased, so a byte is a word character if its key is.
+        boolean[] wordChars = WordCharacters.generateWordCharsFlags(wordCharacters);
+        this.wordBytes = new boolean[256];
+        for (int b = 0; b < wordBytes.length; b++) {
+            wordBytes[b] = wordChars[keys[b]];
+        }
+        FlatTrie trie = new WholeWordLongestMatchMap<T>(ByteKeywords.words(keywords, caseSensitive, wordChars), values, true, wordCharacters)
+                .flatten();
+        DoubleArray doubleArray = new DoubleArray(trie, 256);
+        this.base = doubleArray.base;
+        this.check = doubleArray.check;
+        this.failMatchLength = doubleArray.placeInts(trie.failMatchLength);
+        this.failMatchOffset = doubleArray.placeInts(trie.failMatchOffset);
+        this.failValues = doubleArray.place(trie.failValues);
+        this.matchLength = doubleArray.placeInts(trie.matchLength);
+        this.values = doubleArray.place(trie.values);
+    }
+
+    public void match(final byte[] haystack, final ByteMapMatchListener<T> listener) {
+        match(haystack, 0, haystack.length, 0, listener);
+    }
+
+    public void match(final byte[] haystack, final int from, final int to, final ByteMapMatchListener<T> listener) {
+        match(haystack, from, to, 0, listener);
+    }
+
+    public void match(final ByteBuffer haystack, final ByteMapMatchListener<T> listener) {
+        if (haystack.hasArray()) {
+            int offset = haystack.arrayOffset();
+            match(haystack.array(), offset + haystack.position(), offset + haystack.limit(), offset, listener);
+            return;
+        }
+        // Local copies of the arrays for the loop.
+        final int[] base = this.base;
+        final int[] check = this.check;
+        final char[] keys = this.keys;
+        final boolean[] wordBytes = this.wordBytes;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        int idx = haystack.position();
+        final int to = haystack.limit();
+        while (idx < to) {
+            final int b = haystack.get(idx) & 0xFF;
+            int nextState = base[currentState] + keys[b];
+            // Regardless of the type of the byte, we keep moving till we run into
+            // a situation where there's no transition available.
+            if (check[nextState] != currentState) {
+                if (!wordBytes[b]) {
+                    // If we ran into no-transition scenario on non-word byte we can
+                    // output the match on the current state if there is one, else we output
+                    // a fail match if there is one.
+                    if (!output(listener, currentState, idx)) {
+                        return;
+                    }
+                } else {
+                    // If we ran into no-transition situation on a word byte, we output any
+                    // fail match on the state and scroll through word bytes to a non-word byte.
+                    if (!outputFailMatch(listener, currentState, idx)) {
+                        return;
+                    }
+                    while (++idx < to && wordBytes[haystack.get(idx) & 0xFF]) {
+                        ;
+                    }
+                }
+                // Scroll to the first word byte
+                while (++idx < to && !wordBytes[haystack.get(idx) & 0xFF]) {
+                    ;
+                }
+                currentState = 0;
+            } else {
+                ++idx;
+                currentState = nextState;
+            }
+        }
+        // Output any matches on the last state, either a normal match or fail match.
+        output(listener, currentState, idx);
+    }
+
+    public void matchFile(final Path file, final FileMapMatchListener<T> listener) throws IOException {
+        matchFile(file, listener, ByteAhoCorasickSet.WINDOW_BYTES);
+    }
+
+    // Match the file mapped in windows of the given size.
+    void matchFile(final Path file, final FileMapMatchListener<T> listener, final int windowBytes) throws IOException {
+        // Local copies of the arrays for the loop.
+        final int[] base = this.base;
+        final int[] check = this.check;
+        final char[] keys = this.keys;
+        final boolean[] wordBytes = this.wordBytes;
+
+        // Start with the root state. Scrolling to the next word can go on past the end of a window, so
+        // besides the state, what is being scrolled through carries over from one window to the next.
+        int currentState = 0;
+        boolean scrollWord = false;
+        boolean scrollNonWord = false;
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            final long size = channel.size();
+            long windowStart = 0;
+            while (windowStart < size) {
+                MappedByteBuffer window = channel.map(MapMode.READ_ONLY, windowStart, Math.min(windowBytes, size - windowStart));
+                final int to = window.limit();
+                for (int idx = 0; idx < to; idx++) {
+                    final int b = window.get(idx) & 0xFF;
+                    if (scrollWord) {
+                        // Scroll through word bytes to a non-word byte.
+                        if (wordBytes[b]) {
+                            continue;
+                        }
+                        scrollWord = false;
+                        scrollNonWord = true;
+                    }
+                    if (scrollNonWord) {
+                        // Scroll to the first word byte
+                        if (!wordBytes[b]) {
+                            continue;
+                        }
+                        scrollNonWord = false;
+                    }
+                    int nextState = base[currentState] + keys[b];
+                    // Regardless of the type of the byte, we keep moving till we run into
+                    // a situation where there's no transition available.
+                    if (check[nextState] != currentState) {
+                        if (!wordBytes[b]) {
+                            // If we ran into no-transition scenario on non-word byte we can
+                            // output the match on the current state if there is one, else we output
+                            // a fail match if there is one.
+                            if (!outputFile(listener, currentState, windowStart + idx)) {
+                                return;
+                            }
+                            scrollNonWord = true;
+                        } else {
+                            // If we ran into no-transition situation on a word byte, we output any
+                            // fail match on the state and scroll through word bytes to a non-word byte.
+                            if (!outputFailMatchFile(listener, currentState, windowStart + idx)) {
+                                return;
+                            }
+                            scrollWord = true;
+                        }
+                        currentState = 0;
+                    } else {
+                        currentState = nextState;
+                    }
+                }
+                windowStart += to;
+            }
+            // Output any matches on the last state, either a normal match or fail match.
+            outputFile(listener, currentState, windowStart);
+        } finally {
+            channel.close();
+        }
+    }
+
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = new MemoryUsage();
+        usage.addArray(MemoryUsage.ALPHABET, keys);
+        usage.addArray(MemoryUsage.STATES, base);
+        usage.addArray(MemoryUsage.STATES, check);
+        usage.addArray(MemoryUsage.STATES, failMatchLength);
+        usage.addArray(MemoryUsage.STATES, failMatchOffset);
+        usage.addArray(MemoryUsage.STATES, matchLength);
+        usage.addArray(MemoryUsage.VALUES, failValues);
+        usage.addArray(MemoryUsage.VALUES, values);
+        usage.addArray(MemoryUsage.WORD_CHARACTERS, wordBytes);
+        return usage;
+    }
+
+    // Positions are reported relative to offset, which is where a heap buffer starts in its array.
+    private void match(final byte[] haystack, final int from, final int to, final int offset, final ByteMapMatchListener<T> listener) {
+        // Local copies of the arrays for the loop.
+        final int[] base = this.base;
+        final int[] check = this.check;
+        final char[] keys = this.keys;
+        final boolean[] wordBytes = this.wordBytes;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        int idx = from;
+        while (idx < to) {
+            final int b = haystack[idx] & 0xFF;
+            int nextState = base[currentState] + keys[b];
+            // Regardless of the type of the byte, we keep moving till we run into
+            // a situation where there's no transition available.
+            if (check[nextState] != currentState) {
+                if (!wordBytes[b]) {
+                    // If we ran into no-transition scenario on non-word byte we can
+                    // output the match on the current state if there is one, else we output
+                    // a fail match if there is one.
+                    if (!output(listener, currentState, idx - offset)) {
+                        return;
+                    }
+                } else {
+                    // If we ran into no-transition situation on a word byte, we output any
+                    // fail match on the state and scroll through word bytes to a non-word byte.
+                    if (!outputFailMatch(listener, currentState, idx - offset)) {
+                        return;
+                    }
+                    while (++idx < to && wordBytes[haystack[idx] & 0xFF]) {
+                        ;
+                    }
+                }
+                // Scroll to the first word byte
+                while (++idx < to && !wordBytes[haystack[idx] & 0xFF]) {
+                    ;
+                }
+                currentState = 0;
+            } else {
+                ++idx;
+                currentState = nextState;
+            }
+        }
+        // Output any matches on the last state, either a normal match or fail match.
+        output(listener, currentState, idx - offset);
+    }
+
+    // Report the match at this state, or the fail match if there's no match.
+    @SuppressWarnings("unchecked")
+    private boolean output(ByteMapMatchListener<T> listener, int state, int idx) {
+        if (matchLength[state] != 0) {
+            return listener.match(idx - matchLength[state], idx, (T) values[state]);
+        } else {
+            return outputFailMatch(listener, state, idx);
+        }
+    }
+
+    // Report the fail match at this state if there is one.
+    @SuppressWarnings("unchecked")
+    private boolean outputFailMatch(ByteMapMatchListener<T> listener, int state, int idx) {
+        if (failMatchLength[state] != 0) {
+            int failMatchEnd = idx - failMatchOffset[state];
+            return listener.match(failMatchEnd - failMatchLength[state], failMatchEnd, (T) failValues[state]);
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean outputFailMatchFile(FileMapMatchListener<T> listener, int state, long idx) {
+        if (failMatchLength[state] != 0) {
+            long failMatchEnd = idx - failMatchOffset[state];
+            return listener.match(failMatchEnd - failMatchLength[state], failMatchEnd, (T) failValues[state]);
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean outputFile(FileMapMatchListener<T> listener, int state, long idx) {
+        if (matchLength[state] != 0) {
+            return listener.match(idx - matchLength[state], idx, (T) values[state]);
+        } else {
+            return outputFailMatchFile(listener, state, idx);
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.roklenarcic.util.strings;
+
+import java.util.IdentityHashMap;
+
+// Node that stands for a run of single child nodes without matches, see AhoCorasickMap.compressChains.
+// Label holds the keys along the run and fails holds the fail transitions of the nodes
+// in the run. Match loop walks the label, the node has no transitions of its own.
+final class ChainNode<T> extends TrieNode<T> {
+
+    TrieNode<T> child;
+    TrieNode<T>[] fails;
+    char[] label;
+
+    // Engines without fail transitions don't need the fails, the chain has none then.
+    ChainNode(SingleNode<T> first, int length, boolean withFails) {
+        first.copyTo(this);
+        this.label = new char[length];
+        if (withFails) {
+            this.fails = TrieNode.newArray(length);
+        }
+        TrieNode<T> node = first;
+        for (int i = 0; i < length; i++) {
+            SingleNode<T> link = (SingleNode<T>) node;
+            label[i] = link.key;
+            if (fails != null) {
+                fails[i] = link.failTransition;
+            }
+            node = link.child;
+        }
+        this.child = node;
+    }
+
+    @Override
+    public void clear() {
+        throw new IllegalStateException("Chain node transitions are walked by the match loop.");
+    }
+
+    @Override
+    protected void relink(IdentityHashMap<TrieNode<T>, TrieNode<T>> replacements) {
+        super.relink(replacements);
+        child = replacements.get(child);
+        if (fails != null) {
+            for (int i = 0; i < fails.length; i++) {
+                fails[i] = replacements.get(fails[i]);
+            }
+        }
+    }
+
+    @Override
+    public TrieNode<T> getTransition(char c) {
+        throw new IllegalStateException("Chain node transitions are walked by the match loop.");
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return false;
+    }
+
+    @Override
+    public void mapEntries(EntryVisitor<T> visitor) {
+        throw new IllegalStateException("Chain node transitions are walked by the match loop.");
+    }
+
+    @Override
+    public void updateTransition(char c, TrieNode<T> node) {
+        throw new IllegalStateException("Chain node transitions are walked by the match loop.");
+    }
+
+}
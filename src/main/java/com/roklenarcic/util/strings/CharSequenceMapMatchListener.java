@@ -0,0 +1,8 @@
+package com.roklenarcic.util.strings;
+
+public interface CharSequenceMapMatchListener<T> {
+
+    // return true to continue matching
+    boolean match(CharSequence haystack, final int startPosition, final int endPosition, final T value);
+
+}
@@ -0,0 +1,89 @@
+package com.roklenarcic.util.strings;
+
+import java.util.Arrays;
+
+// Aho-Corasick automaton with the goto function precomputed for every state and every
+// character of the dictionary's alphabet, so a transition is a single table lookup and
+// fail transitions never need to be followed while matching.
+//
+// Characters are first mapped to dense alphabet indexes, all characters that don't
+// appear in any keyword share the last index, which always leads to root.
+//
+// The table has a row for each state, so it can get big with large dictionaries and
+// alphabets. Rows are given to states in breadth first order until the memory cap is
+// reached. States deeper than that keep their trie edges and fail transition and take
+// the slow path, which follows fail transitions until it reaches a state with a row.
+final class Dfa {
+
+    // Maps characters to alphabet indexes.
+    final char[] alphabet = new char[65536];
+    // Number of alphabet indexes including the one for characters outside the alphabet.
+    final int alphabetSize;
+    final int[] childStart;
+    final char[] childKeys;
+    final int[] childStates;
+    final int[] fail;
+    // States below this have a table row.
+    final int rows;
+    final int[] table;
+
+    Dfa(FlatTrie trie, int maxTableBytes) {
+        boolean[] used = new boolean[65536];
+        for (int i = 0; i < trie.numEdges; i++) {
+            used[trie.childKeys[i]] = true;
+        }
+        int size = 0;
+        for (int c = 0; c < used.length; c++) {
+            if (used[c]) {
+                alphabet[c] = (char) size++;
+            }
+        }
+        for (int c = 0; c < used.length; c++) {
+            if (!used[c]) {
+                alphabet[c] = (char) size;
+            }
+        }
+        alphabetSize = size + 1;
+        // Root always gets a row.
+        long maxRows = Math.min(maxTableBytes / 4L, Integer.MAX_VALUE - 8) / alphabetSize;
+        rows = (int) Math.max(1, Math.min(trie.size, maxRows));
+        table = new int[rows * alphabetSize];
+        // Fail transitions point to shallower states, which come earlier in breadth first
+        // order, so their rows are done by the time they are needed. Root's row starts out
+        // all root.
+        for (int state = 0; state < rows; state++) {
+            int row = state * alphabetSize;
+            if (state != 0) {
+                System.arraycopy(table, trie.failState[state] * alphabetSize, table, row, alphabetSize);
+            }
+            for (int i = trie.childStart[state]; i < trie.childStart[state + 1]; i++) {
+                table[row + alphabet[trie.childKeys[i]]] = trie.childStates[i];
+            }
+        }
+        // Keep the trie edges of the states without a row.
+        if (rows < trie.size) {
+            childStart = Arrays.copyOf(trie.childStart, trie.size + 1);
+            childKeys = Arrays.copyOf(trie.childKeys, trie.numEdges);
+            childStates = Arrays.copyOf(trie.childStates, trie.numEdges);
+            fail = Arrays.copyOf(trie.failState, trie.size);
+        } else {
+            childStart = null;
+            childKeys = null;
+            childStates = null;
+            fail = null;
+        }
+    }
+
+    // Transition from a state without a table row.
+    int slowTransition(int state, char c) {
+        while (state >= rows) {
+            int idx = Arrays.binarySearch(childKeys, childStart[state], childStart[state + 1], c);
+            if (idx >= 0) {
+                return childStates[idx];
+            }
+            state = fail[state];
+        }
+        return table[state * alphabetSize + alphabet[c]];
+    }
+
+}
@@ -0,0 +1,344 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import com.roklenarcic.util.strings.threshold.Thresholder;
+
+// Standard Aho-Corasick map, same matches as AhoCorasickMap.
+// The automaton is compiled into a full DFA, every input character costs one table lookup,
+// no matter how many fail transitions the node based automaton would follow. Memory use is
+// (number of states) * (number of distinct keyword characters + 1) * 4 bytes, up to the cap
+// given to the constructor, deeper states fall back to following fail transitions.
+public class DfaAhoCorasickMap<T> implements StringMap<T>, MemoryAccountable {
+
+    // Default cap on the size of the transition table.
+    public static final int DEFAULT_MAX_TABLE_BYTES = 64 * 1024 * 1024;
+
+    // Node types don't matter for the DFA, so don't spend time making range nodes.
+    static final Thresholder HASHMAP_NODES_ONLY = new Thresholder() {
+
+        public boolean isOverThreshold(int nodeSize, int nodeLevel, int keyIntervalSize) {
+            return false;
+        }
+    };
+
+    private char[] alphabet;
+    private int alphabetSize;
+    private boolean caseSensitive = true;
+    private int charBufferSize = 0;
+    private Dfa dfa;
+    private int[] matchLength;
+    private int rows;
+    private int[] suffix;
+    private int[] table;
+    private Object[] values;
+
+    public DfaAhoCorasickMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive) {
+        this(keywords, values, caseSensitive, DEFAULT_MAX_TABLE_BYTES);
+    }
+
+    public DfaAhoCorasickMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive, int maxTableBytes) {
+        this.caseSensitive = caseSensitive;
+        FlatTrie trie = new AhoCorasickMap<T>(keywords, values, caseSensitive, HASHMAP_NODES_ONLY).flatten();
+        this.dfa = new Dfa(trie, maxTableBytes);
+        this.alphabet = dfa.alphabet;
+        this.alphabetSize = dfa.alphabetSize;
+        this.rows = dfa.rows;
+        this.table = dfa.table;
+        this.matchLength = Arrays.copyOf(trie.matchLength, trie.size);
+        this.suffix = Arrays.copyOf(trie.suffixState, trie.size);
+        this.values = Arrays.copyOf(trie.values, trie.size);
+        charBufferSize = trie.longestKeyword > 2048 ? trie.longestKeyword * 2 : 4096;
+    }
+
+    public void matchChars(final char[] haystack, final int from, final int to, final CharSequenceMapMatchListener<T> listener) {
+        // Listeners see the array as a char sequence, positions are array indexes.
+        final CharSequence sequence = CharBuffer.wrap(haystack);
+        // Local copy of the array for the loop.
+        final int[] matchLength = this.matchLength;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        int idx = from;
+        // For each character.
+        final int len = to;
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                final char c = haystack[idx];
+                currentState = step(currentState, c);
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !outputSequence(sequence, listener, currentState, idx)) {
+                    break;
+                }
+            }
+        } else {
+            while (idx < len) {
+                final char c = Character.toLowerCase(haystack[idx]);
+                currentState = step(currentState, c);
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !outputSequence(sequence, listener, currentState, idx)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    public void matchSequence(final CharSequence haystack, final CharSequenceMapMatchListener<T> listener) {
+        // Local copy of the array for the loop.
+        final int[] matchLength = this.matchLength;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        int idx = 0;
+        // For each character.
+        final int len = haystack.length();
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                final char c = haystack.charAt(idx);
+                currentState = step(currentState, c);
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !outputSequence(haystack, listener, currentState, idx)) {
+                    break;
+                }
+            }
+        } else {
+            while (idx < len) {
+                final char c = Character.toLowerCase(haystack.charAt(idx));
+                currentState = step(currentState, c);
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !outputSequence(haystack, listener, currentState, idx)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    public void match(final Readable haystack, final ReadableMatchListener<T> listener) throws IOException {
+        // Local copy of the array for the loop.
+        final int[] matchLength = this.matchLength;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        CharBuffer buf = CharBuffer.allocate(charBufferSize);
+
+        // For each character.
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (haystack.read(buf) != -1) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    final char c = buf.get();
+                    currentState = step(currentState, c);
+                    // Output any matches on the current state
+                    if (matchLength[currentState] > 0 && !output(listener, currentState)) {
+                        return;
+                    }
+                }
+                buf.clear();
+            }
+        } else {
+            while (haystack.read(buf) != -1) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    final char c = Character.toLowerCase(buf.get());
+                    currentState = step(currentState, c);
+                    // Output any matches on the current state
+                    if (matchLength[currentState] > 0 && !output(listener, currentState)) {
+                        return;
+                    }
+                }
+                buf.clear();
+            }
+        }
+    }
+
+    public void match(final String haystack, final MapMatchListener<T> listener) {
+        // Local copy of the array for the loop.
+        final int[] matchLength = this.matchLength;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        int idx = 0;
+        // For each character.
+        final int len = haystack.length();
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                final char c = haystack.charAt(idx);
+                currentState = step(currentState, c);
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !output(haystack, listener, currentState, idx)) {
+                    break;
+                }
+            }
+        } else {
+            while (idx < len) {
+                final char c = Character.toLowerCase(haystack.charAt(idx));
+                currentState = step(currentState, c);
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !output(haystack, listener, currentState, idx)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    // Matcher for text that arrives in chunks, it finds the same matches as match would in all of the text.
+    public Matcher matcher(final StreamMapMatchListener<T> listener) {
+        return new StreamMatcher(listener);
+    }
+
+    // Match the file decoded with the charset. The file is memory mapped a window at a time, so it can be
+    // larger than 2GB, and positions are char offsets into the decoded text.
+    public void matchFile(final Path file, final Charset charset, final StreamMapMatchListener<T> listener) throws IOException {
+        MappedText.feed(file, charset, matcher(listener));
+    }
+
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = new MemoryUsage();
+        usage.addArray(MemoryUsage.ALPHABET, alphabet);
+        usage.addArray(MemoryUsage.STATES, matchLength);
+        usage.addArray(MemoryUsage.STATES, suffix);
+        usage.addArray(MemoryUsage.STATES, table);
+        usage.addObject(MemoryUsage.STATES, dfa);
+        usage.addArray(MemoryUsage.VALUES, values);
+        return usage;
+    }
+
+    // Take the transition from the state on the character, states without a table row take the slow path.
+    private int step(final int state, final char c) {
+        return state < rows ? table[state * alphabetSize + alphabet[c]] : dfa.slowTransition(state, c);
+    }
+
+    // State of the match loop between chunks.
+    private final class StreamMatcher implements Matcher {
+
+        private int currentState = 0;
+        private final StreamMapMatchListener<T> listener;
+        // Position of the next character in the text.
+        private long position = 0;
+        private boolean stopped = false;
+
+        private StreamMatcher(StreamMapMatchListener<T> listener) {
+            this.listener = listener;
+        }
+
+        public boolean feed(final char[] chunk, final int off, final int len) {
+            if (stopped) {
+                return false;
+            }
+            // Local copies of the state for the loop.
+            final int[] matchLength = DfaAhoCorasickMap.this.matchLength;
+            int currentState = this.currentState;
+            // Position of the chunk array start in the text.
+            final long chunkBase = position - off;
+            final int end = off + len;
+            int idx = off;
+            // Putting this if into the loop worsens the performance so we'll sadly
+            // have to deal with duplicated code.
+            if (caseSensitive) {
+                while (idx < end) {
+                    currentState = step(currentState, chunk[idx]);
+                    ++idx;
+                    // Output any matches on the current state
+                    if (matchLength[currentState] > 0 && !output(listener, currentState, chunkBase + idx)) {
+                        stopped = true;
+                        return false;
+                    }
+                }
+            } else {
+                while (idx < end) {
+                    currentState = step(currentState, Character.toLowerCase(chunk[idx]));
+                    ++idx;
+                    // Output any matches on the current state
+                    if (matchLength[currentState] > 0 && !output(listener, currentState, chunkBase + idx)) {
+                        stopped = true;
+                        return false;
+                    }
+                }
+            }
+            this.currentState = currentState;
+            position = chunkBase + end;
+            return true;
+        }
+
+        public void finish() {
+            // Matches are reported as soon as they end, nothing waits for the end of the text.
+            currentState = 0;
+            position = 0;
+            stopped = false;
+        }
+    }
+
+    // Report matches at this state, including all suffix matches. Values are kept in an Object array,
+    // they are all T.
+    @SuppressWarnings("unchecked")
+    private boolean output(ReadableMatchListener<T> listener, int state) {
+        boolean ret = listener.match((T) values[state]);
+        int suffixState = suffix[state];
+        while (suffixState != FlatTrie.NONE && ret) {
+            ret = listener.match((T) values[suffixState]);
+            suffixState = suffix[suffixState];
+        }
+        return ret;
+    }
+
+    // Report matches at this state, including all suffix matches.
+    @SuppressWarnings("unchecked")
+    private boolean output(String haystack, MapMatchListener<T> listener, int state, int idx) {
+        // since idx is the last character in the match
+        // position it past the match (to be consistent with conventions)
+        boolean ret = listener.match(haystack, idx - matchLength[state], idx, (T) values[state]);
+        int suffixState = suffix[state];
+        while (suffixState != FlatTrie.NONE && ret) {
+            ret = listener.match(haystack, idx - matchLength[suffixState], idx, (T) values[suffixState]);
+            suffixState = suffix[suffixState];
+        }
+        return ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean outputSequence(CharSequence haystack, CharSequenceMapMatchListener<T> listener, int state, int idx) {
+        // since idx is the last character in the match
+        // position it past the match (to be consistent with conventions)
+        boolean ret = listener.match(haystack, idx - matchLength[state], idx, (T) values[state]);
+        int suffixState = suffix[state];
+        while (suffixState != FlatTrie.NONE && ret) {
+            ret = listener.match(haystack, idx - matchLength[suffixState], idx, (T) values[suffixState]);
+            suffixState = suffix[suffixState];
+        }
+        return ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean output(StreamMapMatchListener<T> listener, int state, long idx) {
+        boolean ret = listener.match(idx - matchLength[state], idx, (T) values[state]);
+        int suffixState = suffix[state];
+        while (suffixState != FlatTrie.NONE && ret) {
+            ret = listener.match(idx - matchLength[suffixState], idx, (T) values[suffixState]);
+            suffixState = suffix[suffixState];
+        }
+        return ret;
+    }
+
+}
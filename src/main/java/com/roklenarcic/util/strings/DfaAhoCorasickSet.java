@@ -0,0 +1,407 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import com.roklenarcic.util.strings.AhoCorasickSet.WhitespaceReader;
+
+// Standard Aho-Corasick set, same matches as AhoCorasickSet.
+// The automaton is compiled into a full DFA, see DfaAhoCorasickMap.
+public class DfaAhoCorasickSet implements StringSet, MemoryAccountable {
+
+    private char[] alphabet;
+    private int alphabetSize;
+    private boolean caseSensitive = true;
+    private Dfa dfa;
+    private int[] matchLength;
+    private int rows;
+    private int[] suffix;
+    private int[] table;
+    private WhitespaceReader whitespaceReader;
+
+    public DfaAhoCorasickSet(final Iterable<String> keywords, boolean caseSensitive, boolean collapseWhitespace) {
+        this(keywords, caseSensitive, collapseWhitespace, DfaAhoCorasickMap.DEFAULT_MAX_TABLE_BYTES);
+    }
+
+    public DfaAhoCorasickSet(final Iterable<String> keywords, boolean caseSensitive, boolean collapseWhitespace, int maxTableBytes) {
+        this.caseSensitive = caseSensitive;
+        if (collapseWhitespace) {
+            whitespaceReader = AhoCorasickSet.SkipWhiteSpaceReaderInstance;
+        } else {
+            whitespaceReader = AhoCorasickSet.NoOpWhiteSpaceReaderInstance;
+        }
+        FlatTrie trie = new AhoCorasickSet(keywords, caseSensitive, collapseWhitespace, DfaAhoCorasickMap.HASHMAP_NODES_ONLY).flatten();
+        this.dfa = new Dfa(trie, maxTableBytes);
+        this.alphabet = dfa.alphabet;
+        this.alphabetSize = dfa.alphabetSize;
+        this.rows = dfa.rows;
+        this.table = dfa.table;
+        this.matchLength = Arrays.copyOf(trie.matchLength, trie.size);
+        this.suffix = Arrays.copyOf(trie.suffixState, trie.size);
+    }
+
+    public void matchChars(final char[] haystack, final int from, final int to, final CharSequenceSetMatchListener listener) {
+        // Listeners see the array as a char sequence, positions are array indexes.
+        final CharSequence sequence = CharBuffer.wrap(haystack);
+        final int len = to;
+        // Local copy of the array for the loop.
+        final int[] matchLength = this.matchLength;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        boolean skipWhitespace = whitespaceReader.enabled();
+
+        int skipped = 0;
+        int idx = from;
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                char c = haystack[idx];
+                boolean skippedWhitespace = skipWhitespace && currentState != 0 && whitespaceReader.isWhitespace(c);
+                if (skippedWhitespace) {
+                    while (++idx < len && whitespaceReader.isWhitespace(haystack[idx])) {
+                        ++skipped;
+                    }
+                    --idx;
+                    c = ' ';
+                }
+                currentState = step(currentState, c);
+                if (currentState == 0) {
+                    skipped = 0;
+                }
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !outputSequence(sequence, listener, currentState, idx, skipped)) {
+                    return;
+                }
+            }
+        } else {
+            while (idx < len) {
+                char c = Character.toLowerCase(haystack[idx]);
+                boolean skippedWhitespace = skipWhitespace && currentState != 0 && whitespaceReader.isWhitespace(c);
+                if (skippedWhitespace) {
+                    while (++idx < len && whitespaceReader.isWhitespace(haystack[idx])) {
+                        ++skipped;
+                    }
+                    --idx;
+                    c = ' ';
+                }
+                currentState = step(currentState, c);
+                if (currentState == 0) {
+                    skipped = 0; // restart matching from root.
+                }
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !outputSequence(sequence, listener, currentState, idx, skipped)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public void matchSequence(final CharSequence haystack, final CharSequenceSetMatchListener listener) {
+        final int len = haystack.length();
+        // Local copy of the array for the loop.
+        final int[] matchLength = this.matchLength;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        boolean skipWhitespace = whitespaceReader.enabled();
+
+        int skipped = 0;
+        int idx = 0;
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                char c = haystack.charAt(idx);
+                boolean skippedWhitespace = skipWhitespace && currentState != 0 && whitespaceReader.isWhitespace(c);
+                if (skippedWhitespace) {
+                    while (++idx < len && whitespaceReader.isWhitespace(haystack.charAt(idx))) {
+                        ++skipped;
+                    }
+                    --idx;
+                    c = ' ';
+                }
+                currentState = step(currentState, c);
+                if (currentState == 0) {
+                    skipped = 0;
+                }
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !outputSequence(haystack, listener, currentState, idx, skipped)) {
+                    return;
+                }
+            }
+        } else {
+            while (idx < len) {
+                char c = Character.toLowerCase(haystack.charAt(idx));
+                boolean skippedWhitespace = skipWhitespace && currentState != 0 && whitespaceReader.isWhitespace(c);
+                if (skippedWhitespace) {
+                    while (++idx < len && whitespaceReader.isWhitespace(haystack.charAt(idx))) {
+                        ++skipped;
+                    }
+                    --idx;
+                    c = ' ';
+                }
+                currentState = step(currentState, c);
+                if (currentState == 0) {
+                    skipped = 0; // restart matching from root.
+                }
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !outputSequence(haystack, listener, currentState, idx, skipped)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public void match(final String haystack, final SetMatchListener listener) {
+        match(haystack, 0, haystack.length(), listener);
+    }
+
+    public void match(final String haystack, final int offset, final int len, final SetMatchListener listener) {
+        // Local copy of the array for the loop.
+        final int[] matchLength = this.matchLength;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        boolean skipWhitespace = whitespaceReader.enabled();
+
+        int skipped = 0;
+        int idx = offset;
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                char c = haystack.charAt(idx);
+                boolean skippedWhitespace = skipWhitespace && currentState != 0 && whitespaceReader.isWhitespace(c);
+                if (skippedWhitespace) {
+                    while (++idx < len && whitespaceReader.isWhitespace(haystack.charAt(idx))) {
+                        ++skipped;
+                    }
+                    --idx;
+                    c = ' ';
+                }
+                currentState = step(currentState, c);
+                if (currentState == 0) {
+                    skipped = 0;
+                }
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !output(haystack, listener, currentState, idx, skipped)) {
+                    return;
+                }
+            }
+        } else {
+            while (idx < len) {
+                char c = Character.toLowerCase(haystack.charAt(idx));
+                boolean skippedWhitespace = skipWhitespace && currentState != 0 && whitespaceReader.isWhitespace(c);
+                if (skippedWhitespace) {
+                    while (++idx < len && whitespaceReader.isWhitespace(haystack.charAt(idx))) {
+                        ++skipped;
+                    }
+                    --idx;
+                    c = ' ';
+                }
+                currentState = step(currentState, c);
+                if (currentState == 0) {
+                    skipped = 0; // restart matching from root.
+                }
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !output(haystack, listener, currentState, idx, skipped)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Matcher for text that arrives in chunks, it finds the same matches as match would in all of the text.
+    public Matcher matcher(final StreamSetMatchListener listener) {
+        return new StreamMatcher(listener);
+    }
+
+    // Match the file decoded with the charset. The file is memory mapped a window at a time, so it can be
+    // larger than 2GB, and positions are char offsets into the decoded text.
+    public void matchFile(final Path file, final Charset charset, final StreamSetMatchListener listener) throws IOException {
+        MappedText.feed(file, charset, matcher(listener));
+    }
+
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = new MemoryUsage();
+        usage.addArray(MemoryUsage.ALPHABET, alphabet);
+        usage.addArray(MemoryUsage.STATES, matchLength);
+        usage.addArray(MemoryUsage.STATES, suffix);
+        usage.addArray(MemoryUsage.STATES, table);
+        usage.addObject(MemoryUsage.STATES, dfa);
+        return usage;
+    }
+
+    // Take the transition from the state on the character, states without a table row take the slow path.
+    private int step(final int state, final char c) {
+        return state < rows ? table[state * alphabetSize + alphabet[c]] : dfa.slowTransition(state, c);
+    }
+
+    // State of the match loop between chunks.
+    private final class StreamMatcher implements Matcher {
+
+        private int currentState = 0;
+        private final StreamSetMatchListener listener;
+        // Position of the next character in the text.
+        private long position = 0;
+        private int skipped = 0;
+        private boolean stopped = false;
+        private boolean whitespaceRun = false;
+
+        private StreamMatcher(StreamSetMatchListener listener) {
+            this.listener = listener;
+        }
+
+        public boolean feed(final char[] chunk, final int off, final int len) {
+            if (stopped) {
+                return false;
+            }
+            // Local copies of the state for the loop.
+            final int[] matchLength = DfaAhoCorasickSet.this.matchLength;
+            final boolean skipWhitespace = whitespaceReader.enabled();
+            int currentState = this.currentState;
+            int skipped = this.skipped;
+            boolean whitespaceRun = this.whitespaceRun;
+            // Position of the chunk array start in the text.
+            final long chunkBase = position - off;
+            final int end = off + len;
+            int idx = off;
+            // Putting this if into the loop worsens the performance so we'll sadly
+            // have to deal with duplicated code.
+            if (caseSensitive) {
+                while (idx < end) {
+                    char c = chunk[idx];
+                    if (whitespaceRun) {
+                        if (whitespaceReader.isWhitespace(c)) {
+                            ++skipped;
+                            ++idx;
+                            continue;
+                        }
+                        // The run is over, take its transition now and look at this character in the next
+                        // iteration.
+                        whitespaceRun = false;
+                        c = ' ';
+                    } else if (skipWhitespace && currentState != 0 && whitespaceReader.isWhitespace(c)) {
+                        whitespaceRun = true;
+                        ++idx;
+                        continue;
+                    } else {
+                        ++idx;
+                    }
+                    currentState = step(currentState, c);
+                    if (currentState == 0) {
+                        skipped = 0;
+                    }
+                    // Output any matches on the current state
+                    if (matchLength[currentState] > 0 && !output(listener, currentState, chunkBase + idx, skipped)) {
+                        stopped = true;
+                        return false;
+                    }
+                }
+            } else {
+                while (idx < end) {
+                    char c = Character.toLowerCase(chunk[idx]);
+                    if (whitespaceRun) {
+                        if (whitespaceReader.isWhitespace(c)) {
+                            ++skipped;
+                            ++idx;
+                            continue;
+                        }
+                        // The run is over, take its transition now and look at this character in the next
+                        // iteration.
+                        whitespaceRun = false;
+                        c = ' ';
+                    } else if (skipWhitespace && currentState != 0 && whitespaceReader.isWhitespace(c)) {
+                        whitespaceRun = true;
+                        ++idx;
+                        continue;
+                    } else {
+                        ++idx;
+                    }
+                    currentState = step(currentState, c);
+                    if (currentState == 0) {
+                        skipped = 0;
+                    }
+                    // Output any matches on the current state
+                    if (matchLength[currentState] > 0 && !output(listener, currentState, chunkBase + idx, skipped)) {
+                        stopped = true;
+                        return false;
+                    }
+                }
+            }
+            this.currentState = currentState;
+            this.skipped = skipped;
+            this.whitespaceRun = whitespaceRun;
+            position = chunkBase + end;
+            return true;
+        }
+
+        public void finish() {
+            if (whitespaceRun && !stopped) {
+                // Text ends with a whitespace run, take its transition.
+                currentState = step(currentState, ' ');
+                if (currentState == 0) {
+                    skipped = 0;
+                }
+                if (matchLength[currentState] > 0) {
+                    output(listener, currentState, position, skipped);
+                }
+            }
+            currentState = 0;
+            position = 0;
+            skipped = 0;
+            stopped = false;
+            whitespaceRun = false;
+        }
+    }
+
+    // Report matches at this state, including all suffix matches.
+    private boolean output(String haystack, SetMatchListener listener, int state, int idx, int skipped) {
+        // since idx is the last character in the match
+        // position it past the match (to be consistent with conventions)
+        boolean ret = listener.match(haystack, idx - skipped - matchLength[state], idx);
+        int suffixState = suffix[state];
+        while (suffixState != FlatTrie.NONE && ret) {
+            ret = listener.match(haystack, idx - skipped - matchLength[suffixState], idx);
+            suffixState = suffix[suffixState];
+        }
+        return ret;
+    }
+
+    private boolean outputSequence(CharSequence haystack, CharSequenceSetMatchListener listener, int state, int idx, int skipped) {
+        // since idx is the last character in the match
+        // position it past the match (to be consistent with conventions)
+        boolean ret = listener.match(haystack, idx - skipped - matchLength[state], idx);
+        int suffixState = suffix[state];
+        while (suffixState != FlatTrie.NONE && ret) {
+            ret = listener.match(haystack, idx - skipped - matchLength[suffixState], idx);
+            suffixState = suffix[suffixState];
+        }
+        return ret;
+    }
+
+    private boolean output(StreamSetMatchListener listener, int state, long idx, int skipped) {
+        boolean ret = listener.match(idx - skipped - matchLength[state], idx);
+        int suffixState = suffix[state];
+        while (suffixState != FlatTrie.NONE && ret) {
+            ret = listener.match(idx - skipped - matchLength[suffixState], idx);
+            suffixState = suffix[suffixState];
+        }
+        return ret;
+    }
+
+}
@@ -0,0 +1,191 @@
+package com.roklenarcic.util.strings;
+
+import java.util.Arrays;
+
+// Places states of a FlatTrie into a double array (base/check) layout.
+// Each state gets a slot, root gets slot 0. Transition from slot s on character c
+// leads to slot base[s] + c if check[base[s] + c] == s, otherwise there's no
+// transition. Check array is padded so base[s] + c is always a valid index and the
+// match loops don't need a bounds check. All other per slot arrays only need to
+// cover the used slots.
+final class DoubleArray {
+
+    static final int FREE = -1;
+
+    final int[] base;
+    final int[] check;
+    final int[] slotOfState;
+    // Number of slots that per slot data must cover.
+    final int slots;
+
+    private int[] baseBuf = new int[0];
+    private int[] checkBuf = new int[0];
+    // Free slots form a doubly linked list, so looking for a place for children
+    // doesn't need to scan over taken slots.
+    private int firstFree = 0;
+    private int lastFree = 0;
+    private int[] nextFree = new int[0];
+    private int[] prevFree = new int[0];
+    private int searchHead = 0;
+
+    DoubleArray(FlatTrie trie) {
+        this(trie, 0x10000);
+    }
+
+    // Keys of the trie are below keyRange, byte automata only need 256.
+    DoubleArray(FlatTrie trie, int keyRange) {
+        ensureCapacity(1024);
+        // Root slot is taken.
+        take(0);
+        slotOfState = new int[trie.size];
+        int maxSlot = 0;
+        int maxBase = 0;
+        // States come in breadth first order, so every state's slot is
+        // known by the time we get to placing its children.
+        for (int state = 0; state < trie.size; state++) {
+            int from = trie.childStart[state];
+            int to = trie.childStart[state + 1];
+            if (from < to) {
+                int slot = slotOfState[state];
+                int b = findBase(trie.childKeys, from, to);
+                baseBuf[slot] = b;
+                for (int i = from; i < to; i++) {
+                    int childSlot = b + trie.childKeys[i];
+                    take(childSlot);
+                    checkBuf[childSlot] = slot;
+                    slotOfState[trie.childStates[i]] = childSlot;
+                    if (childSlot > maxSlot) {
+                        maxSlot = childSlot;
+                    }
+                }
+                if (b > maxBase) {
+                    maxBase = b;
+                }
+            }
+        }
+        slots = maxSlot + 1;
+        base = Arrays.copyOf(baseBuf, slots);
+        int checkLength = Math.max(slots, maxBase + keyRange);
+        ensureCapacity(checkLength);
+        check = Arrays.copyOf(checkBuf, checkLength);
+        baseBuf = null;
+        checkBuf = null;
+    }
+
+    // Copy per state data into per slot array.
+    Object[] place(Object[] perState) {
+        Object[] ret = new Object[slots];
+        for (int i = 0; i < slotOfState.length; i++) {
+            ret[slotOfState[i]] = perState[i];
+        }
+        return ret;
+    }
+
+    // Copy per state data into per slot array.
+    int[] placeInts(int[] perState) {
+        int[] ret = new int[slots];
+        for (int i = 0; i < slotOfState.length; i++) {
+            ret[slotOfState[i]] = perState[i];
+        }
+        return ret;
+    }
+
+    // Copy per state references to other states into per slot array, translating
+    // them to slots. FlatTrie.NONE stays as is.
+    int[] placeStates(int[] stateRefs) {
+        int[] ret = new int[slots];
+        Arrays.fill(ret, FlatTrie.NONE);
+        for (int i = 0; i < slotOfState.length; i++) {
+            int ref = stateRefs[i];
+            ret[slotOfState[i]] = ref == FlatTrie.NONE ? FlatTrie.NONE : slotOfState[ref];
+        }
+        return ret;
+    }
+
+    // Grow the buffers and add new slots to the end of the free list.
+    private void ensureCapacity(int capacity) {
+        int oldCapacity = checkBuf.length;
+        if (capacity > oldCapacity) {
+            int newCapacity = Math.max(capacity, oldCapacity + (oldCapacity >> 1));
+            baseBuf = Arrays.copyOf(baseBuf, newCapacity);
+            checkBuf = Arrays.copyOf(checkBuf, newCapacity);
+            nextFree = Arrays.copyOf(nextFree, newCapacity);
+            prevFree = Arrays.copyOf(prevFree, newCapacity);
+            Arrays.fill(checkBuf, oldCapacity, newCapacity, FREE);
+            for (int i = oldCapacity; i < newCapacity; i++) {
+                prevFree[i] = i - 1;
+                nextFree[i] = i + 1;
+            }
+            // -1 terminates the list on both ends.
+            nextFree[newCapacity - 1] = -1;
+            if (lastFree == -1 || oldCapacity == 0) {
+                prevFree[oldCapacity] = -1;
+                firstFree = oldCapacity;
+            } else {
+                prevFree[oldCapacity] = lastFree;
+                nextFree[lastFree] = oldCapacity;
+            }
+            lastFree = newCapacity - 1;
+            if (searchHead == -1) {
+                searchHead = oldCapacity;
+            }
+        }
+    }
+
+    // Find a base so that all the children slots are free. Candidates for the first
+    // child come from the free list, starting at the search head. If the search had to
+    // go over a lot of free slots, the search head moves up, so free slots that are
+    // hard to use aren't tried over and over again. Slots left behind can still be
+    // taken by other children than the first one.
+    private int findBase(char[] keys, int from, int to) {
+        final int firstKey = keys[from];
+        final int lastKey = keys[to - 1];
+        if (searchHead == -1) {
+            ensureCapacity(checkBuf.length + 1);
+        }
+        int pos = searchHead;
+        int tries = 0;
+        while (true) {
+            // Base must be at least 1, so the first child slot must be past the first key.
+            if (pos > firstKey) {
+                int b = pos - firstKey;
+                ensureCapacity(b + lastKey + 1);
+                int i = from + 1;
+                while (i < to && checkBuf[b + keys[i]] == FREE) {
+                    i++;
+                }
+                if (i == to) {
+                    if (tries > 32) {
+                        searchHead = pos;
+                    }
+                    return b;
+                }
+            }
+            tries++;
+            if (nextFree[pos] == -1) {
+                ensureCapacity(checkBuf.length + 1);
+            }
+            pos = nextFree[pos];
+        }
+    }
+
+    // Remove the slot from the free list.
+    private void take(int slot) {
+        int prev = prevFree[slot];
+        int next = nextFree[slot];
+        if (slot == searchHead) {
+            searchHead = next;
+        }
+        if (prev == -1) {
+            firstFree = next;
+        } else {
+            nextFree[prev] = next;
+        }
+        if (next == -1) {
+            lastFree = prev;
+        } else {
+            prevFree[next] = prev;
+        }
+    }
+
+}
@@ -0,0 +1,334 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+
+import com.roklenarcic.util.strings.threshold.RangeNodeThreshold;
+import com.roklenarcic.util.strings.threshold.Thresholder;
+
+// Standard Aho-Corasick map, same matches as AhoCorasickMap.
+// The automaton is compiled into a double array (base/check) form, so the whole
+// thing is a few large int arrays instead of a node object graph. This
+// means a lot less work for the GC with very large dictionaries.
+public class DoubleArrayAhoCorasickMap<T> implements StringMap<T>, MemoryAccountable {
+
+    private int[] base;
+    private boolean caseSensitive = true;
+    private int charBufferSize = 0;
+    private int[] check;
+    private int[] fail;
+    private int[] matchLength;
+    private int[] suffix;
+    private Object[] values;
+
+    public DoubleArrayAhoCorasickMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive) {
+        this(keywords, values, caseSensitive, new RangeNodeThreshold());
+    }
+
+    public DoubleArrayAhoCorasickMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive,
+            final Thresholder thresholdStrategy) {
+        this.caseSensitive = caseSensitive;
+        // Build the node based automaton, then compile it into arrays and let the nodes go.
+        FlatTrie trie = new AhoCorasickMap<T>(keywords, values, caseSensitive, thresholdStrategy).flatten();
+        DoubleArray doubleArray = new DoubleArray(trie);
+        this.base = doubleArray.base;
+        this.check = doubleArray.check;
+        this.fail = doubleArray.placeStates(trie.failState);
+        this.matchLength = doubleArray.placeInts(trie.matchLength);
+        this.suffix = doubleArray.placeStates(trie.suffixState);
+        this.values = doubleArray.place(trie.values);
+        charBufferSize = trie.longestKeyword > 2048 ? trie.longestKeyword * 2 : 4096;
+    }
+
+    public void matchChars(final char[] haystack, final int from, final int to, final CharSequenceMapMatchListener<T> listener) {
+        // Listeners see the array as a char sequence, positions are array indexes.
+        final CharSequence sequence = CharBuffer.wrap(haystack);
+        // Local copy of the array for the loop.
+        final int[] matchLength = this.matchLength;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        int idx = from;
+        // For each character.
+        final int len = to;
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                currentState = step(currentState, haystack[idx]);
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !outputSequence(sequence, listener, currentState, idx)) {
+                    break;
+                }
+            }
+        } else {
+            while (idx < len) {
+                currentState = step(currentState, Character.toLowerCase(haystack[idx]));
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !outputSequence(sequence, listener, currentState, idx)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    public void matchSequence(final CharSequence haystack, final CharSequenceMapMatchListener<T> listener) {
+        // Local copy of the array for the loop.
+        final int[] matchLength = this.matchLength;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        int idx = 0;
+        // For each character.
+        final int len = haystack.length();
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                currentState = step(currentState, haystack.charAt(idx));
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !outputSequence(haystack, listener, currentState, idx)) {
+                    break;
+                }
+            }
+        } else {
+            while (idx < len) {
+                currentState = step(currentState, Character.toLowerCase(haystack.charAt(idx)));
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !outputSequence(haystack, listener, currentState, idx)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    public void match(final Readable haystack, final ReadableMatchListener<T> listener) throws IOException {
+        // Local copy of the array for the loop.
+        final int[] matchLength = this.matchLength;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        CharBuffer buf = CharBuffer.allocate(charBufferSize);
+
+        // For each character.
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (haystack.read(buf) != -1) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    currentState = step(currentState, buf.get());
+                    // Output any matches on the current state
+                    if (matchLength[currentState] > 0 && !output(listener, currentState)) {
+                        return;
+                    }
+                }
+                buf.clear();
+            }
+        } else {
+            while (haystack.read(buf) != -1) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    currentState = step(currentState, Character.toLowerCase(buf.get()));
+                    // Output any matches on the current state
+                    if (matchLength[currentState] > 0 && !output(listener, currentState)) {
+                        return;
+                    }
+                }
+                buf.clear();
+            }
+        }
+    }
+
+    public void match(final String haystack, final MapMatchListener<T> listener) {
+        // Local copy of the array for the loop.
+        final int[] matchLength = this.matchLength;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        int idx = 0;
+        // For each character.
+        final int len = haystack.length();
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                currentState = step(currentState, haystack.charAt(idx));
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !output(haystack, listener, currentState, idx)) {
+                    break;
+                }
+            }
+        } else {
+            while (idx < len) {
+                currentState = step(currentState, Character.toLowerCase(haystack.charAt(idx)));
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !output(haystack, listener, currentState, idx)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    // Matcher for text that arrives in chunks, it finds the same matches as match would in all of the text.
+    public Matcher matcher(final StreamMapMatchListener<T> listener) {
+        return new StreamMatcher(listener);
+    }
+
+    // Match the file decoded with the charset. The file is memory mapped a window at a time, so it can be
+    // larger than 2GB, and positions are char offsets into the decoded text.
+    public void matchFile(final Path file, final Charset charset, final StreamMapMatchListener<T> listener) throws IOException {
+        MappedText.feed(file, charset, matcher(listener));
+    }
+
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = new MemoryUsage();
+        usage.addArray(MemoryUsage.STATES, base);
+        usage.addArray(MemoryUsage.STATES, check);
+        usage.addArray(MemoryUsage.STATES, fail);
+        usage.addArray(MemoryUsage.STATES, matchLength);
+        usage.addArray(MemoryUsage.STATES, suffix);
+        usage.addArray(MemoryUsage.VALUES, values);
+        return usage;
+    }
+
+    // Take the transition from the state on the character. If there is none, follow fail transitions
+    // until finding a state that has one. Root takes itself for any missing transition.
+    private int step(int state, final char c) {
+        // Local copies of the arrays for the loop.
+        final int[] base = this.base;
+        final int[] check = this.check;
+        int nextState = base[state] + c;
+        while (check[nextState] != state) {
+            if (state == 0) {
+                return 0;
+            }
+            state = fail[state];
+            nextState = base[state] + c;
+        }
+        return nextState;
+    }
+
+    // State of the match loop between chunks.
+    private final class StreamMatcher implements Matcher {
+
+        private int currentState = 0;
+        private final StreamMapMatchListener<T> listener;
+        // Position of the next character in the text.
+        private long position = 0;
+        private boolean stopped = false;
+
+        private StreamMatcher(StreamMapMatchListener<T> listener) {
+            this.listener = listener;
+        }
+
+        public boolean feed(final char[] chunk, final int off, final int len) {
+            if (stopped) {
+                return false;
+            }
+            // Local copies of the state for the loop.
+            final int[] matchLength = DoubleArrayAhoCorasickMap.this.matchLength;
+            int currentState = this.currentState;
+            // Position of the chunk array start in the text.
+            final long chunkBase = position - off;
+            final int end = off + len;
+            int idx = off;
+            // Putting this if into the loop worsens the performance so we'll sadly
+            // have to deal with duplicated code.
+            if (caseSensitive) {
+                while (idx < end) {
+                    currentState = step(currentState, chunk[idx]);
+                    ++idx;
+                    // Output any matches on the current state
+                    if (matchLength[currentState] > 0 && !output(listener, currentState, chunkBase + idx)) {
+                        stopped = true;
+                        return false;
+                    }
+                }
+            } else {
+                while (idx < end) {
+                    currentState = step(currentState, Character.toLowerCase(chunk[idx]));
+                    ++idx;
+                    // Output any matches on the current state
+                    if (matchLength[currentState] > 0 && !output(listener, currentState, chunkBase + idx)) {
+                        stopped = true;
+                        return false;
+                    }
+                }
+            }
+            this.currentState = currentState;
+            position = chunkBase + end;
+            return true;
+        }
+
+        public void finish() {
+            // Matches are reported as soon as they end, nothing waits for the end of the text.
+            currentState = 0;
+            position = 0;
+            stopped = false;
+        }
+    }
+
+    // Report matches at this state, including all suffix matches. Values are kept in an Object array,
+    // they are all T.
+    @SuppressWarnings("unchecked")
+    private boolean output(ReadableMatchListener<T> listener, int state) {
+        boolean ret = listener.match((T) values[state]);
+        int suffixState = suffix[state];
+        while (suffixState != FlatTrie.NONE && ret) {
+            ret = listener.match((T) values[suffixState]);
+            suffixState = suffix[suffixState];
+        }
+        return ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean output(String haystack, MapMatchListener<T> listener, int state, int idx) {
+        // since idx is the last character in the match
+        // position it past the match (to be consistent with conventions)
+        boolean ret = listener.match(haystack, idx - matchLength[state], idx, (T) values[state]);
+        int suffixState = suffix[state];
+        while (suffixState != FlatTrie.NONE && ret) {
+            ret = listener.match(haystack, idx - matchLength[suffixState], idx, (T) values[suffixState]);
+            suffixState = suffix[suffixState];
+        }
+        return ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean outputSequence(CharSequence haystack, CharSequenceMapMatchListener<T> listener, int state, int idx) {
+        // since idx is the last character in the match
+        // position it past the match (to be consistent with conventions)
+        boolean ret = listener.match(haystack, idx - matchLength[state], idx, (T) values[state]);
+        int suffixState = suffix[state];
+        while (suffixState != FlatTrie.NONE && ret) {
+            ret = listener.match(haystack, idx - matchLength[suffixState], idx, (T) values[suffixState]);
+            suffixState = suffix[suffixState];
+        }
+        return ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean output(StreamMapMatchListener<T> listener, int state, long idx) {
+        boolean ret = listener.match(idx - matchLength[state], idx, (T) values[state]);
+        int suffixState = suffix[state];
+        while (suffixState != FlatTrie.NONE && ret) {
+            ret = listener.match(idx - matchLength[suffixState], idx, (T) values[suffixState]);
+            suffixState = suffix[suffixState];
+        }
+        return ret;
+    }
+
+}
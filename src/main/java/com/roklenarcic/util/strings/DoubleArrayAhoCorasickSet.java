@@ -0,0 +1,421 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+
+import com.roklenarcic.util.strings.AhoCorasickSet.WhitespaceReader;
+import com.roklenarcic.util.strings.threshold.RangeNodeThreshold;
+import com.roklenarcic.util.strings.threshold.Thresholder;
+
+// Standard Aho-Corasick set, same matches as AhoCorasickSet.
+// The automaton is compiled into a double array (base/check) form, so the whole
+// thing is a few large int arrays instead of a node object graph. This
+// means a lot less work for the GC with very large dictionaries.
+public class DoubleArrayAhoCorasickSet implements StringSet, MemoryAccountable {
+
+    private int[] base;
+    private boolean caseSensitive = true;
+    private int[] check;
+    private int[] fail;
+    private int[] matchLength;
+    private int[] suffix;
+    private WhitespaceReader whitespaceReader;
+
+    public DoubleArrayAhoCorasickSet(final Iterable<String> keywords, boolean caseSensitive, boolean collapseWhitespace) {
+        this(keywords, caseSensitive, collapseWhitespace, new RangeNodeThreshold());
+    }
+
+    public DoubleArrayAhoCorasickSet(final Iterable<String> keywords, boolean caseSensitive, boolean collapseWhitespace,
+            final Thresholder thresholdStrategy) {
+        this.caseSensitive = caseSensitive;
+        if (collapseWhitespace) {
+            whitespaceReader = AhoCorasickSet.SkipWhiteSpaceReaderInstance;
+        } else {
+            whitespaceReader = AhoCorasickSet.NoOpWhiteSpaceReaderInstance;
+        }
+        // Build the node based automaton, then compile it into arrays and let the nodes go.
+        FlatTrie trie = new AhoCorasickSet(keywords, caseSensitive, collapseWhitespace, thresholdStrategy).flatten();
+        DoubleArray doubleArray = new DoubleArray(trie);
+        this.base = doubleArray.base;
+        this.check = doubleArray.check;
+        this.fail = doubleArray.placeStates(trie.failState);
+        this.matchLength = doubleArray.placeInts(trie.matchLength);
+        this.suffix = doubleArray.placeStates(trie.suffixState);
+    }
+
+    public void matchChars(final char[] haystack, final int from, final int to, final CharSequenceSetMatchListener listener) {
+        // Listeners see the array as a char sequence, positions are array indexes.
+        final CharSequence sequence = CharBuffer.wrap(haystack);
+        final int len = to;
+        // Local copy of the array for the loop.
+        final int[] matchLength = this.matchLength;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        boolean skipWhitespace = whitespaceReader.enabled();
+
+        int skipped = 0;
+        int idx = from;
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                char c = haystack[idx];
+                boolean skippedWhitespace = skipWhitespace && currentState != 0 && whitespaceReader.isWhitespace(c);
+                if (skippedWhitespace) {
+                    while (++idx < len && whitespaceReader.isWhitespace(haystack[idx])) {
+                        ++skipped;
+                    }
+                    --idx;
+                    c = ' ';
+                }
+                currentState = step(currentState, c);
+                if (currentState == 0) {
+                    skipped = 0;
+                }
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !outputSequence(sequence, listener, currentState, idx, skipped)) {
+                    return;
+                }
+            }
+        } else {
+            while (idx < len) {
+                char c = Character.toLowerCase(haystack[idx]);
+                boolean skippedWhitespace = skipWhitespace && currentState != 0 && whitespaceReader.isWhitespace(c);
+                if (skippedWhitespace) {
+                    while (++idx < len && whitespaceReader.isWhitespace(haystack[idx])) {
+                        ++skipped;
+                    }
+                    --idx;
+                    c = ' ';
+                }
+                currentState = step(currentState, c);
+                if (currentState == 0) {
+                    skipped = 0;
+                }
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !outputSequence(sequence, listener, currentState, idx, skipped)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public void matchSequence(final CharSequence haystack, final CharSequenceSetMatchListener listener) {
+        final int len = haystack.length();
+        // Local copy of the array for the loop.
+        final int[] matchLength = this.matchLength;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        boolean skipWhitespace = whitespaceReader.enabled();
+
+        int skipped = 0;
+        int idx = 0;
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                char c = haystack.charAt(idx);
+                boolean skippedWhitespace = skipWhitespace && currentState != 0 && whitespaceReader.isWhitespace(c);
+                if (skippedWhitespace) {
+                    while (++idx < len && whitespaceReader.isWhitespace(haystack.charAt(idx))) {
+                        ++skipped;
+                    }
+                    --idx;
+                    c = ' ';
+                }
+                currentState = step(currentState, c);
+                if (currentState == 0) {
+                    skipped = 0;
+                }
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !outputSequence(haystack, listener, currentState, idx, skipped)) {
+                    return;
+                }
+            }
+        } else {
+            while (idx < len) {
+                char c = Character.toLowerCase(haystack.charAt(idx));
+                boolean skippedWhitespace = skipWhitespace && currentState != 0 && whitespaceReader.isWhitespace(c);
+                if (skippedWhitespace) {
+                    while (++idx < len && whitespaceReader.isWhitespace(haystack.charAt(idx))) {
+                        ++skipped;
+                    }
+                    --idx;
+                    c = ' ';
+                }
+                currentState = step(currentState, c);
+                if (currentState == 0) {
+                    skipped = 0;
+                }
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !outputSequence(haystack, listener, currentState, idx, skipped)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public void match(final String haystack, final SetMatchListener listener) {
+        match(haystack, 0, haystack.length(), listener);
+    }
+
+    public void match(final String haystack, final int offset, final int len, final SetMatchListener listener) {
+        // Local copy of the array for the loop.
+        final int[] matchLength = this.matchLength;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        boolean skipWhitespace = whitespaceReader.enabled();
+
+        int skipped = 0;
+        int idx = offset;
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                char c = haystack.charAt(idx);
+                boolean skippedWhitespace = skipWhitespace && currentState != 0 && whitespaceReader.isWhitespace(c);
+                if (skippedWhitespace) {
+                    while (++idx < len && whitespaceReader.isWhitespace(haystack.charAt(idx))) {
+                        ++skipped;
+                    }
+                    --idx;
+                    c = ' ';
+                }
+                currentState = step(currentState, c);
+                if (currentState == 0) {
+                    skipped = 0;
+                }
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !output(haystack, listener, currentState, idx, skipped)) {
+                    return;
+                }
+            }
+        } else {
+            while (idx < len) {
+                char c = Character.toLowerCase(haystack.charAt(idx));
+                boolean skippedWhitespace = skipWhitespace && currentState != 0 && whitespaceReader.isWhitespace(c);
+                if (skippedWhitespace) {
+                    while (++idx < len && whitespaceReader.isWhitespace(haystack.charAt(idx))) {
+                        ++skipped;
+                    }
+                    --idx;
+                    c = ' ';
+                }
+                currentState = step(currentState, c);
+                if (currentState == 0) {
+                    skipped = 0;
+                }
+                ++idx;
+                // Output any matches on the current state
+                if (matchLength[currentState] > 0 && !output(haystack, listener, currentState, idx, skipped)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Matcher for text that arrives in chunks, it finds the same matches as match would in all of the text.
+    public Matcher matcher(final StreamSetMatchListener listener) {
+        return new StreamMatcher(listener);
+    }
+
+    // Match the file decoded with the charset. The file is memory mapped a window at a time, so it can be
+    // larger than 2GB, and positions are char offsets into the decoded text.
+    public void matchFile(final Path file, final Charset charset, final StreamSetMatchListener listener) throws IOException {
+        MappedText.feed(file, charset, matcher(listener));
+    }
+
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = new MemoryUsage();
+        usage.addArray(MemoryUsage.STATES, base);
+        usage.addArray(MemoryUsage.STATES, check);
+        usage.addArray(MemoryUsage.STATES, fail);
+        usage.addArray(MemoryUsage.STATES, matchLength);
+        usage.addArray(MemoryUsage.STATES, suffix);
+        return usage;
+    }
+
+    // Take the transition from the state on the character. If there is none, follow fail transitions
+    // until finding a state that has one. Root takes itself for any missing transition.
+    private int step(int state, final char c) {
+        // Local copies of the arrays for the loop.
+        final int[] base = this.base;
+        final int[] check = this.check;
+        int nextState = base[state] + c;
+        while (check[nextState] != state) {
+            if (state == 0) {
+                return 0;
+            }
+            state = fail[state];
+            nextState = base[state] + c;
+        }
+        return nextState;
+    }
+
+    // State of the match loop between chunks.
+    private final class StreamMatcher implements Matcher {
+
+        private int currentState = 0;
+        private final StreamSetMatchListener listener;
+        // Position of the next character in the text.
+        private long position = 0;
+        private int skipped = 0;
+        private boolean stopped = false;
+        private boolean whitespaceRun = false;
+
+        private StreamMatcher(StreamSetMatchListener listener) {
+            this.listener = listener;
+        }
+
+        public boolean feed(final char[] chunk, final int off, final int len) {
+            if (stopped) {
+                return false;
+            }
+            // Local copies of the state for the loop.
+            final int[] matchLength = DoubleArrayAhoCorasickSet.this.matchLength;
+            final boolean skipWhitespace = whitespaceReader.enabled();
+            int currentState = this.currentState;
+            int skipped = this.skipped;
+            boolean whitespaceRun = this.whitespaceRun;
+            // Position of the chunk array start in the text.
+            final long chunkBase = position - off;
+            final int end = off + len;
+            int idx = off;
+            // Putting this if into the loop worsens the performance so we'll sadly
+            // have to deal with duplicated code.
+            if (caseSensitive) {
+                while (idx < end) {
+                    char c = chunk[idx];
+                    if (whitespaceRun) {
+                        if (whitespaceReader.isWhitespace(c)) {
+                            ++skipped;
+                            ++idx;
+                            continue;
+                        }
+                        // The run is over, take its transition now and look at this character in the next
+                        // iteration.
+                        whitespaceRun = false;
+                        c = ' ';
+                    } else if (skipWhitespace && currentState != 0 && whitespaceReader.isWhitespace(c)) {
+                        whitespaceRun = true;
+                        ++idx;
+                        continue;
+                    } else {
+                        ++idx;
+                    }
+                    currentState = step(currentState, c);
+                    if (currentState == 0) {
+                        skipped = 0;
+                    }
+                    // Output any matches on the current state
+                    if (matchLength[currentState] > 0 && !output(listener, currentState, chunkBase + idx, skipped)) {
+                        stopped = true;
+                        return false;
+                    }
+                }
+            } else {
+                while (idx < end) {
+                    char c = Character.toLowerCase(chunk[idx]);
+                    if (whitespaceRun) {
+                        if (whitespaceReader.isWhitespace(c)) {
+                            ++skipped;
+                            ++idx;
+                            continue;
+                        }
+                        // The run is over, take its transition now and look at this character in the next
+                        // iteration.
+                        whitespaceRun = false;
+                        c = ' ';
+                    } else if (skipWhitespace && currentState != 0 && whitespaceReader.isWhitespace(c)) {
+                        whitespaceRun = true;
+                        ++idx;
+                        continue;
+                    } else {
+                        ++idx;
+                    }
+                    currentState = step(currentState, c);
+                    if (currentState == 0) {
+                        skipped = 0;
+                    }
+                    // Output any matches on the current state
+                    if (matchLength[currentState] > 0 && !output(listener, currentState, chunkBase + idx, skipped)) {
+                        stopped = true;
+                        return false;
+                    }
+                }
+            }
+            this.currentState = currentState;
+            this.skipped = skipped;
+            this.whitespaceRun = whitespaceRun;
+            position = chunkBase + end;
+            return true;
+        }
+
+        public void finish() {
+            if (whitespaceRun && !stopped) {
+                // Text ends with a whitespace run, take its transition.
+                currentState = step(currentState, ' ');
+                if (currentState == 0) {
+                    skipped = 0;
+                }
+                if (matchLength[currentState] > 0) {
+                    output(listener, currentState, position, skipped);
+                }
+            }
+            currentState = 0;
+            position = 0;
+            skipped = 0;
+            stopped = false;
+            whitespaceRun = false;
+        }
+    }
+
+    // Report matches at this state, including all suffix matches.
+    private boolean output(String haystack, SetMatchListener listener, int state, int idx, int skipped) {
+        // since idx is the last character in the match
+        // position it past the match (to be consistent with conventions)
+        boolean ret = listener.match(haystack, idx - skipped - matchLength[state], idx);
+        int suffixState = suffix[state];
+        while (suffixState != FlatTrie.NONE && ret) {
+            ret = listener.match(haystack, idx - skipped - matchLength[suffixState], idx);
+            suffixState = suffix[suffixState];
+        }
+        return ret;
+    }
+
+    private boolean outputSequence(CharSequence haystack, CharSequenceSetMatchListener listener, int state, int idx, int skipped) {
+        // since idx is the last character in the match
+        // position it past the match (to be consistent with conventions)
+        boolean ret = listener.match(haystack, idx - skipped - matchLength[state], idx);
+        int suffixState = suffix[state];
+        while (suffixState != FlatTrie.NONE && ret) {
+            ret = listener.match(haystack, idx - skipped - matchLength[suffixState], idx);
+            suffixState = suffix[suffixState];
+        }
+        return ret;
+    }
+
+    private boolean output(StreamSetMatchListener listener, int state, long idx, int skipped) {
+        boolean ret = listener.match(idx - skipped - matchLength[state], idx);
+        int suffixState = suffix[state];
+        while (suffixState != FlatTrie.NONE && ret) {
+            ret = listener.match(idx - skipped - matchLength[suffixState], idx);
+            suffixState = suffix[suffixState];
+        }
+        return ret;
+    }
+
+}
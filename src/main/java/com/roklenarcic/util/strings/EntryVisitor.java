@@ -0,0 +1,6 @@
+package com.roklenarcic.util.strings;
+
+// Visits the transitions of a trie node, see TrieNode.mapEntries.
+interface EntryVisitor<T> {
+    void visit(TrieNode<T> parent, char key, TrieNode<T> value);
+}
@@ -0,0 +1,8 @@
+package com.roklenarcic.util.strings;
+
+public interface FileMapMatchListener<T> {
+
+    // return true to continue matching
+    boolean match(final long startPosition, final long endPosition, final T value);
+
+}
@@ -0,0 +1,108 @@
+package com.roklenarcic.util.strings;
+
+import java.util.Arrays;
+
+// Snapshot of a fully built trie (after node optimization and fail transition
+// calculation) as a handful of flat arrays. States are numbered in breadth first
+// order, root is state 0. Children of each state are stored consecutively and sorted
+// by key, starting at childStart[state] and ending before childStart[state + 1].
+// Only real trie edges are stored, shortcuts that range node gap filling adds
+// are left out, the fail transitions take care of those.
+//
+// This is an intermediate form, the compact engines compile it further.
+final class FlatTrie {
+
+    static final int NONE = -1;
+
+    int[] childStart = new int[17];
+    char[] childKeys = new char[16];
+    int[] childStates = new int[16];
+    int[] depth = new int[16];
+    // Whole word longest match data, only allocated when used.
+    int[] failMatchLength;
+    int[] failMatchOffset;
+    Object[] failValues;
+    int[] failState = new int[16];
+    int longestKeyword = 0;
+    int[] matchLength = new int[16];
+    int numEdges = 0;
+    int size = 0;
+    int[] suffixState = new int[16];
+    Object[] values = new Object[16];
+    private int currentParent = 0;
+
+    // Adds a child edge to the state last passed to startChildren.
+    void addChild(char key, int child) {
+        if (numEdges == childKeys.length) {
+            childKeys = Arrays.copyOf(childKeys, numEdges * 2);
+            childStates = Arrays.copyOf(childStates, numEdges * 2);
+        }
+        childKeys[numEdges] = key;
+        childStates[numEdges] = child;
+        // Keep children of the current state sorted by key. Insertion sort
+        // is fine, most states have very few children.
+        for (int i = numEdges; i > childStart[currentParent] && childKeys[i - 1] > childKeys[i]; i--) {
+            char k = childKeys[i];
+            childKeys[i] = childKeys[i - 1];
+            childKeys[i - 1] = k;
+            int s = childStates[i];
+            childStates[i] = childStates[i - 1];
+            childStates[i - 1] = s;
+        }
+        childStart[currentParent + 1] = ++numEdges;
+    }
+
+    // Adds a new state and returns its number.
+    int addState(int level) {
+        if (size == depth.length) {
+            int newCapacity = size * 2;
+            depth = Arrays.copyOf(depth, newCapacity);
+            failState = Arrays.copyOf(failState, newCapacity);
+            matchLength = Arrays.copyOf(matchLength, newCapacity);
+            suffixState = Arrays.copyOf(suffixState, newCapacity);
+            values = Arrays.copyOf(values, newCapacity);
+            childStart = Arrays.copyOf(childStart, newCapacity + 1);
+            if (failMatchLength != null) {
+                failMatchLength = Arrays.copyOf(failMatchLength, newCapacity);
+                failMatchOffset = Arrays.copyOf(failMatchOffset, newCapacity);
+                failValues = Arrays.copyOf(failValues, newCapacity);
+            }
+        }
+        depth[size] = level;
+        failState[size] = NONE;
+        suffixState[size] = NONE;
+        return size++;
+    }
+
+    // Sets the whole word longest match fail match for an already added state.
+    void setFailMatch(int state, int failMatchLength, int failMatchOffset, Object failValue) {
+        if (this.failMatchLength == null) {
+            this.failMatchLength = new int[depth.length];
+            this.failMatchOffset = new int[depth.length];
+            this.failValues = new Object[depth.length];
+        }
+        this.failMatchLength[state] = failMatchLength;
+        this.failMatchOffset[state] = failMatchOffset;
+        this.failValues[state] = failValue;
+    }
+
+    // Sets the match information for an already added state.
+    void setOutput(int state, int failState, int matchLength, int suffixState, Object value) {
+        this.failState[state] = failState;
+        this.matchLength[state] = matchLength;
+        this.suffixState[state] = suffixState;
+        this.values[state] = value;
+        if (matchLength > longestKeyword) {
+            longestKeyword = matchLength;
+        }
+    }
+
+    // Starts the list of children of a state. States must be started in
+    // ascending order, each one exactly once.
+    void startChildren(int state) {
+        currentParent = state;
+        childStart[state] = numEdges;
+        childStart[state + 1] = numEdges;
+    }
+
+}
@@ -0,0 +1,254 @@
+package com.roklenarcic.util.strings;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
+import com.roklenarcic.util.strings.threshold.SparseNodeType;
+import com.roklenarcic.util.strings.threshold.Thresholder;
+
+// An open addressing hashmap implementation with linear probing
+// and capacity of 2^n
+final class HashmapNode<T> extends TrieNode<T> {
+
+    // Start with capacity of 1 and resize as needed.
+    TrieNode<T>[] children;
+    char[] keys;
+    // Since capacity is a power of 2, we calculate mod by just
+    // bitwise AND with the right mask.
+    private int modulusMask;
+    int numEntries = 0;
+
+    HashmapNode() {
+        clear();
+    }
+
+    // Copy of the node with arrays of the given capacity.
+    private HashmapNode(HashmapNode<T> oldNode, int capacity) {
+        oldNode.copyTo(this);
+        children = oldNode.children;
+        keys = oldNode.keys;
+        numEntries = oldNode.numEntries;
+        resize(capacity);
+    }
+
+    @Override
+    public void clear() {
+        children = TrieNode.newArray(1);
+        keys = new char[1];
+        modulusMask = keys.length - 1;
+        numEntries = 0;
+    }
+
+    @Override
+    protected void relink(IdentityHashMap<TrieNode<T>, TrieNode<T>> replacements) {
+        super.relink(replacements);
+        for (int i = 0; i < children.length; i++) {
+            children[i] = replacements.get(children[i]);
+        }
+    }
+
+    @Override
+    public TrieNode<T> getTransition(final char key) {
+        int defaultSlot = hash(key) & modulusMask;
+        int currentSlot = defaultSlot;
+        // Linear probing to find the entry for key.
+        do {
+            // Check for the empty slot first, empty slots have key 0, which is the class of characters
+            // that aren't in any keyword.
+            if (children[currentSlot] == null) {
+                return null;
+            } else if (keys[currentSlot] == key) {
+                return children[currentSlot];
+            } else {
+                currentSlot = ++currentSlot & modulusMask;
+            }
+        } while (currentSlot != defaultSlot);
+        return null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return numEntries == 0;
+    }
+
+    @Override
+    public void mapEntries(EntryVisitor<T> visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (children[i] != null) {
+                visitor.visit(this, keys[i], children[i]);
+            }
+        }
+    }
+
+    @Override
+    public void updateTransition(char c, TrieNode<T> node) {
+        int defaultSlot = hash(c) & modulusMask;
+        int currentSlot = defaultSlot;
+        do {
+            if (children[currentSlot] == null) {
+                throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+            } else if (keys[currentSlot] == c) {
+                children[currentSlot] = node;
+                return;
+            } else {
+                currentSlot = ++currentSlot & modulusMask;
+            }
+        } while (currentSlot != defaultSlot);
+        throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+    }
+
+    @Override
+    protected TrieNode<T> optimizeNode(int level, Thresholder thresholdStrategy) {
+        char minKey = '\uffff';
+        char maxKey = 0;
+        // Find you the min and max key on the node.
+        int size = numEntries;
+        for (int i = 0; i < children.length; i++) {
+            if (children[i] != null) {
+                if (keys[i] > maxKey) {
+                    maxKey = keys[i];
+                }
+                if (keys[i] < minKey) {
+                    minKey = keys[i];
+                }
+            }
+        }
+        // If difference between min and max key are small
+        // or only slightly larger than number of entries, use a range node
+        int keyIntervalSize = maxKey - minKey + 1;
+        // Nodes with 1 to 4 children get a tiny node, unless they're dense enough for a range node.
+        if (size == 0) {
+            return new LeafNode<T>(this);
+        } else if (size == 1) {
+            return new SingleNode<T>(this);
+        } else if (thresholdStrategy.isOverThreshold(size, level, keyIntervalSize)) {
+            return new RangeNode<T>(this, minKey, maxKey);
+        } else if (size <= 4) {
+            return new SmallNode<T>(this);
+        } else if (thresholdStrategy.isOverBitmapThreshold(size, level, keyIntervalSize)) {
+            return new BitmapNode<T>(this, minKey, maxKey);
+        } else {
+            SparseNodeType sparseNodeType = thresholdStrategy.getSparseNodeType(size, level, keyIntervalSize);
+            if (sparseNodeType == SparseNodeType.MULTIPLICATIVE_HASH) {
+                return new MultiplicativeHashNode<T>(this);
+            } else if (sparseNodeType == SparseNodeType.ROBIN_HOOD) {
+                return new RobinHoodNode<T>(this);
+            } else if (sparseNodeType == SparseNodeType.SORTED) {
+                return new SortedNode<T>(this);
+            }
+            // Nodes that stay hashmap nodes are copied too. Then every node of the trie is allocated
+            // by the breadth first pass that calls this, shallow nodes first, rather than in the order
+            // keywords were added in, which scatters the shallow nodes.
+            return new HashmapNode<T>(this, trimmedCapacity());
+        }
+    }
+
+    // Reinsert the entries, the ones with the most transitions taken first, so those are in their
+    // default slots and found on the first probe, see AhoCorasickMap.train.
+    void reorder(final IdentityHashMap<TrieNode<T>, long[]> hits) {
+        Integer[] order = new Integer[numEntries];
+        int n = 0;
+        for (int i = 0; i < children.length; i++) {
+            if (children[i] != null) {
+                order[n++] = i;
+            }
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            public int compare(Integer a, Integer b) {
+                long[] hitsA = hits.get(children[a]);
+                long[] hitsB = hits.get(children[b]);
+                return Long.compare(hitsB == null ? 0 : hitsB[1], hitsA == null ? 0 : hitsA[1]);
+            }
+        });
+        char[] newKeys = new char[keys.length];
+        TrieNode<T>[] newChildren = TrieNode.newArray(children.length);
+        for (int i : order) {
+            int currentSlot = hash(keys[i]) & modulusMask;
+            while (newChildren[currentSlot] != null) {
+                currentSlot = ++currentSlot & modulusMask;
+            }
+            newKeys[currentSlot] = keys[i];
+            newChildren[currentSlot] = children[i];
+        }
+        this.keys = newKeys;
+        this.children = newChildren;
+    }
+
+    // Change the capacity of the node, calculate the new mask,
+    // rehash and reinsert the entries.
+    private void resize(int capacity) {
+        char[] newKeys = new char[capacity];
+        TrieNode<T>[] newChildren = TrieNode.newArray(capacity);
+        int newMask = newKeys.length - 1;
+        for (int i = 0; i < children.length; i++) {
+            char key = keys[i];
+            TrieNode<T> node = children[i];
+            if (node != null) {
+                int defaultSlot = hash(key) & newMask;
+                int currentSlot = defaultSlot;
+                do {
+                    if (newChildren[currentSlot] == null) {
+                        newKeys[currentSlot] = key;
+                        newChildren[currentSlot] = node;
+                        break;
+                    } else if (newKeys[currentSlot] == key) {
+                        throw new IllegalStateException();
+                    } else {
+                        currentSlot = ++currentSlot & newMask;
+                    }
+                } while (currentSlot != defaultSlot);
+            }
+        }
+        this.keys = newKeys;
+        this.children = newChildren;
+        this.modulusMask = newMask;
+    }
+
+    // Lookups of keys that are already there enlarge a full node too, so once all keywords
+    // are added the arrays shrink to the smallest capacity that the resize policy allows.
+    private int trimmedCapacity() {
+        int capacity = 1;
+        while (capacity < 0x10000 && (capacity < numEntries || (numEntries > 16 && numEntries >= capacity * 0.90f))) {
+            capacity *= 2;
+        }
+        return Math.min(capacity, keys.length);
+    }
+
+    // Return the node for a key or create a new hashmap node with the given id for that key
+    // and return that. Callers see if the id was taken by comparing it to the id of the result.
+    HashmapNode<T> getOrAddChild(char key, int id) {
+        // Check if we need to resize. Capacity of 2^16 doesn't need to resize.
+        // If capacity is <16 and arrays are full or capacity is >16 and
+        // arrays are 90% full, resize
+        if (keys.length < 0x10000 && ((numEntries >= keys.length) || (numEntries > 16 && (numEntries >= keys.length * 0.90f)))) {
+            resize(keys.length * 2);
+        }
+        int defaultSlot = hash(key) & modulusMask;
+        int currentSlot = defaultSlot;
+        do {
+            if (children[currentSlot] == null) {
+                keys[currentSlot] = key;
+                HashmapNode<T> newChild = new HashmapNode<T>();
+                newChild.id = id;
+                children[currentSlot] = newChild;
+                ++numEntries;
+                return newChild;
+            } else if (keys[currentSlot] == key) {
+                return (HashmapNode<T>) children[currentSlot];
+            } else {
+                currentSlot = ++currentSlot & modulusMask;
+            }
+        } while (currentSlot != defaultSlot);
+        throw new IllegalStateException();
+    }
+
+    // FNV-1a hash
+    private int hash(char c) {
+        // HASH_BASIS = 0x811c9dc5;
+        final int HASH_PRIME = 16777619;
+        return (((0x811c9dc5 ^ (c >> 8)) * HASH_PRIME) ^ (c & 0xff)) * HASH_PRIME;
+    }
+
+}
@@ -0,0 +1,8 @@
+package com.roklenarcic.util.strings;
+
+public interface IntMapMatchListener {
+
+    // return true to continue matching
+    boolean match(String haystack, final int startPosition, final int endPosition, final int value);
+
+}
@@ -0,0 +1,35 @@
+package com.roklenarcic.util.strings;
+
+// Node without children, most keywords end in one.
+final class LeafNode<T> extends TrieNode<T> {
+
+    LeafNode(HashmapNode<T> oldNode) {
+        oldNode.copyTo(this);
+    }
+
+    @Override
+    public void clear() {
+        // No children to clear.
+    }
+
+    @Override
+    public TrieNode<T> getTransition(char c) {
+        return null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return true;
+    }
+
+    @Override
+    public void mapEntries(EntryVisitor<T> visitor) {
+        // No children to visit.
+    }
+
+    @Override
+    public void updateTransition(char c, TrieNode<T> node) {
+        throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+    }
+
+}
@@ -0,0 +1,260 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.roklenarcic.util.strings.threshold.RangeNodeThreshold;
+import com.roklenarcic.util.strings.threshold.Thresholder;
+
+// Matches leftmost longest matches. Useful when you want non-overlapping
+// matches with a string set that doesn't have strings that are prefix to other strings in the set.
+// Values are ints. The trie is built by a LongestMatchMap over the keyword indexes, which are then
+// replaced by the values in an int column, so there's no boxing when matching.
+public class LongestMatchIntMap implements StringIntMap {
+
+    private final LongestMatchMap<Integer> map;
+    // Value of each node's match by node id.
+    private final int[] values;
+
+    public LongestMatchIntMap(final Iterable<String> keywords, final int[] values, boolean caseSensitive) {
+        this(keywords, values, caseSensitive, new RangeNodeThreshold());
+    }
+
+    public LongestMatchIntMap(final Iterable<String> keywords, final int[] values, boolean caseSensitive, final Thresholder thresholdStrategy) {
+        this.map = new LongestMatchMap<Integer>(keywords, ids(values.length), caseSensitive, thresholdStrategy);
+        this.values = column(map.values, values);
+        // The map's boxed keyword indexes aren't needed anymore.
+        map.values = null;
+    }
+
+    // Index of each value, the map stores these instead of the values.
+    private static List<Integer> ids(int count) {
+        List<Integer> ids = new ArrayList<Integer>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(i);
+        }
+        return ids;
+    }
+
+    // Values at the keyword indexes, slots without an index stay 0.
+    private static int[] column(Object[] ids, int[] values) {
+        int[] column = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != null) {
+                column[i] = values[(Integer) ids[i]];
+            }
+        }
+        return column;
+    }
+
+    // Node statistics for tuning the thresholder, see TrieDiagnostics.
+    public TrieDiagnostics diagnostics() {
+        return map.diagnostics();
+    }
+
+    public void matchChars(final char[] haystack, final int from, final int to, final CharSequenceIntMapMatchListener listener) {
+        // Listeners see the array as a char sequence, positions are array indexes.
+        final CharSequence sequence = CharBuffer.wrap(haystack);
+
+        // Local copies of the node fields for the loop.
+        final char[] charClasses = map.charClasses;
+        final int[] level = map.level;
+        // Start with the root node.
+        final TrieCursor<Integer> cursor = new TrieCursor<Integer>(map.root);
+        PrimitiveMatchQueue queue = new PrimitiveMatchQueue();
+        int idx = from;
+        // For each character.
+        final int len = to;
+        while (idx < len) {
+            final boolean failTransition = cursor.step(charClasses[haystack[idx]]);
+            // Output any matches on the current node
+            output(cursor.node, queue, ++idx);
+            // If fail transition was taken, we can flush the match queue.
+            // We flush all matches that end before the start of the of the fail transition taken.
+            if (failTransition && !queue.matchAndClearIntSequence(sequence, listener, idx - level[cursor.node.id])) {
+                return;
+            }
+        }
+        // Flush the rest of the matches.
+        queue.matchAndClearIntSequence(sequence, listener, Integer.MAX_VALUE);
+    }
+
+    public void matchSequence(final CharSequence haystack, final CharSequenceIntMapMatchListener listener) {
+
+        // Local copies of the node fields for the loop.
+        final char[] charClasses = map.charClasses;
+        final int[] level = map.level;
+        // Start with the root node.
+        final TrieCursor<Integer> cursor = new TrieCursor<Integer>(map.root);
+        PrimitiveMatchQueue queue = new PrimitiveMatchQueue();
+        int idx = 0;
+        // For each character.
+        final int len = haystack.length();
+        while (idx < len) {
+            final boolean failTransition = cursor.step(charClasses[haystack.charAt(idx)]);
+            // Output any matches on the current node
+            output(cursor.node, queue, ++idx);
+            // If fail transition was taken, we can flush the match queue.
+            // We flush all matches that end before the start of the of the fail transition taken.
+            if (failTransition && !queue.matchAndClearIntSequence(haystack, listener, idx - level[cursor.node.id])) {
+                return;
+            }
+        }
+        // Flush the rest of the matches.
+        queue.matchAndClearIntSequence(haystack, listener, Integer.MAX_VALUE);
+    }
+
+    public void match(final Readable haystack, final ReadableIntMatchListener listener) throws IOException {
+
+        // Local copies of the node fields for the loop.
+        final char[] charClasses = map.charClasses;
+        final int[] level = map.level;
+        // Start with the root node.
+        final TrieCursor<Integer> cursor = new TrieCursor<Integer>(map.root);
+        PrimitiveMatchQueue queue = new PrimitiveMatchQueue();
+
+        CharBuffer buf = CharBuffer.allocate(map.charBufferSize);
+
+        int idx = 0;
+        // For each character.
+        while (haystack.read(buf) != -1) {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                final boolean failTransition = cursor.step(charClasses[buf.get()]);
+                // Output any matches on the current node
+                output(cursor.node, queue, ++idx);
+                // If fail transition was taken, we can flush the match queue.
+                // We flush all matches that end before the start of the of the fail transition taken.
+                if (failTransition && !queue.matchAndClearInt(listener, idx - level[cursor.node.id])) {
+                    return;
+                }
+            }
+            buf.clear();
+        }
+        // Flush the rest of the matches.
+        queue.matchAndClearInt(listener, Integer.MAX_VALUE);
+    }
+
+    public void match(final String haystack, final IntMapMatchListener listener) {
+
+        // Local copies of the node fields for the loop.
+        final char[] charClasses = map.charClasses;
+        final int[] level = map.level;
+        // Start with the root node.
+        final TrieCursor<Integer> cursor = new TrieCursor<Integer>(map.root);
+        PrimitiveMatchQueue queue = new PrimitiveMatchQueue();
+        int idx = 0;
+        // For each character.
+        final int len = haystack.length();
+        while (idx < len) {
+            final boolean failTransition = cursor.step(charClasses[haystack.charAt(idx)]);
+            // Output any matches on the current node
+            output(cursor.node, queue, ++idx);
+            // If fail transition was taken, we can flush the match queue.
+            // We flush all matches that end before the start of the of the fail transition taken.
+            if (failTransition && !queue.matchAndClearInt(haystack, listener, idx - level[cursor.node.id])) {
+                return;
+            }
+        }
+        // Flush the rest of the matches.
+        queue.matchAndClearInt(haystack, listener, Integer.MAX_VALUE);
+    }
+
+    // Matcher for text that arrives in chunks, it finds the same matches as match would in all of the text.
+    public Matcher matcher(final StreamIntMapMatchListener listener) {
+        return new StreamMatcher(listener);
+    }
+
+    // Match the file decoded with the charset. The file is memory mapped a window at a time, so it can be
+    // larger than 2GB, and positions are char offsets into the decoded text.
+    public void matchFile(final Path file, final Charset charset, final StreamIntMapMatchListener listener) throws IOException {
+        MappedText.feed(file, charset, matcher(listener));
+    }
+
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = map.memoryUsage();
+        usage.addArray(MemoryUsage.VALUES, values);
+        return usage;
+    }
+
+    // Re-optimize the trie for text like the sample, see LongestMatchMap.train.
+    public void train(String sample) {
+        map.train(sample);
+    }
+
+    public void train(String sample, Thresholder thresholdStrategy) {
+        map.train(sample, thresholdStrategy);
+    }
+
+    // State of the match loop between chunks. Queued matches wait for a fail transition, which can come
+    // in a later chunk, their indexes are relative to the start of the next chunk.
+    private final class StreamMatcher implements Matcher {
+
+        private final TrieCursor<Integer> cursor = new TrieCursor<Integer>(map.root);
+        private final StreamIntMapMatchListener listener;
+        // Position of the next character in the text.
+        private long position = 0;
+        private final PrimitiveMatchQueue queue = new PrimitiveMatchQueue();
+        private boolean stopped = false;
+
+        private StreamMatcher(StreamIntMapMatchListener listener) {
+            this.listener = listener;
+        }
+
+        public boolean feed(final char[] chunk, final int off, final int len) {
+            if (stopped) {
+                return false;
+            }
+            // Local copies of the node fields for the loop.
+            final char[] charClasses = map.charClasses;
+            final int[] level = map.level;
+            int idx = 0;
+            while (idx < len) {
+                final boolean failTransition = cursor.step(charClasses[chunk[off + idx]]);
+                output(cursor.node, queue, ++idx);
+                if (failTransition && !queue.matchAndClearInt(listener, idx - level[cursor.node.id], position)) {
+                    stopped = true;
+                    return false;
+                }
+            }
+            queue.shift(len);
+            position += len;
+            return true;
+        }
+
+        public void finish() {
+            if (!stopped) {
+                // Flush the rest of the matches.
+                queue.matchAndClearInt(listener, Integer.MAX_VALUE, position);
+            }
+            cursor.reset();
+            position = 0;
+            queue.clear();
+            stopped = false;
+        }
+    }
+
+    // Report matches at this node. Use at matching.
+    private void output(TrieNode<Integer> node, PrimitiveMatchQueue queue, int idx) {
+        // Since idx is the last character in the match
+        // position it past the match (to be consistent with conventions)
+
+        // Since all matches at one node are overlapping suffix matches in descending
+        // length, first match accepted into the queue means subsequent matches won't be,
+        // so we return.
+        if (node.matchLength != 0) {
+            final TrieNode<Integer>[] suffixMatch = map.suffixMatch;
+            boolean matchAccepted = queue.push(node.matchLength, idx, values[node.id]);
+            TrieNode<Integer> suffix = suffixMatch[node.id];
+            while (suffix != null && !matchAccepted) {
+                matchAccepted = queue.push(suffix.matchLength, idx, values[suffix.id]);
+                suffix = suffixMatch[suffix.id];
+            }
+        }
+    }
+
+}
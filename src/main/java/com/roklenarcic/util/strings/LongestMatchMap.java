@@ -2,31 +2,46 @@ package com.roklenarcic.util.strings;
 
 import java.io.IOException;
 import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
 
+import com.roklenarcic.util.strings.threshold.ProfileThreshold;
 import com.roklenarcic.util.strings.threshold.RangeNodeThreshold;
 import com.roklenarcic.util.strings.threshold.Thresholder;
 
 // Matches leftmost longest matches. Useful when you want non-overlapping
 // matches with a string set that doesn't have strings that are prefix to other strings in the set.
-public class LongestMatchMap<T> implements StringMap<T> {
-
-    private boolean caseSensitive = true;
-    private int charBufferSize = 0;
-    private TrieNode<T> root;
+public class LongestMatchMap<T> implements StringMap<T>, MemoryAccountable {
+
+    private Alphabet alphabet;
+    // Fields that aren't private are read by LongestMatchIntMap and LongestMatchLongMap, they match over
+    // this trie with loops of their own and keep the values in primitive columns.
+    int charBufferSize = 0;
+    char[] charClasses;
+    private int longestKeyword = 0;
+    // Fields of the nodes read on a match or a fail transition, by node id. Values are all T.
+    // Depth of the node.
+    int[] level = new int[16];
+    TrieNode<T>[] suffixMatch;
+    Object[] values = new Object[16];
+    TrieNode<T> root;
 
     public LongestMatchMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive) {
         this(keywords, values, caseSensitive, new RangeNodeThreshold());
     }
 
     public LongestMatchMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive, final Thresholder thresholdStrategy) {
-        this.caseSensitive = caseSensitive;
+        alphabet = new Alphabet(caseSensitive);
         Iterator<String> keywordsIter = keywords.iterator();
         Iterator<? extends T> valuesIter = values.iterator();
-        int longestKeyword = 0;
         // Create the root node
-        root = new HashmapNode<T>(true, 0);
+        root = new HashmapNode<T>();
+        int nodeCount = 1;
         // Add all keywords
         while (keywordsIter.hasNext() && valuesIter.hasNext()) {
             final String keyword = keywordsIter.next();
@@ -41,22 +56,40 @@ public class LongestMatchMap<T> implements StringMap<T> {
                 // fill out the tree.
                 HashmapNode<T> currentNode = (HashmapNode<T>) root;
                 for (int idx = 0; idx < keyword.length(); idx++) {
-                    currentNode = currentNode.getOrAddChild(caseSensitive ? keyword.charAt(idx) : Character.toLowerCase(keyword.charAt(idx)));
+                    currentNode = currentNode.getOrAddChild(alphabet.add(keyword.charAt(idx)), nodeCount);
+                    if (currentNode.id == nodeCount) {
+                        if (nodeCount == level.length) {
+                            level = Arrays.copyOf(level, nodeCount * 2);
+                            this.values = Arrays.copyOf(this.values, nodeCount * 2);
+                        }
+                        level[nodeCount++] = idx + 1;
+                    }
                 }
                 // Last node will contains the keyword as a match.
                 // Suffix matches will be added later.
                 currentNode.matchLength = keyword.length();
-                currentNode.value = value;
+                this.values[currentNode.id] = value;
             }
         }
+        charClasses = alphabet.classes();
+        level = Arrays.copyOf(level, nodeCount);
+        this.values = Arrays.copyOf(this.values, nodeCount);
         charBufferSize = longestKeyword > 2048 ? longestKeyword * 2 : 4096;
+        suffixMatch = TrieNode.newArray(nodeCount);
         // Calculate fail transitions and add suffix matches to nodes.
         // A lot of these properties are defined in a recursive fashion i.e.
         // calculating for a 3 letter word requires having done the calculation
         // for all 2 letter words.
         //
+        final Thresholder plannedStrategy = plan((HashmapNode<T>) root, !thresholdStrategy.isOverRootTableThreshold(alphabet.size()), thresholdStrategy);
         final Queue<TrieNode<T>> queue = new Queue<TrieNode<T>>();
-        root = root.optimizeNode(0, thresholdStrategy);
+        if (thresholdStrategy.isOverRootTableThreshold(alphabet.size())) {
+            // Root table has a slot for every class id. Slots without a child lead back to the root,
+            // so root lookups never miss.
+            root = new RangeNode<T>((HashmapNode<T>) root, (char) 0, (char) (alphabet.size() - 1), true);
+        } else {
+            root = root.optimizeNode(0, plannedStrategy);
+        }
         queue.push(root);
         queue.push(null);
         // Need to use array to get mutateable state for anonymous class
@@ -66,11 +99,11 @@ public class LongestMatchMap<T> implements StringMap<T> {
 
             public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
                 // First optimize node
-                value = value.optimizeNode(level[0], thresholdStrategy);
+                value = value.optimizeNode(level[0], plannedStrategy);
                 parent.updateTransition(key, value);
 
                 // Get fail transiton of the parent.
-                TrieNode<T> parentFail = parent.getFailTransition();
+                TrieNode<T> parentFail = parent.failTransition;
                 // Since root node has null fail transition, first level nodes have null parentFail.
                 if (parentFail == null) {
                     // First level nodes have one possible fail transition, which is
@@ -90,12 +123,13 @@ public class LongestMatchMap<T> implements StringMap<T> {
                         final TrieNode<T> matchContinuation = parentFail.getTransition(key);
                         if (matchContinuation != null) {
                             value.failTransition = matchContinuation;
+                        } else if (parentFail == root) {
+                            // Root without a key mapping, the only suffix left is an empty string.
+                            value.failTransition = root;
                         } else {
                             // If parentFail didn't have key mapping
                             // take parentFail's failTransition and try again
-                            // The last fail transition is the root node, which
-                            // always has a key mapping.
-                            parentFail = parentFail.getFailTransition();
+                            parentFail = parentFail.failTransition;
                         }
                     } while (value.failTransition == null);
                     // Now that we have a fail transition, this node matches all
@@ -123,10 +157,10 @@ public class LongestMatchMap<T> implements StringMap<T> {
                     if (fail.matchLength > 0) {
                         if (value.matchLength == 0) {
                             value.matchLength = fail.matchLength;
-                            value.suffixMatch = fail.suffixMatch;
-                            value.value = fail.value;
+                            suffixMatch[value.id] = suffixMatch[fail.id];
+                            LongestMatchMap.this.values[value.id] = LongestMatchMap.this.values[fail.id];
                         } else {
-                            value.suffixMatch = fail;
+                            suffixMatch[value.id] = fail;
                         }
                     }
                 }
@@ -200,462 +234,415 @@ public class LongestMatchMap<T> implements StringMap<T> {
         }
     }
 
-    public void match(final Readable haystack, final ReadableMatchListener<T> listener) throws IOException {
+    // Node statistics for tuning the thresholder, see TrieDiagnostics.
+    public TrieDiagnostics diagnostics() {
+        final TrieDiagnostics diagnostics = new TrieDiagnostics();
+        final ArrayList<TrieNode<T>> nodes = new ArrayList<TrieNode<T>>();
+        final IdentityHashMap<TrieNode<T>, Integer> levels = new IdentityHashMap<TrieNode<T>, Integer>();
+        // Number of children, smallest and largest key of the visited node.
+        final int[] entries = new int[3];
+        EntryVisitor<T> visitor = new EntryVisitor<T>() {
+
+            public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
+                entries[0]++;
+                entries[1] = Math.min(entries[1], key);
+                entries[2] = Math.max(entries[2], key);
+                if (!levels.containsKey(value)) {
+                    levels.put(value, levels.get(parent) + 1);
+                    nodes.add(value);
+                }
+            }
+
+        };
+        levels.put(root, 0);
+        nodes.add(root);
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieNode<T> node = nodes.get(i);
+            int level = levels.get(node);
+            entries[0] = 0;
+            entries[1] = Character.MAX_VALUE;
+            entries[2] = 0;
+            node.mapEntries(visitor);
+            int failChainLength = 0;
+            for (TrieNode<T> n = node; n != root && n != null; n = n.failTransition) {
+                failChainLength++;
+            }
+            int slots = node instanceof RangeNode ? ((RangeNode<T>) node).size : 0;
+            diagnostics.add(node.getClass().getSimpleName(), level, entries[0], entries[2] - entries[1] + 1, failChainLength, slots);
+        }
+        return diagnostics;
+    }
+
+    public void matchChars(final char[] haystack, final int from, final int to, final CharSequenceMapMatchListener<T> listener) {
+        // Listeners see the array as a char sequence, positions are array indexes.
+        final CharSequence sequence = CharBuffer.wrap(haystack);
 
+        // Local copies of the node fields for the loop.
+        final int[] level = this.level;
         // Start with the root node.
-        TrieNode<T> currentNode = root;
+        final TrieCursor<T> cursor = new TrieCursor<T>(root);
         MapMatchQueue<T> queue = new MapMatchQueue<T>();
+        int idx = from;
+        // For each character.
+        final int len = to;
+        while (idx < len) {
+            final boolean failTransition = cursor.step(charClasses[haystack[idx]]);
+            // Output any matches on the current node
+            output(cursor.node, queue, ++idx);
+            // If fail transition was taken, we can flush the match queue.
+            // We flush all matches that end before the start of the of the fail transition taken.
+            if (failTransition && !queue.matchAndClearSequence(sequence, listener, idx - level[cursor.node.id])) {
+                return;
+            }
+        }
+        // Flush the rest of the matches.
+        queue.matchAndClearSequence(sequence, listener, Integer.MAX_VALUE);
+    }
 
-        CharBuffer buf = CharBuffer.allocate(charBufferSize);
+    public void matchSequence(final CharSequence haystack, final CharSequenceMapMatchListener<T> listener) {
 
+        // Local copies of the node fields for the loop.
+        final int[] level = this.level;
+        // Start with the root node.
+        final TrieCursor<T> cursor = new TrieCursor<T>(root);
+        MapMatchQueue<T> queue = new MapMatchQueue<T>();
         int idx = 0;
         // For each character.
-        // Putting this if into the loop worsens the performance so we'll sadly
-        // have to deal with duplicated code.
-        if (caseSensitive) {
-            while (haystack.read(buf) != -1) {
-                buf.flip();
-                while (buf.hasRemaining()) {
-                    final char c = buf.get();
-                    // Try to transition from the current node using the character
-                    TrieNode<T> nextNode = currentNode.getTransition(c);
-
-                    // If cannot transition, follow the fail transition until finding
-                    // node X where you can transition to another node Y using this
-                    // character. Take the transition.
-                    boolean failTransition = false;
-                    while (nextNode == null) {
-                        failTransition = true;
-                        // Transition follow one fail transition
-                        currentNode = currentNode.getFailTransition();
-                        // See if you can transition to another node with this
-                        // character. Note that root node will return itself for any
-                        // missing transition.
-                        nextNode = currentNode.getTransition(c);
-                    }
-                    // Take the transition.
-                    currentNode = nextNode;
-                    // Output any matches on the current node
-                    currentNode.output(queue, ++idx);
-                    // If fail transition was taken, we can flush the match queue.
-                    // We flush all matches that end before the start of the of the fail transition taken.
-                    if (failTransition && !queue.matchAndClear(listener, idx - currentNode.level)) {
-                        return;
-                    }
-                }
-                buf.clear();
-            }
-            // Flush the rest of the matches.
-            queue.matchAndClear(listener, Integer.MAX_VALUE);
-        } else {
-            while (haystack.read(buf) != -1) {
-                buf.flip();
-                while (buf.hasRemaining()) {
-                    final char c = Character.toLowerCase(buf.get());
-                    // Try to transition from the current node using the character
-                    TrieNode<T> nextNode = currentNode.getTransition(c);
-
-                    // If cannot transition, follow the fail transition until finding
-                    // node X where you can transition to another node Y using this
-                    // character. Take the transition.
-                    boolean failTransition = false;
-                    while (nextNode == null) {
-                        failTransition = true;
-                        // Transition follow one fail transition
-                        currentNode = currentNode.getFailTransition();
-                        // See if you can transition to another node with this
-                        // character. Note that root node will return itself for any
-                        // missing transition.
-                        nextNode = currentNode.getTransition(c);
-                    }
-                    // Take the transition.
-                    currentNode = nextNode;
-                    // Output any matches on the current node
-                    currentNode.output(queue, ++idx);
-                    // If fail transition was taken, we can flush the match queue.
-                    // We flush all matches that end before the start of the of the fail transition taken.
-                    if (failTransition && !queue.matchAndClear(listener, idx - currentNode.level)) {
-                        return;
-                    }
-                }
-                buf.clear();
+        final int len = haystack.length();
+        while (idx < len) {
+            final boolean failTransition = cursor.step(charClasses[haystack.charAt(idx)]);
+            // Output any matches on the current node
+            output(cursor.node, queue, ++idx);
+            // If fail transition was taken, we can flush the match queue.
+            // We flush all matches that end before the start of the of the fail transition taken.
+            if (failTransition && !queue.matchAndClearSequence(haystack, listener, idx - level[cursor.node.id])) {
+                return;
             }
-            // Flush the rest of the matches.
-            queue.matchAndClear(listener, Integer.MAX_VALUE);
         }
+        // Flush the rest of the matches.
+        queue.matchAndClearSequence(haystack, listener, Integer.MAX_VALUE);
     }
 
-    public void match(final String haystack, final MapMatchListener<T> listener) {
+    public void match(final Readable haystack, final ReadableMatchListener<T> listener) throws IOException {
 
+        // Local copies of the node fields for the loop.
+        final int[] level = this.level;
         // Start with the root node.
-        TrieNode<T> currentNode = root;
+        final TrieCursor<T> cursor = new TrieCursor<T>(root);
         MapMatchQueue<T> queue = new MapMatchQueue<T>();
+
+        CharBuffer buf = CharBuffer.allocate(charBufferSize);
+
         int idx = 0;
         // For each character.
-        final int len = haystack.length();
-        // Putting this if into the loop worsens the performance so we'll sadly
-        // have to deal with duplicated code.
-        if (caseSensitive) {
-            while (idx < len) {
-                final char c = haystack.charAt(idx);
-                // Try to transition from the current node using the character
-                TrieNode<T> nextNode = currentNode.getTransition(c);
-
-                // If cannot transition, follow the fail transition until finding
-                // node X where you can transition to another node Y using this
-                // character. Take the transition.
-                boolean failTransition = false;
-                while (nextNode == null) {
-                    failTransition = true;
-                    // Transition follow one fail transition
-                    currentNode = currentNode.getFailTransition();
-                    // See if you can transition to another node with this
-                    // character. Note that root node will return itself for any
-                    // missing transition.
-                    nextNode = currentNode.getTransition(c);
-                }
-                // Take the transition.
-                currentNode = nextNode;
+        while (haystack.read(buf) != -1) {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                final boolean failTransition = cursor.step(charClasses[buf.get()]);
                 // Output any matches on the current node
-                currentNode.output(queue, ++idx);
+                output(cursor.node, queue, ++idx);
                 // If fail transition was taken, we can flush the match queue.
                 // We flush all matches that end before the start of the of the fail transition taken.
-                if (failTransition && !queue.matchAndClear(haystack, listener, idx - currentNode.level)) {
+                if (failTransition && !queue.matchAndClear(listener, idx - level[cursor.node.id])) {
                     return;
                 }
             }
-            // Flush the rest of the matches.
-            queue.matchAndClear(haystack, listener, Integer.MAX_VALUE);
-        } else {
-            while (idx < len) {
-                final char c = Character.toLowerCase(haystack.charAt(idx));
-                // Try to transition from the current node using the character
-                TrieNode<T> nextNode = currentNode.getTransition(c);
-
-                // If cannot transition, follow the fail transition until finding
-                // node X where you can transition to another node Y using this
-                // character. Take the transition.
-                boolean failTransition = false;
-                while (nextNode == null) {
-                    failTransition = true;
-                    // Transition follow one fail transition
-                    currentNode = currentNode.getFailTransition();
-                    // See if you can transition to another node with this
-                    // character. Note that root node will return itself for any
-                    // missing transition.
-                    nextNode = currentNode.getTransition(c);
-                }
-                // Take the transition.
-                currentNode = nextNode;
-                // Output any matches on the current node
-                currentNode.output(queue, ++idx);
-                // If fail transition was taken, we can flush the match queue.
-                // We flush all matches that end before the start of the of the fail transition taken.
-                if (failTransition && !queue.matchAndClear(haystack, listener, idx - currentNode.level)) {
-                    return;
-                }
-            }
-            // Flush the rest of the matches.
-            queue.matchAndClear(haystack, listener, Integer.MAX_VALUE);
+            buf.clear();
         }
+        // Flush the rest of the matches.
+        queue.matchAndClear(listener, Integer.MAX_VALUE);
     }
 
-    private interface EntryVisitor<T> {
-        void visit(TrieNode<T> parent, char key, TrieNode<T> value);
+    public void match(final String haystack, final MapMatchListener<T> listener) {
+        match(haystack, 0, haystack.length(), listener);
     }
 
-    // An open addressing hashmap implementation with linear probing
-    // and capacity of 2^n
-    private final static class HashmapNode<T> extends TrieNode<T> {
-
-        // Start with capacity of 1 and resize as needed.
-        @SuppressWarnings("unchecked")
-        private TrieNode<T>[] children = new TrieNode[1];
-        private char[] keys = new char[1];
-        // Since capacity is a power of 2, we calculate mod by just
-        // bitwise AND with the right mask.
-        private int modulusMask = keys.length - 1;
-        private int numEntries = 0;
-
-        protected HashmapNode(boolean root, int level) {
-            super(root, level);
-        }
+    public void match(final String haystack, final int offset, final int len, final MapMatchListener<T> listener) {
 
-        @Override
-        public TrieNode<T> getTransition(final char key) {
-            int defaultSlot = hash(key) & modulusMask;
-            int currentSlot = defaultSlot;
-            // Linear probing to find the entry for key.
-            do {
-                if (keys[currentSlot] == key) {
-                    return children[currentSlot];
-                } else if (children[currentSlot] == null) {
-                    return defaultTransition;
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
-                }
-            } while (currentSlot != defaultSlot);
-            return defaultTransition;
+        // Local copies of the node fields for the loop.
+        final int[] level = this.level;
+        // Start with the root node.
+        final TrieCursor<T> cursor = new TrieCursor<T>(root);
+        MapMatchQueue<T> queue = new MapMatchQueue<T>();
+        int idx = offset;
+        // For each character.
+        while (idx < len) {
+            final boolean failTransition = cursor.step(charClasses[haystack.charAt(idx)]);
+            // Output any matches on the current node
+            output(cursor.node, queue, ++idx);
+            // If fail transition was taken, we can flush the match queue.
+            // We flush all matches that end before the start of the of the fail transition taken.
+            if (failTransition && !queue.matchAndClear(haystack, listener, idx - level[cursor.node.id])) {
+                return;
+            }
         }
+        // Flush the rest of the matches.
+        queue.matchAndClear(haystack, listener, Integer.MAX_VALUE);
+    }
 
-        @Override
-        public boolean isEmpty() {
-            return numEntries == 0;
-        }
+    // Matches the haystack in chunks on the common pool, with the same matches as match. Ordered matches come
+    // in the same order, otherwise they come as chunks finish, from the pool threads but one at a time.
+    public void matchParallel(final String haystack, final MapMatchListener<T> listener, boolean ordered) {
+        matchParallel(haystack, listener, ordered, ForkJoinPool.commonPool());
+    }
 
-        @Override
-        public void mapEntries(EntryVisitor<T> visitor) {
-            for (int i = 0; i < keys.length; i++) {
-                if (children[i] != null) {
-                    visitor.visit(this, keys[i], children[i]);
-                }
-            }
-        }
+    public void matchParallel(final String haystack, final MapMatchListener<T> listener, boolean ordered, ForkJoinPool pool) {
+        matchParallel(haystack, listener, ordered, pool, ParallelScan.CHUNK_CHARS);
+    }
 
-        @Override
-        public void updateTransition(char c, TrieNode<T> node) {
-            int defaultSlot = hash(c) & modulusMask;
-            int currentSlot = defaultSlot;
-            do {
-                if (children[currentSlot] == null) {
-                    throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
-                } else if (keys[currentSlot] == c) {
-                    children[currentSlot] = node;
-                    return;
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
-                }
-            } while (currentSlot != defaultSlot);
-            throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
-        }
+    @SuppressWarnings("unchecked")
+    void matchParallel(final String haystack, final MapMatchListener<T> listener, boolean ordered, ForkJoinPool pool, int chunkChars) {
+        new ParallelScan(new ParallelScan.Scanner() {
 
-        @Override
-        protected TrieNode<T> optimizeNode(int level, Thresholder thresholdStrategy) {
-            char minKey = '\uffff';
-            char maxKey = 0;
-            // Find you the min and max key on the node.
-            int size = numEntries;
-            for (int i = 0; i < children.length; i++) {
-                if (children[i] != null) {
-                    if (keys[i] > maxKey) {
-                        maxKey = keys[i];
-                    }
-                    if (keys[i] < minKey) {
-                        minKey = keys[i];
+            public void scan(String haystack, int from, int to, final ParallelScan.Matches matches) {
+                match(haystack, from, to, new MapMatchListener<T>() {
+
+                    public boolean match(String haystack, int startPosition, int endPosition, T value) {
+                        return matches.add(startPosition, endPosition, value);
                     }
-                }
+                });
             }
-            // If difference between min and max key are small
-            // or only slightly larger than number of entries, use a range node
-            int keyIntervalSize = maxKey - minKey + 1;
-            if (thresholdStrategy.isOverThreshold(size, level, keyIntervalSize)) {
-                return new RangeNode<T>(this, minKey, maxKey);
-            } else {
-                return this;
-            }
-        }
+        }, longestKeyword, true, null).match(haystack, new ParallelScan.Listener() {
 
-        // Double the capacity of the node, calculate the new mask,
-        // rehash and reinsert the entries
-        private void enlarge() {
-            char[] biggerKeys = new char[keys.length * 2];
-            @SuppressWarnings("unchecked")
-            TrieNode<T>[] biggerChildren = new TrieNode[children.length * 2];
-            int biggerMask = biggerKeys.length - 1;
-            for (int i = 0; i < children.length; i++) {
-                char key = keys[i];
-                TrieNode<T> node = children[i];
-                if (node != null) {
-                    int defaultSlot = hash(key) & biggerMask;
-                    int currentSlot = defaultSlot;
-                    do {
-                        if (biggerChildren[currentSlot] == null) {
-                            biggerKeys[currentSlot] = key;
-                            biggerChildren[currentSlot] = node;
-                            break;
-                        } else if (biggerKeys[currentSlot] == key) {
-                            throw new IllegalStateException();
-                        } else {
-                            currentSlot = ++currentSlot & biggerMask;
-                        }
-                    } while (currentSlot != defaultSlot);
-                }
+            public boolean match(int startPosition, int endPosition, Object value) {
+                return listener.match(haystack, startPosition, endPosition, (T) value);
             }
-            this.keys = biggerKeys;
-            this.children = biggerChildren;
-            this.modulusMask = biggerMask;
-        }
+        }, ordered, pool, chunkChars);
+    }
 
-        // Return the node for a key or create a new hashmap node for that key
-        // and return that.
-        private HashmapNode<T> getOrAddChild(char key) {
-            // Check if we need to resize. Capacity of 2^16 doesn't need to resize.
-            // If capacity is <16 and arrays are full or capacity is >16 and
-            // arrays are 90% full, resize
-            if (keys.length < 0x10000 && ((numEntries >= keys.length) || (numEntries > 16 && (numEntries >= keys.length * 0.90f)))) {
-                enlarge();
-            }
-            int defaultSlot = hash(key) & modulusMask;
-            int currentSlot = defaultSlot;
-            do {
-                if (children[currentSlot] == null) {
-                    keys[currentSlot] = key;
-                    HashmapNode<T> newChild = new HashmapNode<T>(false, level + 1);
-                    children[currentSlot] = newChild;
-                    ++numEntries;
-                    return newChild;
-                } else if (keys[currentSlot] == key) {
-                    return (HashmapNode<T>) children[currentSlot];
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
-                }
-            } while (currentSlot != defaultSlot);
-            throw new IllegalStateException();
-        }
+    // Matcher for text that arrives in chunks, it finds the same matches as match would in all of the text.
+    public Matcher matcher(final StreamMapMatchListener<T> listener) {
+        return new StreamMatcher(listener);
+    }
 
-        // FNV-1a hash
-        private int hash(char c) {
-            // HASH_BASIS = 0x811c9dc5;
-            final int HASH_PRIME = 16777619;
-            return (((0x811c9dc5 ^ (c >> 8)) * HASH_PRIME) ^ (c & 0xff)) * HASH_PRIME;
-        }
+    // Match the file decoded with the charset. The file is memory mapped a window at a time, so it can be
+    // larger than 2GB, and positions are char offsets into the decoded text.
+    public void matchFile(final Path file, final Charset charset, final StreamMapMatchListener<T> listener) throws IOException {
+        MappedText.feed(file, charset, matcher(listener));
+    }
 
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = new MemoryUsage();
+        usage.addTrie(root, TrieNode.class);
+        usage.addArray(MemoryUsage.NODE_FIELDS, level);
+        usage.addArray(MemoryUsage.NODE_FIELDS, suffixMatch);
+        usage.addArray(MemoryUsage.VALUES, values);
+        usage.addObject(MemoryUsage.ALPHABET, alphabet);
+        usage.addArray(MemoryUsage.ALPHABET, charClasses);
+        return usage;
     }
 
-    // This node is good at representing dense ranges of keys.
-    // It has a single array of nodes and a base key value.
-    // Child at array index 3 has key of baseChar + 3.
-    private static final class RangeNode<T> extends TrieNode<T> {
-
-        private char baseChar = 0;
-        private TrieNode<T>[] children;
-        private int size = 0;
-
-        @SuppressWarnings("unchecked")
-        private RangeNode(HashmapNode<T> oldNode, char from, char to) {
-            super(oldNode.defaultTransition != null, oldNode.level);
-            // Value of the first character
-            this.baseChar = from;
-            this.size = to - from + 1;
-            this.value = oldNode.value;
-            this.matchLength = oldNode.matchLength;
-            // Avoid even allocating a children array if size is 0.
-            if (size <= 0) {
-                size = 0;
-            } else {
-                this.children = new TrieNode[size];
-                // If original node is root node, prefill everything with yourself.
-                if (oldNode.defaultTransition != null) {
-                    Arrays.fill(children, this);
-                }
-                // Grab the children of the old node.
-                for (int i = 0; i < oldNode.children.length; i++) {
-                    if (oldNode.children[i] != null) {
-                        children[oldNode.keys[i] - from] = oldNode.children[i];
-                    }
-                }
-            }
+    // Re-optimize the trie for text like the sample, which is walked like it would be matched. Nodes with
+    // many lookups become range nodes when the thresholder finds them over the profile threshold, hashmap
+    // nodes get the keys with the most transitions taken moved to their default slots. Nodes the sample
+    // doesn't reach don't change. Matches don't change either. Don't train while other threads match.
+    public void train(String sample) {
+        train(sample, new ProfileThreshold());
+    }
+
+    public void train(String sample, Thresholder thresholdStrategy) {
+        final IdentityHashMap<TrieNode<T>, long[]> hits = profile(sample);
+        long totalLookups = 0;
+        for (long[] count : hits.values()) {
+            totalLookups += count[0];
         }
+        final IdentityHashMap<TrieNode<T>, TrieNode<T>> replacements = new IdentityHashMap<TrieNode<T>, TrieNode<T>>();
+        final ArrayList<TrieNode<T>> nodes = new ArrayList<TrieNode<T>>();
+        EntryVisitor<T> collectNodesVisitor = new EntryVisitor<T>() {
 
-        @Override
-        public TrieNode<T> getTransition(char c) {
-            // First check if the key is between max and min value.
-            // Here we use the fact that char type is unsigned to figure it out
-            // with a single condition.
-            int idx = (char) (c - baseChar);
-            if (idx < size) {
-                return children[idx];
+            public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
+                if (!replacements.containsKey(value)) {
+                    replacements.put(value, value);
+                    nodes.add(value);
+                }
             }
-            return defaultTransition;
-        }
 
-        @Override
-        public boolean isEmpty() {
-            return size == 0;
+        };
+        collectNodesVisitor.visit(null, (char) 0, root);
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieNode<T> node = nodes.get(i);
+            node.mapEntries(collectNodesVisitor);
         }
-
-        @Override
-        public void mapEntries(EntryVisitor<T> visitor) {
-            if (children != null) {
-                for (int i = 0; i < children.length; i++) {
-                    if (children[i] != null && children[i] != this) {
-                        visitor.visit(this, (char) (baseChar + i), children[i]);
+        for (TrieNode<T> node : nodes) {
+            long[] count = hits.get(node);
+            // Leaf, single and range nodes are as fast as they get.
+            if (count != null && !(node instanceof LeafNode || node instanceof SingleNode || node instanceof RangeNode)) {
+                // Number of children, smallest and largest key.
+                final int[] entries = { 0, Character.MAX_VALUE, 0 };
+                node.mapEntries(new EntryVisitor<T>() {
+
+                    public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
+                        entries[0]++;
+                        entries[1] = Math.min(entries[1], key);
+                        entries[2] = Math.max(entries[2], key);
                     }
+                });
+                if (thresholdStrategy.isOverProfileThreshold(entries[0], entries[2] - entries[1] + 1, count[0], totalLookups)) {
+                    replacements.put(node, new RangeNode<T>(node, (char) entries[1], (char) entries[2]));
+                } else if (node instanceof HashmapNode) {
+                    ((HashmapNode<T>) node).reorder(hits);
                 }
             }
         }
-
-        @Override
-        public void updateTransition(char c, TrieNode<T> node) {
-            // First check if the key is between max and min value.
-            // Here we use the fact that char type is unsigned to figure it out
-            // with a single condition.
-            int idx = (char) (c - baseChar);
-            if (idx < size) {
-                if (children[idx] != null) {
-                    children[idx] = node;
-                    return;
-                } else {
-                    throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
-                }
-            }
-            throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+        for (TrieNode<T> node : nodes) {
+            replacements.get(node).relink(replacements);
         }
+        TrieNode.relink(suffixMatch, replacements);
+        root = replacements.get(root);
     }
 
-    // Basic node for both
-    private static abstract class TrieNode<T> {
+    // Snapshot the trie into flat arrays, compact engines are compiled from that.
+    FlatTrie flatten() {
+        final FlatTrie trie = new FlatTrie();
+        final IdentityHashMap<TrieNode<T>, Integer> states = new IdentityHashMap<TrieNode<T>, Integer>();
+        final ArrayList<TrieNode<T>> nodes = new ArrayList<TrieNode<T>>();
+        final int[] parentState = new int[1];
+        states.put(root, trie.addState(0));
+        nodes.add(root);
+        EntryVisitor<T> childrenVisitor = new EntryVisitor<T>() {
 
-        protected TrieNode<T> defaultTransition = null;
-        protected TrieNode<T> failTransition;
-        // Depth of the node
-        protected int level = 0;
-        protected int matchLength = 0;
-        protected TrieNode<T> suffixMatch;
-        protected T value;
+            public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
+                // Nodes are numbered breadth first. Range node gap filling only adds shortcuts
+                // to nodes that aren't deeper than the parent, so any node seen before is
+                // a shortcut and not a trie edge.
+                if (!states.containsKey(value)) {
+                    int state = trie.addState(trie.depth[parentState[0]] + 1);
+                    states.put(value, state);
+                    nodes.add(value);
+                    trie.addChild(alphabet.charOf(key), state);
+                }
+            }
 
-        protected TrieNode(boolean root, int level) {
-            this.defaultTransition = root ? this : null;
-            this.level = level;
+        };
+        for (int i = 0; i < nodes.size(); i++) {
+            parentState[0] = i;
+            trie.startChildren(i);
+            nodes.get(i).mapEntries(childrenVisitor);
+        }
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieNode<T> node = nodes.get(i);
+            TrieNode<T> fail = node.failTransition;
+            TrieNode<T> suffix = suffixMatch[node.id];
+            int failState = fail == null ? FlatTrie.NONE : states.get(fail);
+            int suffixState = suffix == null ? FlatTrie.NONE : states.get(suffix);
+            trie.setOutput(i, failState, node.matchLength, suffixState, values[node.id]);
         }
+        return trie;
+    }
 
-        // Get fail transition
-        public final TrieNode<T> getFailTransition() {
-            return failTransition;
+    // Walk the sample like the match loop does and count lookups on each node (index 0 of the counts) and
+    // transitions taken to it (index 1), see train. Lookups after fail transitions count on the node the
+    // fail transition leads to.
+    private IdentityHashMap<TrieNode<T>, long[]> profile(String sample) {
+        TrieCursor.Profile<T> cursor = new TrieCursor.Profile<T>(root);
+        for (int idx = 0; idx < sample.length(); idx++) {
+            cursor.step(charClasses[sample.charAt(idx)]);
         }
+        return cursor.hits;
+    }
 
-        // Get transition (root node returns something non-null for all characters - itself)
-        public abstract TrieNode<T> getTransition(char c);
+    // Let the thresholder plan node types with a view of the whole trie, see Thresholder.plan. Reports
+    // every node with at least 2 children, the root only if it's optimized like the other nodes.
+    private static <T> Thresholder plan(HashmapNode<T> root, boolean optimizeRoot, Thresholder thresholdStrategy) {
+        int[] sizes = new int[16];
+        int[] levels = new int[16];
+        int[] keyIntervalSizes = new int[16];
+        int count = 0;
+        ArrayList<HashmapNode<T>> layer = new ArrayList<HashmapNode<T>>();
+        layer.add(root);
+        for (int level = 0; !layer.isEmpty(); level++) {
+            ArrayList<HashmapNode<T>> nextLayer = new ArrayList<HashmapNode<T>>();
+            for (HashmapNode<T> node : layer) {
+                char minKey = '\uffff';
+                char maxKey = 0;
+                for (int i = 0; i < node.children.length; i++) {
+                    if (node.children[i] != null) {
+                        minKey = (char) Math.min(minKey, node.keys[i]);
+                        maxKey = (char) Math.max(maxKey, node.keys[i]);
+                        nextLayer.add((HashmapNode<T>) node.children[i]);
+                    }
+                }
+                if (node.numEntries > 1 && (level > 0 || optimizeRoot)) {
+                    if (count == sizes.length) {
+                        sizes = Arrays.copyOf(sizes, count * 2);
+                        levels = Arrays.copyOf(levels, count * 2);
+                        keyIntervalSizes = Arrays.copyOf(keyIntervalSizes, count * 2);
+                    }
+                    sizes[count] = node.numEntries;
+                    levels[count] = level;
+                    keyIntervalSizes[count++] = maxKey - minKey + 1;
+                }
+            }
+            layer = nextLayer;
+        }
+        return thresholdStrategy.plan(Arrays.copyOf(sizes, count), Arrays.copyOf(levels, count), Arrays.copyOf(keyIntervalSizes, count));
+    }
 
-        public abstract boolean isEmpty();
+    // State of the match loop between chunks. Queued matches wait for a fail transition, which can come
+    // in a later chunk, their indexes are relative to the start of the next chunk.
+    private final class StreamMatcher implements Matcher {
 
-        public abstract void mapEntries(final EntryVisitor<T> visitor);
+        private final TrieCursor<T> cursor = new TrieCursor<T>(root);
+        private final StreamMapMatchListener<T> listener;
+        // Position of the next character in the text.
+        private long position = 0;
+        private final MapMatchQueue<T> queue = new MapMatchQueue<T>();
+        private boolean stopped = false;
 
-        // Report matches at this node. Use at matching.
-        public final void output(MapMatchQueue<T> queue, int idx) {
-            // Since idx is the last character in the match
-            // position it past the match (to be consistent with conventions)
+        private StreamMatcher(StreamMapMatchListener<T> listener) {
+            this.listener = listener;
+        }
 
-            // Since all matches at one node are overlapping suffix matches in descending
-            // length, first match accepted into the queue means subsequent matches won't be,
-            // so we return.
-            boolean matchAccepted = false;
-            if (matchLength != 0) {
-                matchAccepted = queue.push(matchLength, idx, value);
-                TrieNode<T> suffixMatch = this.suffixMatch;
-                while (suffixMatch != null && !matchAccepted) {
-                    matchAccepted = queue.push(suffixMatch.matchLength, idx, suffixMatch.value);
-                    suffixMatch = suffixMatch.suffixMatch;
+        public boolean feed(final char[] chunk, final int off, final int len) {
+            if (stopped) {
+                return false;
+            }
+            // Local copies of the state for the loop.
+            final int[] level = LongestMatchMap.this.level;
+            int idx = 0;
+            while (idx < len) {
+                final boolean failTransition = cursor.step(charClasses[chunk[off + idx]]);
+                output(cursor.node, queue, ++idx);
+                if (failTransition && !queue.matchAndClear(listener, idx - level[cursor.node.id], position)) {
+                    stopped = true;
+                    return false;
                 }
             }
+            queue.shift(len);
+            position += len;
+            return true;
         }
 
-        public abstract void updateTransition(char c, TrieNode<T> node);
-
-        protected TrieNode<T> optimizeNode(int level, Thresholder thresholdStrategy) {
-            return this;
+        public void finish() {
+            if (!stopped) {
+                // Flush the rest of the matches.
+                queue.matchAndClear(listener, Integer.MAX_VALUE, position);
+            }
+            cursor.reset();
+            position = 0;
+            queue.clear();
+            stopped = false;
         }
+    }
 
+    // Report matches at this node. Use at matching.
+    @SuppressWarnings("unchecked")
+    private void output(TrieNode<T> node, MapMatchQueue<T> queue, int idx) {
+        // Since idx is the last character in the match
+        // position it past the match (to be consistent with conventions)
+
+        // Since all matches at one node are overlapping suffix matches in descending
+        // length, first match accepted into the queue means subsequent matches won't be,
+        // so we return.
+        boolean matchAccepted = false;
+        if (node.matchLength != 0) {
+            matchAccepted = queue.push(node.matchLength, idx, (T) values[node.id]);
+            TrieNode<T> suffix = suffixMatch[node.id];
+            while (suffix != null && !matchAccepted) {
+                matchAccepted = queue.push(suffix.matchLength, idx, (T) values[suffix.id]);
+                suffix = suffixMatch[suffix.id];
+            }
+        }
     }
 
 }
@@ -1,41 +1,68 @@
 package com.roklenarcic.util.strings;
 
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
 
+import com.roklenarcic.util.strings.threshold.ProfileThreshold;
 import com.roklenarcic.util.strings.threshold.RangeNodeThreshold;
 import com.roklenarcic.util.strings.threshold.Thresholder;
 
 // Matches leftmost longest matches. Useful when you want non-overlapping
 // matches with a string set that doesn't have strings that are prefix to other strings in the set.
-public class LongestMatchSet implements StringSet {
+public class LongestMatchSet implements StringSet, MemoryAccountable {
 
-    private boolean caseSensitive = true;
-    private TrieNode root;
+    private Alphabet alphabet;
+    private char[] charClasses;
+    private int longestKeyword = 0;
+    // Fields of the nodes read on a match or a fail transition, by node id.
+    // Depth of the node.
+    private int[] level = new int[16];
+    private TrieNode<Void>[] suffixMatch;
+    private TrieNode<Void> root;
 
     public LongestMatchSet(final Iterable<String> keywords, boolean caseSensitive) {
         this(keywords, caseSensitive, new RangeNodeThreshold());
     }
 
     public LongestMatchSet(final Iterable<String> keywords, boolean caseSensitive, final Thresholder thresholdStrategy) {
-        this.caseSensitive = caseSensitive;
+        alphabet = new Alphabet(caseSensitive);
         // Create the root node
-        root = new HashmapNode(true, 0);
+        root = new HashmapNode<Void>();
+        int nodeCount = 1;
         // Add all keywords
         for (String keyword : keywords) {
             // Skip any empty keywords
             if (keyword != null && keyword.length() > 0) {
+                if (keyword.length() > longestKeyword) {
+                    longestKeyword = keyword.length();
+                }
                 // Start with the current node and traverse the tree
                 // character by character. Add nodes as needed to
                 // fill out the tree.
-                HashmapNode currentNode = (HashmapNode) root;
+                HashmapNode<Void> currentNode = (HashmapNode<Void>) root;
                 for (int idx = 0; idx < keyword.length(); idx++) {
-                    currentNode = currentNode.getOrAddChild(caseSensitive ? keyword.charAt(idx) : Character.toLowerCase(keyword.charAt(idx)));
+                    currentNode = currentNode.getOrAddChild(alphabet.add(keyword.charAt(idx)), nodeCount);
+                    if (currentNode.id == nodeCount) {
+                        if (nodeCount == level.length) {
+                            level = Arrays.copyOf(level, nodeCount * 2);
+                        }
+                        level[nodeCount++] = idx + 1;
+                    }
                 }
                 // Last node will contains the keyword as a match.
                 // Suffix matches will be added later.
                 currentNode.matchLength = keyword.length();
             }
         }
+        charClasses = alphabet.classes();
+        level = Arrays.copyOf(level, nodeCount);
+        suffixMatch = TrieNode.newArray(nodeCount);
         // Go through nodes breadth first, swap any hashmap nodes,
         // whose size is close to the size of range of keys with
         // flat array based nodes.
@@ -45,22 +72,29 @@ public class LongestMatchSet implements StringSet {
         // calculating for a 3 letter word requires having done the calculation
         // for all 2 letter words.
         //
-        final Queue<TrieNode> queue = new Queue<TrieNode>();
-        root = root.optimizeNode(0, thresholdStrategy);
+        final Thresholder plannedStrategy = plan((HashmapNode<Void>) root, !thresholdStrategy.isOverRootTableThreshold(alphabet.size()), thresholdStrategy);
+        final Queue<TrieNode<Void>> queue = new Queue<TrieNode<Void>>();
+        if (thresholdStrategy.isOverRootTableThreshold(alphabet.size())) {
+            // Root table has a slot for every class id. Slots without a child lead back to the root,
+            // so root lookups never miss.
+            root = new RangeNode<Void>((HashmapNode<Void>) root, (char) 0, (char) (alphabet.size() - 1), true);
+        } else {
+            root = root.optimizeNode(0, plannedStrategy);
+        }
         queue.push(root);
         queue.push(null);
         // Need to use array to get mutateable state for anonymous class
         final int[] level = new int[] { 1 };
 
-        EntryVisitor failTransAndOutputsVisitor = new EntryVisitor() {
+        EntryVisitor<Void> failTransAndOutputsVisitor = new EntryVisitor<Void>() {
 
-            public void visit(TrieNode parent, char key, TrieNode value) {
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
                 // First optimize node
-                value = value.optimizeNode(level[0], thresholdStrategy);
+                value = value.optimizeNode(level[0], plannedStrategy);
                 parent.updateTransition(key, value);
 
                 // Get fail transiton of the parent.
-                TrieNode parentFail = parent.getFailTransition();
+                TrieNode<Void> parentFail = parent.failTransition;
                 // Since root node has null fail transition, first level nodes have null parentFail.
                 if (parentFail == null) {
                     // First level nodes have one possible fail transition, which is
@@ -77,15 +111,16 @@ public class LongestMatchSet implements StringSet {
                         // parentFail ----char----> valueFail
                         // e.g. "ab" -> c -> "abc"
                         // "b" -> c -> "bc"
-                        final TrieNode matchContinuation = parentFail.getTransition(key);
+                        final TrieNode<Void> matchContinuation = parentFail.getTransition(key);
                         if (matchContinuation != null) {
                             value.failTransition = matchContinuation;
+                        } else if (parentFail == root) {
+                            // Root without a key mapping, the only suffix left is an empty string.
+                            value.failTransition = root;
                         } else {
                             // If parentFail didn't have key mapping
                             // take parentFail's failTransition and try again
-                            // The last fail transition is the root node, which
-                            // always has a key mapping.
-                            parentFail = parentFail.getFailTransition();
+                            parentFail = parentFail.failTransition;
                         }
                     } while (value.failTransition == null);
                     // Now that we have a fail transition, this node matches all
@@ -106,16 +141,16 @@ public class LongestMatchSet implements StringSet {
                     // introduce another if. That is why in case of nodes without matches we store the suffix
                     // match directly on the node and instead link the next suffix match as this node's suffix
                     // match.
-                    TrieNode fail = value.failTransition;
+                    TrieNode<Void> fail = value.failTransition;
                     while (fail != root && fail.matchLength == 0) {
                         fail = fail.failTransition;
                     }
                     if (fail.matchLength != 0) {
                         if (value.matchLength == 0) {
                             value.matchLength = fail.matchLength;
-                            value.suffixMatch = fail.suffixMatch;
+                            suffixMatch[value.id] = suffixMatch[fail.id];
                         } else {
-                            value.suffixMatch = fail;
+                            suffixMatch[value.id] = fail;
                         }
                     }
                 }
@@ -127,7 +162,7 @@ public class LongestMatchSet implements StringSet {
 
         };
         while (!queue.isEmpty()) {
-            TrieNode n = queue.take();
+            TrieNode<Void> n = queue.take();
             if (n == null) {
                 if (!queue.isEmpty()) {
                     queue.push(null);
@@ -143,9 +178,9 @@ public class LongestMatchSet implements StringSet {
         // chain to find a node with a transition for that char. Instead of wasting space on empty slots
         // we can do that beforehand and add that transition to the node. We need to do that in depth first
         // fashion, otherwise an endless loop can form.
-        EntryVisitor enqueueNodesVisitor = new EntryVisitor() {
+        EntryVisitor<Void> enqueueNodesVisitor = new EntryVisitor<Void>() {
 
-            public void visit(TrieNode parent, char key, TrieNode value) {
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
                 // go depth first
                 if (!value.isEmpty()) {
                     queue.push(value);
@@ -155,23 +190,23 @@ public class LongestMatchSet implements StringSet {
         };
         root.mapEntries(enqueueNodesVisitor);
         while (!queue.isEmpty()) {
-            TrieNode node = queue.pop();
+            TrieNode<Void> node = queue.pop();
             if (node == null) {
                 node = queue.pop();
                 if (node instanceof RangeNode) {
                     // Range nodes have gaps (null values) in their array. We can put this wasted
                     // memory to work by filling these gaps with the correct next node for that character
                     // which we can figure out by following failure transitions.
-                    RangeNode rangeNode = (RangeNode) node;
+                    RangeNode<Void> rangeNode = (RangeNode<Void>) node;
                     for (int i = 0; i < rangeNode.size; i++) {
                         if (rangeNode.children[i] == null) {
                             char charOfMissingTransition = (char) (rangeNode.baseChar + i);
                             // Walk up fail transition until you run out of them (and do nothing)
                             // or one of them has a transition for this char. Put that node
                             // into the empty slot on the range node.
-                            TrieNode n = rangeNode.failTransition;
+                            TrieNode<Void> n = rangeNode.failTransition;
                             while (n != null) {
-                                TrieNode nextNode = n.getTransition(charOfMissingTransition);
+                                TrieNode<Void> nextNode = n.getTransition(charOfMissingTransition);
                                 if (nextNode == null) {
                                     n = n.failTransition;
                                 } else {
@@ -189,371 +224,342 @@ public class LongestMatchSet implements StringSet {
         }
     }
 
-    public void match(final String haystack, final SetMatchListener listener) {
+    // Node statistics for tuning the thresholder, see TrieDiagnostics.
+    public TrieDiagnostics diagnostics() {
+        final TrieDiagnostics diagnostics = new TrieDiagnostics();
+        final ArrayList<TrieNode<Void>> nodes = new ArrayList<TrieNode<Void>>();
+        final IdentityHashMap<TrieNode<Void>, Integer> levels = new IdentityHashMap<TrieNode<Void>, Integer>();
+        // Number of children, smallest and largest key of the visited node.
+        final int[] entries = new int[3];
+        EntryVisitor<Void> visitor = new EntryVisitor<Void>() {
+
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                entries[0]++;
+                entries[1] = Math.min(entries[1], key);
+                entries[2] = Math.max(entries[2], key);
+                if (!levels.containsKey(value)) {
+                    levels.put(value, levels.get(parent) + 1);
+                    nodes.add(value);
+                }
+            }
+
+        };
+        levels.put(root, 0);
+        nodes.add(root);
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieNode<Void> node = nodes.get(i);
+            int level = levels.get(node);
+            entries[0] = 0;
+            entries[1] = Character.MAX_VALUE;
+            entries[2] = 0;
+            node.mapEntries(visitor);
+            int failChainLength = 0;
+            for (TrieNode<Void> n = node; n != root && n != null; n = n.failTransition) {
+                failChainLength++;
+            }
+            int slots = node instanceof RangeNode ? ((RangeNode<Void>) node).size : 0;
+            diagnostics.add(node.getClass().getSimpleName(), level, entries[0], entries[2] - entries[1] + 1, failChainLength, slots);
+        }
+        return diagnostics;
+    }
 
+    public void matchChars(final char[] haystack, final int from, final int to, final CharSequenceSetMatchListener listener) {
+        // Listeners see the array as a char sequence, positions are array indexes.
+        final CharSequence sequence = CharBuffer.wrap(haystack);
+
+        // Local copies of the node fields for the loop.
+        final int[] level = this.level;
+        // Start with the root node.
+        final TrieCursor<Void> cursor = new TrieCursor<Void>(root);
+        SetMatchQueue queue = new SetMatchQueue();
+        int idx = from;
+        // For each character.
+        final int len = to;
+        while (idx < len) {
+            final boolean failTransition = cursor.step(charClasses[haystack[idx]]);
+            // Output any matches on the current node
+            output(cursor.node, queue, ++idx);
+            // If fail transition was taken, we can flush the match queue.
+            // We flush all matches that end before the start of the of the fail transition taken.
+            if (failTransition && !queue.matchAndClearSequence(sequence, listener, idx - level[cursor.node.id])) {
+                return;
+            }
+        }
+        // Flush the rest of the matches.
+        queue.matchAndClearSequence(sequence, listener, Integer.MAX_VALUE);
+    }
+
+    public void matchSequence(final CharSequence haystack, final CharSequenceSetMatchListener listener) {
+
+        // Local copies of the node fields for the loop.
+        final int[] level = this.level;
         // Start with the root node.
-        TrieNode currentNode = root;
+        final TrieCursor<Void> cursor = new TrieCursor<Void>(root);
         SetMatchQueue queue = new SetMatchQueue();
         int idx = 0;
         // For each character.
         final int len = haystack.length();
-        // Putting this if into the loop worsens the performance so we'll sadly
-        // have to deal with duplicated code.
-        if (caseSensitive) {
-            while (idx < len) {
-                final char c = haystack.charAt(idx);
-                // Try to transition from the current node using the character
-                TrieNode nextNode = currentNode.getTransition(c);
-
-                // If cannot transition, follow the fail transition until finding
-                // node X where you can transition to another node Y using this
-                // character. Take the transition.
-                boolean failTransition = false;
-                while (nextNode == null) {
-                    failTransition = true;
-                    // Transition follow one fail transition
-                    currentNode = currentNode.getFailTransition();
-                    // See if you can transition to another node with this
-                    // character. Note that root node will return itself for any
-                    // missing transition.
-                    nextNode = currentNode.getTransition(c);
-                }
-                // Take the transition.
-                currentNode = nextNode;
-                // Output any matches on the current node
-                currentNode.output(queue, ++idx);
-                // If fail transition was taken, we can flush the match queue.
-                // We flush all matches that end before the start of the of the fail transition taken.
-                if (failTransition && !queue.matchAndClear(haystack, listener, idx - currentNode.level)) {
-                    return;
-                }
+        while (idx < len) {
+            final boolean failTransition = cursor.step(charClasses[haystack.charAt(idx)]);
+            // Output any matches on the current node
+            output(cursor.node, queue, ++idx);
+            // If fail transition was taken, we can flush the match queue.
+            // We flush all matches that end before the start of the of the fail transition taken.
+            if (failTransition && !queue.matchAndClearSequence(haystack, listener, idx - level[cursor.node.id])) {
+                return;
             }
-            // Flush the rest of the matches.
-            queue.matchAndClear(haystack, listener, Integer.MAX_VALUE);
-        } else {
-            while (idx < len) {
-                final char c = Character.toLowerCase(haystack.charAt(idx));
-                // Try to transition from the current node using the character
-                TrieNode nextNode = currentNode.getTransition(c);
-
-                // If cannot transition, follow the fail transition until finding
-                // node X where you can transition to another node Y using this
-                // character. Take the transition.
-                boolean failTransition = false;
-                while (nextNode == null) {
-                    failTransition = true;
-                    // Transition follow one fail transition
-                    currentNode = currentNode.getFailTransition();
-                    // See if you can transition to another node with this
-                    // character. Note that root node will return itself for any
-                    // missing transition.
-                    nextNode = currentNode.getTransition(c);
-                }
-                // Take the transition.
-                currentNode = nextNode;
-                // Output any matches on the current node
-                currentNode.output(queue, ++idx);
-                // If fail transition was taken, we can flush the match queue.
-                // We flush all matches that end before the start of the of the fail transition taken.
-                if (failTransition && !queue.matchAndClear(haystack, listener, idx - currentNode.level)) {
-                    return;
-                }
-            }
-            // Flush the rest of the matches.
-            queue.matchAndClear(haystack, listener, Integer.MAX_VALUE);
         }
+        // Flush the rest of the matches.
+        queue.matchAndClearSequence(haystack, listener, Integer.MAX_VALUE);
     }
 
-    private interface EntryVisitor {
-        void visit(TrieNode parent, char key, TrieNode value);
+    public void match(final String haystack, final SetMatchListener listener) {
+        match(haystack, 0, haystack.length(), listener);
     }
 
-    // An open addressing hashmap implementation with linear probing
-    // and capacity of 2^n
-    private final static class HashmapNode extends TrieNode {
+    public void match(final String haystack, final int offset, final int len, final SetMatchListener listener) {
 
-        // Start with capacity of 1 and resize as needed.
-        private TrieNode[] children = new TrieNode[1];
-        private char[] keys = new char[1];
-        // Since capacity is a power of 2, we calculate mod by just
-        // bitwise AND with the right mask.
-        private int modulusMask = keys.length - 1;
-        private int numEntries = 0;
-
-        protected HashmapNode(boolean root, int level) {
-            super(root, level);
+        // Local copies of the node fields for the loop.
+        final int[] level = this.level;
+        // Start with the root node.
+        final TrieCursor<Void> cursor = new TrieCursor<Void>(root);
+        SetMatchQueue queue = new SetMatchQueue();
+        int idx = offset;
+        // For each character.
+        while (idx < len) {
+            final boolean failTransition = cursor.step(charClasses[haystack.charAt(idx)]);
+            // Output any matches on the current node
+            output(cursor.node, queue, ++idx);
+            // If fail transition was taken, we can flush the match queue.
+            // We flush all matches that end before the start of the of the fail transition taken.
+            if (failTransition && !queue.matchAndClear(haystack, listener, idx - level[cursor.node.id])) {
+                return;
+            }
         }
+        // Flush the rest of the matches.
+        queue.matchAndClear(haystack, listener, Integer.MAX_VALUE);
+    }
 
-        @Override
-        public TrieNode getTransition(final char key) {
-            int defaultSlot = hash(key) & modulusMask;
-            int currentSlot = defaultSlot;
-            // Linear probing to find the entry for key.
-            do {
-                if (keys[currentSlot] == key) {
-                    return children[currentSlot];
-                } else if (children[currentSlot] == null) {
-                    return defaultTransition;
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
-                }
-            } while (currentSlot != defaultSlot);
-            return defaultTransition;
-        }
+    // Matches the haystack in chunks on the common pool, with the same matches as match. Ordered matches come
+    // in the same order, otherwise they come as chunks finish, from the pool threads but one at a time.
+    public void matchParallel(final String haystack, final SetMatchListener listener, boolean ordered) {
+        matchParallel(haystack, listener, ordered, ForkJoinPool.commonPool());
+    }
 
-        @Override
-        public boolean isEmpty() {
-            return numEntries == 0;
-        }
+    public void matchParallel(final String haystack, final SetMatchListener listener, boolean ordered, ForkJoinPool pool) {
+        matchParallel(haystack, listener, ordered, pool, ParallelScan.CHUNK_CHARS);
+    }
 
-        @Override
-        public void mapEntries(EntryVisitor visitor) {
-            for (int i = 0; i < keys.length; i++) {
-                if (children[i] != null) {
-                    visitor.visit(this, keys[i], children[i]);
-                }
-            }
-        }
+    void matchParallel(final String haystack, final SetMatchListener listener, boolean ordered, ForkJoinPool pool, int chunkChars) {
+        new ParallelScan(new ParallelScan.Scanner() {
 
-        @Override
-        public void updateTransition(char c, TrieNode node) {
-            int defaultSlot = hash(c) & modulusMask;
-            int currentSlot = defaultSlot;
-            do {
-                if (children[currentSlot] == null) {
-                    throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
-                } else if (keys[currentSlot] == c) {
-                    children[currentSlot] = node;
-                    return;
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
-                }
-            } while (currentSlot != defaultSlot);
-            throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
-        }
+            public void scan(String haystack, int from, int to, final ParallelScan.Matches matches) {
+                match(haystack, from, to, new SetMatchListener() {
 
-        @Override
-        protected TrieNode optimizeNode(int level, Thresholder thresholdStrategy) {
-            char minKey = '\uffff';
-            char maxKey = 0;
-            // Find you the min and max key on the node.
-            int size = numEntries;
-            for (int i = 0; i < children.length; i++) {
-                if (children[i] != null) {
-                    if (keys[i] > maxKey) {
-                        maxKey = keys[i];
+                    public boolean match(String haystack, int startPosition, int endPosition) {
+                        return matches.add(startPosition, endPosition, null);
                     }
-                    if (keys[i] < minKey) {
-                        minKey = keys[i];
-                    }
-                }
-            }
-            // If difference between min and max key are small
-            // or only slightly larger than number of entries, use a range node
-            int keyIntervalSize = maxKey - minKey + 1;
-            if (thresholdStrategy.isOverThreshold(size, level, keyIntervalSize)) {
-                return new RangeNode(this, minKey, maxKey);
-            } else {
-                return this;
+                });
             }
-        }
+        }, longestKeyword, true, null).match(haystack, new ParallelScan.Listener() {
 
-        // Double the capacity of the node, calculate the new mask,
-        // rehash and reinsert the entries
-        private void enlarge() {
-            char[] biggerKeys = new char[keys.length * 2];
-            TrieNode[] biggerChildren = new TrieNode[children.length * 2];
-            int biggerMask = biggerKeys.length - 1;
-            for (int i = 0; i < children.length; i++) {
-                char key = keys[i];
-                TrieNode node = children[i];
-                if (node != null) {
-                    int defaultSlot = hash(key) & biggerMask;
-                    int currentSlot = defaultSlot;
-                    do {
-                        if (biggerChildren[currentSlot] == null) {
-                            biggerKeys[currentSlot] = key;
-                            biggerChildren[currentSlot] = node;
-                            break;
-                        } else if (biggerKeys[currentSlot] == key) {
-                            throw new IllegalStateException();
-                        } else {
-                            currentSlot = ++currentSlot & biggerMask;
-                        }
-                    } while (currentSlot != defaultSlot);
-                }
+            public boolean match(int startPosition, int endPosition, Object value) {
+                return listener.match(haystack, startPosition, endPosition);
             }
-            this.keys = biggerKeys;
-            this.children = biggerChildren;
-            this.modulusMask = biggerMask;
-        }
+        }, ordered, pool, chunkChars);
+    }
 
-        // Return the node for a key or create a new hashmap node for that key
-        // and return that.
-        private HashmapNode getOrAddChild(char key) {
-            // Check if we need to resize. Capacity of 2^16 doesn't need to resize.
-            // If capacity is <16 and arrays are full or capacity is >16 and
-            // arrays are 90% full, resize
-            if (keys.length < 0x10000 && ((numEntries >= keys.length) || (numEntries > 16 && (numEntries >= keys.length * 0.90f)))) {
-                enlarge();
-            }
-            int defaultSlot = hash(key) & modulusMask;
-            int currentSlot = defaultSlot;
-            do {
-                if (children[currentSlot] == null) {
-                    keys[currentSlot] = key;
-                    HashmapNode newChild = new HashmapNode(false, level + 1);
-                    children[currentSlot] = newChild;
-                    ++numEntries;
-                    return newChild;
-                } else if (keys[currentSlot] == key) {
-                    return (HashmapNode) children[currentSlot];
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
-                }
-            } while (currentSlot != defaultSlot);
-            throw new IllegalStateException();
-        }
+    // Matcher for text that arrives in chunks, it finds the same matches as match would in all of the text.
+    public Matcher matcher(final StreamSetMatchListener listener) {
+        return new StreamMatcher(listener);
+    }
 
-        // FNV-1a hash
-        private int hash(char c) {
-            // HASH_BASIS = 0x811c9dc5;
-            final int HASH_PRIME = 16777619;
-            return (((0x811c9dc5 ^ (c >> 8)) * HASH_PRIME) ^ (c & 0xff)) * HASH_PRIME;
-        }
+    // Match the file decoded with the charset. The file is memory mapped a window at a time, so it can be
+    // larger than 2GB, and positions are char offsets into the decoded text.
+    public void matchFile(final Path file, final Charset charset, final StreamSetMatchListener listener) throws IOException {
+        MappedText.feed(file, charset, matcher(listener));
+    }
 
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = new MemoryUsage();
+        usage.addTrie(root, TrieNode.class);
+        usage.addArray(MemoryUsage.NODE_FIELDS, level);
+        usage.addArray(MemoryUsage.NODE_FIELDS, suffixMatch);
+        usage.addObject(MemoryUsage.ALPHABET, alphabet);
+        usage.addArray(MemoryUsage.ALPHABET, charClasses);
+        return usage;
     }
 
-    // This node is good at representing dense ranges of keys.
-    // It has a single array of nodes and a base key value.
-    // Child at array index 3 has key of baseChar + 3.
-    private static final class RangeNode extends TrieNode {
-
-        private char baseChar = 0;
-        private TrieNode[] children;
-        private int size = 0;
-
-        private RangeNode(HashmapNode oldNode, char from, char to) {
-            super(oldNode.defaultTransition != null, oldNode.level);
-            // Value of the first character
-            this.baseChar = from;
-            this.size = to - from + 1;
-            this.matchLength = oldNode.matchLength;
-            // Avoid even allocating a children array if size is 0.
-            if (size <= 0) {
-                size = 0;
-            } else {
-                this.children = new TrieNode[size];
-                // If original node is root node, prefill everything with yourself.
-                if (oldNode.defaultTransition != null) {
-                    Arrays.fill(children, this);
+    // Re-optimize the trie for text like the sample, which is walked like it would be matched. Nodes with
+    // many lookups become range nodes when the thresholder finds them over the profile threshold, hashmap
+    // nodes get the keys with the most transitions taken moved to their default slots. Nodes the sample
+    // doesn't reach don't change. Matches don't change either. Don't train while other threads match.
+    public void train(String sample) {
+        train(sample, new ProfileThreshold());
+    }
+
+    public void train(String sample, Thresholder thresholdStrategy) {
+        final IdentityHashMap<TrieNode<Void>, long[]> hits = profile(sample);
+        long totalLookups = 0;
+        for (long[] count : hits.values()) {
+            totalLookups += count[0];
+        }
+        final IdentityHashMap<TrieNode<Void>, TrieNode<Void>> replacements = new IdentityHashMap<TrieNode<Void>, TrieNode<Void>>();
+        final ArrayList<TrieNode<Void>> nodes = new ArrayList<TrieNode<Void>>();
+        EntryVisitor<Void> collectNodesVisitor = new EntryVisitor<Void>() {
+
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                if (!replacements.containsKey(value)) {
+                    replacements.put(value, value);
+                    nodes.add(value);
                 }
-                // Grab the children of the old node.
-                for (int i = 0; i < oldNode.children.length; i++) {
-                    if (oldNode.children[i] != null) {
-                        children[oldNode.keys[i] - from] = oldNode.children[i];
+            }
+
+        };
+        collectNodesVisitor.visit(null, (char) 0, root);
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieNode<Void> node = nodes.get(i);
+            node.mapEntries(collectNodesVisitor);
+        }
+        for (TrieNode<Void> node : nodes) {
+            long[] count = hits.get(node);
+            // Leaf, single and range nodes are as fast as they get.
+            if (count != null && !(node instanceof LeafNode || node instanceof SingleNode || node instanceof RangeNode)) {
+                // Number of children, smallest and largest key.
+                final int[] entries = { 0, Character.MAX_VALUE, 0 };
+                node.mapEntries(new EntryVisitor<Void>() {
+
+                    public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                        entries[0]++;
+                        entries[1] = Math.min(entries[1], key);
+                        entries[2] = Math.max(entries[2], key);
                     }
+                });
+                if (thresholdStrategy.isOverProfileThreshold(entries[0], entries[2] - entries[1] + 1, count[0], totalLookups)) {
+                    replacements.put(node, new RangeNode<Void>(node, (char) entries[1], (char) entries[2]));
+                } else if (node instanceof HashmapNode) {
+                    ((HashmapNode<Void>) node).reorder(hits);
                 }
             }
         }
-
-        @Override
-        public TrieNode getTransition(char c) {
-            // First check if the key is between max and min value.
-            // Here we use the fact that char type is unsigned to figure it out
-            // with a single condition.
-            int idx = (char) (c - baseChar);
-            if (idx < size) {
-                return children[idx];
-            }
-            return defaultTransition;
+        for (TrieNode<Void> node : nodes) {
+            replacements.get(node).relink(replacements);
         }
+        TrieNode.relink(suffixMatch, replacements);
+        root = replacements.get(root);
+    }
 
-        @Override
-        public boolean isEmpty() {
-            return size == 0;
+    // Walk the sample like the match loop does and count lookups on each node (index 0 of the counts) and
+    // transitions taken to it (index 1), see train. Lookups after fail transitions count on the node the
+    // fail transition leads to.
+    private IdentityHashMap<TrieNode<Void>, long[]> profile(String sample) {
+        TrieCursor.Profile<Void> cursor = new TrieCursor.Profile<Void>(root);
+        for (int idx = 0; idx < sample.length(); idx++) {
+            cursor.step(charClasses[sample.charAt(idx)]);
         }
+        return cursor.hits;
+    }
 
-        @Override
-        public void mapEntries(EntryVisitor visitor) {
-            if (children != null) {
-                for (int i = 0; i < children.length; i++) {
-                    if (children[i] != null && children[i] != this) {
-                        visitor.visit(this, (char) (baseChar + i), children[i]);
+    // Let the thresholder plan node types with a view of the whole trie, see Thresholder.plan. Reports
+    // every node with at least 2 children, the root only if it's optimized like the other nodes.
+    private static Thresholder plan(HashmapNode<Void> root, boolean optimizeRoot, Thresholder thresholdStrategy) {
+        int[] sizes = new int[16];
+        int[] levels = new int[16];
+        int[] keyIntervalSizes = new int[16];
+        int count = 0;
+        ArrayList<HashmapNode<Void>> layer = new ArrayList<HashmapNode<Void>>();
+        layer.add(root);
+        for (int level = 0; !layer.isEmpty(); level++) {
+            ArrayList<HashmapNode<Void>> nextLayer = new ArrayList<HashmapNode<Void>>();
+            for (HashmapNode<Void> node : layer) {
+                char minKey = '\uffff';
+                char maxKey = 0;
+                for (int i = 0; i < node.children.length; i++) {
+                    if (node.children[i] != null) {
+                        minKey = (char) Math.min(minKey, node.keys[i]);
+                        maxKey = (char) Math.max(maxKey, node.keys[i]);
+                        nextLayer.add((HashmapNode<Void>) node.children[i]);
                     }
                 }
-            }
-        }
-
-        @Override
-        public void updateTransition(char c, TrieNode node) {
-            // First check if the key is between max and min value.
-            // Here we use the fact that char type is unsigned to figure it out
-            // with a single condition.
-            int idx = (char) (c - baseChar);
-            if (idx < size) {
-                if (children[idx] != null) {
-                    children[idx] = node;
-                    return;
-                } else {
-                    throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+                if (node.numEntries > 1 && (level > 0 || optimizeRoot)) {
+                    if (count == sizes.length) {
+                        sizes = Arrays.copyOf(sizes, count * 2);
+                        levels = Arrays.copyOf(levels, count * 2);
+                        keyIntervalSizes = Arrays.copyOf(keyIntervalSizes, count * 2);
+                    }
+                    sizes[count] = node.numEntries;
+                    levels[count] = level;
+                    keyIntervalSizes[count++] = maxKey - minKey + 1;
                 }
             }
-            throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+            layer = nextLayer;
         }
-
+        return thresholdStrategy.plan(Arrays.copyOf(sizes, count), Arrays.copyOf(levels, count), Arrays.copyOf(keyIntervalSizes, count));
     }
 
-    // Basic node for both
-    private static abstract class TrieNode {
+    // State of the match loop between chunks. Queued matches wait for a fail transition, which can come
+    // in a later chunk, their indexes are relative to the start of the next chunk.
+    private final class StreamMatcher implements Matcher {
 
-        protected TrieNode defaultTransition = null;
-        protected TrieNode failTransition;
-        // Depth of the node
-        protected int level = 0;
-        protected int matchLength = 0;
-        protected TrieNode suffixMatch;
+        private final TrieCursor<Void> cursor = new TrieCursor<Void>(root);
+        private final StreamSetMatchListener listener;
+        // Position of the next character in the text.
+        private long position = 0;
+        private final SetMatchQueue queue = new SetMatchQueue();
+        private boolean stopped = false;
 
-        protected TrieNode(boolean root, int level) {
-            this.defaultTransition = root ? this : null;
-            this.level = level;
+        private StreamMatcher(StreamSetMatchListener listener) {
+            this.listener = listener;
         }
 
-        // Get fail transition
-        public final TrieNode getFailTransition() {
-            return failTransition;
-        }
-
-        // Get transition (root node returns something non-null for all characters - itself)
-        public abstract TrieNode getTransition(char c);
-
-        public abstract boolean isEmpty();
-
-        public abstract void mapEntries(final EntryVisitor visitor);
-
-        // Report matches at this node. Use at matching.
-        public final void output(SetMatchQueue queue, int idx) {
-            // Since idx is the last character in the match
-            // position it past the match (to be consistent with conventions)
-
-            // Since all matches at one node are overlapping suffix matches in descending
-            // length, first match accepted into the queue means subsequent matches won't be,
-            // so we return.
-            boolean matchAccepted = false;
-            if (matchLength != 0) {
-                matchAccepted = queue.push(matchLength, idx);
-                TrieNode suffixMatch = this.suffixMatch;
-                while (suffixMatch != null && !matchAccepted) {
-                    matchAccepted = queue.push(suffixMatch.matchLength, idx);
-                    suffixMatch = suffixMatch.suffixMatch;
+        public boolean feed(final char[] chunk, final int off, final int len) {
+            if (stopped) {
+                return false;
+            }
+            // Local copies of the state for the loop.
+            final int[] level = LongestMatchSet.this.level;
+            int idx = 0;
+            while (idx < len) {
+                final boolean failTransition = cursor.step(charClasses[chunk[off + idx]]);
+                output(cursor.node, queue, ++idx);
+                if (failTransition && !queue.matchAndClear(listener, idx - level[cursor.node.id], position)) {
+                    stopped = true;
+                    return false;
                 }
             }
+            queue.shift(len);
+            position += len;
+            return true;
         }
 
-        public abstract void updateTransition(char c, TrieNode node);
+        public void finish() {
+            if (!stopped) {
+                // Flush the rest of the matches.
+                queue.matchAndClear(listener, Integer.MAX_VALUE, position);
+            }
+            cursor.reset();
+            position = 0;
+            queue.clear();
+            stopped = false;
+        }
+    }
 
-        protected TrieNode optimizeNode(int level, Thresholder thresholdStrategy) {
-            return this;
+    // Report matches at this node. Use at matching.
+    private void output(TrieNode<Void> node, SetMatchQueue queue, int idx) {
+        // Since idx is the last character in the match
+        // position it past the match (to be consistent with conventions)
+
+        // Since all matches at one node are overlapping suffix matches in descending
+        // length, first match accepted into the queue means subsequent matches won't be,
+        // so we return.
+        boolean matchAccepted = false;
+        if (node.matchLength != 0) {
+            matchAccepted = queue.push(node.matchLength, idx);
+            TrieNode<Void> suffix = suffixMatch[node.id];
+            while (suffix != null && !matchAccepted) {
+                matchAccepted = queue.push(suffix.matchLength, idx);
+                suffix = suffixMatch[suffix.id];
+            }
         }
     }
 
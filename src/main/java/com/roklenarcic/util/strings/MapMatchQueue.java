@@ -17,6 +17,61 @@ class MapMatchQueue<T> {
         return emptySlotIdx == 0;
     }
 
+    @SuppressWarnings("unchecked")
+    public boolean matchAndClear(ByteMapMatchListener<T> listener, int purgeToIndex) {
+        // Start at the start of the array and flush to listener all matches which have
+        // end index lower of equal than the purgeToIndex, then clear them out from array by
+        // moving the rest of the matches to front.
+        if (!isEmpty()) {
+            int i = 0;
+            while (i < emptySlotIdx) {
+                if (endIndexes[i] <= purgeToIndex) {
+                    if (!listener.match(startIndexes[i], endIndexes[i], (T) values[i])) {
+                        return false;
+                    }
+                } else {
+                    break;
+                }
+                i++;
+            }
+            if (i > 0) {
+                emptySlotIdx = emptySlotIdx - i;
+                System.arraycopy(endIndexes, i, endIndexes, 0, emptySlotIdx);
+                System.arraycopy(startIndexes, i, startIndexes, 0, emptySlotIdx);
+                System.arraycopy(values, i, values, 0, emptySlotIdx);
+            }
+        }
+        return true;
+    }
+
+    // Indexes are relative to base, the listener gets base + index.
+    @SuppressWarnings("unchecked")
+    public boolean matchAndClearFile(FileMapMatchListener<T> listener, int purgeToIndex, long base) {
+        // Start at the start of the array and flush to listener all matches which have
+        // end index lower of equal than the purgeToIndex, then clear them out from array by
+        // moving the rest of the matches to front.
+        if (!isEmpty()) {
+            int i = 0;
+            while (i < emptySlotIdx) {
+                if (endIndexes[i] <= purgeToIndex) {
+                    if (!listener.match(base + startIndexes[i], base + endIndexes[i], (T) values[i])) {
+                        return false;
+                    }
+                } else {
+                    break;
+                }
+                i++;
+            }
+            if (i > 0) {
+                emptySlotIdx = emptySlotIdx - i;
+                System.arraycopy(endIndexes, i, endIndexes, 0, emptySlotIdx);
+                System.arraycopy(startIndexes, i, startIndexes, 0, emptySlotIdx);
+                System.arraycopy(values, i, values, 0, emptySlotIdx);
+            }
+        }
+        return true;
+    }
+
     @SuppressWarnings("unchecked")
     public boolean matchAndClear(ReadableMatchListener<T> listener, int purgeToIndex) {
         // Start at the start of the array and flush to listener all matches which have
@@ -44,6 +99,34 @@ class MapMatchQueue<T> {
         return true;
     }
 
+    // Indexes are relative to base, the listener gets base + index.
+    @SuppressWarnings("unchecked")
+    public boolean matchAndClear(StreamMapMatchListener<T> listener, int purgeToIndex, long base) {
+        // Start at the start of the array and flush to listener all matches which have
+        // end index lower of equal than the purgeToIndex, then clear them out from array by
+        // moving the rest of the matches to front.
+        if (!isEmpty()) {
+            int i = 0;
+            while (i < emptySlotIdx) {
+                if (endIndexes[i] <= purgeToIndex) {
+                    if (!listener.match(base + startIndexes[i], base + endIndexes[i], (T) values[i])) {
+                        return false;
+                    }
+                } else {
+                    break;
+                }
+                i++;
+            }
+            if (i > 0) {
+                emptySlotIdx = emptySlotIdx - i;
+                System.arraycopy(endIndexes, i, endIndexes, 0, emptySlotIdx);
+                System.arraycopy(startIndexes, i, startIndexes, 0, emptySlotIdx);
+                System.arraycopy(values, i, values, 0, emptySlotIdx);
+            }
+        }
+        return true;
+    }
+
     @SuppressWarnings("unchecked")
     public boolean matchAndClear(String haystack, MapMatchListener<T> listener, int purgeToIndex) {
         // Start at the start of the array and flush to listener all matches which have
@@ -71,6 +154,42 @@ class MapMatchQueue<T> {
         return true;
     }
 
+    @SuppressWarnings("unchecked")
+    public boolean matchAndClearSequence(CharSequence haystack, CharSequenceMapMatchListener<T> listener, int purgeToIndex) {
+        // Start at the start of the array and flush to listener all matches which have
+        // end index lower of equal than the purgeToIndex, then clear them out from array by
+        // moving the rest of the matches to front.
+        if (!isEmpty()) {
+            int i = 0;
+            while (i < emptySlotIdx) {
+                if (endIndexes[i] <= purgeToIndex) {
+                    if (!listener.match(haystack, startIndexes[i], endIndexes[i], (T) values[i])) {
+                        return false;
+                    }
+                } else {
+                    break;
+                }
+                i++;
+            }
+            if (i > 0) {
+                emptySlotIdx = emptySlotIdx - i;
+                System.arraycopy(endIndexes, i, endIndexes, 0, emptySlotIdx);
+                System.arraycopy(startIndexes, i, startIndexes, 0, emptySlotIdx);
+                System.arraycopy(values, i, values, 0, emptySlotIdx);
+            }
+        }
+        return true;
+    }
+
+    // Makes the indexes relative to a point delta further on, used when matching a file
+    // moves from one window to the next, or a matcher from one chunk to the next.
+    public void shift(int delta) {
+        for (int i = 0; i < emptySlotIdx; i++) {
+            startIndexes[i] -= delta;
+            endIndexes[i] -= delta;
+        }
+    }
+
     // Adds a match to the queue.
     public boolean push(int length, int idx, T value) {
         // Resize if needed.
@@ -0,0 +1,73 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Feeds a file to a matcher for the matchFile methods of the char engines. The file is memory mapped
+// a window at a time, like the byte engines do it, and decoded into a reused chunk. The matcher carries
+// the match state from one chunk to the next, so positions are char offsets into the whole decoded text.
+final class MappedText {
+
+    static final int CHUNK_CHARS = 8192;
+
+    private MappedText() {
+    }
+
+    static void feed(final Path file, final Charset charset, final Matcher matcher) throws IOException {
+        feed(file, charset, matcher, ByteAhoCorasickSet.WINDOW_BYTES);
+    }
+
+    // Map the file in windows of the given size, a window must fit the longest encoded character.
+    static void feed(final Path file, final Charset charset, final Matcher matcher, final int windowBytes) throws IOException {
+        // Malformed input is replaced like a Reader over the file would do it.
+        final CharsetDecoder decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final CharBuffer chunk = CharBuffer.allocate(CHUNK_CHARS);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            final long size = channel.size();
+            long windowStart = 0;
+            while (true) {
+                MappedByteBuffer window = channel.map(MapMode.READ_ONLY, windowStart, Math.min(windowBytes, size - windowStart));
+                final boolean last = windowStart + window.limit() == size;
+                CoderResult result;
+                do {
+                    result = decoder.decode(window, chunk, last);
+                    if (!feed(matcher, chunk)) {
+                        return;
+                    }
+                } while (result.isOverflow());
+                if (last) {
+                    do {
+                        result = decoder.flush(chunk);
+                        if (!feed(matcher, chunk)) {
+                            return;
+                        }
+                    } while (result.isOverflow());
+                    matcher.finish();
+                    return;
+                }
+                // Bytes of a character cut by the end of the window are decoded with the next window.
+                windowStart += window.position();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Feed the decoded chars and empty the chunk for more.
+    private static boolean feed(Matcher matcher, CharBuffer chunk) {
+        final boolean fed = matcher.feed(chunk.array(), 0, chunk.position());
+        chunk.clear();
+        return fed;
+    }
+}
@@ -0,0 +1,16 @@
+package com.roklenarcic.util.strings;
+
+// Matches text that arrives in chunks, see the engines' matcher methods. The matcher keeps the matching
+// state between chunks, so matches can span chunks, and reports positions counted from the start of the
+// first chunk. A matcher is not thread safe.
+public interface Matcher {
+
+    // Matches the chunk as the continuation of the text fed so far. Returns false once the listener has
+    // stopped the matching, the rest of the text is ignored then.
+    boolean feed(final char[] chunk, final int off, final int len);
+
+    // Ends the text and reports the matches that were waiting for more of it. The matcher then starts over,
+    // the next chunk fed starts a new text at position 0.
+    void finish();
+
+}
@@ -0,0 +1,8 @@
+package com.roklenarcic.util.strings;
+
+// Sets and maps that can report how much memory they take.
+public interface MemoryAccountable {
+
+    // Memory taken by the automaton, broken down by part, see MemoryUsage.
+    MemoryUsage memoryUsage();
+}
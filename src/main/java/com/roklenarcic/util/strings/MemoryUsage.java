@@ -0,0 +1,248 @@
+package com.roklenarcic.util.strings;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+// Memory taken by a set or map, broken down by part. Trie nodes are reported per node class (HashmapNode,
+// RangeNode...), the arrays the nodes point to as child arrays and the per node arrays of the engine as
+// node fields. Sizes are computed from the fields of the
+// objects, the way HotSpot lays them out, so they are estimates within a few percent of a heap histogram.
+// Values belong to the caller, only the references to them are counted.
+public final class MemoryUsage {
+
+    // Character class table of the dictionary.
+    public static final String ALPHABET = "alphabet";
+    // Keys and children arrays of trie nodes.
+    public static final String CHILD_ARRAYS = "child arrays";
+    // Fields of the trie nodes (fail transitions, match lengths...), kept by the engines in arrays indexed
+    // by node id.
+    public static final String NODE_FIELDS = "node fields";
+    // Direct or memory mapped buffers, outside of the Java heap.
+    public static final String OFF_HEAP = "off-heap";
+    // Suffix match lists of the Aho-Corasick set and map.
+    public static final String OUTPUTS = "outputs";
+    // State arrays of compiled automatons (double array, DFA).
+    public static final String STATES = "states";
+    // Arrays of value references.
+    public static final String VALUES = "values";
+    // Word character table of the whole word engines.
+    public static final String WORD_CHARACTERS = "word characters";
+
+    private static final int ARRAY_HEADER;
+    private static final int OBJECT_ALIGNMENT = 8;
+    private static final int OBJECT_HEADER;
+    private static final int REFERENCE;
+
+    static {
+        if ("32".equals(System.getProperty("sun.arch.data.model"))) {
+            OBJECT_HEADER = 8;
+            ARRAY_HEADER = 12;
+            REFERENCE = 4;
+        } else if (Runtime.getRuntime().maxMemory() < 32L * 1024 * 1024 * 1024) {
+            // 64-bit JVMs compress references when the heap is under 32GB.
+            OBJECT_HEADER = 12;
+            ARRAY_HEADER = 16;
+            REFERENCE = 4;
+        } else {
+            OBJECT_HEADER = 16;
+            ARRAY_HEADER = 24;
+            REFERENCE = 8;
+        }
+    }
+
+    private final IdentityHashMap<Class<?>, Field[]> fields = new IdentityHashMap<Class<?>, Field[]>();
+    private final LinkedHashMap<String, Long> parts = new LinkedHashMap<String, Long>();
+    private final IdentityHashMap<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>();
+
+    MemoryUsage() {
+    }
+
+    // Predicts the memory a set or map with keywordCount keywords will take, without building it. The
+    // builder is called twice, with the sample and with its first half, and must create the set or map
+    // the same way as the full build will (same engine, options and thresholder). Each part is
+    // extrapolated from the two sizes with a power law: tries grow slower than the number of keywords,
+    // since keywords share prefixes, while tables like the alphabet don't grow at all. Sample should be
+    // randomly chosen, the estimate gets better with bigger samples.
+    public static MemoryUsage estimate(List<String> sample, long keywordCount, Function<List<String>, ? extends MemoryAccountable> builder) {
+        if (sample.size() < 2) {
+            throw new IllegalArgumentException("Sample needs at least 2 keywords.");
+        }
+        List<String> halfSample = sample.subList(0, sample.size() / 2);
+        MemoryUsage half = builder.apply(halfSample).memoryUsage();
+        MemoryUsage full = builder.apply(sample).memoryUsage();
+        double growth = (double) keywordCount / sample.size();
+        double sampleGrowth = (double) sample.size() / halfSample.size();
+        MemoryUsage estimate = new MemoryUsage();
+        for (Map.Entry<String, Long> part : full.parts.entrySet()) {
+            double bytes = part.getValue();
+            if (growth > 1) {
+                double halfBytes = half.getBytes(part.getKey());
+                // Exponent 1 is linear growth, 0 is a part of fixed size.
+                double exponent = halfBytes > 0 ? Math.log(bytes / halfBytes) / Math.log(sampleGrowth) : 1;
+                bytes *= Math.pow(growth, Math.max(0, Math.min(1, exponent)));
+            }
+            estimate.add(part.getKey(), (long) bytes);
+        }
+        return estimate;
+    }
+
+    private static long align(long size) {
+        return (size + OBJECT_ALIGNMENT - 1) / OBJECT_ALIGNMENT * OBJECT_ALIGNMENT;
+    }
+
+    private static int primitiveSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        } else if (type == int.class || type == float.class) {
+            return 4;
+        } else if (type == char.class || type == short.class) {
+            return 2;
+        } else if (type.isPrimitive()) {
+            return 1;
+        } else {
+            return REFERENCE;
+        }
+    }
+
+    private static long shallowSizeOf(Class<?> c) {
+        long size = OBJECT_HEADER;
+        for (; c != null; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(f.getModifiers())) {
+                    size += primitiveSize(f.getType());
+                }
+            }
+        }
+        return align(size);
+    }
+
+    private static long sizeOfArray(Object array) {
+        return align(ARRAY_HEADER + (long) Array.getLength(array) * primitiveSize(array.getClass().getComponentType()));
+    }
+
+    // Bytes taken by the given part, 0 if there's no such part.
+    public long getBytes(String part) {
+        Long bytes = parts.get(part);
+        return bytes == null ? 0 : bytes;
+    }
+
+    // Bytes per part, in the order the parts were first added.
+    public Map<String, Long> getParts() {
+        return Collections.unmodifiableMap(parts);
+    }
+
+    // Total of all parts, off-heap included.
+    public long ramBytesUsed() {
+        long total = 0;
+        for (long bytes : parts.values()) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder().append(ramBytesUsed()).append(" bytes");
+        String separator = " (";
+        for (Map.Entry<String, Long> part : parts.entrySet()) {
+            b.append(separator).append(part.getKey()).append(' ').append(part.getValue());
+            separator = ", ";
+        }
+        return parts.isEmpty() ? b.toString() : b.append(')').toString();
+    }
+
+    // Add bytes that aren't an object, like off-heap buffers.
+    void add(String part, long bytes) {
+        Long previous = parts.get(part);
+        parts.put(part, previous == null ? bytes : previous + bytes);
+    }
+
+    // Add an array. Arrays that were already counted (shared by two fields) are skipped.
+    void addArray(String part, Object array) {
+        if (array != null && seen.put(array, Boolean.TRUE) == null) {
+            add(part, sizeOfArray(array));
+        }
+    }
+
+    // Add an object of this package and the arrays it points to.
+    void addObject(String part, Object o) {
+        if (o != null && seen.put(o, Boolean.TRUE) == null) {
+            add(part, shallowSizeOf(o.getClass()));
+            for (Field f : referenceFields(o.getClass())) {
+                Object value = get(f, o);
+                if (value != null && value.getClass().isArray()) {
+                    addArray(part, value);
+                }
+            }
+        }
+    }
+
+    // Add all nodes reachable from the root through child, fail and suffix links. Each node is counted once
+    // under its class name and the arrays it points to under child arrays. Fields declared as Object hold
+    // values, those aren't followed.
+    void addTrie(Object root, Class<?> nodeClass) {
+        ArrayList<Object> stack = new ArrayList<Object>();
+        if (root != null && seen.put(root, Boolean.TRUE) == null) {
+            stack.add(root);
+        }
+        while (!stack.isEmpty()) {
+            Object node = stack.remove(stack.size() - 1);
+            add(node.getClass().getSimpleName(), shallowSizeOf(node.getClass()));
+            for (Field f : referenceFields(node.getClass())) {
+                Object value = get(f, node);
+                if (value == null) {
+                    continue;
+                } else if (value.getClass().isArray()) {
+                    if (seen.put(value, Boolean.TRUE) == null) {
+                        add(CHILD_ARRAYS, sizeOfArray(value));
+                        if (value instanceof Object[]) {
+                            for (Object child : (Object[]) value) {
+                                if (nodeClass.isInstance(child) && seen.put(child, Boolean.TRUE) == null) {
+                                    stack.add(child);
+                                }
+                            }
+                        }
+                    }
+                } else if (nodeClass.isInstance(value) && seen.put(value, Boolean.TRUE) == null) {
+                    stack.add(value);
+                }
+            }
+        }
+    }
+
+    private Object get(Field f, Object o) {
+        try {
+            return f.get(o);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Non-static fields of the class and its superclasses that can point to other objects or arrays.
+    private Field[] referenceFields(Class<?> c) {
+        Field[] ret = fields.get(c);
+        if (ret == null) {
+            ArrayList<Field> list = new ArrayList<Field>();
+            for (Class<?> k = c; k != null; k = k.getSuperclass()) {
+                for (Field f : k.getDeclaredFields()) {
+                    if (!Modifier.isStatic(f.getModifiers()) && !f.getType().isPrimitive() && f.getType() != Object.class) {
+                        f.setAccessible(true);
+                        list.add(f);
+                    }
+                }
+            }
+            ret = list.toArray(new Field[list.size()]);
+            fields.put(c, ret);
+        }
+        return ret;
+    }
+
+}
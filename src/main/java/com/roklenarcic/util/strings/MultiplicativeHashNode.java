@@ -0,0 +1,112 @@
+package com.roklenarcic.util.strings;
+
+import java.util.IdentityHashMap;
+
+// Sparse node with linear probing like the hashmap node, but a multiply-shift hash, which takes
+// a single multiplication. Capacity is fixed when the node is built.
+final class MultiplicativeHashNode<T> extends TrieNode<T> {
+
+    private TrieNode<T>[] children;
+    private char[] keys;
+    private int modulusMask;
+
+    MultiplicativeHashNode(HashmapNode<T> oldNode) {
+        oldNode.copyTo(this);
+        int capacity = capacity(oldNode.numEntries);
+        this.keys = new char[capacity];
+        this.children = TrieNode.newArray(capacity);
+        this.modulusMask = capacity - 1;
+        for (int i = 0; i < oldNode.children.length; i++) {
+            if (oldNode.children[i] != null) {
+                int currentSlot = hash(oldNode.keys[i]) & modulusMask;
+                while (children[currentSlot] != null) {
+                    currentSlot = ++currentSlot & modulusMask;
+                }
+                keys[currentSlot] = oldNode.keys[i];
+                children[currentSlot] = oldNode.children[i];
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        children = TrieNode.newArray(1);
+        keys = new char[1];
+        modulusMask = 0;
+    }
+
+    @Override
+    protected void relink(IdentityHashMap<TrieNode<T>, TrieNode<T>> replacements) {
+        super.relink(replacements);
+        for (int i = 0; i < children.length; i++) {
+            children[i] = replacements.get(children[i]);
+        }
+    }
+
+    @Override
+    public TrieNode<T> getTransition(char key) {
+        int defaultSlot = hash(key) & modulusMask;
+        int currentSlot = defaultSlot;
+        do {
+            if (children[currentSlot] == null) {
+                return null;
+            } else if (keys[currentSlot] == key) {
+                return children[currentSlot];
+            } else {
+                currentSlot = ++currentSlot & modulusMask;
+            }
+        } while (currentSlot != defaultSlot);
+        return null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (int i = 0; i < children.length; i++) {
+            if (children[i] != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void mapEntries(EntryVisitor<T> visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (children[i] != null) {
+                visitor.visit(this, keys[i], children[i]);
+            }
+        }
+    }
+
+    @Override
+    public void updateTransition(char c, TrieNode<T> node) {
+        int defaultSlot = hash(c) & modulusMask;
+        int currentSlot = defaultSlot;
+        do {
+            if (children[currentSlot] == null) {
+                break;
+            } else if (keys[currentSlot] == c) {
+                children[currentSlot] = node;
+                return;
+            } else {
+                currentSlot = ++currentSlot & modulusMask;
+            }
+        } while (currentSlot != defaultSlot);
+        throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+    }
+
+    // Smallest power of 2 that fits the entries under the hashmap node's load factor.
+    static int capacity(int numEntries) {
+        int capacity = 1;
+        while (capacity < numEntries || (numEntries > 16 && numEntries >= capacity * 0.90f)) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+
+    // Multiply by 2^32 / golden ratio, the middle bits of the product are the slot.
+    private int hash(char c) {
+        return (c * 0x9e3779b1) >>> 16;
+    }
+
+}
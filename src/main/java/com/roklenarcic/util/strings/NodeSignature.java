@@ -0,0 +1,41 @@
+package com.roklenarcic.util.strings;
+
+import java.util.Arrays;
+
+// What a node matches from here on: its own match and value, and its transitions to already merged
+// children. Nodes with equal signatures are equivalent and can be merged when minimizing a trie.
+final class NodeSignature {
+
+    private final int[] children;
+    private final int hash;
+    private final char[] keys;
+    private final boolean match;
+    private final Object value;
+
+    // Keys must be sorted, children are ids of the merged children.
+    NodeSignature(boolean match, Object value, char[] keys, int[] children) {
+        this.match = match;
+        this.value = value;
+        this.keys = keys;
+        this.children = children;
+        int h = Arrays.hashCode(keys) * 31 + Arrays.hashCode(children);
+        h = h * 31 + (value == null ? 0 : value.hashCode());
+        this.hash = match ? h + 1 : h;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof NodeSignature)) {
+            return false;
+        }
+        NodeSignature other = (NodeSignature) obj;
+        return hash == other.hash && match == other.match && Arrays.equals(keys, other.keys) && Arrays.equals(children, other.children)
+                && (value == null ? other.value == null : value.equals(other.value));
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+}
@@ -0,0 +1,343 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+
+import com.roklenarcic.util.strings.threshold.RangeNodeThreshold;
+import com.roklenarcic.util.strings.threshold.Thresholder;
+
+// Standard Aho-Corasick map, same matches as AhoCorasickMap.
+// The automaton is compiled into a double array and stored in direct memory, outside
+// of the Java heap, so very large dictionaries don't burden the GC. Only the values
+// stay on the heap. Matching a String doesn't allocate any objects.
+public class OffHeapAhoCorasickMap<T> implements StringMap<T>, MemoryAccountable {
+
+    private static final int FAIL = 2;
+    private static final int MATCH_LENGTH = 3;
+    private static final int RECORD_SIZE = 6;
+    private static final int SUFFIX = 4;
+    private static final int VALUE = 5;
+
+    private boolean caseSensitive = true;
+    private int charBufferSize = 0;
+    private int slots;
+    private IntBuffer states;
+    private Object[] values;
+
+    public OffHeapAhoCorasickMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive) {
+        this(keywords, values, caseSensitive, new RangeNodeThreshold());
+    }
+
+    public OffHeapAhoCorasickMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive,
+            final Thresholder thresholdStrategy) {
+        this.caseSensitive = caseSensitive;
+        // Build the node based automaton, compile it into a double array and move that off-heap.
+        FlatTrie trie = new AhoCorasickMap<T>(keywords, values, caseSensitive, thresholdStrategy).flatten();
+        DoubleArray doubleArray = new DoubleArray(trie);
+        OffHeapRecords records = new OffHeapRecords(doubleArray, RECORD_SIZE);
+        int[] matchLength = doubleArray.placeInts(trie.matchLength);
+        records.putColumn(FAIL, doubleArray.placeStates(trie.failState));
+        records.putColumn(MATCH_LENGTH, matchLength);
+        records.putColumn(SUFFIX, doubleArray.placeStates(trie.suffixState));
+        records.putValues(VALUE, doubleArray.place(trie.values), matchLength);
+        this.states = records.records;
+        this.slots = records.slots;
+        this.values = records.values();
+        charBufferSize = trie.longestKeyword > 2048 ? trie.longestKeyword * 2 : 4096;
+    }
+
+    public void matchChars(final char[] haystack, final int from, final int to, final CharSequenceMapMatchListener<T> listener) {
+        // Listeners see the array as a char sequence, positions are array indexes.
+        final CharSequence sequence = CharBuffer.wrap(haystack);
+        final IntBuffer states = this.states;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        int idx = from;
+        // For each character.
+        final int len = to;
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                final char c = haystack[idx];
+                currentState = step(currentState, c);
+                ++idx;
+                // Output any matches on the current state
+                if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) > 0 && !outputSequence(sequence, listener, currentState, idx)) {
+                    break;
+                }
+            }
+        } else {
+            while (idx < len) {
+                final char c = Character.toLowerCase(haystack[idx]);
+                currentState = step(currentState, c);
+                ++idx;
+                // Output any matches on the current state
+                if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) > 0 && !outputSequence(sequence, listener, currentState, idx)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    public void matchSequence(final CharSequence haystack, final CharSequenceMapMatchListener<T> listener) {
+        final IntBuffer states = this.states;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        int idx = 0;
+        // For each character.
+        final int len = haystack.length();
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                final char c = haystack.charAt(idx);
+                currentState = step(currentState, c);
+                ++idx;
+                // Output any matches on the current state
+                if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) > 0 && !outputSequence(haystack, listener, currentState, idx)) {
+                    break;
+                }
+            }
+        } else {
+            while (idx < len) {
+                final char c = Character.toLowerCase(haystack.charAt(idx));
+                currentState = step(currentState, c);
+                ++idx;
+                // Output any matches on the current state
+                if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) > 0 && !outputSequence(haystack, listener, currentState, idx)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    public void match(final Readable haystack, final ReadableMatchListener<T> listener) throws IOException {
+        final IntBuffer states = this.states;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        CharBuffer buf = CharBuffer.allocate(charBufferSize);
+
+        // For each character.
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (haystack.read(buf) != -1) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    final char c = buf.get();
+                    currentState = step(currentState, c);
+                    // Output any matches on the current state
+                    if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) > 0 && !output(listener, currentState)) {
+                        return;
+                    }
+                }
+                buf.clear();
+            }
+        } else {
+            while (haystack.read(buf) != -1) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    final char c = Character.toLowerCase(buf.get());
+                    currentState = step(currentState, c);
+                    // Output any matches on the current state
+                    if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) > 0 && !output(listener, currentState)) {
+                        return;
+                    }
+                }
+                buf.clear();
+            }
+        }
+    }
+
+    public void match(final String haystack, final MapMatchListener<T> listener) {
+        final IntBuffer states = this.states;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        int idx = 0;
+        // For each character.
+        final int len = haystack.length();
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                final char c = haystack.charAt(idx);
+                currentState = step(currentState, c);
+                ++idx;
+                // Output any matches on the current state
+                if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) > 0 && !output(haystack, listener, currentState, idx)) {
+                    break;
+                }
+            }
+        } else {
+            while (idx < len) {
+                final char c = Character.toLowerCase(haystack.charAt(idx));
+                currentState = step(currentState, c);
+                ++idx;
+                // Output any matches on the current state
+                if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) > 0 && !output(haystack, listener, currentState, idx)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    // Matcher for text that arrives in chunks, it finds the same matches as match would in all of the text.
+    public Matcher matcher(final StreamMapMatchListener<T> listener) {
+        return new StreamMatcher(listener);
+    }
+
+    // Match the file decoded with the charset. The file is memory mapped a window at a time, so it can be
+    // larger than 2GB, and positions are char offsets into the decoded text.
+    public void matchFile(final Path file, final Charset charset, final StreamMapMatchListener<T> listener) throws IOException {
+        MappedText.feed(file, charset, matcher(listener));
+    }
+
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = new MemoryUsage();
+        usage.add(MemoryUsage.OFF_HEAP, states.capacity() * 4L);
+        usage.addArray(MemoryUsage.VALUES, values);
+        return usage;
+    }
+
+    // State of the match loop between chunks.
+    private final class StreamMatcher implements Matcher {
+
+        private int currentState = 0;
+        private final StreamMapMatchListener<T> listener;
+        // Position of the next character in the text.
+        private long position = 0;
+        private boolean stopped = false;
+
+        private StreamMatcher(StreamMapMatchListener<T> listener) {
+            this.listener = listener;
+        }
+
+        public boolean feed(final char[] chunk, final int off, final int len) {
+            if (stopped) {
+                return false;
+            }
+            // Local copies of the state for the loop.
+            final IntBuffer states = OffHeapAhoCorasickMap.this.states;
+            int currentState = this.currentState;
+            // Position of the chunk array start in the text.
+            final long chunkBase = position - off;
+            final int end = off + len;
+            int idx = off;
+            // Putting this if into the loop worsens the performance so we'll sadly
+            // have to deal with duplicated code.
+            if (caseSensitive) {
+                while (idx < end) {
+                    currentState = step(currentState, chunk[idx]);
+                    ++idx;
+                    // Output any matches on the current state
+                    if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) > 0 && !output(listener, currentState, chunkBase + idx)) {
+                        stopped = true;
+                        return false;
+                    }
+                }
+            } else {
+                while (idx < end) {
+                    currentState = step(currentState, Character.toLowerCase(chunk[idx]));
+                    ++idx;
+                    // Output any matches on the current state
+                    if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) > 0 && !output(listener, currentState, chunkBase + idx)) {
+                        stopped = true;
+                        return false;
+                    }
+                }
+            }
+            this.currentState = currentState;
+            position = chunkBase + end;
+            return true;
+        }
+
+        public void finish() {
+            // Matches are reported as soon as they end, nothing waits for the end of the text.
+            currentState = 0;
+            position = 0;
+            stopped = false;
+        }
+    }
+
+    // Report matches at this state, including all suffix matches. Values are kept in an Object array,
+    // they are all T.
+    @SuppressWarnings("unchecked")
+    private boolean output(ReadableMatchListener<T> listener, int state) {
+        boolean ret;
+        do {
+            int record = state * RECORD_SIZE;
+            ret = listener.match((T) values[states.get(record + VALUE)]);
+            state = states.get(record + SUFFIX);
+        } while (state != FlatTrie.NONE && ret);
+        return ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean output(String haystack, MapMatchListener<T> listener, int state, int idx) {
+        // since idx is the last character in the match
+        // position it past the match (to be consistent with conventions)
+        boolean ret;
+        do {
+            int record = state * RECORD_SIZE;
+            ret = listener.match(haystack, idx - states.get(record + MATCH_LENGTH), idx, (T) values[states.get(record + VALUE)]);
+            state = states.get(record + SUFFIX);
+        } while (state != FlatTrie.NONE && ret);
+        return ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean outputSequence(CharSequence haystack, CharSequenceMapMatchListener<T> listener, int state, int idx) {
+        // since idx is the last character in the match
+        // position it past the match (to be consistent with conventions)
+        boolean ret;
+        do {
+            int record = state * RECORD_SIZE;
+            ret = listener.match(haystack, idx - states.get(record + MATCH_LENGTH), idx, (T) values[states.get(record + VALUE)]);
+            state = states.get(record + SUFFIX);
+        } while (state != FlatTrie.NONE && ret);
+        return ret;
+    }
+
+    // Take the transition from the state on the character. If there is none, follow fail transitions
+    // until finding a state that has one. Root takes itself for any missing transition.
+    private int step(int state, final char c) {
+        int nextState;
+        while ((nextState = transition(state, c)) == -1) {
+            if (state == 0) {
+                return 0;
+            }
+            state = states.get(state * RECORD_SIZE + FAIL);
+        }
+        return nextState;
+    }
+
+    // Returns the state reached from the given state with the character, -1 if there's no transition.
+    private int transition(int state, char c) {
+        int next = states.get(state * RECORD_SIZE + OffHeapRecords.BASE) + c;
+        return next < slots && states.get(next * RECORD_SIZE + OffHeapRecords.CHECK) == state ? next : -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean output(StreamMapMatchListener<T> listener, int state, long idx) {
+        boolean ret;
+        do {
+            int record = state * RECORD_SIZE;
+            ret = listener.match(idx - states.get(record + MATCH_LENGTH), idx, (T) values[states.get(record + VALUE)]);
+            state = states.get(record + SUFFIX);
+        } while (state != FlatTrie.NONE && ret);
+        return ret;
+    }
+
+}
@@ -0,0 +1,382 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+
+import com.roklenarcic.util.strings.threshold.RangeNodeThreshold;
+import com.roklenarcic.util.strings.threshold.Thresholder;
+
+// Matches leftmost longest matches, same matches as LongestMatchMap.
+// The automaton is compiled into a double array and stored in direct memory, outside
+// of the Java heap, so very large dictionaries don't burden the GC. Only the values
+// stay on the heap.
+public class OffHeapLongestMatchMap<T> implements StringMap<T>, MemoryAccountable {
+
+    private static final int FAIL = 2;
+    private static final int LEVEL = 6;
+    private static final int MATCH_LENGTH = 3;
+    private static final int RECORD_SIZE = 7;
+    private static final int SUFFIX = 4;
+    private static final int VALUE = 5;
+
+    private boolean caseSensitive = true;
+    private int charBufferSize = 0;
+    private int slots;
+    private IntBuffer states;
+    private Object[] values;
+
+    public OffHeapLongestMatchMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive) {
+        this(keywords, values, caseSensitive, new RangeNodeThreshold());
+    }
+
+    public OffHeapLongestMatchMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive,
+            final Thresholder thresholdStrategy) {
+        this.caseSensitive = caseSensitive;
+        // Build the node based automaton, compile it into a double array and move that off-heap.
+        FlatTrie trie = new LongestMatchMap<T>(keywords, values, caseSensitive, thresholdStrategy).flatten();
+        DoubleArray doubleArray = new DoubleArray(trie);
+        OffHeapRecords records = new OffHeapRecords(doubleArray, RECORD_SIZE);
+        int[] matchLength = doubleArray.placeInts(trie.matchLength);
+        records.putColumn(FAIL, doubleArray.placeStates(trie.failState));
+        records.putColumn(LEVEL, doubleArray.placeInts(trie.depth));
+        records.putColumn(MATCH_LENGTH, matchLength);
+        records.putColumn(SUFFIX, doubleArray.placeStates(trie.suffixState));
+        records.putValues(VALUE, doubleArray.place(trie.values), matchLength);
+        this.states = records.records;
+        this.slots = records.slots;
+        this.values = records.values();
+        charBufferSize = trie.longestKeyword > 2048 ? trie.longestKeyword * 2 : 4096;
+    }
+
+    public void matchChars(final char[] haystack, final int from, final int to, final CharSequenceMapMatchListener<T> listener) {
+        // Listeners see the array as a char sequence, positions are array indexes.
+        final CharSequence sequence = CharBuffer.wrap(haystack);
+        final IntBuffer states = this.states;
+
+        // Start with the root state.
+        int currentState = 0;
+        MapMatchQueue<T> queue = new MapMatchQueue<T>();
+        int idx = from;
+        // For each character.
+        final int len = to;
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                final char c = haystack[idx];
+                // A fail transition was followed if the state comes back complemented.
+                int nextState = step(currentState, c);
+                final boolean failTransition = nextState < 0;
+                currentState = failTransition ? ~nextState : nextState;
+                // Output any matches on the current state
+                output(queue, currentState, ++idx);
+                // If fail transition was taken, we can flush the match queue.
+                // We flush all matches that end before the start of the of the fail transition taken.
+                if (failTransition && !queue.matchAndClearSequence(sequence, listener, idx - states.get(currentState * RECORD_SIZE + LEVEL))) {
+                    return;
+                }
+            }
+            // Flush the rest of the matches.
+            queue.matchAndClearSequence(sequence, listener, Integer.MAX_VALUE);
+        } else {
+            while (idx < len) {
+                final char c = Character.toLowerCase(haystack[idx]);
+                // A fail transition was followed if the state comes back complemented.
+                int nextState = step(currentState, c);
+                final boolean failTransition = nextState < 0;
+                currentState = failTransition ? ~nextState : nextState;
+                // Output any matches on the current state
+                output(queue, currentState, ++idx);
+                // If fail transition was taken, we can flush the match queue.
+                // We flush all matches that end before the start of the of the fail transition taken.
+                if (failTransition && !queue.matchAndClearSequence(sequence, listener, idx - states.get(currentState * RECORD_SIZE + LEVEL))) {
+                    return;
+                }
+            }
+            // Flush the rest of the matches.
+            queue.matchAndClearSequence(sequence, listener, Integer.MAX_VALUE);
+        }
+    }
+
+    public void matchSequence(final CharSequence haystack, final CharSequenceMapMatchListener<T> listener) {
+        final IntBuffer states = this.states;
+
+        // Start with the root state.
+        int currentState = 0;
+        MapMatchQueue<T> queue = new MapMatchQueue<T>();
+        int idx = 0;
+        // For each character.
+        final int len = haystack.length();
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                final char c = haystack.charAt(idx);
+                // A fail transition was followed if the state comes back complemented.
+                int nextState = step(currentState, c);
+                final boolean failTransition = nextState < 0;
+                currentState = failTransition ? ~nextState : nextState;
+                // Output any matches on the current state
+                output(queue, currentState, ++idx);
+                // If fail transition was taken, we can flush the match queue.
+                // We flush all matches that end before the start of the of the fail transition taken.
+                if (failTransition && !queue.matchAndClearSequence(haystack, listener, idx - states.get(currentState * RECORD_SIZE + LEVEL))) {
+                    return;
+                }
+            }
+            // Flush the rest of the matches.
+            queue.matchAndClearSequence(haystack, listener, Integer.MAX_VALUE);
+        } else {
+            while (idx < len) {
+                final char c = Character.toLowerCase(haystack.charAt(idx));
+                // A fail transition was followed if the state comes back complemented.
+                int nextState = step(currentState, c);
+                final boolean failTransition = nextState < 0;
+                currentState = failTransition ? ~nextState : nextState;
+                // Output any matches on the current state
+                output(queue, currentState, ++idx);
+                // If fail transition was taken, we can flush the match queue.
+                // We flush all matches that end before the start of the of the fail transition taken.
+                if (failTransition && !queue.matchAndClearSequence(haystack, listener, idx - states.get(currentState * RECORD_SIZE + LEVEL))) {
+                    return;
+                }
+            }
+            // Flush the rest of the matches.
+            queue.matchAndClearSequence(haystack, listener, Integer.MAX_VALUE);
+        }
+    }
+
+    public void match(final Readable haystack, final ReadableMatchListener<T> listener) throws IOException {
+        final IntBuffer states = this.states;
+
+        // Start with the root state.
+        int currentState = 0;
+        MapMatchQueue<T> queue = new MapMatchQueue<T>();
+
+        CharBuffer buf = CharBuffer.allocate(charBufferSize);
+
+        int idx = 0;
+        // For each character.
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (haystack.read(buf) != -1) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    final char c = buf.get();
+                    // A fail transition was followed if the state comes back complemented.
+                    int nextState = step(currentState, c);
+                    final boolean failTransition = nextState < 0;
+                    currentState = failTransition ? ~nextState : nextState;
+                    // Output any matches on the current state
+                    output(queue, currentState, ++idx);
+                    // If fail transition was taken, we can flush the match queue.
+                    // We flush all matches that end before the start of the of the fail transition taken.
+                    if (failTransition && !queue.matchAndClear(listener, idx - states.get(currentState * RECORD_SIZE + LEVEL))) {
+                        return;
+                    }
+                }
+                buf.clear();
+            }
+            // Flush the rest of the matches.
+            queue.matchAndClear(listener, Integer.MAX_VALUE);
+        } else {
+            while (haystack.read(buf) != -1) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    final char c = Character.toLowerCase(buf.get());
+                    // A fail transition was followed if the state comes back complemented.
+                    int nextState = step(currentState, c);
+                    final boolean failTransition = nextState < 0;
+                    currentState = failTransition ? ~nextState : nextState;
+                    // Output any matches on the current state
+                    output(queue, currentState, ++idx);
+                    // If fail transition was taken, we can flush the match queue.
+                    // We flush all matches that end before the start of the of the fail transition taken.
+                    if (failTransition && !queue.matchAndClear(listener, idx - states.get(currentState * RECORD_SIZE + LEVEL))) {
+                        return;
+                    }
+                }
+                buf.clear();
+            }
+            // Flush the rest of the matches.
+            queue.matchAndClear(listener, Integer.MAX_VALUE);
+        }
+    }
+
+    public void match(final String haystack, final MapMatchListener<T> listener) {
+        final IntBuffer states = this.states;
+
+        // Start with the root state.
+        int currentState = 0;
+        MapMatchQueue<T> queue = new MapMatchQueue<T>();
+        int idx = 0;
+        // For each character.
+        final int len = haystack.length();
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                final char c = haystack.charAt(idx);
+                // A fail transition was followed if the state comes back complemented.
+                int nextState = step(currentState, c);
+                final boolean failTransition = nextState < 0;
+                currentState = failTransition ? ~nextState : nextState;
+                // Output any matches on the current state
+                output(queue, currentState, ++idx);
+                // If fail transition was taken, we can flush the match queue.
+                // We flush all matches that end before the start of the of the fail transition taken.
+                if (failTransition && !queue.matchAndClear(haystack, listener, idx - states.get(currentState * RECORD_SIZE + LEVEL))) {
+                    return;
+                }
+            }
+            // Flush the rest of the matches.
+            queue.matchAndClear(haystack, listener, Integer.MAX_VALUE);
+        } else {
+            while (idx < len) {
+                final char c = Character.toLowerCase(haystack.charAt(idx));
+                // A fail transition was followed if the state comes back complemented.
+                int nextState = step(currentState, c);
+                final boolean failTransition = nextState < 0;
+                currentState = failTransition ? ~nextState : nextState;
+                // Output any matches on the current state
+                output(queue, currentState, ++idx);
+                // If fail transition was taken, we can flush the match queue.
+                // We flush all matches that end before the start of the of the fail transition taken.
+                if (failTransition && !queue.matchAndClear(haystack, listener, idx - states.get(currentState * RECORD_SIZE + LEVEL))) {
+                    return;
+                }
+            }
+            // Flush the rest of the matches.
+            queue.matchAndClear(haystack, listener, Integer.MAX_VALUE);
+        }
+    }
+
+    // Matcher for text that arrives in chunks, it finds the same matches as match would in all of the text.
+    public Matcher matcher(final StreamMapMatchListener<T> listener) {
+        return new StreamMatcher(listener);
+    }
+
+    // Match the file decoded with the charset. The file is memory mapped a window at a time, so it can be
+    // larger than 2GB, and positions are char offsets into the decoded text.
+    public void matchFile(final Path file, final Charset charset, final StreamMapMatchListener<T> listener) throws IOException {
+        MappedText.feed(file, charset, matcher(listener));
+    }
+
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = new MemoryUsage();
+        usage.add(MemoryUsage.OFF_HEAP, states.capacity() * 4L);
+        usage.addArray(MemoryUsage.VALUES, values);
+        return usage;
+    }
+
+    // State of the match loop between chunks. Queued matches wait for a fail transition, which can come
+    // in a later chunk, their indexes are relative to the start of the next chunk.
+    private final class StreamMatcher implements Matcher {
+
+        private int currentState = 0;
+        private final StreamMapMatchListener<T> listener;
+        // Position of the next character in the text.
+        private long position = 0;
+        private final MapMatchQueue<T> queue = new MapMatchQueue<T>();
+        private boolean stopped = false;
+
+        private StreamMatcher(StreamMapMatchListener<T> listener) {
+            this.listener = listener;
+        }
+
+        public boolean feed(final char[] chunk, final int off, final int len) {
+            if (stopped) {
+                return false;
+            }
+            // Local copies of the state for the loop.
+            final IntBuffer states = OffHeapLongestMatchMap.this.states;
+            int currentState = this.currentState;
+            int idx = 0;
+            // Putting this if into the loop worsens the performance so we'll sadly
+            // have to deal with duplicated code.
+            if (caseSensitive) {
+                while (idx < len) {
+                    // A fail transition was followed if the state comes back complemented.
+                    int nextState = step(currentState, chunk[off + idx]);
+                    final boolean failTransition = nextState < 0;
+                    currentState = failTransition ? ~nextState : nextState;
+                    output(queue, currentState, ++idx);
+                    if (failTransition && !queue.matchAndClear(listener, idx - states.get(currentState * RECORD_SIZE + LEVEL), position)) {
+                        stopped = true;
+                        return false;
+                    }
+                }
+            } else {
+                while (idx < len) {
+                    // A fail transition was followed if the state comes back complemented.
+                    int nextState = step(currentState, Character.toLowerCase(chunk[off + idx]));
+                    final boolean failTransition = nextState < 0;
+                    currentState = failTransition ? ~nextState : nextState;
+                    output(queue, currentState, ++idx);
+                    if (failTransition && !queue.matchAndClear(listener, idx - states.get(currentState * RECORD_SIZE + LEVEL), position)) {
+                        stopped = true;
+                        return false;
+                    }
+                }
+            }
+            this.currentState = currentState;
+            queue.shift(len);
+            position += len;
+            return true;
+        }
+
+        public void finish() {
+            if (!stopped) {
+                // Flush the rest of the matches.
+                queue.matchAndClear(listener, Integer.MAX_VALUE, position);
+            }
+            currentState = 0;
+            position = 0;
+            queue.clear();
+            stopped = false;
+        }
+    }
+
+    // Push matches at this state into the queue. Since all matches at one state are
+    // overlapping suffix matches in descending length, first match accepted into the
+    // queue means subsequent matches won't be, so we stop there.
+    @SuppressWarnings("unchecked")
+    private void output(MapMatchQueue<T> queue, int state, int idx) {
+        if (states.get(state * RECORD_SIZE + MATCH_LENGTH) != 0) {
+            boolean matchAccepted = false;
+            while (state != FlatTrie.NONE && !matchAccepted) {
+                int record = state * RECORD_SIZE;
+                matchAccepted = queue.push(states.get(record + MATCH_LENGTH), idx, (T) values[states.get(record + VALUE)]);
+                state = states.get(record + SUFFIX);
+            }
+        }
+    }
+
+    // Take the transition from the state on the character. If there is none, follow fail transitions
+    // until finding a state that has one. Root takes itself for any missing transition, that isn't a
+    // fail transition. Returns the state complemented (~) if a fail transition was followed.
+    private int step(int state, final char c) {
+        boolean failTransition = false;
+        int nextState;
+        while ((nextState = transition(state, c)) == -1) {
+            if (state == 0) {
+                nextState = 0;
+                break;
+            }
+            failTransition = true;
+            state = states.get(state * RECORD_SIZE + FAIL);
+        }
+        return failTransition ? ~nextState : nextState;
+    }
+
+    // Returns the state reached from the given state with the character, -1 if there's no transition.
+    private int transition(int state, char c) {
+        int next = states.get(state * RECORD_SIZE + OffHeapRecords.BASE) + c;
+        return next < slots && states.get(next * RECORD_SIZE + OffHeapRecords.CHECK) == state ? next : -1;
+    }
+
+}
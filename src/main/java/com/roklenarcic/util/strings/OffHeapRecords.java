@@ -0,0 +1,63 @@
+package com.roklenarcic.util.strings;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+
+// Double array automaton stored outside of the Java heap. Each slot of the double array
+// is a record of recordSize ints in a direct buffer, the first two ints of each record
+// are base and check, the engines decide what goes into the rest. Records are interleaved
+// so all the data for a state is in the same cache line or two.
+//
+// Values can't go off-heap, they are kept in a compact on-heap array and records
+// store indexes into it.
+final class OffHeapRecords {
+
+    static final int BASE = 0;
+    static final int CHECK = 1;
+    static final int NO_VALUE = -1;
+
+    final IntBuffer records;
+    final int recordSize;
+    final int slots;
+    private final ArrayList<Object> values = new ArrayList<Object>();
+
+    OffHeapRecords(DoubleArray doubleArray, int recordSize) {
+        this.recordSize = recordSize;
+        this.slots = doubleArray.slots;
+        long bytes = (long) slots * recordSize * 4;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Automaton needs " + bytes + " bytes, off-heap storage is limited to 2GB.");
+        }
+        // Direct buffers come zeroed, unused slots just need to be marked free.
+        records = ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder()).asIntBuffer();
+        putColumn(BASE, doubleArray.base);
+        putColumn(CHECK, doubleArray.check);
+    }
+
+    // Write per slot data into given field of the records.
+    void putColumn(int field, int[] perSlot) {
+        for (int slot = 0, pos = field; slot < slots; slot++, pos += recordSize) {
+            records.put(pos, perSlot[slot]);
+        }
+    }
+
+    // Write indexes of values into given field of the records. Slots with no match
+    // (match length 0) get NO_VALUE.
+    void putValues(int field, Object[] perSlot, int[] matchLength) {
+        for (int slot = 0, pos = field; slot < slots; slot++, pos += recordSize) {
+            if (matchLength[slot] != 0) {
+                records.put(pos, values.size());
+                values.add(perSlot[slot]);
+            } else {
+                records.put(pos, NO_VALUE);
+            }
+        }
+    }
+
+    Object[] values() {
+        return values.toArray();
+    }
+
+}
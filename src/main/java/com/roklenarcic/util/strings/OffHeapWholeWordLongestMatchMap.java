@@ -0,0 +1,869 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.roklenarcic.util.strings.threshold.RangeNodeThreshold;
+import com.roklenarcic.util.strings.threshold.Thresholder;
+
+// Whole word longest match map, same matches as WholeWordLongestMatchMap.
+// The automaton is compiled into a double array and stored in direct memory, outside
+// of the Java heap, so very large dictionaries don't burden the GC. Only the values
+// stay on the heap. Matching a String doesn't allocate any objects.
+//
+// The compiled automaton can be saved to a file and loaded back by memory mapping it, which skips
+// building the trie altogether. Mapped files are read-only and shared through the page cache, so
+// several JVMs on the same host can use the same copy.
+public class OffHeapWholeWordLongestMatchMap<T> implements StringMap<T>, MemoryAccountable {
+
+    private static final int CASE_SENSITIVE_FLAG = 1;
+    private static final int FAIL_MATCH_LENGTH = 4;
+    private static final int FAIL_MATCH_OFFSET = 5;
+    private static final int FAIL_VALUE = 6;
+    // File header is magic, version, flags, slots, char buffer size, value count and the word character bitmap.
+    private static final int HEADER_BYTES = (6 + 65536 / 32) * 4;
+    private static final int MAGIC = 0x41435757;
+    private static final int MATCH_LENGTH = 2;
+    private static final int RECORD_SIZE = 7;
+    private static final int VALUE = 3;
+    private static final int VERSION = 1;
+
+    private boolean caseSensitive = true;
+    private int charBufferSize = 0;
+    private int slots;
+    private IntBuffer states;
+    private Object[] values;
+    private boolean[] wordChars;
+
+    // Set where digits and letters, '-' and '_' are considered word characters.
+    public OffHeapWholeWordLongestMatchMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive) {
+        this(keywords, values, caseSensitive, new RangeNodeThreshold());
+    }
+
+    // Set where the characters in the given array are considered word characters
+    public OffHeapWholeWordLongestMatchMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive, char[] wordCharacters) {
+        this(keywords, values, caseSensitive, wordCharacters, new RangeNodeThreshold());
+    }
+
+    // Set where digits and letters and '-' and '_' are considered word characters but modified by the two
+    // given arrays
+    public OffHeapWholeWordLongestMatchMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive, char[] wordCharacters,
+            boolean[] toggleFlags) {
+        this(keywords, values, caseSensitive, wordCharacters, toggleFlags, new RangeNodeThreshold());
+    }
+
+    // Set where digits and letters and '-' and '_' are considered word characters but modified by the two
+    // given arrays
+    public OffHeapWholeWordLongestMatchMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive, char[] wordCharacters,
+            boolean[] toggleFlags, Thresholder thresholdStrategy) {
+        this(new WholeWordLongestMatchMap<T>(keywords, values, caseSensitive, wordCharacters, toggleFlags, thresholdStrategy), caseSensitive);
+    }
+
+    // Set where the characters in the given array are considered word characters
+    public OffHeapWholeWordLongestMatchMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive, char[] wordCharacters,
+            Thresholder thresholdStrategy) {
+        this(new WholeWordLongestMatchMap<T>(keywords, values, caseSensitive, wordCharacters, thresholdStrategy), caseSensitive);
+    }
+
+    // Set where digits and letters, '-' and '_' are considered word characters.
+    public OffHeapWholeWordLongestMatchMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive,
+            Thresholder thresholdStrategy) {
+        this(new WholeWordLongestMatchMap<T>(keywords, values, caseSensitive, thresholdStrategy), caseSensitive);
+    }
+
+    // Compile the node based automaton into a double array and move that off-heap.
+    private OffHeapWholeWordLongestMatchMap(WholeWordLongestMatchMap<T> map, boolean caseSensitive) {
+        this.caseSensitive = caseSensitive;
+        this.wordChars = map.getWordChars();
+        FlatTrie trie = map.flatten();
+        DoubleArray doubleArray = new DoubleArray(trie);
+        OffHeapRecords records = new OffHeapRecords(doubleArray, RECORD_SIZE);
+        int[] matchLength = doubleArray.placeInts(trie.matchLength);
+        records.putColumn(MATCH_LENGTH, matchLength);
+        records.putValues(VALUE, doubleArray.place(trie.values), matchLength);
+        int[] failMatchLength = doubleArray.placeInts(trie.failMatchLength);
+        records.putColumn(FAIL_MATCH_LENGTH, failMatchLength);
+        records.putColumn(FAIL_MATCH_OFFSET, doubleArray.placeInts(trie.failMatchOffset));
+        records.putValues(FAIL_VALUE, doubleArray.place(trie.failValues), failMatchLength);
+        this.states = records.records;
+        this.slots = records.slots;
+        this.values = records.values();
+        charBufferSize = trie.longestKeyword > 2048 ? trie.longestKeyword * 2 : 4096;
+    }
+
+    private OffHeapWholeWordLongestMatchMap(IntBuffer states, int slots, Object[] values, boolean[] wordChars, boolean caseSensitive, int charBufferSize) {
+        this.states = states;
+        this.slots = slots;
+        this.values = values;
+        this.wordChars = wordChars;
+        this.caseSensitive = caseSensitive;
+        this.charBufferSize = charBufferSize;
+    }
+
+    // Memory maps a file written by save. Only the values are decoded onto the heap, matching reads
+    // the automaton straight from the mapped pages. Files are limited to 2GB.
+    public static <T> OffHeapWholeWordLongestMatchMap<T> load(Path file, ValueCodec<? extends T> codec) throws IOException {
+        ByteBuffer buf;
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("File " + file + " is too large to map, files are limited to 2GB.");
+            }
+            buf = channel.map(MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            channel.close();
+        }
+        if (buf.remaining() < HEADER_BYTES || buf.getInt() != MAGIC) {
+            throw new IllegalArgumentException("File " + file + " is not a compiled automaton.");
+        }
+        int version = buf.getInt();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("File " + file + " has unsupported format version " + version + ".");
+        }
+        int flags = buf.getInt();
+        int slots = buf.getInt();
+        int charBufferSize = buf.getInt();
+        int valueCount = buf.getInt();
+        boolean[] wordChars = new boolean[65536];
+        for (int i = 0; i < wordChars.length; i += 32) {
+            int bits = buf.getInt();
+            for (int j = 0; j < 32; j++) {
+                wordChars[i + j] = (bits >>> j & 1) != 0;
+            }
+        }
+        long recordBytes = (long) slots * RECORD_SIZE * 4;
+        if (slots < 0 || recordBytes > buf.remaining()) {
+            throw new IllegalArgumentException("File " + file + " is truncated.");
+        }
+        // Slices come out big endian regardless of the parent buffer.
+        ByteBuffer records = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+        records.limit((int) recordBytes);
+        buf.position(buf.position() + (int) recordBytes);
+        Object[] values = new Object[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            int length = buf.getInt();
+            // Negative length marks a null value.
+            if (length >= 0) {
+                byte[] bytes = new byte[length];
+                buf.get(bytes);
+                values[i] = codec.decode(bytes);
+            }
+        }
+        return new OffHeapWholeWordLongestMatchMap<T>(records.asIntBuffer(), slots, values, wordChars, (flags & CASE_SENSITIVE_FLAG) != 0, charBufferSize);
+    }
+
+    public void matchChars(final char[] haystack, final int from, final int to, final CharSequenceMapMatchListener<T> listener) {
+        // Listeners see the array as a char sequence, positions are array indexes.
+        final CharSequence sequence = CharBuffer.wrap(haystack);
+        // States contain fail matches, which is the last normal match up the tree before the current state
+        // match.
+
+        // Start with the root state.
+        int currentState = 0;
+
+        int idx = from;
+        // For each character.
+        final int len = to;
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                char c = haystack[idx];
+                int nextState = transition(currentState, c);
+                // Regardless of the type of the character, we keep moving till we run into
+                // a situation where there's no transition available.
+                if (nextState == -1) {
+                    // Awkward if structure saves us a branch in the else statement.
+                    if (!wordChars[c]) {
+                        // If we ran into no-transition scenario on non-word character we can
+                        // output the match on the current state if there is one, else we output
+                        // a fail match if there is one.
+                        if (!outputSequence(sequence, listener, currentState, idx)) {
+                            return;
+                        }
+                    } else {
+                        // If we ran into no-transition situation on a word character, we output any
+                        // fail match on the state and scroll through word characters to a non-word character.
+                        if (!outputFailMatchSequence(sequence, listener, currentState, idx)) {
+                            return;
+                        }
+                        // Scroll to the first non-word character
+                        while (++idx < len && wordChars[haystack[idx]]) {
+                            ;
+                        }
+                    }
+                    // Scroll to the first word character
+                    while (++idx < len && !wordChars[haystack[idx]]) {
+                        ;
+                    }
+                    currentState = 0;
+                } else {
+                    // If we have transition just take it.
+                    ++idx;
+                    currentState = nextState;
+                }
+            }
+        } else {
+            while (idx < len) {
+                char c = Character.toLowerCase(haystack[idx]);
+                int nextState = transition(currentState, c);
+                // Regardless of the type of the character, we keep moving till we run into
+                // a situation where there's no transition available.
+                if (nextState == -1) {
+                    // Awkward if structure saves us a branch in the else statement.
+                    if (!wordChars[c]) {
+                        // If we ran into no-transition scenario on non-word character we can
+                        // output the match on the current state if there is one, else we output
+                        // a fail match if there is one.
+                        if (!outputSequence(sequence, listener, currentState, idx)) {
+                            return;
+                        }
+                    } else {
+                        // If we ran into no-transition situation on a word character, we output any
+                        // fail match on the state and scroll through word characters to a non-word character.
+                        if (!outputFailMatchSequence(sequence, listener, currentState, idx)) {
+                            return;
+                        }
+                        // Scroll to the first non-word character
+                        while (++idx < len && wordChars[Character.toLowerCase(haystack[idx])]) {
+                            ;
+                        }
+                    }
+                    // Scroll to the first word character
+                    while (++idx < len && !wordChars[Character.toLowerCase(haystack[idx])]) {
+                        ;
+                    }
+                    currentState = 0;
+                } else {
+                    // If we have transition just take it.
+                    ++idx;
+                    currentState = nextState;
+                }
+            }
+        }
+        // Output any matches on the last state, either a normal match or fail match.
+        outputSequence(sequence, listener, currentState, idx);
+    }
+
+    public void matchSequence(final CharSequence haystack, final CharSequenceMapMatchListener<T> listener) {
+        // States contain fail matches, which is the last normal match up the tree before the current state
+        // match.
+
+        // Start with the root state.
+        int currentState = 0;
+
+        int idx = 0;
+        // For each character.
+        final int len = haystack.length();
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                char c = haystack.charAt(idx);
+                int nextState = transition(currentState, c);
+                // Regardless of the type of the character, we keep moving till we run into
+                // a situation where there's no transition available.
+                if (nextState == -1) {
+                    // Awkward if structure saves us a branch in the else statement.
+                    if (!wordChars[c]) {
+                        // If we ran into no-transition scenario on non-word character we can
+                        // output the match on the current state if there is one, else we output
+                        // a fail match if there is one.
+                        if (!outputSequence(haystack, listener, currentState, idx)) {
+                            return;
+                        }
+                    } else {
+                        // If we ran into no-transition situation on a word character, we output any
+                        // fail match on the state and scroll through word characters to a non-word character.
+                        if (!outputFailMatchSequence(haystack, listener, currentState, idx)) {
+                            return;
+                        }
+                        // Scroll to the first non-word character
+                        while (++idx < len && wordChars[haystack.charAt(idx)]) {
+                            ;
+                        }
+                    }
+                    // Scroll to the first word character
+                    while (++idx < len && !wordChars[haystack.charAt(idx)]) {
+                        ;
+                    }
+                    currentState = 0;
+                } else {
+                    // If we have transition just take it.
+                    ++idx;
+                    currentState = nextState;
+                }
+            }
+        } else {
+            while (idx < len) {
+                char c = Character.toLowerCase(haystack.charAt(idx));
+                int nextState = transition(currentState, c);
+                // Regardless of the type of the character, we keep moving till we run into
+                // a situation where there's no transition available.
+                if (nextState == -1) {
+                    // Awkward if structure saves us a branch in the else statement.
+                    if (!wordChars[c]) {
+                        // If we ran into no-transition scenario on non-word character we can
+                        // output the match on the current state if there is one, else we output
+                        // a fail match if there is one.
+                        if (!outputSequence(haystack, listener, currentState, idx)) {
+                            return;
+                        }
+                    } else {
+                        // If we ran into no-transition situation on a word character, we output any
+                        // fail match on the state and scroll through word characters to a non-word character.
+                        if (!outputFailMatchSequence(haystack, listener, currentState, idx)) {
+                            return;
+                        }
+                        // Scroll to the first non-word character
+                        while (++idx < len && wordChars[Character.toLowerCase(haystack.charAt(idx))]) {
+                            ;
+                        }
+                    }
+                    // Scroll to the first word character
+                    while (++idx < len && !wordChars[Character.toLowerCase(haystack.charAt(idx))]) {
+                        ;
+                    }
+                    currentState = 0;
+                } else {
+                    // If we have transition just take it.
+                    ++idx;
+                    currentState = nextState;
+                }
+            }
+        }
+        // Output any matches on the last state, either a normal match or fail match.
+        outputSequence(haystack, listener, currentState, idx);
+    }
+
+    // Values are kept in an Object array, they are all T.
+    @SuppressWarnings("unchecked")
+    public void match(final Readable haystack, final ReadableMatchListener<T> listener) throws IOException {
+        // States contain fail matches, which is the last normal match up the tree before the current state
+        // match.
+        final IntBuffer states = this.states;
+        final Object[] values = this.values;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        CharBuffer buf = CharBuffer.allocate(charBufferSize);
+
+        // For each character.
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            MAIN_LOOP: while (haystack.read(buf) != -1) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    final char c = buf.get();
+                    int nextState = transition(currentState, c);
+                    // Regardless of the type of the character, we keep moving till we run into
+                    // a situation where there's no transition available.
+                    if (nextState == -1) {
+                        int record = currentState * RECORD_SIZE;
+                        // Awkward if structure saves us a branch in the else statement.
+                        if (!wordChars[c]) {
+                            // If we ran into no-transition scenario on non-word character we can
+                            // output the match on the current state if there is one, else we output
+                            // a fail match if there is one.
+                            // Later we will run through non-word characters to the start of the next word.
+                            if (states.get(record + MATCH_LENGTH) != 0) {
+                                if (!listener.match((T) values[states.get(record + VALUE)])) {
+                                    return;
+                                }
+                            } else if (states.get(record + FAIL_MATCH_LENGTH) != 0) {
+                                if (!listener.match((T) values[states.get(record + FAIL_VALUE)])) {
+                                    return;
+                                }
+                            }
+                        } else {
+                            // If we ran into no-transition situation on a word character, we output any
+                            // fail match on the state and scroll through word characters to a non-word
+                            // character.
+                            if (states.get(record + FAIL_MATCH_LENGTH) != 0) {
+                                if (!listener.match((T) values[states.get(record + FAIL_VALUE)])) {
+                                    return;
+                                }
+                            }
+                            // Scroll to the first non-word character
+                            if (scroll(haystack, buf, true, true)) {
+                                currentState = 0;
+                                break MAIN_LOOP;
+                            }
+                        }
+                        // Scroll to the first word character
+                        currentState = 0;
+                        if (scroll(haystack, buf, false, true)) {
+                            break MAIN_LOOP;
+                        }
+                    } else {
+                        // If we have transition just take it.
+                        currentState = nextState;
+                    }
+                }
+                buf.clear();
+            }
+        } else {
+            MAIN_LOOP2: while (haystack.read(buf) != -1) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    final char c = Character.toLowerCase(buf.get());
+                    int nextState = transition(currentState, c);
+                    // Regardless of the type of the character, we keep moving till we run into
+                    // a situation where there's no transition available.
+                    if (nextState == -1) {
+                        int record = currentState * RECORD_SIZE;
+                        // Awkward if structure saves us a branch in the else statement.
+                        if (!wordChars[c]) {
+                            // If we ran into no-transition scenario on non-word character we can
+                            // output the match on the current state if there is one, else we output
+                            // a fail match if there is one.
+                            // Later we will run through non-word characters to the start of the next word.
+                            if (states.get(record + MATCH_LENGTH) != 0) {
+                                if (!listener.match((T) values[states.get(record + VALUE)])) {
+                                    return;
+                                }
+                            } else if (states.get(record + FAIL_MATCH_LENGTH) != 0) {
+                                if (!listener.match((T) values[states.get(record + FAIL_VALUE)])) {
+                                    return;
+                                }
+                            }
+                        } else {
+                            // If we ran into no-transition situation on a word character, we output any
+                            // fail match on the state and scroll through word characters to a non-word
+                            // character.
+                            if (states.get(record + FAIL_MATCH_LENGTH) != 0) {
+                                if (!listener.match((T) values[states.get(record + FAIL_VALUE)])) {
+                                    return;
+                                }
+                            }
+                            // Scroll to the first non-word character
+                            if (scroll(haystack, buf, true, false)) {
+                                currentState = 0;
+                                break MAIN_LOOP2;
+                            }
+                        }
+                        // Scroll to the first word character
+                        currentState = 0;
+                        if (scroll(haystack, buf, false, false)) {
+                            break MAIN_LOOP2;
+                        }
+                    } else {
+                        // If we have transition just take it.
+                        currentState = nextState;
+                    }
+                }
+                buf.clear();
+            }
+        }
+        // Output any matches on the last state, either a normal match or fail match.
+        int record = currentState * RECORD_SIZE;
+        if (states.get(record + MATCH_LENGTH) != 0) {
+            listener.match((T) values[states.get(record + VALUE)]);
+        } else if (states.get(record + FAIL_MATCH_LENGTH) != 0) {
+            listener.match((T) values[states.get(record + FAIL_VALUE)]);
+        }
+    }
+
+    public void match(final String haystack, final MapMatchListener<T> listener) {
+        // States contain fail matches, which is the last normal match up the tree before the current state
+        // match.
+
+        // Start with the root state.
+        int currentState = 0;
+
+        int idx = 0;
+        // For each character.
+        final int len = haystack.length();
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                char c = haystack.charAt(idx);
+                int nextState = transition(currentState, c);
+                // Regardless of the type of the character, we keep moving till we run into
+                // a situation where there's no transition available.
+                if (nextState == -1) {
+                    // Awkward if structure saves us a branch in the else statement.
+                    if (!wordChars[c]) {
+                        // If we ran into no-transition scenario on non-word character we can
+                        // output the match on the current state if there is one, else we output
+                        // a fail match if there is one.
+                        if (!output(haystack, listener, currentState, idx)) {
+                            return;
+                        }
+                    } else {
+                        // If we ran into no-transition situation on a word character, we output any
+                        // fail match on the state and scroll through word characters to a non-word character.
+                        if (!outputFailMatch(haystack, listener, currentState, idx)) {
+                            return;
+                        }
+                        // Scroll to the first non-word character
+                        while (++idx < len && wordChars[haystack.charAt(idx)]) {
+                            ;
+                        }
+                    }
+                    // Scroll to the first word character
+                    while (++idx < len && !wordChars[haystack.charAt(idx)]) {
+                        ;
+                    }
+                    currentState = 0;
+                } else {
+                    // If we have transition just take it.
+                    ++idx;
+                    currentState = nextState;
+                }
+            }
+        } else {
+            while (idx < len) {
+                char c = Character.toLowerCase(haystack.charAt(idx));
+                int nextState = transition(currentState, c);
+                // Regardless of the type of the character, we keep moving till we run into
+                // a situation where there's no transition available.
+                if (nextState == -1) {
+                    // Awkward if structure saves us a branch in the else statement.
+                    if (!wordChars[c]) {
+                        // If we ran into no-transition scenario on non-word character we can
+                        // output the match on the current state if there is one, else we output
+                        // a fail match if there is one.
+                        if (!output(haystack, listener, currentState, idx)) {
+                            return;
+                        }
+                    } else {
+                        // If we ran into no-transition situation on a word character, we output any
+                        // fail match on the state and scroll through word characters to a non-word character.
+                        if (!outputFailMatch(haystack, listener, currentState, idx)) {
+                            return;
+                        }
+                        // Scroll to the first non-word character
+                        while (++idx < len && wordChars[Character.toLowerCase(haystack.charAt(idx))]) {
+                            ;
+                        }
+                    }
+                    // Scroll to the first word character
+                    while (++idx < len && !wordChars[Character.toLowerCase(haystack.charAt(idx))]) {
+                        ;
+                    }
+                    currentState = 0;
+                } else {
+                    // If we have transition just take it.
+                    ++idx;
+                    currentState = nextState;
+                }
+            }
+        }
+        // Output any matches on the last state, either a normal match or fail match.
+        output(haystack, listener, currentState, idx);
+    }
+
+    // Matcher for text that arrives in chunks, it finds the same matches as match would in all of the text.
+    public Matcher matcher(final StreamMapMatchListener<T> listener) {
+        return new StreamMatcher(listener);
+    }
+
+    // Match the file decoded with the charset. The file is memory mapped a window at a time, so it can be
+    // larger than 2GB, and positions are char offsets into the decoded text.
+    public void matchFile(final Path file, final Charset charset, final StreamMapMatchListener<T> listener) throws IOException {
+        MappedText.feed(file, charset, matcher(listener));
+    }
+
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = new MemoryUsage();
+        usage.add(MemoryUsage.OFF_HEAP, states.capacity() * 4L);
+        usage.addArray(MemoryUsage.VALUES, values);
+        usage.addArray(MemoryUsage.WORD_CHARACTERS, wordChars);
+        return usage;
+    }
+
+    boolean[] getWordChars() {
+        return wordChars;
+    }
+
+    // Writes the compiled automaton to a file, which can be memory mapped by load. Values are
+    // written with the given codec, null values don't go through the codec.
+    @SuppressWarnings("unchecked")
+    public void save(Path file, ValueCodec<? super T> codec) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(MAGIC);
+            buf.putInt(VERSION);
+            buf.putInt(caseSensitive ? CASE_SENSITIVE_FLAG : 0);
+            buf.putInt(slots);
+            buf.putInt(charBufferSize);
+            buf.putInt(values.length);
+            for (int i = 0; i < wordChars.length; i += 32) {
+                int bits = 0;
+                for (int j = 0; j < 32; j++) {
+                    if (wordChars[i + j]) {
+                        bits |= 1 << j;
+                    }
+                }
+                buf.putInt(bits);
+            }
+            for (int i = 0; i < slots * RECORD_SIZE; i++) {
+                if (buf.remaining() < 4) {
+                    flush(channel, buf);
+                }
+                buf.putInt(states.get(i));
+            }
+            for (Object value : values) {
+                byte[] bytes = value == null ? null : codec.encode((T) value);
+                if (buf.remaining() < 4) {
+                    flush(channel, buf);
+                }
+                buf.putInt(bytes == null ? -1 : bytes.length);
+                if (bytes != null) {
+                    for (int off = 0; off < bytes.length;) {
+                        if (!buf.hasRemaining()) {
+                            flush(channel, buf);
+                        }
+                        int len = Math.min(buf.remaining(), bytes.length - off);
+                        buf.put(bytes, off, len);
+                        off += len;
+                    }
+                }
+            }
+            flush(channel, buf);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    // State of the match loop between chunks, words can span chunks.
+    private final class StreamMatcher implements Matcher {
+
+        private int currentState = 0;
+        private final StreamMapMatchListener<T> listener;
+        // Position of the next character in the text.
+        private long position = 0;
+        private boolean scrollNonWord = false;
+        private boolean scrollWord = false;
+        private boolean stopped = false;
+
+        private StreamMatcher(StreamMapMatchListener<T> listener) {
+            this.listener = listener;
+        }
+
+        public boolean feed(final char[] chunk, final int off, final int len) {
+            if (stopped) {
+                return false;
+            }
+            // Local copies of the state for the loop.
+            final IntBuffer states = OffHeapWholeWordLongestMatchMap.this.states;
+            final boolean[] wordChars = OffHeapWholeWordLongestMatchMap.this.wordChars;
+            int currentState = this.currentState;
+            boolean scrollNonWord = this.scrollNonWord;
+            boolean scrollWord = this.scrollWord;
+            // Position of the chunk array start in the text.
+            final long chunkBase = position - off;
+            final int end = off + len;
+            int idx = off;
+            // Putting this if into the loop worsens the performance so we'll sadly
+            // have to deal with duplicated code.
+            if (caseSensitive) {
+                while (idx < end) {
+                    final char c = chunk[idx];
+                    if (scrollWord) {
+                        // Scroll through word characters and the non-word character after them.
+                        if (!wordChars[c]) {
+                            scrollWord = false;
+                            scrollNonWord = true;
+                        }
+                        ++idx;
+                        continue;
+                    } else if (scrollNonWord) {
+                        // Scroll to the first word character, which starts the next word.
+                        if (!wordChars[c]) {
+                            ++idx;
+                            continue;
+                        }
+                        scrollNonWord = false;
+                    }
+                    final int nextState = transition(currentState, c);
+                    if (nextState == -1) {
+                        if (!wordChars[c]) {
+                            if (!output(listener, currentState, chunkBase + idx)) {
+                                stopped = true;
+                                return false;
+                            }
+                            scrollNonWord = true;
+                        } else {
+                            if (!outputFailMatch(listener, currentState, chunkBase + idx)) {
+                                stopped = true;
+                                return false;
+                            }
+                            scrollWord = true;
+                        }
+                        currentState = 0;
+                    } else {
+                        currentState = nextState;
+                    }
+                    ++idx;
+                }
+            } else {
+                while (idx < end) {
+                    final char c = Character.toLowerCase(chunk[idx]);
+                    if (scrollWord) {
+                        // Scroll through word characters and the non-word character after them.
+                        if (!wordChars[c]) {
+                            scrollWord = false;
+                            scrollNonWord = true;
+                        }
+                        ++idx;
+                        continue;
+                    } else if (scrollNonWord) {
+                        // Scroll to the first word character, which starts the next word.
+                        if (!wordChars[c]) {
+                            ++idx;
+                            continue;
+                        }
+                        scrollNonWord = false;
+                    }
+                    final int nextState = transition(currentState, c);
+                    if (nextState == -1) {
+                        if (!wordChars[c]) {
+                            if (!output(listener, currentState, chunkBase + idx)) {
+                                stopped = true;
+                                return false;
+                            }
+                            scrollNonWord = true;
+                        } else {
+                            if (!outputFailMatch(listener, currentState, chunkBase + idx)) {
+                                stopped = true;
+                                return false;
+                            }
+                            scrollWord = true;
+                        }
+                        currentState = 0;
+                    } else {
+                        currentState = nextState;
+                    }
+                    ++idx;
+                }
+            }
+            this.currentState = currentState;
+            this.scrollNonWord = scrollNonWord;
+            this.scrollWord = scrollWord;
+            position = chunkBase + end;
+            return true;
+        }
+
+        public void finish() {
+            if (!stopped) {
+                // Output any matches on the last state, either a normal match or fail match.
+                output(listener, currentState, position);
+            }
+            currentState = 0;
+            position = 0;
+            scrollNonWord = false;
+            scrollWord = false;
+            stopped = false;
+        }
+    }
+
+    // Report the match at this state, or the fail match if there's no match.
+    @SuppressWarnings("unchecked")
+    private boolean output(String haystack, MapMatchListener<T> listener, int state, int idx) {
+        int record = state * RECORD_SIZE;
+        if (states.get(record + MATCH_LENGTH) != 0) {
+            return listener.match(haystack, idx - states.get(record + MATCH_LENGTH), idx, (T) values[states.get(record + VALUE)]);
+        } else {
+            return outputFailMatch(haystack, listener, state, idx);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean output(StreamMapMatchListener<T> listener, int state, long idx) {
+        int record = state * RECORD_SIZE;
+        if (states.get(record + MATCH_LENGTH) != 0) {
+            return listener.match(idx - states.get(record + MATCH_LENGTH), idx, (T) values[states.get(record + VALUE)]);
+        } else {
+            return outputFailMatch(listener, state, idx);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean outputSequence(CharSequence haystack, CharSequenceMapMatchListener<T> listener, int state, int idx) {
+        int record = state * RECORD_SIZE;
+        if (states.get(record + MATCH_LENGTH) != 0) {
+            return listener.match(haystack, idx - states.get(record + MATCH_LENGTH), idx, (T) values[states.get(record + VALUE)]);
+        } else {
+            return outputFailMatchSequence(haystack, listener, state, idx);
+        }
+    }
+
+    // Report the fail match at this state if there is one.
+    @SuppressWarnings("unchecked")
+    private boolean outputFailMatch(String haystack, MapMatchListener<T> listener, int state, int idx) {
+        int record = state * RECORD_SIZE;
+        if (states.get(record + FAIL_MATCH_LENGTH) != 0) {
+            int failMatchEnd = idx - states.get(record + FAIL_MATCH_OFFSET);
+            return listener.match(haystack, failMatchEnd - states.get(record + FAIL_MATCH_LENGTH), failMatchEnd,
+                    (T) values[states.get(record + FAIL_VALUE)]);
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean outputFailMatch(StreamMapMatchListener<T> listener, int state, long idx) {
+        int record = state * RECORD_SIZE;
+        if (states.get(record + FAIL_MATCH_LENGTH) != 0) {
+            long failMatchEnd = idx - states.get(record + FAIL_MATCH_OFFSET);
+            return listener.match(failMatchEnd - states.get(record + FAIL_MATCH_LENGTH), failMatchEnd,
+                    (T) values[states.get(record + FAIL_VALUE)]);
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean outputFailMatchSequence(CharSequence haystack, CharSequenceMapMatchListener<T> listener, int state, int idx) {
+        int record = state * RECORD_SIZE;
+        if (states.get(record + FAIL_MATCH_LENGTH) != 0) {
+            int failMatchEnd = idx - states.get(record + FAIL_MATCH_OFFSET);
+            return listener.match(haystack, failMatchEnd - states.get(record + FAIL_MATCH_LENGTH), failMatchEnd,
+                    (T) values[states.get(record + FAIL_VALUE)]);
+        }
+        return true;
+    }
+
+    private boolean scroll(Readable haystack, CharBuffer buf, boolean wordChars, boolean caseSensitive) throws IOException {
+        do {
+            while (buf.hasRemaining()) {
+                if (this.wordChars[caseSensitive ? buf.get() : Character.toLowerCase(buf.get())] != wordChars) {
+                    buf.position(buf.position() - 1);
+                    return false;
+                }
+            }
+            buf.clear();
+            if (haystack.read(buf) == -1) {
+                return true;
+            }
+            buf.flip();
+        } while (true);
+    }
+
+    // Returns the state reached from the given state with the character, -1 if there's no transition.
+    private int transition(int state, char c) {
+        int next = states.get(state * RECORD_SIZE + OffHeapRecords.BASE) + c;
+        return next < slots && states.get(next * RECORD_SIZE + OffHeapRecords.CHECK) == state ? next : -1;
+    }
+
+}
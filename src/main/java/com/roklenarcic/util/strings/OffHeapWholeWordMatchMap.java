@@ -0,0 +1,622 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+
+import com.roklenarcic.util.strings.threshold.RangeNodeThreshold;
+import com.roklenarcic.util.strings.threshold.Thresholder;
+
+// Whole word match map, same matches as WholeWordMatchMap.
+// The automaton is compiled into a double array and stored in direct memory, outside
+// of the Java heap, so very large dictionaries don't burden the GC. Only the values
+// stay on the heap. Matching a String doesn't allocate any objects.
+public class OffHeapWholeWordMatchMap<T> implements StringMap<T>, MemoryAccountable {
+
+    private static final int MATCH_LENGTH = 2;
+    private static final int RECORD_SIZE = 4;
+    private static final int VALUE = 3;
+
+    private boolean caseSensitive = true;
+    private int charBufferSize = 0;
+    private int slots;
+    private IntBuffer states;
+    private Object[] values;
+    private boolean[] wordChars;
+
+    // Set where digits and letters, '-' and '_' are considered word characters.
+    public OffHeapWholeWordMatchMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive) {
+        this(keywords, values, caseSensitive, new RangeNodeThreshold());
+    }
+
+    // Set where the characters in the given array are considered word characters
+    public OffHeapWholeWordMatchMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive, char[] wordCharacters) {
+        this(keywords, values, caseSensitive, wordCharacters, new RangeNodeThreshold());
+    }
+
+    // Set where digits and letters and '-' and '_' are considered word characters but modified by the two
+    // given arrays
+    public OffHeapWholeWordMatchMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive, char[] wordCharacters,
+            boolean[] toggleFlags) {
+        this(keywords, values, caseSensitive, wordCharacters, toggleFlags, new RangeNodeThreshold());
+    }
+
+    // Set where digits and letters and '-' and '_' are considered word characters but modified by the two
+    // given arrays
+    public OffHeapWholeWordMatchMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive, char[] wordCharacters,
+            boolean[] toggleFlags, Thresholder thresholdStrategy) {
+        this(new WholeWordMatchMap<T>(keywords, values, caseSensitive, wordCharacters, toggleFlags, thresholdStrategy), caseSensitive);
+    }
+
+    // Set where the characters in the given array are considered word characters
+    public OffHeapWholeWordMatchMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive, char[] wordCharacters,
+            Thresholder thresholdStrategy) {
+        this(new WholeWordMatchMap<T>(keywords, values, caseSensitive, wordCharacters, thresholdStrategy), caseSensitive);
+    }
+
+    // Set where digits and letters, '-' and '_' are considered word characters.
+    public OffHeapWholeWordMatchMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive,
+            Thresholder thresholdStrategy) {
+        this(new WholeWordMatchMap<T>(keywords, values, caseSensitive, thresholdStrategy), caseSensitive);
+    }
+
+    // Compile the node based automaton into a double array and move that off-heap.
+    private OffHeapWholeWordMatchMap(WholeWordMatchMap<T> map, boolean caseSensitive) {
+        this.caseSensitive = caseSensitive;
+        this.wordChars = map.getWordChars();
+        FlatTrie trie = map.flatten();
+        DoubleArray doubleArray = new DoubleArray(trie);
+        OffHeapRecords records = new OffHeapRecords(doubleArray, RECORD_SIZE);
+        int[] matchLength = doubleArray.placeInts(trie.matchLength);
+        records.putColumn(MATCH_LENGTH, matchLength);
+        records.putValues(VALUE, doubleArray.place(trie.values), matchLength);
+        this.states = records.records;
+        this.slots = records.slots;
+        this.values = records.values();
+        charBufferSize = trie.longestKeyword > 2048 ? trie.longestKeyword * 2 : 4096;
+    }
+
+    public void matchChars(final char[] haystack, final int from, final int to, final CharSequenceMapMatchListener<T> listener) {
+        // Listeners see the array as a char sequence, positions are array indexes.
+        final CharSequence sequence = CharBuffer.wrap(haystack);
+        final IntBuffer states = this.states;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        int idx = from;
+        // For each character.
+        final int len = to;
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                char c = haystack[idx];
+                int nextState = transition(currentState, c);
+                // Regardless of the type of the character, we keep moving till we run into
+                // a situation where there's no transition available.
+                if (nextState == -1) {
+                    if (!wordChars[c]) {
+                        // If we ran into no-transition scenario on non-word character we can
+                        // output the match on the current state if there is one.
+                        // Later we will run through non-word characters to the start of the next word.
+                        if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) != 0 && !outputSequence(sequence, listener, currentState, idx)) {
+                            return;
+                        }
+                    } else {
+                        // If we ran into no-transition situation on a word character, we scroll through word
+                        // characters to a non-word character.
+                        while (++idx < len && wordChars[haystack[idx]]) {
+                            ;
+                        }
+                    }
+                    // Scroll to the first word character
+                    while (++idx < len && !wordChars[haystack[idx]]) {
+                        ;
+                    }
+                    currentState = 0;
+                } else {
+                    ++idx;
+                    currentState = nextState;
+                }
+            }
+            if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) != 0) {
+                // Output any matches on the last state
+                outputSequence(sequence, listener, currentState, idx);
+            }
+        } else {
+            while (idx < len) {
+                char c = Character.toLowerCase(haystack[idx]);
+                int nextState = transition(currentState, c);
+                // Regardless of the type of the character, we keep moving till we run into
+                // a situation where there's no transition available.
+                if (nextState == -1) {
+                    if (!wordChars[c]) {
+                        // If we ran into no-transition scenario on non-word character we can
+                        // output the match on the current state if there is one.
+                        // Later we will run through non-word characters to the start of the next word.
+                        if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) != 0 && !outputSequence(sequence, listener, currentState, idx)) {
+                            return;
+                        }
+                    } else {
+                        // If we ran into no-transition situation on a word character, we scroll through word
+                        // characters to a non-word character.
+                        while (++idx < len && wordChars[haystack[idx]]) {
+                            ;
+                        }
+                    }
+                    // Scroll to the first word character
+                    while (++idx < len && !wordChars[haystack[idx]]) {
+                        ;
+                    }
+                    currentState = 0;
+                } else {
+                    ++idx;
+                    currentState = nextState;
+                }
+            }
+            if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) != 0) {
+                // Output any matches on the last state
+                outputSequence(sequence, listener, currentState, idx);
+            }
+        }
+    }
+
+    public void matchSequence(final CharSequence haystack, final CharSequenceMapMatchListener<T> listener) {
+        final IntBuffer states = this.states;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        int idx = 0;
+        // For each character.
+        final int len = haystack.length();
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                char c = haystack.charAt(idx);
+                int nextState = transition(currentState, c);
+                // Regardless of the type of the character, we keep moving till we run into
+                // a situation where there's no transition available.
+                if (nextState == -1) {
+                    if (!wordChars[c]) {
+                        // If we ran into no-transition scenario on non-word character we can
+                        // output the match on the current state if there is one.
+                        // Later we will run through non-word characters to the start of the next word.
+                        if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) != 0 && !outputSequence(haystack, listener, currentState, idx)) {
+                            return;
+                        }
+                    } else {
+                        // If we ran into no-transition situation on a word character, we scroll through word
+                        // characters to a non-word character.
+                        while (++idx < len && wordChars[haystack.charAt(idx)]) {
+                            ;
+                        }
+                    }
+                    // Scroll to the first word character
+                    while (++idx < len && !wordChars[haystack.charAt(idx)]) {
+                        ;
+                    }
+                    currentState = 0;
+                } else {
+                    ++idx;
+                    currentState = nextState;
+                }
+            }
+            if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) != 0) {
+                // Output any matches on the last state
+                outputSequence(haystack, listener, currentState, idx);
+            }
+        } else {
+            while (idx < len) {
+                char c = Character.toLowerCase(haystack.charAt(idx));
+                int nextState = transition(currentState, c);
+                // Regardless of the type of the character, we keep moving till we run into
+                // a situation where there's no transition available.
+                if (nextState == -1) {
+                    if (!wordChars[c]) {
+                        // If we ran into no-transition scenario on non-word character we can
+                        // output the match on the current state if there is one.
+                        // Later we will run through non-word characters to the start of the next word.
+                        if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) != 0 && !outputSequence(haystack, listener, currentState, idx)) {
+                            return;
+                        }
+                    } else {
+                        // If we ran into no-transition situation on a word character, we scroll through word
+                        // characters to a non-word character.
+                        while (++idx < len && wordChars[haystack.charAt(idx)]) {
+                            ;
+                        }
+                    }
+                    // Scroll to the first word character
+                    while (++idx < len && !wordChars[haystack.charAt(idx)]) {
+                        ;
+                    }
+                    currentState = 0;
+                } else {
+                    ++idx;
+                    currentState = nextState;
+                }
+            }
+            if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) != 0) {
+                // Output any matches on the last state
+                outputSequence(haystack, listener, currentState, idx);
+            }
+        }
+    }
+
+    // Values are kept in an Object array, they are all T.
+    @SuppressWarnings("unchecked")
+    public void match(final Readable haystack, final ReadableMatchListener<T> listener) throws IOException {
+        final IntBuffer states = this.states;
+        final Object[] values = this.values;
+
+        // Start with the root state.
+        int currentState = 0;
+        // For each character.
+
+        CharBuffer buf = CharBuffer.allocate(charBufferSize);
+
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            MAIN_LOOP: while (haystack.read(buf) != -1) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    final char c = buf.get();
+                    int nextState = transition(currentState, c);
+                    // Regardless of the type of the character, we keep moving till we run into
+                    // a situation where there's no transition available.
+                    if (nextState == -1) {
+                        if (!wordChars[c]) {
+                            // If we ran into no-transition scenario on non-word character we can
+                            // output the match on the current state if there is one.
+                            // Later we will run through non-word characters to the start of the next word.
+                            if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) != 0) {
+                                if (!listener.match((T) values[states.get(currentState * RECORD_SIZE + VALUE)])) {
+                                    return;
+                                }
+                            }
+                        } else {
+                            // If we ran into no-transition situation on a word character, we scroll through
+                            // word characters to a non-word character.
+                            if (scroll(haystack, buf, true, true)) {
+                                currentState = 0;
+                                break MAIN_LOOP;
+                            }
+                        }
+                        // Scroll to the first word character
+                        currentState = 0;
+                        if (scroll(haystack, buf, false, true)) {
+                            break MAIN_LOOP;
+                        }
+                    } else {
+                        currentState = nextState;
+                    }
+                }
+                buf.clear();
+            }
+            if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) != 0) {
+                // Output any matches on the last state
+                listener.match((T) values[states.get(currentState * RECORD_SIZE + VALUE)]);
+            }
+        } else {
+            MAIN_LOOP2: while (haystack.read(buf) != -1) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    final char c = Character.toLowerCase(buf.get());
+                    int nextState = transition(currentState, c);
+                    // Regardless of the type of the character, we keep moving till we run into
+                    // a situation where there's no transition available.
+                    if (nextState == -1) {
+                        if (!wordChars[c]) {
+                            // If we ran into no-transition scenario on non-word character we can
+                            // output the match on the current state if there is one.
+                            // Later we will run through non-word characters to the start of the next word.
+                            if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) != 0) {
+                                if (!listener.match((T) values[states.get(currentState * RECORD_SIZE + VALUE)])) {
+                                    return;
+                                }
+                            }
+                        } else {
+                            // If we ran into no-transition situation on a word character, we scroll through
+                            // word characters to a non-word character.
+                            if (scroll(haystack, buf, true, false)) {
+                                currentState = 0;
+                                break MAIN_LOOP2;
+                            }
+                        }
+                        // Scroll to the first word character
+                        currentState = 0;
+                        if (scroll(haystack, buf, false, false)) {
+                            break MAIN_LOOP2;
+                        }
+                    } else {
+                        currentState = nextState;
+                    }
+                }
+                buf.clear();
+            }
+            if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) != 0) {
+                // Output any matches on the last state
+                listener.match((T) values[states.get(currentState * RECORD_SIZE + VALUE)]);
+            }
+        }
+    }
+
+    public void match(final String haystack, final MapMatchListener<T> listener) {
+        final IntBuffer states = this.states;
+
+        // Start with the root state.
+        int currentState = 0;
+
+        int idx = 0;
+        // For each character.
+        final int len = haystack.length();
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                char c = haystack.charAt(idx);
+                int nextState = transition(currentState, c);
+                // Regardless of the type of the character, we keep moving till we run into
+                // a situation where there's no transition available.
+                if (nextState == -1) {
+                    if (!wordChars[c]) {
+                        // If we ran into no-transition scenario on non-word character we can
+                        // output the match on the current state if there is one.
+                        // Later we will run through non-word characters to the start of the next word.
+                        if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) != 0 && !output(haystack, listener, currentState, idx)) {
+                            return;
+                        }
+                    } else {
+                        // If we ran into no-transition situation on a word character, we scroll through word
+                        // characters to a non-word character.
+                        while (++idx < len && wordChars[haystack.charAt(idx)]) {
+                            ;
+                        }
+                    }
+                    // Scroll to the first word character
+                    while (++idx < len && !wordChars[haystack.charAt(idx)]) {
+                        ;
+                    }
+                    currentState = 0;
+                } else {
+                    ++idx;
+                    currentState = nextState;
+                }
+            }
+            if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) != 0) {
+                // Output any matches on the last state
+                output(haystack, listener, currentState, idx);
+            }
+        } else {
+            while (idx < len) {
+                char c = Character.toLowerCase(haystack.charAt(idx));
+                int nextState = transition(currentState, c);
+                // Regardless of the type of the character, we keep moving till we run into
+                // a situation where there's no transition available.
+                if (nextState == -1) {
+                    if (!wordChars[c]) {
+                        // If we ran into no-transition scenario on non-word character we can
+                        // output the match on the current state if there is one.
+                        // Later we will run through non-word characters to the start of the next word.
+                        if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) != 0 && !output(haystack, listener, currentState, idx)) {
+                            return;
+                        }
+                    } else {
+                        // If we ran into no-transition situation on a word character, we scroll through word
+                        // characters to a non-word character.
+                        while (++idx < len && wordChars[haystack.charAt(idx)]) {
+                            ;
+                        }
+                    }
+                    // Scroll to the first word character
+                    while (++idx < len && !wordChars[haystack.charAt(idx)]) {
+                        ;
+                    }
+                    currentState = 0;
+                } else {
+                    ++idx;
+                    currentState = nextState;
+                }
+            }
+            if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) != 0) {
+                // Output any matches on the last state
+                output(haystack, listener, currentState, idx);
+            }
+        }
+    }
+
+    // Matcher for text that arrives in chunks, it finds the same matches as match would in all of the text.
+    public Matcher matcher(final StreamMapMatchListener<T> listener) {
+        return new StreamMatcher(listener);
+    }
+
+    // Match the file decoded with the charset. The file is memory mapped a window at a time, so it can be
+    // larger than 2GB, and positions are char offsets into the decoded text.
+    public void matchFile(final Path file, final Charset charset, final StreamMapMatchListener<T> listener) throws IOException {
+        MappedText.feed(file, charset, matcher(listener));
+    }
+
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = new MemoryUsage();
+        usage.add(MemoryUsage.OFF_HEAP, states.capacity() * 4L);
+        usage.addArray(MemoryUsage.VALUES, values);
+        usage.addArray(MemoryUsage.WORD_CHARACTERS, wordChars);
+        return usage;
+    }
+
+    boolean[] getWordChars() {
+        return wordChars;
+    }
+
+    // State of the match loop between chunks, words can span chunks.
+    private final class StreamMatcher implements Matcher {
+
+        private int currentState = 0;
+        private final StreamMapMatchListener<T> listener;
+        // Position of the next character in the text.
+        private long position = 0;
+        private boolean scrollNonWord = false;
+        private boolean scrollWord = false;
+        private boolean stopped = false;
+
+        private StreamMatcher(StreamMapMatchListener<T> listener) {
+            this.listener = listener;
+        }
+
+        public boolean feed(final char[] chunk, final int off, final int len) {
+            if (stopped) {
+                return false;
+            }
+            // Local copies of the state for the loop.
+            final IntBuffer states = OffHeapWholeWordMatchMap.this.states;
+            final boolean[] wordChars = OffHeapWholeWordMatchMap.this.wordChars;
+            int currentState = this.currentState;
+            boolean scrollNonWord = this.scrollNonWord;
+            boolean scrollWord = this.scrollWord;
+            // Position of the chunk array start in the text.
+            final long chunkBase = position - off;
+            final int end = off + len;
+            int idx = off;
+            // Putting this if into the loop worsens the performance so we'll sadly
+            // have to deal with duplicated code.
+            if (caseSensitive) {
+                while (idx < end) {
+                    final char c = chunk[idx];
+                    if (scrollWord) {
+                        // Scroll through word characters and the non-word character after them.
+                        if (!wordChars[c]) {
+                            scrollWord = false;
+                            scrollNonWord = true;
+                        }
+                        ++idx;
+                        continue;
+                    } else if (scrollNonWord) {
+                        // Scroll to the first word character, which starts the next word.
+                        if (!wordChars[c]) {
+                            ++idx;
+                            continue;
+                        }
+                        scrollNonWord = false;
+                    }
+                    final int nextState = transition(currentState, c);
+                    if (nextState == -1) {
+                        if (!wordChars[c]) {
+                            if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) != 0 && !output(listener, currentState, chunkBase + idx)) {
+                                stopped = true;
+                                return false;
+                            }
+                            scrollNonWord = true;
+                        } else {
+                            scrollWord = true;
+                        }
+                        currentState = 0;
+                    } else {
+                        currentState = nextState;
+                    }
+                    ++idx;
+                }
+            } else {
+                while (idx < end) {
+                    final char c = Character.toLowerCase(chunk[idx]);
+                    if (scrollWord) {
+                        // Scroll through word characters and the non-word character after them.
+                        if (!wordChars[c]) {
+                            scrollWord = false;
+                            scrollNonWord = true;
+                        }
+                        ++idx;
+                        continue;
+                    } else if (scrollNonWord) {
+                        // Scroll to the first word character, which starts the next word.
+                        if (!wordChars[c]) {
+                            ++idx;
+                            continue;
+                        }
+                        scrollNonWord = false;
+                    }
+                    final int nextState = transition(currentState, c);
+                    if (nextState == -1) {
+                        if (!wordChars[c]) {
+                            if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) != 0 && !output(listener, currentState, chunkBase + idx)) {
+                                stopped = true;
+                                return false;
+                            }
+                            scrollNonWord = true;
+                        } else {
+                            scrollWord = true;
+                        }
+                        currentState = 0;
+                    } else {
+                        currentState = nextState;
+                    }
+                    ++idx;
+                }
+            }
+            this.currentState = currentState;
+            this.scrollNonWord = scrollNonWord;
+            this.scrollWord = scrollWord;
+            position = chunkBase + end;
+            return true;
+        }
+
+        public void finish() {
+            if (states.get(currentState * RECORD_SIZE + MATCH_LENGTH) != 0 && !stopped) {
+                // Output any matches on the last state
+                output(listener, currentState, position);
+            }
+            currentState = 0;
+            position = 0;
+            scrollNonWord = false;
+            scrollWord = false;
+            stopped = false;
+        }
+    }
+
+    // Report the match at this state.
+    @SuppressWarnings("unchecked")
+    private boolean output(String haystack, MapMatchListener<T> listener, int state, int idx) {
+        int record = state * RECORD_SIZE;
+        return listener.match(haystack, idx - states.get(record + MATCH_LENGTH), idx, (T) values[states.get(record + VALUE)]);
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean output(StreamMapMatchListener<T> listener, int state, long idx) {
+        int record = state * RECORD_SIZE;
+        return listener.match(idx - states.get(record + MATCH_LENGTH), idx, (T) values[states.get(record + VALUE)]);
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean outputSequence(CharSequence haystack, CharSequenceMapMatchListener<T> listener, int state, int idx) {
+        int record = state * RECORD_SIZE;
+        return listener.match(haystack, idx - states.get(record + MATCH_LENGTH), idx, (T) values[states.get(record + VALUE)]);
+    }
+
+    private boolean scroll(Readable haystack, CharBuffer buf, boolean wordChars, boolean caseSensitive) throws IOException {
+        do {
+            while (buf.hasRemaining()) {
+                if (this.wordChars[caseSensitive ? buf.get() : Character.toLowerCase(buf.get())] != wordChars) {
+                    buf.position(buf.position() - 1);
+                    return false;
+                }
+            }
+            buf.clear();
+            if (haystack.read(buf) == -1) {
+                return true;
+            }
+            buf.flip();
+        } while (true);
+    }
+
+    // Returns the state reached from the given state with the character, -1 if there's no transition.
+    private int transition(int state, char c) {
+        int next = states.get(state * RECORD_SIZE + OffHeapRecords.BASE) + c;
+        return next < slots && states.get(next * RECORD_SIZE + OffHeapRecords.CHECK) == state ? next : -1;
+    }
+
+}
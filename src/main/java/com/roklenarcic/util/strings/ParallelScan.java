@@ -0,0 +1,235 @@
+package com.roklenarcic.util.strings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// Matches one large haystack in chunks on a fork join pool and puts the matches back together so they are
+// the same as a single scan would find. How chunks are cut depends on the match semantics:
+//
+// Overlapping matches (Aho-Corasick): each chunk is scanned from longest keyword - 1 characters before its
+// start and keeps the matches that end inside it, so every match belongs to exactly one chunk.
+//
+// Leftmost longest matches: each chunk is scanned to longest keyword - 1 characters past its end and keeps
+// the matches that start inside it. That's the right answer if the previous chunk's last match ends before
+// the chunk starts. If it goes over, the chunk is scanned again from the end of that match until that scan
+// finds a match the first scan found too, from there on the two agree.
+//
+// Matching that resets at separator characters (whole word): chunks are cut right after a separator, so they
+// can be scanned on their own and need no fixing up. Chunks grow until they end in one. Whole word engines
+// with non-word characters in keywords have no separators and don't match in parallel.
+final class ParallelScan {
+
+    // Chunk size, big enough that scheduling is cheap next to scanning.
+    static final int CHUNK_CHARS = 1 << 20;
+
+    private final int longestKeyword;
+    private final boolean nonOverlapping;
+    private final Scanner scanner;
+    private final boolean[] separators;
+
+    ParallelScan(Scanner scanner, int longestKeyword, boolean nonOverlapping, boolean[] separators) {
+        this.scanner = scanner;
+        this.longestKeyword = longestKeyword;
+        this.nonOverlapping = nonOverlapping;
+        this.separators = separators;
+    }
+
+    // Separators for whole word matching, the non-word characters. Keyword characters are the ones with a class
+    // other than 0, no class table means keywords are made of word characters only. If a keyword has a non-word
+    // character, a match can go over a non-word character and matching doesn't reset at any of them, so
+    // there are no separators and this returns null.
+    static boolean[] separators(boolean[] wordChars, char[] charClasses) {
+        boolean[] separators = new boolean[65536];
+        for (int c = 0; c < separators.length; c++) {
+            if (!wordChars[c]) {
+                if (charClasses != null && charClasses[c] != 0) {
+                    return null;
+                }
+                separators[c] = true;
+            }
+        }
+        return separators;
+    }
+
+    void match(final String haystack, final Listener listener, boolean ordered, ForkJoinPool pool, int chunkChars) {
+        final int[] bounds = bounds(haystack, chunkChars);
+        final int overlap = Math.max(0, longestKeyword - 1);
+        final int len = haystack.length();
+        // Leftmost longest matches of a chunk depend on the chunk before it, the others can be reported as
+        // they come, unordered matches are reported by the tasks as they finish, one at a time.
+        final boolean stitch = nonOverlapping && separators == null;
+        final boolean report = !ordered && !stitch;
+        final boolean[] stopped = new boolean[1];
+        List<ForkJoinTask<Matches>> tasks = new ArrayList<ForkJoinTask<Matches>>();
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            final int chunkStart = bounds[i];
+            final int chunkEnd = bounds[i + 1];
+            tasks.add(pool.submit(new Callable<Matches>() {
+
+                public Matches call() {
+                    Matches matches;
+                    if (separators != null) {
+                        matches = new Matches(Integer.MIN_VALUE, Integer.MAX_VALUE, null);
+                        scanner.scan(haystack, chunkStart, chunkEnd, matches);
+                    } else if (stitch) {
+                        matches = new Matches(Integer.MIN_VALUE, chunkEnd, null);
+                        scanner.scan(haystack, chunkStart, Math.min(len, chunkEnd + overlap), matches);
+                    } else {
+                        matches = new Matches(chunkStart, Integer.MAX_VALUE, null);
+                        scanner.scan(haystack, Math.max(0, chunkStart - overlap), chunkEnd, matches);
+                    }
+                    if (report) {
+                        synchronized (stopped) {
+                            if (!stopped[0] && !matches.report(listener, 0)) {
+                                stopped[0] = true;
+                            }
+                        }
+                    }
+                    return matches;
+                }
+            }));
+        }
+        try {
+            // End of the last reported leftmost longest match.
+            int lastEnd = 0;
+            for (int i = 0; i < tasks.size(); i++) {
+                Matches matches = tasks.get(i).join();
+                if (report) {
+                    synchronized (stopped) {
+                        if (stopped[0]) {
+                            return;
+                        }
+                    }
+                    continue;
+                }
+                int from = 0;
+                if (stitch && lastEnd > bounds[i]) {
+                    // Last match of the previous chunk goes into this one, scan again from its end.
+                    from = matches.size;
+                    if (lastEnd < bounds[i + 1]) {
+                        Matches rescan = new Matches(Integer.MIN_VALUE, bounds[i + 1], matches);
+                        scanner.scan(haystack, lastEnd, Math.min(len, bounds[i + 1] + overlap), rescan);
+                        if (!rescan.report(listener, 0)) {
+                            return;
+                        }
+                        if (rescan.size > 0) {
+                            lastEnd = rescan.ends[rescan.size - 1];
+                        }
+                        if (rescan.syncIndex != -1) {
+                            from = rescan.syncIndex;
+                        }
+                    }
+                }
+                if (!matches.report(listener, from)) {
+                    return;
+                }
+                if (matches.size > from) {
+                    lastEnd = Math.max(lastEnd, matches.ends[matches.size - 1]);
+                }
+            }
+        } finally {
+            for (ForkJoinTask<Matches> task : tasks) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    // Chunk boundaries, including 0 and the haystack length.
+    private int[] bounds(String haystack, int chunkChars) {
+        int len = haystack.length();
+        int[] bounds = new int[16];
+        int count = 1;
+        int bound = chunkChars;
+        while (bound < len) {
+            if (separators != null) {
+                while (bound < len && !separators[haystack.charAt(bound - 1)]) {
+                    bound++;
+                }
+                if (bound == len) {
+                    break;
+                }
+            }
+            if (count + 1 >= bounds.length) {
+                bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            }
+            bounds[count++] = bound;
+            bound += chunkChars;
+        }
+        bounds[count++] = len;
+        return Arrays.copyOf(bounds, count);
+    }
+
+    // Gets the matches with positions in the whole haystack.
+    interface Listener {
+
+        // return true to continue matching
+        boolean match(int startPosition, int endPosition, Object value);
+    }
+
+    // Matches a part of the haystack as if it were all of it.
+    interface Scanner {
+
+        // Adds matches of the haystack between from and to to the matches, with positions in the whole haystack.
+        void scan(String haystack, int from, int to, Matches matches);
+    }
+
+    // Matches of a chunk in the order the engine reported them. Matches that end before minEnd or start
+    // after maxStart belong to other chunks and are dropped.
+    static final class Matches {
+
+        private int[] ends = new int[16];
+        private final int maxStart;
+        private final int minEnd;
+        private int size = 0;
+        private int[] starts = new int[16];
+        // Set when scanning again, the scan stops at the first match these matches have too.
+        private final Matches sync;
+        private int syncIndex = -1;
+        private Object[] values = new Object[16];
+
+        private Matches(int minEnd, int maxStart, Matches sync) {
+            this.minEnd = minEnd;
+            this.maxStart = maxStart;
+            this.sync = sync;
+        }
+
+        // return true to continue matching
+        boolean add(int start, int end, Object value) {
+            if (end <= minEnd || start >= maxStart) {
+                return true;
+            }
+            if (sync != null) {
+                // Leftmost longest matches come in order of their start.
+                int idx = Arrays.binarySearch(sync.starts, 0, sync.size, start);
+                if (idx >= 0 && sync.ends[idx] == end) {
+                    syncIndex = idx;
+                    return false;
+                }
+            }
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            values[size] = value;
+            size++;
+            return true;
+        }
+
+        private boolean report(Listener listener, int from) {
+            for (int i = from; i < size; i++) {
+                if (!listener.match(starts[i], ends[i], values[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+package com.roklenarcic.util.strings;
+
+// This class is used in the longest non-overlapping matching of the primitive value maps. Works like
+// MapMatchQueue, values are longs, int values are stored widened.
+class PrimitiveMatchQueue {
+    // It works like an arraylist that occasionally gets cleared at the front.
+    // We don't bother downsizing it.
+    private int emptySlotIdx = 0;
+    private int[] endIndexes = new int[2];
+    private int[] startIndexes = new int[2];
+    private long[] values = new long[2];
+
+    public void clear() {
+        emptySlotIdx = 0;
+    }
+
+    public boolean isEmpty() {
+        return emptySlotIdx == 0;
+    }
+
+    public boolean matchAndClearInt(ReadableIntMatchListener listener, int purgeToIndex) {
+        // Start at the start of the array and flush to listener all matches which have
+        // end index lower of equal than the purgeToIndex, then clear them out from array by
+        // moving the rest of the matches to front.
+        int i = 0;
+        while (i < emptySlotIdx && endIndexes[i] <= purgeToIndex) {
+            if (!listener.match((int) values[i])) {
+                return false;
+            }
+            i++;
+        }
+        remove(i);
+        return true;
+    }
+
+    public boolean matchAndClearLong(ReadableLongMatchListener listener, int purgeToIndex) {
+        int i = 0;
+        while (i < emptySlotIdx && endIndexes[i] <= purgeToIndex) {
+            if (!listener.match(values[i])) {
+                return false;
+            }
+            i++;
+        }
+        remove(i);
+        return true;
+    }
+
+    public boolean matchAndClearInt(String haystack, IntMapMatchListener listener, int purgeToIndex) {
+        int i = 0;
+        while (i < emptySlotIdx && endIndexes[i] <= purgeToIndex) {
+            if (!listener.match(haystack, startIndexes[i], endIndexes[i], (int) values[i])) {
+                return false;
+            }
+            i++;
+        }
+        remove(i);
+        return true;
+    }
+
+    public boolean matchAndClearLong(String haystack, LongMapMatchListener listener, int purgeToIndex) {
+        int i = 0;
+        while (i < emptySlotIdx && endIndexes[i] <= purgeToIndex) {
+            if (!listener.match(haystack, startIndexes[i], endIndexes[i], values[i])) {
+                return false;
+            }
+            i++;
+        }
+        remove(i);
+        return true;
+    }
+
+    public boolean matchAndClearIntSequence(CharSequence haystack, CharSequenceIntMapMatchListener listener, int purgeToIndex) {
+        int i = 0;
+        while (i < emptySlotIdx && endIndexes[i] <= purgeToIndex) {
+            if (!listener.match(haystack, startIndexes[i], endIndexes[i], (int) values[i])) {
+                return false;
+            }
+            i++;
+        }
+        remove(i);
+        return true;
+    }
+
+    public boolean matchAndClearLongSequence(CharSequence haystack, CharSequenceLongMapMatchListener listener, int purgeToIndex) {
+        int i = 0;
+        while (i < emptySlotIdx && endIndexes[i] <= purgeToIndex) {
+            if (!listener.match(haystack, startIndexes[i], endIndexes[i], values[i])) {
+                return false;
+            }
+            i++;
+        }
+        remove(i);
+        return true;
+    }
+
+    // Indexes are relative to base, the listener gets base + index.
+    public boolean matchAndClearInt(StreamIntMapMatchListener listener, int purgeToIndex, long base) {
+        int i = 0;
+        while (i < emptySlotIdx && endIndexes[i] <= purgeToIndex) {
+            if (!listener.match(base + startIndexes[i], base + endIndexes[i], (int) values[i])) {
+                return false;
+            }
+            i++;
+        }
+        remove(i);
+        return true;
+    }
+
+    public boolean matchAndClearLong(StreamLongMapMatchListener listener, int purgeToIndex, long base) {
+        int i = 0;
+        while (i < emptySlotIdx && endIndexes[i] <= purgeToIndex) {
+            if (!listener.match(base + startIndexes[i], base + endIndexes[i], values[i])) {
+                return false;
+            }
+            i++;
+        }
+        remove(i);
+        return true;
+    }
+
+    // Makes the indexes relative to a point delta further on, used when a matcher moves from one
+    // chunk to the next.
+    public void shift(int delta) {
+        for (int i = 0; i < emptySlotIdx; i++) {
+            startIndexes[i] -= delta;
+            endIndexes[i] -= delta;
+        }
+    }
+
+    // Adds a match to the queue.
+    public boolean push(int length, int idx, long value) {
+        // Resize if needed.
+        if (emptySlotIdx + 1 == endIndexes.length) {
+            int newCapacity = endIndexes.length * 2;
+            if (newCapacity < 0) {
+                newCapacity = Integer.MAX_VALUE - 8;
+            }
+            int[] newArr = new int[newCapacity];
+            int[] newStartIndexes = new int[newCapacity];
+            long[] newValues = new long[newCapacity];
+            System.arraycopy(endIndexes, 0, newArr, 0, emptySlotIdx);
+            System.arraycopy(startIndexes, 0, newStartIndexes, 0, emptySlotIdx);
+            System.arraycopy(values, 0, newValues, 0, emptySlotIdx);
+            endIndexes = newArr;
+            startIndexes = newStartIndexes;
+            values = newValues;
+        }
+        // See if the new match overlaps with existing matches.
+        // This assumes that matches have non-descending end index.
+        if (!isEmpty()) {
+            int idxToFind = idx - length;
+            for (int currSlot = emptySlotIdx - 1; currSlot >= 0; currSlot--) {
+                int currStartIdx = startIndexes[currSlot];
+                if (idxToFind >= currStartIdx) {
+                    // Match in the current slot starts before the new one or starts at the same point.
+                    // If the new match starts after the end of the current one OR
+                    // it starts on the same index but is longer, the new match will
+                    // replace the one in the current slot.
+                    if (idxToFind >= endIndexes[currSlot]) {
+                        startIndexes[currSlot + 1] = idxToFind;
+                        endIndexes[currSlot + 1] = idx;
+                        values[currSlot + 1] = value;
+                        emptySlotIdx = currSlot + 2;
+                        return true;
+                    } else if (idxToFind == currStartIdx && endIndexes[currSlot] < idx) {
+                        startIndexes[currSlot] = idxToFind;
+                        endIndexes[currSlot] = idx;
+                        values[currSlot] = value;
+                        emptySlotIdx = currSlot + 1;
+                        return true;
+                    } else {
+                        return false;
+                    }
+                }
+            }
+            startIndexes[0] = idxToFind;
+            endIndexes[0] = idx;
+            values[0] = value;
+            emptySlotIdx = 1;
+            return true;
+        } else {
+            startIndexes[emptySlotIdx] = idx - length;
+            endIndexes[emptySlotIdx] = idx;
+            values[emptySlotIdx] = value;
+            emptySlotIdx++;
+            return true;
+        }
+    }
+
+    // Clear out the first count matches, which have been flushed, by moving the rest of the matches to front.
+    private void remove(int count) {
+        if (count > 0) {
+            emptySlotIdx = emptySlotIdx - count;
+            System.arraycopy(endIndexes, count, endIndexes, 0, emptySlotIdx);
+            System.arraycopy(startIndexes, count, startIndexes, 0, emptySlotIdx);
+            System.arraycopy(values, count, values, 0, emptySlotIdx);
+        }
+    }
+}
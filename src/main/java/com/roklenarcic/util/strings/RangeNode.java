@@ -0,0 +1,119 @@
+package com.roklenarcic.util.strings;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+// This node is good at representing dense ranges of keys.
+// It has a single array of nodes and a base key value.
+// Child at array index 3 has key of baseChar + 3.
+final class RangeNode<T> extends TrieNode<T> {
+
+    char baseChar = 0;
+    TrieNode<T>[] children;
+    int size = 0;
+
+    RangeNode(HashmapNode<T> oldNode, char from, char to) {
+        this(oldNode, from, to, false);
+    }
+
+    RangeNode(HashmapNode<T> oldNode, char from, char to, boolean root) {
+        oldNode.copyTo(this);
+        // Value of the first character
+        this.baseChar = from;
+        this.size = to - from + 1;
+        // Avoid even allocating a children array if size is 0.
+        if (size <= 0) {
+            size = 0;
+        } else {
+            this.children = TrieNode.newArray(size);
+            // If this is the root node, prefill everything with yourself.
+            // Root lookups then never return null, which the fail transition
+            // calculation and the match loop rely on.
+            if (root) {
+                Arrays.fill(children, this);
+            }
+            // Grab the children of the old node.
+            for (int i = 0; i < oldNode.children.length; i++) {
+                if (oldNode.children[i] != null) {
+                    children[oldNode.keys[i] - from] = oldNode.children[i];
+                }
+            }
+        }
+    }
+
+    // Range node with the children of a node of another type, see AhoCorasickMap.train.
+    RangeNode(TrieNode<T> oldNode, final char from, char to) {
+        oldNode.copyTo(this);
+        this.baseChar = from;
+        this.size = to - from + 1;
+        this.children = TrieNode.newArray(size);
+        oldNode.mapEntries(new EntryVisitor<T>() {
+
+            public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
+                children[key - from] = value;
+            }
+        });
+    }
+
+    @Override
+    public void clear() {
+        children = null;
+        size = 0;
+    }
+
+    @Override
+    protected void relink(IdentityHashMap<TrieNode<T>, TrieNode<T>> replacements) {
+        super.relink(replacements);
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                children[i] = replacements.get(children[i]);
+            }
+        }
+    }
+
+    @Override
+    public TrieNode<T> getTransition(char c) {
+        // First check if the key is between max and min value.
+        // Here we use the fact that char type is unsigned to figure it out
+        // with a single condition.
+        int idx = (char) (c - baseChar);
+        if (idx < size) {
+            return children[idx];
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void mapEntries(EntryVisitor<T> visitor) {
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] != null && children[i] != this) {
+                    visitor.visit(this, (char) (baseChar + i), children[i]);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void updateTransition(char c, TrieNode<T> node) {
+        // First check if the key is between max and min value.
+        // Here we use the fact that char type is unsigned to figure it out
+        // with a single condition.
+        int idx = (char) (c - baseChar);
+        if (idx < size) {
+            if (children[idx] != null) {
+                children[idx] = node;
+                return;
+            } else {
+                throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+            }
+        }
+        throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+    }
+
+}
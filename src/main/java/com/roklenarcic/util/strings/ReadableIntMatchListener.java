@@ -0,0 +1,9 @@
+package com.roklenarcic.util.strings;
+
+
+public interface ReadableIntMatchListener {
+
+    // return true to continue matching
+    boolean match(int value);
+
+}
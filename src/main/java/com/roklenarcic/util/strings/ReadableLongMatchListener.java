@@ -0,0 +1,9 @@
+package com.roklenarcic.util.strings;
+
+
+public interface ReadableLongMatchListener {
+
+    // return true to continue matching
+    boolean match(long value);
+
+}
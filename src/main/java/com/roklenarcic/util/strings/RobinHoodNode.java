@@ -0,0 +1,125 @@
+package com.roklenarcic.util.strings;
+
+import java.util.IdentityHashMap;
+
+// Sparse node with Robin Hood hashing: on insert, an entry further from its default slot takes the
+// slot of an entry that is closer to its own. Probe lengths are even and a lookup of a missing key
+// stops at the first entry closer to its default slot than the lookup is.
+final class RobinHoodNode<T> extends TrieNode<T> {
+
+    private TrieNode<T>[] children;
+    private char[] keys;
+    private int modulusMask;
+
+    RobinHoodNode(HashmapNode<T> oldNode) {
+        oldNode.copyTo(this);
+        int capacity = MultiplicativeHashNode.capacity(oldNode.numEntries);
+        this.keys = new char[capacity];
+        this.children = TrieNode.newArray(capacity);
+        this.modulusMask = capacity - 1;
+        for (int i = 0; i < oldNode.children.length; i++) {
+            if (oldNode.children[i] != null) {
+                insert(oldNode.keys[i], oldNode.children[i]);
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        children = TrieNode.newArray(1);
+        keys = new char[1];
+        modulusMask = 0;
+    }
+
+    @Override
+    protected void relink(IdentityHashMap<TrieNode<T>, TrieNode<T>> replacements) {
+        super.relink(replacements);
+        for (int i = 0; i < children.length; i++) {
+            children[i] = replacements.get(children[i]);
+        }
+    }
+
+    @Override
+    public TrieNode<T> getTransition(char key) {
+        int slot = hash(key) & modulusMask;
+        for (int distance = 0; distance <= modulusMask; distance++) {
+            if (children[slot] == null) {
+                return null;
+            } else if (keys[slot] == key) {
+                return children[slot];
+            } else if (distance(slot) < distance) {
+                // The key would have taken this slot.
+                return null;
+            }
+            slot = ++slot & modulusMask;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (int i = 0; i < children.length; i++) {
+            if (children[i] != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void mapEntries(EntryVisitor<T> visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (children[i] != null) {
+                visitor.visit(this, keys[i], children[i]);
+            }
+        }
+    }
+
+    @Override
+    public void updateTransition(char c, TrieNode<T> node) {
+        int slot = hash(c) & modulusMask;
+        for (int distance = 0; distance <= modulusMask && children[slot] != null && distance(slot) >= distance; distance++) {
+            if (keys[slot] == c) {
+                children[slot] = node;
+                return;
+            }
+            slot = ++slot & modulusMask;
+        }
+        throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+    }
+
+    // Distance of the entry in the slot from its default slot.
+    private int distance(int slot) {
+        return (slot - hash(keys[slot])) & modulusMask;
+    }
+
+    // FNV-1a hash
+    private int hash(char c) {
+        // HASH_BASIS = 0x811c9dc5;
+        final int HASH_PRIME = 16777619;
+        return (((0x811c9dc5 ^ (c >> 8)) * HASH_PRIME) ^ (c & 0xff)) * HASH_PRIME;
+    }
+
+    private void insert(char key, TrieNode<T> child) {
+        int slot = hash(key) & modulusMask;
+        int distance = 0;
+        while (children[slot] != null) {
+            int slotDistance = distance(slot);
+            if (slotDistance < distance) {
+                // Take the slot and carry on inserting the entry that was there.
+                char slotKey = keys[slot];
+                TrieNode<T> slotChild = children[slot];
+                keys[slot] = key;
+                children[slot] = child;
+                key = slotKey;
+                child = slotChild;
+                distance = slotDistance;
+            }
+            slot = ++slot & modulusMask;
+            distance++;
+        }
+        keys[slot] = key;
+        children[slot] = child;
+    }
+
+}
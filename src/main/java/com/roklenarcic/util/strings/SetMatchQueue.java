@@ -41,6 +41,66 @@ class SetMatchQueue {
         return true;
     }
 
+    public boolean matchAndClearSequence(CharSequence haystack, CharSequenceSetMatchListener listener, int purgeToIndex) {
+        // Start at the start of the array and flush to listener all matches which have
+        // end index lower of equal than the purgeToIndex, then clear them out from array by
+        // moving the rest of the matches to front.
+        if (!isEmpty()) {
+            int i = 0;
+            while (i < emptySlotIdx) {
+                if (endIndexes[i] <= purgeToIndex) {
+                    if (!listener.match(haystack, startIndexes[i], endIndexes[i])) {
+                        return false;
+                    }
+                } else {
+                    break;
+                }
+                i++;
+            }
+            if (i > 0) {
+                emptySlotIdx = emptySlotIdx - i;
+                System.arraycopy(endIndexes, i, endIndexes, 0, emptySlotIdx);
+                System.arraycopy(startIndexes, i, startIndexes, 0, emptySlotIdx);
+            }
+        }
+        return true;
+    }
+
+    // Indexes are relative to base, the listener gets base + index.
+    public boolean matchAndClear(StreamSetMatchListener listener, int purgeToIndex, long base) {
+        // Start at the start of the array and flush to listener all matches which have
+        // end index lower of equal than the purgeToIndex, then clear them out from array by
+        // moving the rest of the matches to front.
+        if (!isEmpty()) {
+            int i = 0;
+            while (i < emptySlotIdx) {
+                if (endIndexes[i] <= purgeToIndex) {
+                    if (!listener.match(base + startIndexes[i], base + endIndexes[i])) {
+                        return false;
+                    }
+                } else {
+                    break;
+                }
+                i++;
+            }
+            if (i > 0) {
+                emptySlotIdx = emptySlotIdx - i;
+                System.arraycopy(endIndexes, i, endIndexes, 0, emptySlotIdx);
+                System.arraycopy(startIndexes, i, startIndexes, 0, emptySlotIdx);
+            }
+        }
+        return true;
+    }
+
+    // Makes the indexes relative to a point delta further on, used when matching moves from one
+    // chunk to the next.
+    public void shift(int delta) {
+        for (int i = 0; i < emptySlotIdx; i++) {
+            startIndexes[i] -= delta;
+            endIndexes[i] -= delta;
+        }
+    }
+
     // Adds a match to the queue.
     public boolean push(int length, int idx) {
         // Resize if needed.
@@ -2,18 +2,26 @@ package com.roklenarcic.util.strings;
 
 import java.io.IOException;
 import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 
+import com.roklenarcic.util.strings.threshold.ProfileThreshold;
 import com.roklenarcic.util.strings.threshold.RangeNodeThreshold;
 import com.roklenarcic.util.strings.threshold.Thresholder;
 
 // Matches leftmost shortest matches. Useful when you want non-overlapping
 // matches with a string set that doesn't have strings that are prefix to other strings in the set.
-public class ShortestMatchMap<T> implements StringMap<T> {
+public class ShortestMatchMap<T> implements StringMap<T>, MemoryAccountable {
 
-    private boolean caseSensitive = true;
+    private Alphabet alphabet;
     private int charBufferSize = 0;
+    private char[] charClasses;
+    // Values of the nodes, by node id. Values are all T.
+    private Object[] values = new Object[16];
     private TrieNode<T> root;
 
     public ShortestMatchMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive) {
@@ -21,11 +29,12 @@ public class ShortestMatchMap<T> implements StringMap<T> {
     }
 
     public ShortestMatchMap(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive, final Thresholder thresholdStrategy) {
-        this.caseSensitive = caseSensitive;
+        alphabet = new Alphabet(caseSensitive);
         Iterator<String> keywordsIter = keywords.iterator();
         Iterator<? extends T> valuesIter = values.iterator();
         // Create the root node
-        root = new HashmapNode<T>(true);
+        root = new HashmapNode<T>();
+        int nodeCount = 1;
         int longestKeyword = 0;
         // Add all keywords
         OUTER: while (keywordsIter.hasNext() && valuesIter.hasNext()) {
@@ -41,7 +50,12 @@ public class ShortestMatchMap<T> implements StringMap<T> {
                 // fill out the tree.
                 HashmapNode<T> currentNode = (HashmapNode<T>) root;
                 for (int idx = 0; idx < keyword.length(); idx++) {
-                    currentNode = currentNode.getOrAddChild(caseSensitive ? keyword.charAt(idx) : Character.toLowerCase(keyword.charAt(idx)));
+                    currentNode = currentNode.getOrAddChild(alphabet.add(keyword.charAt(idx)), nodeCount);
+                    if (currentNode.id == nodeCount) {
+                        if (++nodeCount > this.values.length) {
+                            this.values = Arrays.copyOf(this.values, nodeCount * 2);
+                        }
+                    }
                     // If currentNode has a match go on to the next keyword, the current keyword won't ever
                     // match, because there's a shorter one in the set.
                     if (currentNode.matchLength != 0) {
@@ -51,9 +65,11 @@ public class ShortestMatchMap<T> implements StringMap<T> {
                 // Last node will contains the keyword as a match.
                 // Suffix matches will be added later.
                 currentNode.matchLength = keyword.length();
-                currentNode.value = value;
+                this.values[currentNode.id] = value;
             }
         }
+        charClasses = alphabet.classes();
+        this.values = Arrays.copyOf(this.values, nodeCount);
         charBufferSize = longestKeyword > 2048 ? longestKeyword * 2 : 4096;
         // Go through nodes breadth first, swap any hashmap nodes,
         // whose size is close to the size of range of keys with
@@ -64,8 +80,15 @@ public class ShortestMatchMap<T> implements StringMap<T> {
         // calculating for a 3 letter word requires having done the calculation
         // for all 2 letter words.
         //
+        final Thresholder plannedStrategy = plan((HashmapNode<T>) root, !thresholdStrategy.isOverRootTableThreshold(alphabet.size()), thresholdStrategy);
         final Queue<TrieNode<T>> queue = new Queue<TrieNode<T>>();
-        root = root.optimizeNode(0, thresholdStrategy);
+        if (thresholdStrategy.isOverRootTableThreshold(alphabet.size())) {
+            // Root table has a slot for every class id. Slots without a child lead back to the root,
+            // so root lookups never miss.
+            root = new RangeNode<T>((HashmapNode<T>) root, (char) 0, (char) (alphabet.size() - 1), true);
+        } else {
+            root = root.optimizeNode(0, plannedStrategy);
+        }
         queue.push(root);
         queue.push(null);
         // Need to use array to get mutateable state for anonymous class
@@ -75,11 +98,11 @@ public class ShortestMatchMap<T> implements StringMap<T> {
 
             public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
                 // First optimize node
-                value = value.optimizeNode(level[0], thresholdStrategy);
+                value = value.optimizeNode(level[0], plannedStrategy);
                 parent.updateTransition(key, value);
 
                 // Get fail transiton of the parent.
-                TrieNode<T> parentFail = parent.getFailTransition();
+                TrieNode<T> parentFail = parent.failTransition;
                 // Since root node has null fail transition, first level nodes have null parentFail.
                 if (parentFail == null) {
                     // First level nodes have one possible fail transition, which is
@@ -99,12 +122,13 @@ public class ShortestMatchMap<T> implements StringMap<T> {
                         final TrieNode<T> matchContinuation = parentFail.getTransition(key);
                         if (matchContinuation != null) {
                             value.failTransition = matchContinuation;
+                        } else if (parentFail == root) {
+                            // Root without a key mapping, the only suffix left is an empty string.
+                            value.failTransition = root;
                         } else {
                             // If parentFail didn't have key mapping
                             // take parentFail's failTransition and try again
-                            // The last fail transition is the root node, which
-                            // always has a key mapping.
-                            parentFail = parentFail.getFailTransition();
+                            parentFail = parentFail.failTransition;
                         }
                     } while (value.failTransition == null);
                     // Now that we have a fail transition, if this node has no match,
@@ -115,7 +139,7 @@ public class ShortestMatchMap<T> implements StringMap<T> {
                             fail = fail.failTransition;
                         }
                         value.matchLength = fail.matchLength;
-                        value.value = fail.value;
+                        ShortestMatchMap.this.values[value.id] = ShortestMatchMap.this.values[fail.id];
                     }
                     // If node has any kind of match (naturally or from fail transition),
                     // then no progression is possible, so clear all the transitions, also,
@@ -193,476 +217,410 @@ public class ShortestMatchMap<T> implements StringMap<T> {
                 node.mapEntries(enqueueNodesVisitor);
             }
         }
+    }
+
+    // Node statistics for tuning the thresholder, see TrieDiagnostics.
+    public TrieDiagnostics diagnostics() {
+        final TrieDiagnostics diagnostics = new TrieDiagnostics();
+        final ArrayList<TrieNode<T>> nodes = new ArrayList<TrieNode<T>>();
+        final IdentityHashMap<TrieNode<T>, Integer> levels = new IdentityHashMap<TrieNode<T>, Integer>();
+        // Number of children, smallest and largest key of the visited node.
+        final int[] entries = new int[3];
+        EntryVisitor<T> visitor = new EntryVisitor<T>() {
+
+            public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
+                entries[0]++;
+                entries[1] = Math.min(entries[1], key);
+                entries[2] = Math.max(entries[2], key);
+                if (!levels.containsKey(value)) {
+                    levels.put(value, levels.get(parent) + 1);
+                    nodes.add(value);
+                }
+            }
 
+        };
+        levels.put(root, 0);
+        nodes.add(root);
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieNode<T> node = nodes.get(i);
+            int level = levels.get(node);
+            entries[0] = 0;
+            entries[1] = Character.MAX_VALUE;
+            entries[2] = 0;
+            node.mapEntries(visitor);
+            int failChainLength = 0;
+            for (TrieNode<T> n = node; n != root && n != null; n = n.failTransition) {
+                failChainLength++;
+            }
+            int slots = node instanceof RangeNode ? ((RangeNode<T>) node).size : 0;
+            diagnostics.add(node.getClass().getSimpleName(), level, entries[0], entries[2] - entries[1] + 1, failChainLength, slots);
+        }
+        return diagnostics;
     }
 
-    public void match(final Readable haystack, final ReadableMatchListener<T> listener) throws IOException {
+    @SuppressWarnings("unchecked")
+    public void matchChars(final char[] haystack, final int from, final int to, final CharSequenceMapMatchListener<T> listener) {
+        // Listeners see the array as a char sequence, positions are array indexes.
+        final CharSequence sequence = CharBuffer.wrap(haystack);
         // This particualr match method is different from the other match functions in that
         // the current node is lagging behind the character being examined by one position.
 
-        CharBuffer buf = CharBuffer.allocate(charBufferSize);
-
+        // Local copies of the node fields for the loop.
+        final Object[] values = this.values;
         // Start with the root node.
-        TrieNode<T> currentNode = root;
-        int currentNodeMatchLength = currentNode.matchLength;
-        T currentNodeMatchValue = currentNode.value;
+        final TrieCursor<T> cursor = new TrieCursor<T>(root);
+        int currentNodeMatchLength = cursor.node.matchLength;
+        T currentNodeMatchValue = (T) values[cursor.node.id];
+        int idx = from;
         // For each character.
-        // Putting this if into the loop worsens the performance so we'll sadly
-        // have to deal with duplicated code.
-        if (caseSensitive) {
-            while (haystack.read(buf) != -1) {
-                buf.flip();
-                while (buf.hasRemaining()) {
-                    final char c = buf.get();
-                    // The current node at this point is the node after the transition from the last loop
-                    // iteration.
-                    if (currentNodeMatchLength != 0) {
-                        // If that node had a match output any matches on the node
-                        // and jump to root, only leaf nodes have matches so next character won't match
-                        // anything,
-                        // so continue matching from the root.
-                        if (!listener.match(currentNodeMatchValue)) {
-                            return;
-                        }
-                        currentNode = root.getTransition(c);
-                    } else {
-                        // Try to transition from the current node using the character
-                        TrieNode<T> nextNode = currentNode.getTransition(c);
-                        while (nextNode == null) {
-                            currentNode = currentNode.failTransition;
-                            nextNode = currentNode.getTransition(c);
-                        }
-                        currentNode = nextNode;
-                    }
-                    // Save the node match.
-                    currentNodeMatchLength = currentNode.matchLength;
-                    currentNodeMatchValue = currentNode.value;
-                }
-                buf.clear();
-                // Because we are lagging behind when outputting matches on the current nodes,
-                // we need to output a potential match after the loop.
-                if (currentNodeMatchLength != 0) {
-                    // Output any matches on the last node
-                    if (!listener.match(currentNodeMatchValue)) {
-                        return;
-                    }
-                }
-            }
-        } else {
-            while (haystack.read(buf) != -1) {
-                buf.flip();
-                while (buf.hasRemaining()) {
-                    final char c = Character.toLowerCase(buf.get());
-                    // The current node at this point is the node after the transition from the last loop
-                    // iteration.
-                    if (currentNodeMatchLength != 0) {
-                        // If that node had a match output any matches on the node
-                        // and jump to root, only leaf nodes have matches so next character won't match
-                        // anything,
-                        // so continue matching from the root.
-                        if (!listener.match(currentNodeMatchValue)) {
-                            return;
-                        }
-                        currentNode = root.getTransition(c);
-                    } else {
-                        // Try to transition from the current node using the character
-                        TrieNode<T> nextNode = currentNode.getTransition(c);
-                        while (nextNode == null) {
-                            currentNode = currentNode.failTransition;
-                            nextNode = currentNode.getTransition(c);
-                        }
-                        currentNode = nextNode;
-                    }
-                    // Save the node match.
-                    currentNodeMatchLength = currentNode.matchLength;
-                    currentNodeMatchValue = currentNode.value;
-                }
-                buf.clear();
-                // Because we are lagging behind when outputting matches on the current nodes,
-                // we need to output a potential match after the loop.
-                if (currentNodeMatchLength != 0) {
-                    // Output any matches on the last node
-                    if (!listener.match(currentNodeMatchValue)) {
-                        return;
-                    }
+        final int len = to;
+        while (idx < len) {
+            final char c = charClasses[haystack[idx]];
+            // The current node at this point is the node after the transition from the last loop
+            // iteration.
+            if (currentNodeMatchLength != 0) {
+                // If that node had a match output any matches on the node
+                // and jump to root, only leaf nodes have matches so next character won't match anything,
+                // so continue matching from the root.
+                if (!listener.match(sequence, idx - currentNodeMatchLength, idx, currentNodeMatchValue)) {
+                    break;
                 }
+                cursor.reset();
             }
+            cursor.step(c);
+            // Save the node match.
+            currentNodeMatchLength = cursor.node.matchLength;
+            currentNodeMatchValue = (T) values[cursor.node.id];
+            ++idx;
+        }
+        // Because we are lagging behind when outputting matches on the current nodes,
+        // we need to output a potential match after the loop.
+        if (currentNodeMatchLength != 0) {
+            // Output any matches on the last node
+            listener.match(sequence, idx - currentNodeMatchLength, idx, currentNodeMatchValue);
         }
     }
 
-    public void match(final String haystack, final MapMatchListener<T> listener) {
+    @SuppressWarnings("unchecked")
+    public void matchSequence(final CharSequence haystack, final CharSequenceMapMatchListener<T> listener) {
         // This particualr match method is different from the other match functions in that
         // the current node is lagging behind the character being examined by one position.
 
+        // Local copies of the node fields for the loop.
+        final Object[] values = this.values;
         // Start with the root node.
-        TrieNode<T> currentNode = root;
-        int currentNodeMatchLength = currentNode.matchLength;
-        T currentNodeMatchValue = currentNode.value;
+        final TrieCursor<T> cursor = new TrieCursor<T>(root);
+        int currentNodeMatchLength = cursor.node.matchLength;
+        T currentNodeMatchValue = (T) values[cursor.node.id];
         int idx = 0;
         // For each character.
         final int len = haystack.length();
-        // Putting this if into the loop worsens the performance so we'll sadly
-        // have to deal with duplicated code.
-        if (caseSensitive) {
-            while (idx < len) {
-                final char c = haystack.charAt(idx);
-                // The current node at this point is the node after the transition from the last loop
-                // iteration.
-                if (currentNodeMatchLength != 0) {
-                    // If that node had a match output any matches on the node
-                    // and jump to root, only leaf nodes have matches so next character won't match anything,
-                    // so continue matching from the root.
-                    if (!listener.match(haystack, idx - currentNodeMatchLength, idx, currentNodeMatchValue)) {
-                        break;
-                    }
-                    currentNode = root.getTransition(c);
-                } else {
-                    // Try to transition from the current node using the character
-                    TrieNode<T> nextNode = currentNode.getTransition(c);
-                    while (nextNode == null) {
-                        currentNode = currentNode.failTransition;
-                        nextNode = currentNode.getTransition(c);
-                    }
-                    currentNode = nextNode;
-                }
-                // Save the node match.
-                currentNodeMatchLength = currentNode.matchLength;
-                currentNodeMatchValue = currentNode.value;
-                ++idx;
-            }
-            // Because we are lagging behind when outputting matches on the current nodes,
-            // we need to output a potential match after the loop.
+        while (idx < len) {
+            final char c = charClasses[haystack.charAt(idx)];
+            // The current node at this point is the node after the transition from the last loop
+            // iteration.
             if (currentNodeMatchLength != 0) {
-                // Output any matches on the last node
-                listener.match(haystack, idx - currentNodeMatchLength, idx, currentNodeMatchValue);
+                // If that node had a match output any matches on the node
+                // and jump to root, only leaf nodes have matches so next character won't match anything,
+                // so continue matching from the root.
+                if (!listener.match(haystack, idx - currentNodeMatchLength, idx, currentNodeMatchValue)) {
+                    break;
+                }
+                cursor.reset();
             }
-        } else {
-            while (idx < len) {
-                final char c = Character.toLowerCase(haystack.charAt(idx));
+            cursor.step(c);
+            // Save the node match.
+            currentNodeMatchLength = cursor.node.matchLength;
+            currentNodeMatchValue = (T) values[cursor.node.id];
+            ++idx;
+        }
+        // Because we are lagging behind when outputting matches on the current nodes,
+        // we need to output a potential match after the loop.
+        if (currentNodeMatchLength != 0) {
+            // Output any matches on the last node
+            listener.match(haystack, idx - currentNodeMatchLength, idx, currentNodeMatchValue);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void match(final Readable haystack, final ReadableMatchListener<T> listener) throws IOException {
+        // This particualr match method is different from the other match functions in that
+        // the current node is lagging behind the character being examined by one position.
+
+        CharBuffer buf = CharBuffer.allocate(charBufferSize);
+
+        // Local copies of the node fields for the loop.
+        final Object[] values = this.values;
+        // Start with the root node.
+        final TrieCursor<T> cursor = new TrieCursor<T>(root);
+        int currentNodeMatchLength = cursor.node.matchLength;
+        T currentNodeMatchValue = (T) values[cursor.node.id];
+        // For each character.
+        while (haystack.read(buf) != -1) {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                final char c = charClasses[buf.get()];
                 // The current node at this point is the node after the transition from the last loop
                 // iteration.
                 if (currentNodeMatchLength != 0) {
                     // If that node had a match output any matches on the node
-                    // and jump to root, only leaf nodes have matches so next character won't match anything,
+                    // and jump to root, only leaf nodes have matches so next character won't match
+                    // anything,
                     // so continue matching from the root.
-                    if (!listener.match(haystack, idx - currentNodeMatchLength, idx, currentNodeMatchValue)) {
-                        break;
-                    }
-                    currentNode = root.getTransition(c);
-                } else {
-                    // Try to transition from the current node using the character
-                    TrieNode<T> nextNode = currentNode.getTransition(c);
-                    while (nextNode == null) {
-                        currentNode = currentNode.failTransition;
-                        nextNode = currentNode.getTransition(c);
+                    if (!listener.match(currentNodeMatchValue)) {
+                        return;
                     }
-                    currentNode = nextNode;
+                    cursor.reset();
                 }
+                cursor.step(c);
                 // Save the node match.
-                currentNodeMatchLength = currentNode.matchLength;
-                currentNodeMatchValue = currentNode.value;
-                ++idx;
+                currentNodeMatchLength = cursor.node.matchLength;
+                currentNodeMatchValue = (T) values[cursor.node.id];
             }
+            buf.clear();
             // Because we are lagging behind when outputting matches on the current nodes,
             // we need to output a potential match after the loop.
             if (currentNodeMatchLength != 0) {
                 // Output any matches on the last node
-                listener.match(haystack, idx - currentNodeMatchLength, idx, currentNodeMatchValue);
+                if (!listener.match(currentNodeMatchValue)) {
+                    return;
+                }
             }
         }
     }
 
-    private interface EntryVisitor<T> {
-        void visit(TrieNode<T> parent, char key, TrieNode<T> value);
+    @SuppressWarnings("unchecked")
+    public void match(final String haystack, final MapMatchListener<T> listener) {
+        // This particualr match method is different from the other match functions in that
+        // the current node is lagging behind the character being examined by one position.
+
+        // Local copies of the node fields for the loop.
+        final Object[] values = this.values;
+        // Start with the root node.
+        final TrieCursor<T> cursor = new TrieCursor<T>(root);
+        int currentNodeMatchLength = cursor.node.matchLength;
+        T currentNodeMatchValue = (T) values[cursor.node.id];
+        int idx = 0;
+        // For each character.
+        final int len = haystack.length();
+        while (idx < len) {
+            final char c = charClasses[haystack.charAt(idx)];
+            // The current node at this point is the node after the transition from the last loop
+            // iteration.
+            if (currentNodeMatchLength != 0) {
+                // If that node had a match output any matches on the node
+                // and jump to root, only leaf nodes have matches so next character won't match anything,
+                // so continue matching from the root.
+                if (!listener.match(haystack, idx - currentNodeMatchLength, idx, currentNodeMatchValue)) {
+                    break;
+                }
+                cursor.reset();
+            }
+            cursor.step(c);
+            // Save the node match.
+            currentNodeMatchLength = cursor.node.matchLength;
+            currentNodeMatchValue = (T) values[cursor.node.id];
+            ++idx;
+        }
+        // Because we are lagging behind when outputting matches on the current nodes,
+        // we need to output a potential match after the loop.
+        if (currentNodeMatchLength != 0) {
+            // Output any matches on the last node
+            listener.match(haystack, idx - currentNodeMatchLength, idx, currentNodeMatchValue);
+        }
     }
 
-    // An open addressing hashmap implementation with linear probing
-    // and capacity of 2^n
-    private final static class HashmapNode<T> extends TrieNode<T> {
+    // Matcher for text that arrives in chunks, it finds the same matches as match would in all of the text.
+    public Matcher matcher(final StreamMapMatchListener<T> listener) {
+        return new StreamMatcher(listener);
+    }
 
-        // Start with capacity of 1 and resize as needed.
-        @SuppressWarnings("unchecked")
-        private TrieNode<T>[] children = new TrieNode[1];
-        private char[] keys = new char[1];
-        // Since capacity is a power of 2, we calculate mod by just
-        // bitwise AND with the right mask.
-        private int modulusMask = keys.length - 1;
-        private int numEntries = 0;
-
-        protected HashmapNode(boolean root) {
-            super(root);
-        }
+    // Match the file decoded with the charset. The file is memory mapped a window at a time, so it can be
+    // larger than 2GB, and positions are char offsets into the decoded text.
+    public void matchFile(final Path file, final Charset charset, final StreamMapMatchListener<T> listener) throws IOException {
+        MappedText.feed(file, charset, matcher(listener));
+    }
 
-        @SuppressWarnings("unchecked")
-        @Override
-        public void clear() {
-            children = new TrieNode[1];
-            keys = new char[1];
-            modulusMask = keys.length - 1;
-            numEntries = 0;
-        }
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = new MemoryUsage();
+        usage.addTrie(root, TrieNode.class);
+        usage.addArray(MemoryUsage.VALUES, values);
+        usage.addObject(MemoryUsage.ALPHABET, alphabet);
+        usage.addArray(MemoryUsage.ALPHABET, charClasses);
+        return usage;
+    }
 
-        @Override
-        public TrieNode<T> getTransition(final char key) {
-            int defaultSlot = hash(key) & modulusMask;
-            int currentSlot = defaultSlot;
-            // Linear probing to find the entry for key.
-            do {
-                if (keys[currentSlot] == key) {
-                    return children[currentSlot];
-                } else if (children[currentSlot] == null) {
-                    return defaultTransition;
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
-                }
-            } while (currentSlot != defaultSlot);
-            return defaultTransition;
-        }
+    // Re-optimize the trie for text like the sample, which is walked like it would be matched. Nodes with
+    // many lookups become range nodes when the thresholder finds them over the profile threshold, hashmap
+    // nodes get the keys with the most transitions taken moved to their default slots. Nodes the sample
+    // doesn't reach don't change. Matches don't change either. Don't train while other threads match.
+    public void train(String sample) {
+        train(sample, new ProfileThreshold());
+    }
 
-        @Override
-        public boolean isEmpty() {
-            return numEntries == 0;
+    public void train(String sample, Thresholder thresholdStrategy) {
+        final IdentityHashMap<TrieNode<T>, long[]> hits = profile(sample);
+        long totalLookups = 0;
+        for (long[] count : hits.values()) {
+            totalLookups += count[0];
         }
+        final IdentityHashMap<TrieNode<T>, TrieNode<T>> replacements = new IdentityHashMap<TrieNode<T>, TrieNode<T>>();
+        final ArrayList<TrieNode<T>> nodes = new ArrayList<TrieNode<T>>();
+        EntryVisitor<T> collectNodesVisitor = new EntryVisitor<T>() {
 
-        @Override
-        public void mapEntries(EntryVisitor<T> visitor) {
-            for (int i = 0; i < keys.length; i++) {
-                if (children[i] != null) {
-                    visitor.visit(this, keys[i], children[i]);
+            public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
+                if (!replacements.containsKey(value)) {
+                    replacements.put(value, value);
+                    nodes.add(value);
                 }
             }
-        }
 
-        @Override
-        public void updateTransition(char c, TrieNode<T> node) {
-            int defaultSlot = hash(c) & modulusMask;
-            int currentSlot = defaultSlot;
-            do {
-                if (children[currentSlot] == null) {
-                    throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
-                } else if (keys[currentSlot] == c) {
-                    children[currentSlot] = node;
-                    return;
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
-                }
-            } while (currentSlot != defaultSlot);
-            throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+        };
+        collectNodesVisitor.visit(null, (char) 0, root);
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieNode<T> node = nodes.get(i);
+            node.mapEntries(collectNodesVisitor);
         }
-
-        @Override
-        protected TrieNode<T> optimizeNode(int level, Thresholder thresholdStrategy) {
-            char minKey = '\uffff';
-            char maxKey = 0;
-            // Find you the min and max key on the node.
-            int size = numEntries;
-            for (int i = 0; i < children.length; i++) {
-                if (children[i] != null) {
-                    if (keys[i] > maxKey) {
-                        maxKey = keys[i];
-                    }
-                    if (keys[i] < minKey) {
-                        minKey = keys[i];
+        for (TrieNode<T> node : nodes) {
+            long[] count = hits.get(node);
+            // Leaf, single and range nodes are as fast as they get.
+            if (count != null && !(node instanceof LeafNode || node instanceof SingleNode || node instanceof RangeNode)) {
+                // Number of children, smallest and largest key.
+                final int[] entries = { 0, Character.MAX_VALUE, 0 };
+                node.mapEntries(new EntryVisitor<T>() {
+
+                    public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
+                        entries[0]++;
+                        entries[1] = Math.min(entries[1], key);
+                        entries[2] = Math.max(entries[2], key);
                     }
+                });
+                if (thresholdStrategy.isOverProfileThreshold(entries[0], entries[2] - entries[1] + 1, count[0], totalLookups)) {
+                    replacements.put(node, new RangeNode<T>(node, (char) entries[1], (char) entries[2]));
+                } else if (node instanceof HashmapNode) {
+                    ((HashmapNode<T>) node).reorder(hits);
                 }
             }
-            // If difference between min and max key are small
-            // or only slightly larger than number of entries, use a range node
-            int keyIntervalSize = maxKey - minKey + 1;
-            if (thresholdStrategy.isOverThreshold(size, level, keyIntervalSize)) {
-                return new RangeNode<T>(this, minKey, maxKey);
-            } else {
-                return this;
-            }
         }
-
-        // Double the capacity of the node, calculate the new mask,
-        // rehash and reinsert the entries
-        private void enlarge() {
-            char[] biggerKeys = new char[keys.length * 2];
-            @SuppressWarnings("unchecked")
-            TrieNode<T>[] biggerChildren = new TrieNode[children.length * 2];
-            int biggerMask = biggerKeys.length - 1;
-            for (int i = 0; i < children.length; i++) {
-                char key = keys[i];
-                TrieNode<T> node = children[i];
-                if (node != null) {
-                    int defaultSlot = hash(key) & biggerMask;
-                    int currentSlot = defaultSlot;
-                    do {
-                        if (biggerChildren[currentSlot] == null) {
-                            biggerKeys[currentSlot] = key;
-                            biggerChildren[currentSlot] = node;
-                            break;
-                        } else if (biggerKeys[currentSlot] == key) {
-                            throw new IllegalStateException();
-                        } else {
-                            currentSlot = ++currentSlot & biggerMask;
-                        }
-                    } while (currentSlot != defaultSlot);
-                }
-            }
-            this.keys = biggerKeys;
-            this.children = biggerChildren;
-            this.modulusMask = biggerMask;
+        for (TrieNode<T> node : nodes) {
+            replacements.get(node).relink(replacements);
         }
+        root = replacements.get(root);
+    }
 
-        // Return the node for a key or create a new hashmap node for that key
-        // and return that.
-        private HashmapNode<T> getOrAddChild(char key) {
-            // Check if we need to resize. Capacity of 2^16 doesn't need to resize.
-            // If capacity is <16 and arrays are full or capacity is >16 and
-            // arrays are 90% full, resize
-            if (keys.length < 0x10000 && ((numEntries >= keys.length) || (numEntries > 16 && (numEntries >= keys.length * 0.90f)))) {
-                enlarge();
+    // Walk the sample like the match loop does and count lookups on each node (index 0 of the counts) and
+    // transitions taken to it (index 1), see train. Lookups after fail transitions count on the node the
+    // fail transition leads to.
+    private IdentityHashMap<TrieNode<T>, long[]> profile(String sample) {
+        TrieCursor.Profile<T> cursor = new TrieCursor.Profile<T>(root);
+        for (int idx = 0; idx < sample.length(); idx++) {
+            if (cursor.node.matchLength != 0) {
+                // Matching continues from root after a match.
+                cursor.reset();
             }
-            int defaultSlot = hash(key) & modulusMask;
-            int currentSlot = defaultSlot;
-            do {
-                if (children[currentSlot] == null) {
-                    keys[currentSlot] = key;
-                    HashmapNode<T> newChild = new HashmapNode<T>(false);
-                    children[currentSlot] = newChild;
-                    ++numEntries;
-                    return newChild;
-                } else if (keys[currentSlot] == key) {
-                    return (HashmapNode<T>) children[currentSlot];
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
-                }
-            } while (currentSlot != defaultSlot);
-            throw new IllegalStateException();
+            cursor.step(charClasses[sample.charAt(idx)]);
         }
-
-        // FNV-1a hash
-        private int hash(char c) {
-            // HASH_BASIS = 0x811c9dc5;
-            final int HASH_PRIME = 16777619;
-            return (((0x811c9dc5 ^ (c >> 8)) * HASH_PRIME) ^ (c & 0xff)) * HASH_PRIME;
-        }
-
+        return cursor.hits;
     }
 
-    // This node is good at representing dense ranges of keys.
-    // It has a single array of nodes and a base key value.
-    // Child at array index 3 has key of baseChar + 3.
-    private static final class RangeNode<T> extends TrieNode<T> {
-
-        private char baseChar = 0;
-        private TrieNode<T>[] children;
-        private int size = 0;
-
-        @SuppressWarnings("unchecked")
-        private RangeNode(HashmapNode<T> oldNode, char from, char to) {
-            super(oldNode.defaultTransition != null);
-            // Value of the first character
-            this.baseChar = from;
-            this.size = to - from + 1;
-            this.value = oldNode.value;
-            this.matchLength = oldNode.matchLength;
-            // Avoid even allocating a children array if size is 0.
-            if (size <= 0) {
-                size = 0;
-            } else {
-                this.children = new TrieNode[size];
-                // If original node is root node, prefill everything with yourself.
-                if (oldNode.defaultTransition != null) {
-                    Arrays.fill(children, this);
+    // Let the thresholder plan node types with a view of the whole trie, see Thresholder.plan. Reports
+    // every node with at least 2 children, the root only if it's optimized like the other nodes.
+    private static <T> Thresholder plan(HashmapNode<T> root, boolean optimizeRoot, Thresholder thresholdStrategy) {
+        int[] sizes = new int[16];
+        int[] levels = new int[16];
+        int[] keyIntervalSizes = new int[16];
+        int count = 0;
+        ArrayList<HashmapNode<T>> layer = new ArrayList<HashmapNode<T>>();
+        layer.add(root);
+        for (int level = 0; !layer.isEmpty(); level++) {
+            ArrayList<HashmapNode<T>> nextLayer = new ArrayList<HashmapNode<T>>();
+            for (HashmapNode<T> node : layer) {
+                char minKey = '\uffff';
+                char maxKey = 0;
+                for (int i = 0; i < node.children.length; i++) {
+                    if (node.children[i] != null) {
+                        minKey = (char) Math.min(minKey, node.keys[i]);
+                        maxKey = (char) Math.max(maxKey, node.keys[i]);
+                        nextLayer.add((HashmapNode<T>) node.children[i]);
+                    }
                 }
-                // Grab the children of the old node.
-                for (int i = 0; i < oldNode.children.length; i++) {
-                    if (oldNode.children[i] != null) {
-                        children[oldNode.keys[i] - from] = oldNode.children[i];
+                if (node.numEntries > 1 && (level > 0 || optimizeRoot)) {
+                    if (count == sizes.length) {
+                        sizes = Arrays.copyOf(sizes, count * 2);
+                        levels = Arrays.copyOf(levels, count * 2);
+                        keyIntervalSizes = Arrays.copyOf(keyIntervalSizes, count * 2);
                     }
+                    sizes[count] = node.numEntries;
+                    levels[count] = level;
+                    keyIntervalSizes[count++] = maxKey - minKey + 1;
                 }
             }
+            layer = nextLayer;
         }
+        return thresholdStrategy.plan(Arrays.copyOf(sizes, count), Arrays.copyOf(levels, count), Arrays.copyOf(keyIntervalSizes, count));
+    }
 
-        @Override
-        public void clear() {
-            children = null;
-            size = 0;
-
+    // State of the match loop between chunks. The current node lags a character behind, so its match
+    // is reported in the next chunk or when the text is finished.
+    private final class StreamMatcher implements Matcher {
+
+        private final TrieCursor<T> cursor = new TrieCursor<T>(root);
+        // Root doesn't have a match.
+        private int currentNodeMatchLength = 0;
+        private T currentNodeMatchValue = null;
+        private final StreamMapMatchListener<T> listener;
+        // Position of the next character in the text.
+        private long position = 0;
+        private boolean stopped = false;
+
+        private StreamMatcher(StreamMapMatchListener<T> listener) {
+            this.listener = listener;
         }
 
-        @Override
-        public TrieNode<T> getTransition(char c) {
-            // First check if the key is between max and min value.
-            // Here we use the fact that char type is unsigned to figure it out
-            // with a single condition.
-            int idx = (char) (c - baseChar);
-            if (idx < size) {
-                return children[idx];
+        @SuppressWarnings("unchecked")
+        public boolean feed(final char[] chunk, final int off, final int len) {
+            if (stopped) {
+                return false;
             }
-            return defaultTransition;
-        }
-
-        @Override
-        public boolean isEmpty() {
-            return size == 0;
-        }
-
-        @Override
-        public void mapEntries(EntryVisitor<T> visitor) {
-            if (children != null) {
-                for (int i = 0; i < children.length; i++) {
-                    if (children[i] != null && children[i] != this) {
-                        visitor.visit(this, (char) (baseChar + i), children[i]);
+            // Local copies of the state for the loop.
+            final Object[] values = ShortestMatchMap.this.values;
+            int currentNodeMatchLength = this.currentNodeMatchLength;
+            T currentNodeMatchValue = this.currentNodeMatchValue;
+            // Position of the chunk array start in the text.
+            final long base = position - off;
+            final int end = off + len;
+            int idx = off;
+            while (idx < end) {
+                final char c = charClasses[chunk[idx]];
+                if (currentNodeMatchLength != 0) {
+                    if (!listener.match(base + idx - currentNodeMatchLength, base + idx, currentNodeMatchValue)) {
+                        stopped = true;
+                        return false;
                     }
+                    cursor.reset();
                 }
+                cursor.step(c);
+                currentNodeMatchLength = cursor.node.matchLength;
+                currentNodeMatchValue = (T) values[cursor.node.id];
+                ++idx;
             }
+            this.currentNodeMatchLength = currentNodeMatchLength;
+            this.currentNodeMatchValue = currentNodeMatchValue;
+            position = base + end;
+            return true;
         }
 
-        @Override
-        public void updateTransition(char c, TrieNode<T> node) {
-            // First check if the key is between max and min value.
-            // Here we use the fact that char type is unsigned to figure it out
-            // with a single condition.
-            int idx = (char) (c - baseChar);
-            if (idx < size) {
-                if (children[idx] != null) {
-                    children[idx] = node;
-                    return;
-                } else {
-                    throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
-                }
+        public void finish() {
+            if (currentNodeMatchLength != 0 && !stopped) {
+                // Output any matches on the last node
+                listener.match(position - currentNodeMatchLength, position, currentNodeMatchValue);
             }
-            throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
-        }
-    }
-
-    // Basic node for both
-    private static abstract class TrieNode<T> {
-
-        protected TrieNode<T> defaultTransition = null;
-        protected TrieNode<T> failTransition;
-        protected int matchLength;
-        protected T value;
-
-        protected TrieNode(boolean root) {
-            this.defaultTransition = root ? this : null;
+            cursor.reset();
+            currentNodeMatchLength = 0;
+            currentNodeMatchValue = null;
+            position = 0;
+            stopped = false;
         }
-
-        public abstract void clear();
-
-        // Get fail transition
-        public final TrieNode<T> getFailTransition() {
-            return failTransition;
-        }
-
-        // Get transition (root node returns something non-null for all characters - itself)
-        public abstract TrieNode<T> getTransition(char c);
-
-        public abstract boolean isEmpty();
-
-        public abstract void mapEntries(final EntryVisitor<T> visitor);
-
-        public abstract void updateTransition(char c, TrieNode<T> node);
-
-        protected TrieNode<T> optimizeNode(int level, Thresholder thresholdStrategy) {
-            return this;
-        }
-
     }
 
 }
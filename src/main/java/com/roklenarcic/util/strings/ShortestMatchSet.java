@@ -1,24 +1,33 @@
 package com.roklenarcic.util.strings;
 
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 
+import com.roklenarcic.util.strings.threshold.ProfileThreshold;
 import com.roklenarcic.util.strings.threshold.RangeNodeThreshold;
 import com.roklenarcic.util.strings.threshold.Thresholder;
 
 // Matches leftmost shortest matches. Useful when you want non-overlapping
 // matches with a string set that doesn't have strings that are prefix to other strings in the set.
-public class ShortestMatchSet implements StringSet {
-    private boolean caseSensitive = true;
-    private TrieNode root;
+public class ShortestMatchSet implements StringSet, MemoryAccountable {
+    private Alphabet alphabet;
+    private char[] charClasses;
+    private TrieNode<Void> root;
 
     public ShortestMatchSet(final Iterable<String> keywords, boolean caseSensitive) {
         this(keywords, caseSensitive, new RangeNodeThreshold());
     }
 
     public ShortestMatchSet(final Iterable<String> keywords, boolean caseSensitive, final Thresholder thresholdStrategy) {
-        this.caseSensitive = caseSensitive;
+        alphabet = new Alphabet(caseSensitive);
         // Create the root node
-        root = new HashmapNode(true);
+        root = new HashmapNode<Void>();
+        int nodeCount = 1;
         // Add all keywords
         OUTER: for (String keyword : keywords) {
             // Skip any empty keywords
@@ -26,9 +35,12 @@ public class ShortestMatchSet implements StringSet {
                 // Start with the current node and traverse the tree
                 // character by character. Add nodes as needed to
                 // fill out the tree.
-                HashmapNode currentNode = (HashmapNode) root;
+                HashmapNode<Void> currentNode = (HashmapNode<Void>) root;
                 for (int idx = 0; idx < keyword.length(); idx++) {
-                    currentNode = currentNode.getOrAddChild(caseSensitive ? keyword.charAt(idx) : Character.toLowerCase(keyword.charAt(idx)));
+                    currentNode = currentNode.getOrAddChild(alphabet.add(keyword.charAt(idx)), nodeCount);
+                    if (currentNode.id == nodeCount) {
+                        nodeCount++;
+                    }
                     // If currentNode has a match go on to the next keyword, the current keyword won't ever
                     // match, because there's a shorter one in the set.
                     if (currentNode.matchLength != 0) {
@@ -40,6 +52,7 @@ public class ShortestMatchSet implements StringSet {
                 currentNode.matchLength = keyword.length();
             }
         }
+        charClasses = alphabet.classes();
         // Go through nodes breadth first, swap any hashmap nodes,
         // whose size is close to the size of range of keys with
         // flat array based nodes.
@@ -49,22 +62,29 @@ public class ShortestMatchSet implements StringSet {
         // calculating for a 3 letter word requires having done the calculation
         // for all 2 letter words.
         //
-        final Queue<TrieNode> queue = new Queue<TrieNode>();
-        root = root.optimizeNode(0, thresholdStrategy);
+        final Thresholder plannedStrategy = plan((HashmapNode<Void>) root, !thresholdStrategy.isOverRootTableThreshold(alphabet.size()), thresholdStrategy);
+        final Queue<TrieNode<Void>> queue = new Queue<TrieNode<Void>>();
+        if (thresholdStrategy.isOverRootTableThreshold(alphabet.size())) {
+            // Root table has a slot for every class id. Slots without a child lead back to the root,
+            // so root lookups never miss.
+            root = new RangeNode<Void>((HashmapNode<Void>) root, (char) 0, (char) (alphabet.size() - 1), true);
+        } else {
+            root = root.optimizeNode(0, plannedStrategy);
+        }
         queue.push(root);
         queue.push(null);
         // Need to use array to get mutateable state for anonymous class
         final int[] level = new int[] { 1 };
 
-        EntryVisitor failTransAndOutputsVisitor = new EntryVisitor() {
+        EntryVisitor<Void> failTransAndOutputsVisitor = new EntryVisitor<Void>() {
 
-            public void visit(TrieNode parent, char key, TrieNode value) {
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
                 // First optimize node
-                value = value.optimizeNode(level[0], thresholdStrategy);
+                value = value.optimizeNode(level[0], plannedStrategy);
                 parent.updateTransition(key, value);
 
                 // Get fail transiton of the parent.
-                TrieNode parentFail = parent.getFailTransition();
+                TrieNode<Void> parentFail = parent.failTransition;
                 // Since root node has null fail transition, first level nodes have null parentFail.
                 if (parentFail == null) {
                     // First level nodes have one possible fail transition, which is
@@ -81,21 +101,22 @@ public class ShortestMatchSet implements StringSet {
                         // parentFail ----char----> valueFail
                         // e.g. "ab" -> c -> "abc"
                         // "b" -> c -> "bc"
-                        final TrieNode matchContinuation = parentFail.getTransition(key);
+                        final TrieNode<Void> matchContinuation = parentFail.getTransition(key);
                         if (matchContinuation != null) {
                             value.failTransition = matchContinuation;
+                        } else if (parentFail == root) {
+                            // Root without a key mapping, the only suffix left is an empty string.
+                            value.failTransition = root;
                         } else {
                             // If parentFail didn't have key mapping
                             // take parentFail's failTransition and try again
-                            // The last fail transition is the root node, which
-                            // always has a key mapping.
-                            parentFail = parentFail.getFailTransition();
+                            parentFail = parentFail.failTransition;
                         }
                     } while (value.failTransition == null);
                     // Now that we have a fail transition, if this node has no match,
                     // find follow fail transitions to find a node that has match.
                     if (value.matchLength == 0) {
-                        TrieNode fail = value.failTransition;
+                        TrieNode<Void> fail = value.failTransition;
                         while (fail != root && fail.matchLength == 0) {
                             fail = fail.failTransition;
                         }
@@ -117,7 +138,7 @@ public class ShortestMatchSet implements StringSet {
 
         };
         while (!queue.isEmpty()) {
-            TrieNode n = queue.take();
+            TrieNode<Void> n = queue.take();
             if (n == null) {
                 if (!queue.isEmpty()) {
                     queue.push(null);
@@ -133,9 +154,9 @@ public class ShortestMatchSet implements StringSet {
         // chain to find a node with a transition for that char. Instead of wasting space on empty slots
         // we can do that beforehand and add that transition to the node. We need to do that in depth first
         // fashion, otherwise an endless loop can form.
-        EntryVisitor enqueueNodesVisitor = new EntryVisitor() {
+        EntryVisitor<Void> enqueueNodesVisitor = new EntryVisitor<Void>() {
 
-            public void visit(TrieNode parent, char key, TrieNode value) {
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
                 // go depth first
                 if (!value.isEmpty()) {
                     queue.push(value);
@@ -145,23 +166,23 @@ public class ShortestMatchSet implements StringSet {
         };
         root.mapEntries(enqueueNodesVisitor);
         while (!queue.isEmpty()) {
-            TrieNode node = queue.pop();
+            TrieNode<Void> node = queue.pop();
             if (node == null) {
                 node = queue.pop();
                 if (node instanceof RangeNode) {
                     // Range nodes have gaps (null values) in their array. We can put this wasted
                     // memory to work by filling these gaps with the correct next node for that character
                     // which we can figure out by following failure transitions.
-                    RangeNode rangeNode = (RangeNode) node;
+                    RangeNode<Void> rangeNode = (RangeNode<Void>) node;
                     for (int i = 0; i < rangeNode.size; i++) {
                         if (rangeNode.children[i] == null) {
                             char charOfMissingTransition = (char) (rangeNode.baseChar + i);
                             // Walk up fail transition until you run out of them (and do nothing)
                             // or one of them has a transition for this char. Put that node
                             // into the empty slot on the range node.
-                            TrieNode n = rangeNode.failTransition;
+                            TrieNode<Void> n = rangeNode.failTransition;
                             while (n != null) {
-                                TrieNode nextNode = n.getTransition(charOfMissingTransition);
+                                TrieNode<Void> nextNode = n.getTransition(charOfMissingTransition);
                                 if (nextNode == null) {
                                     n = n.failTransition;
                                 } else {
@@ -177,374 +198,431 @@ public class ShortestMatchSet implements StringSet {
                 node.mapEntries(enqueueNodesVisitor);
             }
         }
+        compressChains(thresholdStrategy);
     }
 
-    public void match(final String haystack, final SetMatchListener listener) {
+    // Node statistics for tuning the thresholder, see TrieDiagnostics.
+    public TrieDiagnostics diagnostics() {
+        final TrieDiagnostics diagnostics = new TrieDiagnostics();
+        final ArrayList<TrieNode<Void>> nodes = new ArrayList<TrieNode<Void>>();
+        final IdentityHashMap<TrieNode<Void>, Integer> levels = new IdentityHashMap<TrieNode<Void>, Integer>();
+        // Number of children, smallest and largest key of the visited node.
+        final int[] entries = new int[3];
+        EntryVisitor<Void> visitor = new EntryVisitor<Void>() {
+
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                entries[0]++;
+                entries[1] = Math.min(entries[1], key);
+                entries[2] = Math.max(entries[2], key);
+                if (!levels.containsKey(value)) {
+                    levels.put(value, levels.get(parent) + 1);
+                    nodes.add(value);
+                }
+            }
+
+        };
+        levels.put(root, 0);
+        nodes.add(root);
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieNode<Void> node = nodes.get(i);
+            int level = levels.get(node);
+            entries[0] = 0;
+            entries[1] = Character.MAX_VALUE;
+            entries[2] = 0;
+            if (node instanceof ChainNode) {
+                // Chain stands in for a run of single child nodes, its child is at the end of the run.
+                ChainNode<Void> chain = (ChainNode<Void>) node;
+                entries[0] = 1;
+                entries[1] = entries[2] = chain.label[0];
+                if (!levels.containsKey(chain.child)) {
+                    levels.put(chain.child, level + chain.label.length);
+                    nodes.add(chain.child);
+                }
+            } else {
+                node.mapEntries(visitor);
+            }
+            int failChainLength = 0;
+            for (TrieNode<Void> n = node; n != root && n != null; n = n.failTransition) {
+                failChainLength++;
+            }
+            int slots = node instanceof RangeNode ? ((RangeNode<Void>) node).size : 0;
+            diagnostics.add(node.getClass().getSimpleName(), level, entries[0], entries[2] - entries[1] + 1, failChainLength, slots);
+        }
+        return diagnostics;
+    }
+
+    public void matchChars(final char[] haystack, final int from, final int to, final CharSequenceSetMatchListener listener) {
+        // Listeners see the array as a char sequence, positions are array indexes.
+        final CharSequence sequence = CharBuffer.wrap(haystack);
         // This particualr match method is different from the other match functions in that
         // the current node is lagging behind the character being examined by one position.
 
         // Start with the root node.
-        TrieNode currentNode = root;
-        int currentNodeMatchLength = currentNode.matchLength;
+        final TrieCursor<Void> cursor = new TrieCursor<Void>(root);
+        int currentNodeMatchLength = cursor.node.matchLength;
 
-        int idx = 0;
+        int idx = from;
         // For each character.
-        final int len = haystack.length();
-        // Putting this if into the loop worsens the performance so we'll sadly
-        // have to deal with duplicated code.
-        if (caseSensitive) {
-            while (idx < len) {
-                final char c = haystack.charAt(idx);
-                // The current node at this point is the node after the transition from the last loop
-                // iteration.
-                if (currentNodeMatchLength != 0) {
-                    // If that node had a match output any matches on the node
-                    // and jump to root, only leaf nodes have matches so next character won't match anything,
-                    // so continue matching from the root.
-                    if (!listener.match(haystack, idx - currentNodeMatchLength, idx)) {
-                        break;
-                    }
-                    currentNode = root.getTransition(c);
-                } else {
-                    // Try to transition from the current node using the character
-                    TrieNode nextNode = currentNode.getTransition(c);
-                    while (nextNode == null) {
-                        currentNode = currentNode.failTransition;
-                        nextNode = currentNode.getTransition(c);
-                    }
-                    currentNode = nextNode;
+        final int len = to;
+        while (idx < len) {
+            final char c = charClasses[haystack[idx]];
+            // The current node at this point is the node after the transition from the last loop
+            // iteration.
+            if (currentNodeMatchLength != 0) {
+                // If that node had a match output any matches on the node
+                // and jump to root, only leaf nodes have matches so next character won't match anything,
+                // so continue matching from the root.
+                if (!listener.match(sequence, idx - currentNodeMatchLength, idx)) {
+                    break;
                 }
-                // Save the node match.
-                currentNodeMatchLength = currentNode.matchLength;
-                ++idx;
+                cursor.reset();
             }
-            // Because we are lagging behind when outputting matches on the current nodes,
-            // we need to output a potential match after the loop.
+            cursor.step(c);
+            // Save the node match.
+            currentNodeMatchLength = cursor.node.matchLength;
+            ++idx;
+        }
+        // Because we are lagging behind when outputting matches on the current nodes,
+        // we need to output a potential match after the loop.
+        if (currentNodeMatchLength != 0) {
+            // Output any matches on the last node
+            listener.match(sequence, idx - currentNodeMatchLength, idx);
+        }
+    }
+
+    public void matchSequence(final CharSequence haystack, final CharSequenceSetMatchListener listener) {
+        // This particualr match method is different from the other match functions in that
+        // the current node is lagging behind the character being examined by one position.
+
+        // Start with the root node.
+        final TrieCursor<Void> cursor = new TrieCursor<Void>(root);
+        int currentNodeMatchLength = cursor.node.matchLength;
+
+        int idx = 0;
+        // For each character.
+        final int len = haystack.length();
+        while (idx < len) {
+            final char c = charClasses[haystack.charAt(idx)];
+            // The current node at this point is the node after the transition from the last loop
+            // iteration.
             if (currentNodeMatchLength != 0) {
-                // Output any matches on the last node
-                listener.match(haystack, idx - currentNodeMatchLength, idx);
-            }
-        } else {
-            while (idx < len) {
-                final char c = Character.toLowerCase(haystack.charAt(idx));
-                // The current node at this point is the node after the transition from the last loop
-                // iteration.
-                if (currentNodeMatchLength != 0) {
-                    // If that node had a match output any matches on the node
-                    // and jump to root, only leaf nodes have matches so next character won't match anything,
-                    // so continue matching from the root.
-                    if (!listener.match(haystack, idx - currentNodeMatchLength, idx)) {
-                        break;
-                    }
-                    currentNode = root.getTransition(c);
-                } else {
-                    // Try to transition from the current node using the character
-                    TrieNode nextNode = currentNode.getTransition(c);
-                    while (nextNode == null) {
-                        currentNode = currentNode.failTransition;
-                        nextNode = currentNode.getTransition(c);
-                    }
-                    currentNode = nextNode;
+                // If that node had a match output any matches on the node
+                // and jump to root, only leaf nodes have matches so next character won't match anything,
+                // so continue matching from the root.
+                if (!listener.match(haystack, idx - currentNodeMatchLength, idx)) {
+                    break;
                 }
-                // Save the node match.
-                currentNodeMatchLength = currentNode.matchLength;
-                ++idx;
+                cursor.reset();
             }
-            // Because we are lagging behind when outputting matches on the current nodes,
-            // we need to output a potential match after the loop.
+            cursor.step(c);
+            // Save the node match.
+            currentNodeMatchLength = cursor.node.matchLength;
+            ++idx;
+        }
+        // Because we are lagging behind when outputting matches on the current nodes,
+        // we need to output a potential match after the loop.
+        if (currentNodeMatchLength != 0) {
+            // Output any matches on the last node
+            listener.match(haystack, idx - currentNodeMatchLength, idx);
+        }
+    }
+
+    public void match(final String haystack, final SetMatchListener listener) {
+        // This particualr match method is different from the other match functions in that
+        // the current node is lagging behind the character being examined by one position.
+
+        // Start with the root node.
+        final TrieCursor<Void> cursor = new TrieCursor<Void>(root);
+        int currentNodeMatchLength = cursor.node.matchLength;
+
+        int idx = 0;
+        // For each character.
+        final int len = haystack.length();
+        while (idx < len) {
+            final char c = charClasses[haystack.charAt(idx)];
+            // The current node at this point is the node after the transition from the last loop
+            // iteration.
             if (currentNodeMatchLength != 0) {
-                // Output any matches on the last node
-                listener.match(haystack, idx - currentNodeMatchLength, idx);
+                // If that node had a match output any matches on the node
+                // and jump to root, only leaf nodes have matches so next character won't match anything,
+                // so continue matching from the root.
+                if (!listener.match(haystack, idx - currentNodeMatchLength, idx)) {
+                    break;
+                }
+                cursor.reset();
             }
+            cursor.step(c);
+            // Save the node match.
+            currentNodeMatchLength = cursor.node.matchLength;
+            ++idx;
+        }
+        // Because we are lagging behind when outputting matches on the current nodes,
+        // we need to output a potential match after the loop.
+        if (currentNodeMatchLength != 0) {
+            // Output any matches on the last node
+            listener.match(haystack, idx - currentNodeMatchLength, idx);
         }
     }
 
-    private interface EntryVisitor {
-        void visit(TrieNode parent, char key, TrieNode value);
+    // Matcher for text that arrives in chunks, it finds the same matches as match would in all of the text.
+    public Matcher matcher(final StreamSetMatchListener listener) {
+        return new StreamMatcher(listener);
     }
 
-    // An open addressing hashmap implementation with linear probing
-    // and capacity of 2^n
-    private final static class HashmapNode extends TrieNode {
+    // Match the file decoded with the charset. The file is memory mapped a window at a time, so it can be
+    // larger than 2GB, and positions are char offsets into the decoded text.
+    public void matchFile(final Path file, final Charset charset, final StreamSetMatchListener listener) throws IOException {
+        MappedText.feed(file, charset, matcher(listener));
+    }
 
-        // Start with capacity of 1 and resize as needed.
-        private TrieNode[] children = new TrieNode[1];
-        private char[] keys = new char[1];
-        // Since capacity is a power of 2, we calculate mod by just
-        // bitwise AND with the right mask.
-        private int modulusMask = keys.length - 1;
-        private int numEntries = 0;
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = new MemoryUsage();
+        usage.addTrie(root, TrieNode.class);
+        usage.addObject(MemoryUsage.ALPHABET, alphabet);
+        usage.addArray(MemoryUsage.ALPHABET, charClasses);
+        return usage;
+    }
 
-        protected HashmapNode(boolean root) {
-            super(root);
-        }
+    // Re-optimize the trie for text like the sample, which is walked like it would be matched. Nodes with
+    // many lookups become range nodes when the thresholder finds them over the profile threshold, hashmap
+    // nodes get the keys with the most transitions taken moved to their default slots. Nodes the sample
+    // doesn't reach don't change. Matches don't change either. Don't train while other threads match.
+    public void train(String sample) {
+        train(sample, new ProfileThreshold());
+    }
 
-        @Override
-        public void clear() {
-            children = new TrieNode[1];
-            keys = new char[1];
-            modulusMask = keys.length - 1;
-            numEntries = 0;
+    public void train(String sample, Thresholder thresholdStrategy) {
+        final IdentityHashMap<TrieNode<Void>, long[]> hits = profile(sample);
+        long totalLookups = 0;
+        for (long[] count : hits.values()) {
+            totalLookups += count[0];
         }
-
-        @Override
-        public TrieNode getTransition(final char key) {
-            int defaultSlot = hash(key) & modulusMask;
-            int currentSlot = defaultSlot;
-            // Linear probing to find the entry for key.
-            do {
-                if (keys[currentSlot] == key) {
-                    return children[currentSlot];
-                } else if (children[currentSlot] == null) {
-                    return defaultTransition;
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
+        final IdentityHashMap<TrieNode<Void>, TrieNode<Void>> replacements = new IdentityHashMap<TrieNode<Void>, TrieNode<Void>>();
+        final ArrayList<TrieNode<Void>> nodes = new ArrayList<TrieNode<Void>>();
+        EntryVisitor<Void> collectNodesVisitor = new EntryVisitor<Void>() {
+
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                if (!replacements.containsKey(value)) {
+                    replacements.put(value, value);
+                    nodes.add(value);
                 }
-            } while (currentSlot != defaultSlot);
-            return defaultTransition;
-        }
+            }
 
-        @Override
-        public boolean isEmpty() {
-            return numEntries == 0;
+        };
+        collectNodesVisitor.visit(null, (char) 0, root);
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieNode<Void> node = nodes.get(i);
+            if (node instanceof ChainNode) {
+                collectNodesVisitor.visit(node, (char) 0, ((ChainNode<Void>) node).child);
+            } else {
+                node.mapEntries(collectNodesVisitor);
+            }
         }
-
-        @Override
-        public void mapEntries(EntryVisitor visitor) {
-            for (int i = 0; i < keys.length; i++) {
-                if (children[i] != null) {
-                    visitor.visit(this, keys[i], children[i]);
+        for (TrieNode<Void> node : nodes) {
+            long[] count = hits.get(node);
+            // Leaf, single, range and chain nodes are as fast as they get.
+            if (count != null && !(node instanceof LeafNode || node instanceof SingleNode || node instanceof RangeNode || node instanceof ChainNode)) {
+                // Number of children, smallest and largest key.
+                final int[] entries = { 0, Character.MAX_VALUE, 0 };
+                node.mapEntries(new EntryVisitor<Void>() {
+
+                    public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                        entries[0]++;
+                        entries[1] = Math.min(entries[1], key);
+                        entries[2] = Math.max(entries[2], key);
+                    }
+                });
+                if (thresholdStrategy.isOverProfileThreshold(entries[0], entries[2] - entries[1] + 1, count[0], totalLookups)) {
+                    replacements.put(node, new RangeNode<Void>(node, (char) entries[1], (char) entries[2]));
+                } else if (node instanceof HashmapNode) {
+                    ((HashmapNode<Void>) node).reorder(hits);
                 }
             }
         }
-
-        @Override
-        public void updateTransition(char c, TrieNode node) {
-            int defaultSlot = hash(c) & modulusMask;
-            int currentSlot = defaultSlot;
-            do {
-                if (children[currentSlot] == null) {
-                    throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
-                } else if (keys[currentSlot] == c) {
-                    children[currentSlot] = node;
-                    return;
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
-                }
-            } while (currentSlot != defaultSlot);
-            throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+        for (TrieNode<Void> node : nodes) {
+            replacements.get(node).relink(replacements);
         }
+        root = replacements.get(root);
+    }
 
-        @Override
-        protected TrieNode optimizeNode(int level, Thresholder thresholdStrategy) {
-            char minKey = '\uffff';
-            char maxKey = 0;
-            // Find you the min and max key on the node.
-            int size = numEntries;
-            for (int i = 0; i < children.length; i++) {
-                if (children[i] != null) {
-                    if (keys[i] > maxKey) {
-                        maxKey = keys[i];
-                    }
-                    if (keys[i] < minKey) {
-                        minKey = keys[i];
-                    }
+    // Replace runs of single child nodes without matches by chain nodes. Nodes that are a fail
+    // transition of any node can't be in a chain, that way fail transitions still lead to real nodes
+    // and range node gaps, which are filled with children of fail transitions, can only lead to the start
+    // of a chain.
+    private void compressChains(final Thresholder thresholdStrategy) {
+        final IdentityHashMap<TrieNode<Void>, TrieNode<Void>> failTargets = new IdentityHashMap<TrieNode<Void>, TrieNode<Void>>();
+        final ArrayList<TrieNode<Void>> nodes = new ArrayList<TrieNode<Void>>();
+        final Queue<TrieNode<Void>> queue = new Queue<TrieNode<Void>>();
+        EntryVisitor<Void> collectNodesVisitor = new EntryVisitor<Void>() {
+
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                TrieNode<Void> fail = value.failTransition;
+                if (!failTargets.containsKey(fail)) {
+                    failTargets.put(fail, fail);
+                }
+                if (!value.isEmpty()) {
+                    queue.push(value);
                 }
             }
-            // If difference between min and max key are small
-            // or only slightly larger than number of entries, use a range node
-            int keyIntervalSize = maxKey - minKey + 1;
-            if (thresholdStrategy.isOverThreshold(size, level, keyIntervalSize)) {
-                return new RangeNode(this, minKey, maxKey);
-            } else {
-                return this;
+
+        };
+        // Range node gaps lead to nodes that were already queued, those are skipped.
+        final IdentityHashMap<TrieNode<Void>, TrieNode<Void>> seen = new IdentityHashMap<TrieNode<Void>, TrieNode<Void>>();
+        queue.push(root);
+        while (!queue.isEmpty()) {
+            TrieNode<Void> node = queue.take();
+            if (!seen.containsKey(node)) {
+                seen.put(node, node);
+                nodes.add(node);
+                node.mapEntries(collectNodesVisitor);
             }
         }
-
-        // Double the capacity of the node, calculate the new mask,
-        // rehash and reinsert the entries
-        private void enlarge() {
-            char[] biggerKeys = new char[keys.length * 2];
-            TrieNode[] biggerChildren = new TrieNode[children.length * 2];
-            int biggerMask = biggerKeys.length - 1;
-            for (int i = 0; i < children.length; i++) {
-                char key = keys[i];
-                TrieNode node = children[i];
-                if (node != null) {
-                    int defaultSlot = hash(key) & biggerMask;
-                    int currentSlot = defaultSlot;
-                    do {
-                        if (biggerChildren[currentSlot] == null) {
-                            biggerKeys[currentSlot] = key;
-                            biggerChildren[currentSlot] = node;
-                            break;
-                        } else if (biggerKeys[currentSlot] == key) {
-                            throw new IllegalStateException();
-                        } else {
-                            currentSlot = ++currentSlot & biggerMask;
-                        }
-                    } while (currentSlot != defaultSlot);
+        // Find the runs, each run starts with a child of a node that isn't in a run.
+        final IdentityHashMap<TrieNode<Void>, ChainNode<Void>> chains = new IdentityHashMap<TrieNode<Void>, ChainNode<Void>>();
+        EntryVisitor<Void> findChainsVisitor = new EntryVisitor<Void>() {
+
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                if (isChainLink(value, failTargets) && !chains.containsKey(value)) {
+                    int length = 0;
+                    for (TrieNode<Void> n = value; isChainLink(n, failTargets); n = ((SingleNode<Void>) n).child) {
+                        length++;
+                    }
+                    chains.put(value, thresholdStrategy.isOverChainThreshold(length) ? new ChainNode<Void>((SingleNode<Void>) value, length, true) : null);
                 }
             }
-            this.keys = biggerKeys;
-            this.children = biggerChildren;
-            this.modulusMask = biggerMask;
-        }
 
-        // Return the node for a key or create a new hashmap node for that key
-        // and return that.
-        private HashmapNode getOrAddChild(char key) {
-            // Check if we need to resize. Capacity of 2^16 doesn't need to resize.
-            // If capacity is <16 and arrays are full or capacity is >16 and
-            // arrays are 90% full, resize
-            if (keys.length < 0x10000 && ((numEntries >= keys.length) || (numEntries > 16 && (numEntries >= keys.length * 0.90f)))) {
-                enlarge();
+        };
+        for (TrieNode<Void> node : nodes) {
+            if (!isChainLink(node, failTargets)) {
+                node.mapEntries(findChainsVisitor);
             }
-            int defaultSlot = hash(key) & modulusMask;
-            int currentSlot = defaultSlot;
-            do {
-                if (children[currentSlot] == null) {
-                    keys[currentSlot] = key;
-                    HashmapNode newChild = new HashmapNode(false);
-                    children[currentSlot] = newChild;
-                    ++numEntries;
-                    return newChild;
-                } else if (keys[currentSlot] == key) {
-                    return (HashmapNode) children[currentSlot];
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
-                }
-            } while (currentSlot != defaultSlot);
-            throw new IllegalStateException();
         }
+        // Replace the starts of the runs with chain nodes in trie edges and range node gaps.
+        EntryVisitor<Void> replaceVisitor = new EntryVisitor<Void>() {
 
-        // FNV-1a hash
-        private int hash(char c) {
-            // HASH_BASIS = 0x811c9dc5;
-            final int HASH_PRIME = 16777619;
-            return (((0x811c9dc5 ^ (c >> 8)) * HASH_PRIME) ^ (c & 0xff)) * HASH_PRIME;
-        }
-
-    }
-
-    // This node is good at representing dense ranges of keys.
-    // It has a single array of nodes and a base key value.
-    // Child at array index 3 has key of baseChar + 3.
-    private static final class RangeNode extends TrieNode {
-
-        private char baseChar = 0;
-        private TrieNode[] children;
-        private int size = 0;
-
-        private RangeNode(HashmapNode oldNode, char from, char to) {
-            super(oldNode.defaultTransition != null);
-            // Value of the first character
-            this.baseChar = from;
-            this.size = to - from + 1;
-            this.matchLength = oldNode.matchLength;
-            // Avoid even allocating a children array if size is 0.
-            if (size <= 0) {
-                size = 0;
-            } else {
-                this.children = new TrieNode[size];
-                // If original node is root node, prefill everything with yourself.
-                if (oldNode.defaultTransition != null) {
-                    Arrays.fill(children, this);
-                }
-                // Grab the children of the old node.
-                for (int i = 0; i < oldNode.children.length; i++) {
-                    if (oldNode.children[i] != null) {
-                        children[oldNode.keys[i] - from] = oldNode.children[i];
-                    }
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                ChainNode<Void> chain = chains.get(value);
+                if (chain != null) {
+                    parent.updateTransition(key, chain);
                 }
             }
-        }
-
-        @Override
-        public void clear() {
-            children = null;
-            size = 0;
 
+        };
+        for (TrieNode<Void> node : nodes) {
+            node.mapEntries(replaceVisitor);
         }
+    }
 
-        @Override
-        public TrieNode getTransition(char c) {
-            // First check if the key is between max and min value.
-            // Here we use the fact that char type is unsigned to figure it out
-            // with a single condition.
-            int idx = (char) (c - baseChar);
-            if (idx < size) {
-                return children[idx];
-            }
-            return defaultTransition;
-        }
+    private boolean isChainLink(TrieNode<Void> node, IdentityHashMap<TrieNode<Void>, TrieNode<Void>> failTargets) {
+        return node instanceof SingleNode && !node.isEmpty() && node.matchLength == 0 && !failTargets.containsKey(node);
+    }
 
-        @Override
-        public boolean isEmpty() {
-            return size == 0;
+    // Walk the sample like the match loop does and count lookups on each node (index 0 of the counts) and
+    // transitions taken to it (index 1), see train. Lookups after fail transitions count on the node the
+    // fail transition leads to.
+    private IdentityHashMap<TrieNode<Void>, long[]> profile(String sample) {
+        TrieCursor.Profile<Void> cursor = new TrieCursor.Profile<Void>(root);
+        for (int idx = 0; idx < sample.length(); idx++) {
+            if (cursor.node.matchLength != 0) {
+                // Matching continues from root after a match.
+                cursor.reset();
+            }
+            cursor.step(charClasses[sample.charAt(idx)]);
         }
+        return cursor.hits;
+    }
 
-        @Override
-        public void mapEntries(EntryVisitor visitor) {
-            if (children != null) {
-                for (int i = 0; i < children.length; i++) {
-                    if (children[i] != null && children[i] != this) {
-                        visitor.visit(this, (char) (baseChar + i), children[i]);
+    // Let the thresholder plan node types with a view of the whole trie, see Thresholder.plan. Reports
+    // every node with at least 2 children, the root only if it's optimized like the other nodes.
+    private static Thresholder plan(HashmapNode<Void> root, boolean optimizeRoot, Thresholder thresholdStrategy) {
+        int[] sizes = new int[16];
+        int[] levels = new int[16];
+        int[] keyIntervalSizes = new int[16];
+        int count = 0;
+        ArrayList<HashmapNode<Void>> layer = new ArrayList<HashmapNode<Void>>();
+        layer.add(root);
+        for (int level = 0; !layer.isEmpty(); level++) {
+            ArrayList<HashmapNode<Void>> nextLayer = new ArrayList<HashmapNode<Void>>();
+            for (HashmapNode<Void> node : layer) {
+                char minKey = '\uffff';
+                char maxKey = 0;
+                for (int i = 0; i < node.children.length; i++) {
+                    if (node.children[i] != null) {
+                        minKey = (char) Math.min(minKey, node.keys[i]);
+                        maxKey = (char) Math.max(maxKey, node.keys[i]);
+                        nextLayer.add((HashmapNode<Void>) node.children[i]);
                     }
                 }
-            }
-        }
-
-        @Override
-        public void updateTransition(char c, TrieNode node) {
-            // First check if the key is between max and min value.
-            // Here we use the fact that char type is unsigned to figure it out
-            // with a single condition.
-            int idx = (char) (c - baseChar);
-            if (idx < size) {
-                if (children[idx] != null) {
-                    children[idx] = node;
-                    return;
-                } else {
-                    throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+                if (node.numEntries > 1 && (level > 0 || optimizeRoot)) {
+                    if (count == sizes.length) {
+                        sizes = Arrays.copyOf(sizes, count * 2);
+                        levels = Arrays.copyOf(levels, count * 2);
+                        keyIntervalSizes = Arrays.copyOf(keyIntervalSizes, count * 2);
+                    }
+                    sizes[count] = node.numEntries;
+                    levels[count] = level;
+                    keyIntervalSizes[count++] = maxKey - minKey + 1;
                 }
             }
-            throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+            layer = nextLayer;
         }
-
+        return thresholdStrategy.plan(Arrays.copyOf(sizes, count), Arrays.copyOf(levels, count), Arrays.copyOf(keyIntervalSizes, count));
     }
 
-    // Basic node for both
-    private static abstract class TrieNode {
+    // State of the match loop between chunks. The current node lags a character behind, so its match
+    // is reported in the next chunk or when the text is finished.
+    private final class StreamMatcher implements Matcher {
 
-        protected TrieNode defaultTransition = null;
-        protected TrieNode failTransition;
-        protected int matchLength;
+        private final TrieCursor<Void> cursor = new TrieCursor<Void>(root);
+        // Root doesn't have a match.
+        private int currentNodeMatchLength = 0;
+        private final StreamSetMatchListener listener;
+        // Position of the next character in the text.
+        private long position = 0;
+        private boolean stopped = false;
 
-        protected TrieNode(boolean root) {
-            this.defaultTransition = root ? this : null;
+        private StreamMatcher(StreamSetMatchListener listener) {
+            this.listener = listener;
         }
 
-        public abstract void clear();
-
-        // Get fail transition
-        public final TrieNode getFailTransition() {
-            return failTransition;
+        public boolean feed(final char[] chunk, final int off, final int len) {
+            if (stopped) {
+                return false;
+            }
+            // Local copies of the state for the loop.
+            int currentNodeMatchLength = this.currentNodeMatchLength;
+            // Position of the chunk array start in the text.
+            final long base = position - off;
+            final int end = off + len;
+            int idx = off;
+            while (idx < end) {
+                final char c = charClasses[chunk[idx]];
+                if (currentNodeMatchLength != 0) {
+                    if (!listener.match(base + idx - currentNodeMatchLength, base + idx)) {
+                        stopped = true;
+                        return false;
+                    }
+                    cursor.reset();
+                }
+                cursor.step(c);
+                currentNodeMatchLength = cursor.node.matchLength;
+                ++idx;
+            }
+            this.currentNodeMatchLength = currentNodeMatchLength;
+            position = base + end;
+            return true;
         }
 
-        // Get transition (root node returns something non-null for all characters - itself)
-        public abstract TrieNode getTransition(char c);
-
-        public abstract boolean isEmpty();
-
-        public abstract void mapEntries(final EntryVisitor visitor);
-
-        public abstract void updateTransition(char c, TrieNode node);
-
-        protected TrieNode optimizeNode(int level, Thresholder thresholdStrategy) {
-            return this;
+        public void finish() {
+            if (currentNodeMatchLength != 0 && !stopped) {
+                // Output any matches on the last node
+                listener.match(position - currentNodeMatchLength, position);
+            }
+            cursor.reset();
+            currentNodeMatchLength = 0;
+            position = 0;
+            stopped = false;
         }
-
     }
 
 }
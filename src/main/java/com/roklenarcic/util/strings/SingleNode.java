@@ -0,0 +1,59 @@
+package com.roklenarcic.util.strings;
+
+import java.util.IdentityHashMap;
+
+// Node with a single child, most nodes deep in the trie have just one. Key and child
+// are held in fields, so there are no arrays and no hashing.
+final class SingleNode<T> extends TrieNode<T> {
+
+    TrieNode<T> child;
+    char key;
+
+    SingleNode(HashmapNode<T> oldNode) {
+        oldNode.copyTo(this);
+        for (int i = 0; i < oldNode.children.length; i++) {
+            if (oldNode.children[i] != null) {
+                this.key = oldNode.keys[i];
+                this.child = oldNode.children[i];
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        child = null;
+    }
+
+    @Override
+    protected void relink(IdentityHashMap<TrieNode<T>, TrieNode<T>> replacements) {
+        super.relink(replacements);
+        child = replacements.get(child);
+    }
+
+    @Override
+    public TrieNode<T> getTransition(char c) {
+        return c == key ? child : null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return child == null;
+    }
+
+    @Override
+    public void mapEntries(EntryVisitor<T> visitor) {
+        if (child != null) {
+            visitor.visit(this, key, child);
+        }
+    }
+
+    @Override
+    public void updateTransition(char c, TrieNode<T> node) {
+        if (c == key && child != null) {
+            child = node;
+        } else {
+            throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+        }
+    }
+
+}
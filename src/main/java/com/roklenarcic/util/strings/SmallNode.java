@@ -0,0 +1,110 @@
+package com.roklenarcic.util.strings;
+
+import java.util.IdentityHashMap;
+
+// Node with 2 to 4 children, keys and children are held in fields and compared linearly.
+// Unused slots repeat the first key and child, they are never reached because the first
+// slot matches before them.
+final class SmallNode<T> extends TrieNode<T> {
+
+    private TrieNode<T> child0, child1, child2, child3;
+    private char key0, key1, key2, key3;
+    private int size;
+
+    SmallNode(HashmapNode<T> oldNode) {
+        oldNode.copyTo(this);
+        for (int i = 0; i < oldNode.children.length; i++) {
+            if (oldNode.children[i] != null) {
+                set(size++, oldNode.keys[i], oldNode.children[i]);
+            }
+        }
+        for (int i = size; i < 4; i++) {
+            set(i, key0, child0);
+        }
+    }
+
+    @Override
+    public void clear() {
+        child0 = child1 = child2 = child3 = null;
+        size = 0;
+    }
+
+    @Override
+    protected void relink(IdentityHashMap<TrieNode<T>, TrieNode<T>> replacements) {
+        super.relink(replacements);
+        child0 = replacements.get(child0);
+        child1 = replacements.get(child1);
+        child2 = replacements.get(child2);
+        child3 = replacements.get(child3);
+    }
+
+    @Override
+    public TrieNode<T> getTransition(char c) {
+        if (c == key0) {
+            return child0;
+        } else if (c == key1) {
+            return child1;
+        } else if (c == key2) {
+            return child2;
+        } else if (c == key3) {
+            return child3;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void mapEntries(EntryVisitor<T> visitor) {
+        for (int i = 0; i < size; i++) {
+            visitor.visit(this, key(i), child(i));
+        }
+    }
+
+    @Override
+    public void updateTransition(char c, TrieNode<T> node) {
+        for (int i = 0; i < size; i++) {
+            if (key(i) == c) {
+                set(i, c, node);
+                // Keep the unused slots a copy of the first slot.
+                for (int j = size; j < 4; j++) {
+                    set(j, key0, child0);
+                }
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+    }
+
+    private TrieNode<T> child(int i) {
+        return i == 0 ? child0 : i == 1 ? child1 : i == 2 ? child2 : child3;
+    }
+
+    private char key(int i) {
+        return i == 0 ? key0 : i == 1 ? key1 : i == 2 ? key2 : key3;
+    }
+
+    private void set(int i, char key, TrieNode<T> child) {
+        switch (i) {
+        case 0:
+            key0 = key;
+            child0 = child;
+            break;
+        case 1:
+            key1 = key;
+            child1 = child;
+            break;
+        case 2:
+            key2 = key;
+            child2 = child;
+            break;
+        default:
+            key3 = key;
+            child3 = child;
+        }
+    }
+
+}
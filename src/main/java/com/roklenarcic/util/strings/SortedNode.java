@@ -0,0 +1,73 @@
+package com.roklenarcic.util.strings;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+// Sparse node with the keys in a sorted array and the children in a parallel array. There are no
+// empty slots and no hashing, lookups are a binary search.
+final class SortedNode<T> extends TrieNode<T> {
+
+    private TrieNode<T>[] children;
+    private char[] keys;
+
+    SortedNode(HashmapNode<T> oldNode) {
+        oldNode.copyTo(this);
+        this.keys = new char[oldNode.numEntries];
+        this.children = TrieNode.newArray(oldNode.numEntries);
+        int size = 0;
+        for (int i = 0; i < oldNode.children.length; i++) {
+            if (oldNode.children[i] != null) {
+                // Insertion sort, nodes are built once.
+                int j = size++;
+                for (; j > 0 && keys[j - 1] > oldNode.keys[i]; j--) {
+                    keys[j] = keys[j - 1];
+                    children[j] = children[j - 1];
+                }
+                keys[j] = oldNode.keys[i];
+                children[j] = oldNode.children[i];
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        children = TrieNode.newArray(0);
+        keys = new char[0];
+    }
+
+    @Override
+    protected void relink(IdentityHashMap<TrieNode<T>, TrieNode<T>> replacements) {
+        super.relink(replacements);
+        for (int i = 0; i < children.length; i++) {
+            children[i] = replacements.get(children[i]);
+        }
+    }
+
+    @Override
+    public TrieNode<T> getTransition(char c) {
+        int idx = Arrays.binarySearch(keys, c);
+        return idx >= 0 ? children[idx] : null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return keys.length == 0;
+    }
+
+    @Override
+    public void mapEntries(EntryVisitor<T> visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            visitor.visit(this, keys[i], children[i]);
+        }
+    }
+
+    @Override
+    public void updateTransition(char c, TrieNode<T> node) {
+        int idx = Arrays.binarySearch(keys, c);
+        if (idx < 0) {
+            throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+        }
+        children[idx] = node;
+    }
+
+}
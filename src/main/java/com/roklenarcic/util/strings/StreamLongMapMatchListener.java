@@ -0,0 +1,8 @@
+package com.roklenarcic.util.strings;
+
+public interface StreamLongMapMatchListener {
+
+    // return true to continue matching
+    boolean match(final long startPosition, final long endPosition, final long value);
+
+}
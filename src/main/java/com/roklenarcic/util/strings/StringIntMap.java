@@ -0,0 +1,32 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+
+public interface StringIntMap extends MemoryAccountable {
+    // Match a range of the array, positions are array indexes and the listener gets the whole array
+    // as the haystack. The engines match the array in place, this default copies the range.
+    default void matchChars(final char[] haystack, final int from, final int to, final CharSequenceIntMapMatchListener listener) {
+        final CharSequence sequence = CharBuffer.wrap(haystack);
+        match(new String(haystack, from, to - from), new IntMapMatchListener() {
+
+            public boolean match(String text, int startPosition, int endPosition, int value) {
+                return listener.match(sequence, startPosition + from, endPosition + from, value);
+            }
+        });
+    }
+
+    // The engines match the sequence in place, this default copies it.
+    default void matchSequence(final CharSequence haystack, final CharSequenceIntMapMatchListener listener) {
+        match(haystack.toString(), new IntMapMatchListener() {
+
+            public boolean match(String text, int startPosition, int endPosition, int value) {
+                return listener.match(haystack, startPosition, endPosition, value);
+            }
+        });
+    }
+
+    void match(final Readable haystack, final ReadableIntMatchListener listener) throws IOException;
+
+    void match(final String haystack, final IntMapMatchListener listener);
+}
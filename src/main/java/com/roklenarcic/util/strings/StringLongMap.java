@@ -0,0 +1,32 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+
+public interface StringLongMap extends MemoryAccountable {
+    // Match a range of the array, positions are array indexes and the listener gets the whole array
+    // as the haystack. The engines match the array in place, this default copies the range.
+    default void matchChars(final char[] haystack, final int from, final int to, final CharSequenceLongMapMatchListener listener) {
+        final CharSequence sequence = CharBuffer.wrap(haystack);
+        match(new String(haystack, from, to - from), new LongMapMatchListener() {
+
+            public boolean match(String text, int startPosition, int endPosition, long value) {
+                return listener.match(sequence, startPosition + from, endPosition + from, value);
+            }
+        });
+    }
+
+    // The engines match the sequence in place, this default copies it.
+    default void matchSequence(final CharSequence haystack, final CharSequenceLongMapMatchListener listener) {
+        match(haystack.toString(), new LongMapMatchListener() {
+
+            public boolean match(String text, int startPosition, int endPosition, long value) {
+                return listener.match(haystack, startPosition, endPosition, value);
+            }
+        });
+    }
+
+    void match(final Readable haystack, final ReadableLongMatchListener listener) throws IOException;
+
+    void match(final String haystack, final LongMapMatchListener listener);
+}
@@ -1,5 +1,29 @@
 package com.roklenarcic.util.strings;
 
+import java.nio.CharBuffer;
+
 public interface StringSet {
+    // Match a range of the array, positions are array indexes and the listener gets the whole array
+    // as the haystack. The engines match the array in place, this default copies the range.
+    default void matchChars(final char[] haystack, final int from, final int to, final CharSequenceSetMatchListener listener) {
+        final CharSequence sequence = CharBuffer.wrap(haystack);
+        match(new String(haystack, from, to - from), new SetMatchListener() {
+
+            public boolean match(String text, int startPosition, int endPosition) {
+                return listener.match(sequence, startPosition + from, endPosition + from);
+            }
+        });
+    }
+
+    // The engines match the sequence in place, this default copies it.
+    default void matchSequence(final CharSequence haystack, final CharSequenceSetMatchListener listener) {
+        match(haystack.toString(), new SetMatchListener() {
+
+            public boolean match(String text, int startPosition, int endPosition) {
+                return listener.match(haystack, startPosition, endPosition);
+            }
+        });
+    }
+
     void match(final String haystack, final SetMatchListener listener);
 }
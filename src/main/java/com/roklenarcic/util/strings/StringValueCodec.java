@@ -0,0 +1,18 @@
+package com.roklenarcic.util.strings;
+
+import java.nio.charset.Charset;
+
+// Codec for String values, stored as UTF-8.
+public class StringValueCodec implements ValueCodec<String> {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public String decode(byte[] bytes) {
+        return new String(bytes, UTF8);
+    }
+
+    public byte[] encode(String value) {
+        return value.getBytes(UTF8);
+    }
+
+}
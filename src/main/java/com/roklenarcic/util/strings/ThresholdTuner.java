@@ -0,0 +1,201 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import com.roklenarcic.util.strings.threshold.RangeNodeThreshold;
+import com.roklenarcic.util.strings.threshold.Thresholder;
+
+// Finds RangeNodeThreshold parameters for a dictionary and typical text. Every candidate is built and
+// measured, memory with memoryUsage() and speed by matching the sample text, so this takes a build and a few
+// matches of the sample per candidate. The search starts at the default parameters and tries the candidate
+// values of one parameter at a time, keeping the best, until a round changes nothing. The main method is
+// a command line tool for sets built from text files.
+public final class ThresholdTuner {
+
+    // Candidate values of exponent, linearFactor, maxValue and constantFactor.
+    private static final double[][] CANDIDATES = { { 0.5, 1, 2, 3 }, { 0, 0.5, 1, 2 }, { 0.2, 0.35, 0.5, 0.65, 0.8, 0.95 }, { 1, 2, 4, 8 } };
+    private static final double[] DEFAULTS = { 1, 1, 0.65, 2 };
+    private static final int MAX_ROUNDS = 3;
+
+    private ThresholdTuner() {
+    }
+
+    // Parameters that match the sample fastest, with the set or map no bigger than maxBytes.
+    public static <E extends MemoryAccountable> Result fastest(Function<Thresholder, E> builder, BiConsumer<E, String> matcher, String sample,
+            long maxBytes) {
+        return search(builder, matcher, sample, true, maxBytes);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4 || !("--max-mb".equals(args[2]) || "--max-ns".equals(args[2]))) {
+            System.err.println("Usage: ThresholdTuner <dictionary file> <sample file> --max-mb <megabytes> | --max-ns <nanoseconds per character>"
+                    + " [AhoCorasickSet | LongestMatchSet | ShortestMatchSet | WholeWordMatchSet | WholeWordLongestMatchSet]");
+            System.exit(1);
+        }
+        final List<String> keywords = Files.readAllLines(Paths.get(args[0]), StandardCharsets.UTF_8);
+        String sample = new String(Files.readAllBytes(Paths.get(args[1])), StandardCharsets.UTF_8);
+        final String engine = args.length > 4 ? args[4] : "AhoCorasickSet";
+        Function<Thresholder, MemoryAccountable> builder = new Function<Thresholder, MemoryAccountable>() {
+
+            public MemoryAccountable apply(Thresholder thresholdStrategy) {
+                if ("AhoCorasickSet".equals(engine)) {
+                    return new AhoCorasickSet(keywords, true, false, thresholdStrategy);
+                } else if ("LongestMatchSet".equals(engine)) {
+                    return new LongestMatchSet(keywords, true, thresholdStrategy);
+                } else if ("ShortestMatchSet".equals(engine)) {
+                    return new ShortestMatchSet(keywords, true, thresholdStrategy);
+                } else if ("WholeWordMatchSet".equals(engine)) {
+                    return new WholeWordMatchSet(keywords, true, thresholdStrategy);
+                } else if ("WholeWordLongestMatchSet".equals(engine)) {
+                    return new WholeWordLongestMatchSet(keywords, true, false, thresholdStrategy);
+                }
+                throw new IllegalArgumentException("Unknown engine " + engine);
+            }
+        };
+        BiConsumer<MemoryAccountable, String> matcher = new BiConsumer<MemoryAccountable, String>() {
+
+            // The builder only builds sets.
+            public void accept(MemoryAccountable set, String text) {
+                ((StringSet) set).match(text, new SetMatchListener() {
+
+                    public boolean match(String haystack, int startPosition, int endPosition) {
+                        return true;
+                    }
+                });
+            }
+        };
+        double cap = Double.parseDouble(args[3]);
+        try {
+            if ("--max-mb".equals(args[2])) {
+                System.out.println(fastest(builder, matcher, sample, (long) (cap * 1048576)));
+            } else {
+                System.out.println(smallest(builder, matcher, sample, cap));
+            }
+        } catch (IllegalStateException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Parameters with the smallest set or map that matches the sample at no more than maxNanosPerChar
+    // nanoseconds per character.
+    public static <E extends MemoryAccountable> Result smallest(Function<Thresholder, E> builder, BiConsumer<E, String> matcher, String sample,
+            double maxNanosPerChar) {
+        return search(builder, matcher, sample, false, maxNanosPerChar);
+    }
+
+    // Build with the parameters and measure. Time is the best of a few matches after a warm up.
+    private static <E extends MemoryAccountable> Result measure(Function<Thresholder, E> builder, BiConsumer<E, String> matcher, String sample,
+            double[] parameters) {
+        E engine = builder.apply(new RangeNodeThreshold(parameters[0], parameters[1], parameters[2], parameters[3]));
+        long bytes = engine.memoryUsage().ramBytesUsed();
+        for (int i = 0; i < 3; i++) {
+            matcher.accept(engine, sample);
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            matcher.accept(engine, sample);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return new Result(parameters, bytes, (double) best / Math.max(1, sample.length()));
+    }
+
+    private static <E extends MemoryAccountable> Result search(Function<Thresholder, E> builder, BiConsumer<E, String> matcher, String sample,
+            boolean minimizeTime, double cap) {
+        if (sample.isEmpty()) {
+            throw new IllegalArgumentException("Sample text is empty.");
+        }
+        HashMap<String, Result> measured = new HashMap<String, Result>();
+        Result best = measure(builder, matcher, sample, DEFAULTS.clone());
+        measured.put(Arrays.toString(DEFAULTS), best);
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            Result start = best;
+            for (int p = 0; p < CANDIDATES.length; p++) {
+                for (double value : CANDIDATES[p]) {
+                    double[] parameters = best.parameters.clone();
+                    parameters[p] = value;
+                    String key = Arrays.toString(parameters);
+                    if (!measured.containsKey(key)) {
+                        Result result = measure(builder, matcher, sample, parameters);
+                        measured.put(key, result);
+                        if (result.isBetter(best, minimizeTime, cap)) {
+                            best = result;
+                        }
+                    }
+                }
+            }
+            if (best == start) {
+                break;
+            }
+        }
+        if (!best.isWithin(minimizeTime, cap)) {
+            throw new IllegalStateException("No parameters within the limit, closest: " + best);
+        }
+        return best;
+    }
+
+    // Parameters with the measured memory and speed.
+    public static final class Result {
+
+        private final long bytes;
+        private final double nanosPerChar;
+        private final double[] parameters;
+
+        private Result(double[] parameters, long bytes, double nanosPerChar) {
+            this.parameters = parameters;
+            this.bytes = bytes;
+            this.nanosPerChar = nanosPerChar;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public double getNanosPerChar() {
+            return nanosPerChar;
+        }
+
+        // Exponent, linearFactor, maxValue and constantFactor, in constructor order.
+        public double[] getParameters() {
+            return parameters.clone();
+        }
+
+        public Thresholder getThresholder() {
+            return new RangeNodeThreshold(parameters[0], parameters[1], parameters[2], parameters[3]);
+        }
+
+        // The thresholder as Java source, with the measurements.
+        @Override
+        public String toString() {
+            return String.format("new RangeNodeThreshold(%s, %s, %s, %s) // %.1f MB, %.2f ns per character", parameters[0], parameters[1],
+                    parameters[2], parameters[3], bytes / 1048576.0, nanosPerChar);
+        }
+
+        private boolean isBetter(Result other, boolean minimizeTime, double cap) {
+            boolean within = isWithin(minimizeTime, cap);
+            if (within != other.isWithin(minimizeTime, cap)) {
+                return within;
+            }
+            // Both within the limit compare on the target, both outside on how far outside they are.
+            if (within == minimizeTime) {
+                return nanosPerChar < other.nanosPerChar;
+            } else {
+                return bytes < other.bytes;
+            }
+        }
+
+        private boolean isWithin(boolean minimizeTime, double cap) {
+            return minimizeTime ? bytes <= cap : nanosPerChar <= cap;
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+package com.roklenarcic.util.strings;
+
+import java.util.IdentityHashMap;
+
+// Where a match loop is in the trie. All match loops of an engine move through the trie with one of the
+// methods here, so transitions, fail transitions and chain nodes are handled in one place. Engines with
+// fail transitions use step, the whole word engines, which restart at word boundaries, use advance.
+class TrieCursor<T> {
+
+    // Chain node being walked, it's also the current node, and the position in its label.
+    private ChainNode<T> chain = null;
+    private int chainPos = 0;
+    TrieNode<T> node;
+    private final TrieNode<T> root;
+
+    TrieCursor(TrieNode<T> root) {
+        this.root = root;
+        this.node = root;
+    }
+
+    // Take the transition for the character class. If there is none, follow fail transitions until
+    // finding a node that has one and take that. Returns true if a fail transition was followed.
+    final boolean step(char c) {
+        lookup(node);
+        if (chain == null) {
+            // Try to transition from the current node using the character, kept short so it inlines
+            // into the match loops.
+            final TrieNode<T> nextNode = node.getTransition(c);
+            if (nextNode != null) {
+                enter(nextNode);
+                return false;
+            }
+            return fail(node, c);
+        } else if (chain.label[chainPos] == c) {
+            // The chain node stands for every position in its label, so stay on it
+            // till the end of the label.
+            enter(++chainPos < chain.label.length ? chain : chain.child);
+            return false;
+        } else {
+            // Leave the chain through the fail transition of the position in the label.
+            final TrieNode<T> currentNode = chain.fails[chainPos];
+            chain = null;
+            lookup(currentNode);
+            final TrieNode<T> nextNode = currentNode.getTransition(c);
+            if (nextNode != null) {
+                enter(nextNode);
+            } else {
+                fail(currentNode, c);
+            }
+            return true;
+        }
+    }
+
+    // The node has no transition for the character class. Follow the fail transition until finding
+    // node X where you can transition to another node Y using this character. If not even root has
+    // one, matching continues from root. Returns false if that happened on root without following a
+    // fail transition, the same as taking a root table slot that leads back to root.
+    private boolean fail(TrieNode<T> currentNode, char c) {
+        boolean failed = false;
+        while (currentNode != root) {
+            currentNode = currentNode.failTransition;
+            failed = true;
+            lookup(currentNode);
+            final TrieNode<T> nextNode = currentNode.getTransition(c);
+            if (nextNode != null) {
+                enter(nextNode);
+                return true;
+            }
+        }
+        enter(root);
+        return failed;
+    }
+
+    // Take the transition for the character class if there is one. Returns false and stays on the
+    // node if there isn't.
+    final boolean advance(char c) {
+        lookup(node);
+        TrieNode<T> nextNode;
+        if (chain == null) {
+            nextNode = node.getTransition(c);
+        } else if (chain.label[chainPos] == c) {
+            nextNode = ++chainPos < chain.label.length ? chain : chain.child;
+        } else {
+            // Positions in a chain have no matches and no other transitions.
+            return false;
+        }
+        if (nextNode == null) {
+            return false;
+        }
+        enter(nextNode);
+        return true;
+    }
+
+    final void reset() {
+        node = root;
+        chain = null;
+        chainPos = 0;
+    }
+
+    private void enter(TrieNode<T> nextNode) {
+        if (nextNode instanceof ChainNode) {
+            if (nextNode != chain) {
+                chain = (ChainNode<T>) nextNode;
+                chainPos = 0;
+            }
+        } else {
+            chain = null;
+        }
+        taken(nextNode);
+        node = nextNode;
+    }
+
+    // Transition is looked up on the node, see Profile.
+    void lookup(TrieNode<T> node) {
+    }
+
+    // Transition to the node is taken, see Profile.
+    void taken(TrieNode<T> node) {
+    }
+
+    // Cursor that counts lookups on each node (index 0 of the counts) and transitions taken to it
+    // (index 1). Engines walk a sample with it like they match, see AhoCorasickMap.train. Lookups after
+    // fail transitions count on the node the fail transition leads to.
+    static final class Profile<T> extends TrieCursor<T> {
+
+        final IdentityHashMap<TrieNode<T>, long[]> hits = new IdentityHashMap<TrieNode<T>, long[]>();
+
+        Profile(TrieNode<T> root) {
+            super(root);
+        }
+
+        @Override
+        void lookup(TrieNode<T> node) {
+            hits(node)[0]++;
+        }
+
+        @Override
+        void taken(TrieNode<T> node) {
+            hits(node)[1]++;
+        }
+
+        private long[] hits(TrieNode<T> node) {
+            long[] count = hits.get(node);
+            if (count == null) {
+                count = new long[2];
+                hits.put(node, count);
+            }
+            return count;
+        }
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.roklenarcic.util.strings;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Shape of a built trie, for choosing thresholder parameters: node counts per level and node type, histograms
+// of fanout (number of children) and key interval sizes (largest key - smallest key + 1, the same numbers
+// the thresholder sees), lengths of fail transition chains and range node slots without a child. Keys are
+// character classes of the dictionary, not characters. toString() gives a text dump.
+public final class TrieDiagnostics {
+
+    private final Histogram failChainLengths = new Histogram();
+    private final Histogram fanout = new Histogram();
+    private final Histogram keyIntervals = new Histogram();
+    private final Histogram levels = new Histogram();
+    private final TreeMap<String, Histogram> nodeTypes = new TreeMap<String, Histogram>();
+    private long rangeSlots = 0;
+    private long wastedRangeSlots = 0;
+
+    TrieDiagnostics() {
+    }
+
+    // Lengths of the fail transition chains from each node to the root. Empty for engines without
+    // fail transitions.
+    public Histogram getFailChainLengths() {
+        return failChainLengths;
+    }
+
+    // Number of children of each node.
+    public Histogram getFanout() {
+        return fanout;
+    }
+
+    // Key interval sizes of nodes with children.
+    public Histogram getKeyIntervals() {
+        return keyIntervals;
+    }
+
+    // Number of nodes at each level, root is level 0.
+    public Histogram getLevels() {
+        return levels;
+    }
+
+    public long getNodeCount() {
+        return levels.getTotal();
+    }
+
+    // Number of nodes at each level, by node type (class name).
+    public Map<String, Histogram> getNodeTypes() {
+        return Collections.unmodifiableMap(nodeTypes);
+    }
+
+    // Slots in all range nodes.
+    public long getRangeSlots() {
+        return rangeSlots;
+    }
+
+    // Range node slots without a child, root table slots that lead back to root included.
+    public long getWastedRangeSlots() {
+        return wastedRangeSlots;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append("nodes: ").append(getNodeCount()).append('\n');
+        b.append("levels: ").append(levels).append('\n');
+        for (Map.Entry<String, Histogram> type : nodeTypes.entrySet()) {
+            b.append(type.getKey()).append(" levels: ").append(type.getValue()).append('\n');
+        }
+        b.append("fanout: ").append(fanout).append('\n');
+        b.append("key intervals: ").append(keyIntervals).append('\n');
+        if (failChainLengths.getTotal() > 0) {
+            b.append("fail chain lengths: ").append(failChainLengths).append('\n');
+        }
+        b.append("range slots: ").append(rangeSlots).append(", wasted: ").append(wastedRangeSlots).append('\n');
+        return b.toString();
+    }
+
+    // Record a node. Fail chain length is -1 for engines without fail transitions, slots is 0 unless it's
+    // a range node.
+    void add(String type, int level, int children, int keyIntervalSize, int failChainLength, int slots) {
+        Histogram typeLevels = nodeTypes.get(type);
+        if (typeLevels == null) {
+            typeLevels = new Histogram();
+            nodeTypes.put(type, typeLevels);
+        }
+        typeLevels.add(level);
+        levels.add(level);
+        fanout.add(children);
+        if (children > 0) {
+            keyIntervals.add(keyIntervalSize);
+        }
+        if (failChainLength >= 0) {
+            failChainLengths.add(failChainLength);
+        }
+        rangeSlots += slots;
+        wastedRangeSlots += Math.max(0, slots - children);
+    }
+
+    // Counts of int values.
+    public static final class Histogram {
+
+        private final TreeMap<Integer, Long> counts = new TreeMap<Integer, Long>();
+        private long sum = 0;
+        private long total = 0;
+
+        private Histogram() {
+        }
+
+        // Number of times the value was seen.
+        public long getCount(int value) {
+            Long count = counts.get(value);
+            return count == null ? 0 : count;
+        }
+
+        // Counts by value, in ascending order of values.
+        public Map<Integer, Long> getCounts() {
+            return Collections.unmodifiableMap(counts);
+        }
+
+        public int getMax() {
+            return counts.isEmpty() ? 0 : counts.lastKey();
+        }
+
+        public double getMean() {
+            return total == 0 ? 0 : (double) sum / total;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        // Values as "value:count" pairs, with the mean and maximum.
+        @Override
+        public String toString() {
+            StringBuilder b = new StringBuilder();
+            for (Map.Entry<Integer, Long> e : counts.entrySet()) {
+                b.append(e.getKey()).append(':').append(e.getValue()).append(' ');
+            }
+            return b.append(String.format("(mean %.2f, max %d)", getMean(), getMax())).toString();
+        }
+
+        private void add(int value) {
+            Long count = counts.get(value);
+            counts.put(value, count == null ? 1 : count + 1);
+            sum += value;
+            total++;
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+package com.roklenarcic.util.strings;
+
+import java.util.IdentityHashMap;
+
+import com.roklenarcic.util.strings.threshold.Thresholder;
+
+// Basic node of the trie engines. Subclasses differ in how they hold the transitions. The fields the
+// match loop reads at every character are here, what an engine reads only on a match or a flush (values,
+// suffix matches, levels...) is in arrays of the engine indexed by the node id. T is the type of the map
+// values, sets don't have values.
+abstract class TrieNode<T> {
+
+    protected TrieNode<T> failTransition;
+    // Index of the node in the arrays of the engine. Nodes get ids as they are added and keep them when
+    // they're replaced by an optimized node, see copyTo.
+    protected int id;
+    // Length of the keyword that ends at this node, 0 if none does.
+    protected int matchLength = 0;
+
+    // Arrays of generic nodes can't be created, the raw array only ever holds nodes of one trie.
+    @SuppressWarnings("unchecked")
+    static <T> TrieNode<T>[] newArray(int size) {
+        return (TrieNode<T>[]) new TrieNode<?>[size];
+    }
+
+    // Point the node references in an engine array at their replacements, see relink.
+    static <T> void relink(TrieNode<T>[] nodes, IdentityHashMap<TrieNode<T>, TrieNode<T>> replacements) {
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = replacements.get(nodes[i]);
+        }
+    }
+
+    // Remove all transitions.
+    public abstract void clear();
+
+    // Get transition (root node returns something non-null for all characters - itself)
+    public abstract TrieNode<T> getTransition(char c);
+
+    public abstract boolean isEmpty();
+
+    public abstract void mapEntries(final EntryVisitor<T> visitor);
+
+    public abstract void updateTransition(char c, TrieNode<T> node);
+
+    protected TrieNode<T> optimizeNode(int level, Thresholder thresholdStrategy) {
+        return this;
+    }
+
+    // Copy the fields of this class to the node that replaces this node. With the id it takes over the
+    // engine's fields of this node.
+    protected final void copyTo(TrieNode<T> node) {
+        node.failTransition = failTransition;
+        node.id = id;
+        node.matchLength = matchLength;
+    }
+
+    // Point the node at the replacements of the nodes it references, see AhoCorasickMap.train.
+    protected void relink(IdentityHashMap<TrieNode<T>, TrieNode<T>> replacements) {
+        failTransition = replacements.get(failTransition);
+    }
+
+}
@@ -0,0 +1,10 @@
+package com.roklenarcic.util.strings;
+
+// Converts map values to bytes and back, used when writing compiled automata to files.
+public interface ValueCodec<T> {
+
+    T decode(byte[] bytes);
+
+    byte[] encode(T value);
+
+}
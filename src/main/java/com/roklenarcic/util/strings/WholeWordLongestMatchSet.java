@@ -1,20 +1,34 @@
 package com.roklenarcic.util.strings;
 
+import com.roklenarcic.util.strings.threshold.ProfileThreshold;
 import com.roklenarcic.util.strings.threshold.RangeNodeThreshold;
 import com.roklenarcic.util.strings.threshold.Thresholder;
 
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinPool;
 
 // A set that matches only whole word matches. Non-word characters are user defined (with a default).
 // Any non-word characters around input strings get trimmed. Non-word characters are allowed in the keywords.
-public class WholeWordLongestMatchSet implements StringSet {
+public class WholeWordLongestMatchSet implements StringSet, MemoryAccountable {
 
+    private Alphabet alphabet;
     private boolean caseSensitive = true;
+    private char[] charClasses;
     private boolean normalizeWhitespace = false;
-    private TrieNode root;
+    // Fields of the nodes read at word boundaries, by node id. Fail match is the last match before the node that ends on a word
+    // boundary, it's failMatchOffset characters back.
+    private int[] failMatchLength;
+    private int[] failMatchOffset;
+    private TrieNode<Void> root;
     private boolean[] wordChars;
 
-
     static WhitespaceReader NoOpWhiteSpaceReaderInstance = new NoOpWhitespaceReader();
     static WhitespaceReader SkipWhiteSpaceReaderInstance = new SkipWhitespaceReader();
     private WhitespaceReader whitespaceReader;
@@ -54,6 +68,369 @@ public class WholeWordLongestMatchSet implements StringSet {
         init(keywords, caseSensitive, normalizeWhitespace, WordCharacters.generateWordCharsFlags(), thresholdStrategy);
     }
 
+    // Node statistics for tuning the thresholder, see TrieDiagnostics.
+    public TrieDiagnostics diagnostics() {
+        final TrieDiagnostics diagnostics = new TrieDiagnostics();
+        final ArrayList<TrieNode<Void>> nodes = new ArrayList<TrieNode<Void>>();
+        final IdentityHashMap<TrieNode<Void>, Integer> levels = new IdentityHashMap<TrieNode<Void>, Integer>();
+        // Number of children, smallest and largest key of the visited node.
+        final int[] entries = new int[3];
+        EntryVisitor<Void> visitor = new EntryVisitor<Void>() {
+
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                entries[0]++;
+                entries[1] = Math.min(entries[1], key);
+                entries[2] = Math.max(entries[2], key);
+                if (!levels.containsKey(value)) {
+                    levels.put(value, levels.get(parent) + 1);
+                    nodes.add(value);
+                }
+            }
+
+        };
+        levels.put(root, 0);
+        nodes.add(root);
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieNode<Void> node = nodes.get(i);
+            int level = levels.get(node);
+            entries[0] = 0;
+            entries[1] = Character.MAX_VALUE;
+            entries[2] = 0;
+            node.mapEntries(visitor);
+            int slots = node instanceof RangeNode ? ((RangeNode<Void>) node).size : 0;
+            diagnostics.add(node.getClass().getSimpleName(), level, entries[0], entries[2] - entries[1] + 1, -1, slots);
+        }
+        return diagnostics;
+    }
+
+    public void matchChars(final char[] haystack, final int from, final int to, final CharSequenceSetMatchListener listener) {
+        // Listeners see the array as a char sequence, positions are array indexes.
+        final CharSequence sequence = CharBuffer.wrap(haystack);
+        // Nodes contain fail matches, which is the last normal match up the tree before the current node
+        // match.
+
+        // Local copies of the node fields for the loop.
+        final int[] failMatchLength = this.failMatchLength;
+        final int[] failMatchOffset = this.failMatchOffset;
+        // Start with the root node.
+        final TrieCursor<Void> cursor = new TrieCursor<Void>(root);
+        boolean skipWhitespace = whitespaceReader.enabled();
+
+        int idx = from;
+        int skipped = 0;
+        // For each character.
+        final int len = to;
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                char c = haystack[idx];
+                boolean skippedWhitespace = skipWhitespace && whitespaceReader.isWhitespace(c);
+                if(skippedWhitespace) {
+                    c = ' ';
+                }
+
+                final boolean advanced = cursor.advance(charClasses[c]);
+                // Regardless of the type of the character, we keep moving till we run into
+                // a situation where there's no transition available.
+                if (!advanced) {
+                    // Awkward if structure saves us a branch in the else statement.
+                    if (!wordChars[c]) {
+                        // If we ran into no-transition scenario on non-word character we can
+                        // output the match on the current node if there is one, else we output
+                        // a fail match if there is one.
+                        // Later we will run through non-word characters to the start of the next word.
+                        if (cursor.node.matchLength != 0) {
+                            if (!listener.match(sequence, idx - skipped - cursor.node.matchLength, idx)) {
+                                return;
+                            }
+                        } else if (failMatchLength[cursor.node.id] != 0) {
+                            int failMatchEnd = idx - failMatchOffset[cursor.node.id];
+                            if (!listener.match(sequence, failMatchEnd - failMatchLength[cursor.node.id], failMatchEnd)) {
+                                return;
+                            }
+                        }
+                    } else {
+                        // If we ran into no-transition situation on a word character, we output any
+                        // fail match on the node and scroll through word characters to a non-word character.
+                        if (failMatchLength[cursor.node.id] != 0) {
+                            int failMatchEnd = idx - failMatchOffset[cursor.node.id];
+                            if (!listener.match(sequence, failMatchEnd - failMatchLength[cursor.node.id], failMatchEnd)) {
+                                return;
+                            }
+                        }
+                        // Scroll to the first non-word character
+                        while (++idx < len && wordChars[haystack[idx]]) {
+                            ;
+                        }
+                    }
+
+                    // Scroll to the first word character
+                    while (++idx < len && !wordChars[haystack[idx]]) {
+                        ;
+                    }
+
+                    skipped = 0;
+
+                    cursor.reset();
+                } else {
+                    if(skippedWhitespace) {
+                        while (++idx < len && whitespaceReader.isWhitespace(haystack[idx]))  {
+                            ++skipped;
+                        }
+                        --idx;
+                    }
+                    // If we have transition just take it.
+                    ++idx;
+                }
+            }
+            // Output any matches on the last node, either a normal match or fail match.
+            if (cursor.node.matchLength != 0) {
+                if (!listener.match(sequence, idx - skipped - cursor.node.matchLength, idx)) {
+                    return;
+                }
+            } else if (failMatchLength[cursor.node.id] != 0) {
+                int failMatchEnd = idx - failMatchOffset[cursor.node.id];
+                if (!listener.match(sequence, failMatchEnd - failMatchLength[cursor.node.id], failMatchEnd)) {
+                    return;
+                }
+            }
+        } else {
+            while (idx < len) {
+                char c = haystack[idx];
+                boolean skippedWhitespace = skipWhitespace && whitespaceReader.isWhitespace(c);
+                if(skippedWhitespace) {
+                    c = ' ';
+                }
+                final boolean advanced = cursor.advance(charClasses[c]);
+                // Regardless of the type of the character, we keep moving till we run into
+                // a situation where there's no transition available.
+                if (!advanced) {
+                    // Awkward if structure saves us a branch in the else statement.
+                    if (!wordChars[c]) {
+                        // If we ran into no-transition scenario on non-word character we can
+                        // output the match on the current node if there is one, else we output
+                        // a fail match if there is one.
+                        // Later we will run through non-word characters to the start of the next word.
+                        if (cursor.node.matchLength != 0) {
+                            if (!listener.match(sequence, idx - skipped - cursor.node.matchLength, idx)) {
+                                return;
+                            }
+                        } else if (failMatchLength[cursor.node.id] != 0) {
+                            int failMatchEnd = idx - failMatchOffset[cursor.node.id];
+                            if (!listener.match(sequence, failMatchEnd - skipped - failMatchLength[cursor.node.id], failMatchEnd)) {
+                                return;
+                            }
+                        }
+                    } else {
+                        // If we ran into no-transition situation on a word character, we output any
+                        // fail match on the node and scroll through word characters to a non-word character.
+                        if (failMatchLength[cursor.node.id] != 0) {
+                            int failMatchEnd = idx - failMatchOffset[cursor.node.id];
+                            if (!listener.match(sequence, failMatchEnd - skipped - failMatchLength[cursor.node.id], failMatchEnd)) {
+                                return;
+                            }
+                        }
+                        // Scroll to the first non-word character
+                        while (++idx < len && wordChars[haystack[idx]]) {
+                            ;
+                        }
+                    }
+
+                    // Scroll to the first word character
+                    while (++idx < len && !wordChars[haystack[idx]]) {
+                        ;
+                    }
+                    skipped = 0;
+                    cursor.reset();
+                } else {
+                    if(skippedWhitespace) { // in the middle of a transition/partial match. If it was a whitespace skip it until we encounter non-whitespace.
+                        while (++idx < len && whitespaceReader.isWhitespace(haystack[idx])) {
+                            ++skipped;
+                        }
+                        --idx;
+                    }
+                    // If we have transition just take it.
+                    ++idx;
+                }
+            }
+            // Output any matches on the last node, either a normal match or fail match.
+            if (cursor.node.matchLength != 0) {
+                if (!listener.match(sequence, idx - skipped - cursor.node.matchLength, idx)) {
+                    return;
+                }
+            } else if (failMatchLength[cursor.node.id] != 0) {
+                int failMatchEnd = idx - failMatchOffset[cursor.node.id];
+                if (!listener.match(sequence, failMatchEnd - skipped - failMatchLength[cursor.node.id], failMatchEnd)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public void matchSequence(final CharSequence haystack, final CharSequenceSetMatchListener listener) {
+        // Nodes contain fail matches, which is the last normal match up the tree before the current node
+        // match.
+
+        // Local copies of the node fields for the loop.
+        final int[] failMatchLength = this.failMatchLength;
+        final int[] failMatchOffset = this.failMatchOffset;
+        // Start with the root node.
+        final TrieCursor<Void> cursor = new TrieCursor<Void>(root);
+        boolean skipWhitespace = whitespaceReader.enabled();
+
+        int idx = 0;
+        int skipped = 0;
+        // For each character.
+        final int len = haystack.length();
+        // Putting this if into the loop worsens the performance so we'll sadly
+        // have to deal with duplicated code.
+        if (caseSensitive) {
+            while (idx < len) {
+                char c = haystack.charAt(idx);
+                boolean skippedWhitespace = skipWhitespace && whitespaceReader.isWhitespace(c);
+                if(skippedWhitespace) {
+                    c = ' ';
+                }
+
+                final boolean advanced = cursor.advance(charClasses[c]);
+                // Regardless of the type of the character, we keep moving till we run into
+                // a situation where there's no transition available.
+                if (!advanced) {
+                    // Awkward if structure saves us a branch in the else statement.
+                    if (!wordChars[c]) {
+                        // If we ran into no-transition scenario on non-word character we can
+                        // output the match on the current node if there is one, else we output
+                        // a fail match if there is one.
+                        // Later we will run through non-word characters to the start of the next word.
+                        if (cursor.node.matchLength != 0) {
+                            if (!listener.match(haystack, idx - skipped - cursor.node.matchLength, idx)) {
+                                return;
+                            }
+                        } else if (failMatchLength[cursor.node.id] != 0) {
+                            int failMatchEnd = idx - failMatchOffset[cursor.node.id];
+                            if (!listener.match(haystack, failMatchEnd - failMatchLength[cursor.node.id], failMatchEnd)) {
+                                return;
+                            }
+                        }
+                    } else {
+                        // If we ran into no-transition situation on a word character, we output any
+                        // fail match on the node and scroll through word characters to a non-word character.
+                        if (failMatchLength[cursor.node.id] != 0) {
+                            int failMatchEnd = idx - failMatchOffset[cursor.node.id];
+                            if (!listener.match(haystack, failMatchEnd - failMatchLength[cursor.node.id], failMatchEnd)) {
+                                return;
+                            }
+                        }
+                        // Scroll to the first non-word character
+                        while (++idx < len && wordChars[haystack.charAt(idx)]) {
+                            ;
+                        }
+                    }
+
+                    // Scroll to the first word character
+                    while (++idx < len && !wordChars[haystack.charAt(idx)]) {
+                        ;
+                    }
+
+                    skipped = 0;
+
+                    cursor.reset();
+                } else {
+                    if(skippedWhitespace) {
+                        while (++idx < len && whitespaceReader.isWhitespace(haystack.charAt(idx)))  {
+                            ++skipped;
+                        }
+                        --idx;
+                    }
+                    // If we have transition just take it.
+                    ++idx;
+                }
+            }
+            // Output any matches on the last node, either a normal match or fail match.
+            if (cursor.node.matchLength != 0) {
+                if (!listener.match(haystack, idx - skipped - cursor.node.matchLength, idx)) {
+                    return;
+                }
+            } else if (failMatchLength[cursor.node.id] != 0) {
+                int failMatchEnd = idx - failMatchOffset[cursor.node.id];
+                if (!listener.match(haystack, failMatchEnd - failMatchLength[cursor.node.id], failMatchEnd)) {
+                    return;
+                }
+            }
+        } else {
+            while (idx < len) {
+                char c = haystack.charAt(idx);
+                boolean skippedWhitespace = skipWhitespace && whitespaceReader.isWhitespace(c);
+                if(skippedWhitespace) {
+                    c = ' ';
+                }
+                final boolean advanced = cursor.advance(charClasses[c]);
+                // Regardless of the type of the character, we keep moving till we run into
+                // a situation where there's no transition available.
+                if (!advanced) {
+                    // Awkward if structure saves us a branch in the else statement.
+                    if (!wordChars[c]) {
+                        // If we ran into no-transition scenario on non-word character we can
+                        // output the match on the current node if there is one, else we output
+                        // a fail match if there is one.
+                        // Later we will run through non-word characters to the start of the next word.
+                        if (cursor.node.matchLength != 0) {
+                            if (!listener.match(haystack, idx - skipped - cursor.node.matchLength, idx)) {
+                                return;
+                            }
+                        } else if (failMatchLength[cursor.node.id] != 0) {
+                            int failMatchEnd = idx - failMatchOffset[cursor.node.id];
+                            if (!listener.match(haystack, failMatchEnd - skipped - failMatchLength[cursor.node.id], failMatchEnd)) {
+                                return;
+                            }
+                        }
+                    } else {
+                        // If we ran into no-transition situation on a word character, we output any
+                        // fail match on the node and scroll through word characters to a non-word character.
+                        if (failMatchLength[cursor.node.id] != 0) {
+                            int failMatchEnd = idx - failMatchOffset[cursor.node.id];
+                            if (!listener.match(haystack, failMatchEnd - skipped - failMatchLength[cursor.node.id], failMatchEnd)) {
+                                return;
+                            }
+                        }
+                        // Scroll to the first non-word character
+                        while (++idx < len && wordChars[haystack.charAt(idx)]) {
+                            ;
+                        }
+                    }
+
+                    // Scroll to the first word character
+                    while (++idx < len && !wordChars[haystack.charAt(idx)]) {
+                        ;
+                    }
+                    skipped = 0;
+                    cursor.reset();
+                } else {
+                    if(skippedWhitespace) { // in the middle of a transition/partial match. If it was a whitespace skip it until we encounter non-whitespace.
+                        while (++idx < len && whitespaceReader.isWhitespace(haystack.charAt(idx))) {
+                            ++skipped;
+                        }
+                        --idx;
+                    }
+                    // If we have transition just take it.
+                    ++idx;
+                }
+            }
+            // Output any matches on the last node, either a normal match or fail match.
+            if (cursor.node.matchLength != 0) {
+                if (!listener.match(haystack, idx - skipped - cursor.node.matchLength, idx)) {
+                    return;
+                }
+            } else if (failMatchLength[cursor.node.id] != 0) {
+                int failMatchEnd = idx - failMatchOffset[cursor.node.id];
+                if (!listener.match(haystack, failMatchEnd - skipped - failMatchLength[cursor.node.id], failMatchEnd)) {
+                    return;
+                }
+            }
+        }
+    }
+
     public void match(final String haystack, final SetMatchListener listener) {
         match(haystack, 0, haystack.length(), listener);
     }
@@ -62,8 +439,11 @@ public class WholeWordLongestMatchSet implements StringSet {
         // Nodes contain fail matches, which is the last normal match up the tree before the current node
         // match.
 
+        // Local copies of the node fields for the loop.
+        final int[] failMatchLength = this.failMatchLength;
+        final int[] failMatchOffset = this.failMatchOffset;
         // Start with the root node.
-        TrieNode currentNode = root;
+        final TrieCursor<Void> cursor = new TrieCursor<Void>(root);
         boolean skipWhitespace = whitespaceReader.enabled();
 
         int idx = offset;
@@ -80,32 +460,32 @@ public class WholeWordLongestMatchSet implements StringSet {
                     c = ' ';
                 }
 
-                TrieNode nextNode = currentNode.getTransition(c);
+                final boolean advanced = cursor.advance(charClasses[c]);
                 // Regardless of the type of the character, we keep moving till we run into
                 // a situation where there's no transition available.
-                if (nextNode == null) {
+                if (!advanced) {
                     // Awkward if structure saves us a branch in the else statement.
                     if (!wordChars[c]) {
                         // If we ran into no-transition scenario on non-word character we can
                         // output the match on the current node if there is one, else we output
                         // a fail match if there is one.
                         // Later we will run through non-word characters to the start of the next word.
-                        if (currentNode.matchLength != 0) {
-                            if (!listener.match(haystack, idx - skipped - currentNode.matchLength, idx)) {
+                        if (cursor.node.matchLength != 0) {
+                            if (!listener.match(haystack, idx - skipped - cursor.node.matchLength, idx)) {
                                 return;
                             }
-                        } else if (currentNode.failMatchLength != 0) {
-                            int failMatchEnd = idx - currentNode.failMatchOffset;
-                            if (!listener.match(haystack, failMatchEnd - currentNode.failMatchLength, failMatchEnd)) {
+                        } else if (failMatchLength[cursor.node.id] != 0) {
+                            int failMatchEnd = idx - failMatchOffset[cursor.node.id];
+                            if (!listener.match(haystack, failMatchEnd - failMatchLength[cursor.node.id], failMatchEnd)) {
                                 return;
                             }
                         }
                     } else {
                         // If we ran into no-transition situation on a word character, we output any
                         // fail match on the node and scroll through word characters to a non-word character.
-                        if (currentNode.failMatchLength != 0) {
-                            int failMatchEnd = idx - currentNode.failMatchOffset;
-                            if (!listener.match(haystack, failMatchEnd - currentNode.failMatchLength, failMatchEnd)) {
+                        if (failMatchLength[cursor.node.id] != 0) {
+                            int failMatchEnd = idx - failMatchOffset[cursor.node.id];
+                            if (!listener.match(haystack, failMatchEnd - failMatchLength[cursor.node.id], failMatchEnd)) {
                                 return;
                             }
                         }
@@ -122,7 +502,7 @@ public class WholeWordLongestMatchSet implements StringSet {
 
                     skipped = 0;
 
-                    currentNode = root;
+                    cursor.reset();
                 } else {
                     if(skippedWhitespace) {
                         while (++idx < len && whitespaceReader.isWhitespace(haystack.charAt(idx)))  {
@@ -132,53 +512,52 @@ public class WholeWordLongestMatchSet implements StringSet {
                     }
                     // If we have transition just take it.
                     ++idx;
-                    currentNode = nextNode;
                 }
             }
             // Output any matches on the last node, either a normal match or fail match.
-            if (currentNode.matchLength != 0) {
-                if (!listener.match(haystack, idx - skipped - currentNode.matchLength, idx)) {
+            if (cursor.node.matchLength != 0) {
+                if (!listener.match(haystack, idx - skipped - cursor.node.matchLength, idx)) {
                     return;
                 }
-            } else if (currentNode.failMatchLength != 0) {
-                int failMatchEnd = idx - currentNode.failMatchOffset;
-                if (!listener.match(haystack, failMatchEnd - currentNode.failMatchLength, failMatchEnd)) {
+            } else if (failMatchLength[cursor.node.id] != 0) {
+                int failMatchEnd = idx - failMatchOffset[cursor.node.id];
+                if (!listener.match(haystack, failMatchEnd - failMatchLength[cursor.node.id], failMatchEnd)) {
                     return;
                 }
             }
         } else {
             while (idx < len) {
-                char c = Character.toLowerCase(haystack.charAt(idx));
+                char c = haystack.charAt(idx);
                 boolean skippedWhitespace = skipWhitespace && whitespaceReader.isWhitespace(c);
                 if(skippedWhitespace) {
                     c = ' ';
                 }
-                TrieNode nextNode = currentNode.getTransition(c);
+                final boolean advanced = cursor.advance(charClasses[c]);
                 // Regardless of the type of the character, we keep moving till we run into
                 // a situation where there's no transition available.
-                if (nextNode == null) {
+                if (!advanced) {
                     // Awkward if structure saves us a branch in the else statement.
                     if (!wordChars[c]) {
                         // If we ran into no-transition scenario on non-word character we can
                         // output the match on the current node if there is one, else we output
                         // a fail match if there is one.
                         // Later we will run through non-word characters to the start of the next word.
-                        if (currentNode.matchLength != 0) {
-                            if (!listener.match(haystack, idx - skipped - currentNode.matchLength, idx)) {
+                        if (cursor.node.matchLength != 0) {
+                            if (!listener.match(haystack, idx - skipped - cursor.node.matchLength, idx)) {
                                 return;
                             }
-                        } else if (currentNode.failMatchLength != 0) {
-                            int failMatchEnd = idx - currentNode.failMatchOffset;
-                            if (!listener.match(haystack, failMatchEnd - skipped - currentNode.failMatchLength, failMatchEnd)) {
+                        } else if (failMatchLength[cursor.node.id] != 0) {
+                            int failMatchEnd = idx - failMatchOffset[cursor.node.id];
+                            if (!listener.match(haystack, failMatchEnd - skipped - failMatchLength[cursor.node.id], failMatchEnd)) {
                                 return;
                             }
                         }
                     } else {
                         // If we ran into no-transition situation on a word character, we output any
                         // fail match on the node and scroll through word characters to a non-word character.
-                        if (currentNode.failMatchLength != 0) {
-                            int failMatchEnd = idx - currentNode.failMatchOffset;
-                            if (!listener.match(haystack, failMatchEnd - skipped - currentNode.failMatchLength, failMatchEnd)) {
+                        if (failMatchLength[cursor.node.id] != 0) {
+                            int failMatchEnd = idx - failMatchOffset[cursor.node.id];
+                            if (!listener.match(haystack, failMatchEnd - skipped - failMatchLength[cursor.node.id], failMatchEnd)) {
                                 return;
                             }
                         }
@@ -193,7 +572,7 @@ public class WholeWordLongestMatchSet implements StringSet {
                         ;
                     }
                     skipped = 0;
-                    currentNode = root;
+                    cursor.reset();
                 } else {
                     if(skippedWhitespace) { // in the middle of a transition/partial match. If it was a whitespace skip it until we encounter non-whitespace.
                         while (++idx < len && whitespaceReader.isWhitespace(haystack.charAt(idx))) {
@@ -203,28 +582,144 @@ public class WholeWordLongestMatchSet implements StringSet {
                     }
                     // If we have transition just take it.
                     ++idx;
-                    currentNode = nextNode;
                 }
             }
             // Output any matches on the last node, either a normal match or fail match.
-            if (currentNode.matchLength != 0) {
-                if (!listener.match(haystack, idx - skipped - currentNode.matchLength, idx)) {
+            if (cursor.node.matchLength != 0) {
+                if (!listener.match(haystack, idx - skipped - cursor.node.matchLength, idx)) {
                     return;
                 }
-            } else if (currentNode.failMatchLength != 0) {
-                int failMatchEnd = idx - currentNode.failMatchOffset;
-                if (!listener.match(haystack, failMatchEnd - skipped - currentNode.failMatchLength, failMatchEnd)) {
+            } else if (failMatchLength[cursor.node.id] != 0) {
+                int failMatchEnd = idx - failMatchOffset[cursor.node.id];
+                if (!listener.match(haystack, failMatchEnd - skipped - failMatchLength[cursor.node.id], failMatchEnd)) {
                     return;
                 }
             }
         }
     }
 
+    // Matches the haystack in chunks on the common pool, with the same matches as match. Ordered matches come
+    // in the same order, otherwise they come as chunks finish, from the pool threads but one at a time.
+    public void matchParallel(final String haystack, final SetMatchListener listener, boolean ordered) {
+        matchParallel(haystack, listener, ordered, ForkJoinPool.commonPool());
+    }
+
+    public void matchParallel(final String haystack, final SetMatchListener listener, boolean ordered, ForkJoinPool pool) {
+        matchParallel(haystack, listener, ordered, pool, ParallelScan.CHUNK_CHARS);
+    }
+
+    void matchParallel(final String haystack, final SetMatchListener listener, boolean ordered, ForkJoinPool pool, int chunkChars) {
+        boolean[] separators = ParallelScan.separators(wordChars, charClasses);
+        if (normalizeWhitespace || separators == null) {
+            // Whitespace is normalized to a space, which is a keyword character, or keywords have non-word
+            // characters, so there are no separators to cut the haystack at.
+            match(haystack, listener);
+            return;
+        }
+        new ParallelScan(new ParallelScan.Scanner() {
+
+            public void scan(String haystack, int from, int to, final ParallelScan.Matches matches) {
+                match(haystack, from, to, new SetMatchListener() {
+
+                    public boolean match(String haystack, int startPosition, int endPosition) {
+                        return matches.add(startPosition, endPosition, null);
+                    }
+                });
+            }
+        }, 0, false, separators).match(haystack, new ParallelScan.Listener() {
+
+            public boolean match(int startPosition, int endPosition, Object value) {
+                return listener.match(haystack, startPosition, endPosition);
+            }
+        }, ordered, pool, chunkChars);
+    }
+
+    // Matcher for text that arrives in chunks, it finds the same matches as match would in all of the text.
+    public Matcher matcher(final StreamSetMatchListener listener) {
+        return new StreamMatcher(listener);
+    }
+
+    // Match the file decoded with the charset. The file is memory mapped a window at a time, so it can be
+    // larger than 2GB, and positions are char offsets into the decoded text.
+    public void matchFile(final Path file, final Charset charset, final StreamSetMatchListener listener) throws IOException {
+        MappedText.feed(file, charset, matcher(listener));
+    }
+
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = new MemoryUsage();
+        usage.addTrie(root, TrieNode.class);
+        usage.addArray(MemoryUsage.NODE_FIELDS, failMatchLength);
+        usage.addArray(MemoryUsage.NODE_FIELDS, failMatchOffset);
+        usage.addObject(MemoryUsage.ALPHABET, alphabet);
+        usage.addArray(MemoryUsage.ALPHABET, charClasses);
+        usage.addArray(MemoryUsage.WORD_CHARACTERS, wordChars);
+        return usage;
+    }
+
+    // Re-optimize the trie for text like the sample, which is walked like it would be matched. Nodes with
+    // many lookups become range nodes when the thresholder finds them over the profile threshold, hashmap
+    // nodes get the keys with the most transitions taken moved to their default slots. Nodes the sample
+    // doesn't reach don't change. Matches don't change either. Don't train while other threads match.
+    public void train(String sample) {
+        train(sample, new ProfileThreshold());
+    }
+
+    public void train(String sample, Thresholder thresholdStrategy) {
+        final IdentityHashMap<TrieNode<Void>, long[]> hits = profile(sample);
+        long totalLookups = 0;
+        for (long[] count : hits.values()) {
+            totalLookups += count[0];
+        }
+        final IdentityHashMap<TrieNode<Void>, TrieNode<Void>> replacements = new IdentityHashMap<TrieNode<Void>, TrieNode<Void>>();
+        final ArrayList<TrieNode<Void>> nodes = new ArrayList<TrieNode<Void>>();
+        EntryVisitor<Void> collectNodesVisitor = new EntryVisitor<Void>() {
+
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                if (!replacements.containsKey(value)) {
+                    replacements.put(value, value);
+                    nodes.add(value);
+                }
+            }
+
+        };
+        collectNodesVisitor.visit(null, (char) 0, root);
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieNode<Void> node = nodes.get(i);
+            node.mapEntries(collectNodesVisitor);
+        }
+        for (TrieNode<Void> node : nodes) {
+            long[] count = hits.get(node);
+            // Leaf, single and range nodes are as fast as they get.
+            if (count != null && !(node instanceof LeafNode || node instanceof SingleNode || node instanceof RangeNode)) {
+                // Number of children, smallest and largest key.
+                final int[] entries = { 0, Character.MAX_VALUE, 0 };
+                node.mapEntries(new EntryVisitor<Void>() {
+
+                    public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                        entries[0]++;
+                        entries[1] = Math.min(entries[1], key);
+                        entries[2] = Math.max(entries[2], key);
+                    }
+                });
+                if (thresholdStrategy.isOverProfileThreshold(entries[0], entries[2] - entries[1] + 1, count[0], totalLookups)) {
+                    replacements.put(node, new RangeNode<Void>(node, (char) entries[1], (char) entries[2]));
+                } else if (node instanceof HashmapNode) {
+                    ((HashmapNode<Void>) node).reorder(hits);
+                }
+            }
+        }
+        for (TrieNode<Void> node : nodes) {
+            replacements.get(node).relink(replacements);
+        }
+        root = replacements.get(root);
+    }
+
     boolean[] getWordChars() {
         return wordChars;
     }
 
     private void init(final Iterable<String> keywords, boolean caseSensitive, boolean normalizeWhitespace, final boolean[] wordChars, final Thresholder thresholdStrategy) {
+        alphabet = new Alphabet(caseSensitive);
         this.caseSensitive = caseSensitive;
         this.normalizeWhitespace = normalizeWhitespace;
         this.wordChars = wordChars;
@@ -236,7 +731,8 @@ public class WholeWordLongestMatchSet implements StringSet {
         }
 
         // Create the root node
-        root = new HashmapNode();
+        root = new HashmapNode<Void>();
+        int nodeCount = 1;
         // Add all keywords
         for (String keyword : keywords) {
             // Skip any empty keywords
@@ -250,9 +746,12 @@ public class WholeWordLongestMatchSet implements StringSet {
                     // Start with the current node and traverse the tree
                     // character by character. Add nodes as needed to
                     // fill out the tree.
-                    HashmapNode currentNode = (HashmapNode) root;
+                    HashmapNode<Void> currentNode = (HashmapNode<Void>) root;
                     for (int idx = 0; idx < keyword.length(); idx++) {
-                        currentNode = currentNode.getOrAddChild(caseSensitive ? keyword.charAt(idx) : Character.toLowerCase(keyword.charAt(idx)));
+                        currentNode = currentNode.getOrAddChild(alphabet.add(keyword.charAt(idx)), nodeCount);
+                        if (currentNode.id == nodeCount) {
+                            nodeCount++;
+                        }
                     }
                     // Last node will contains the keyword as a match.
                     // Suffix matches will be added later.
@@ -260,6 +759,13 @@ public class WholeWordLongestMatchSet implements StringSet {
                 }
             }
         }
+        charClasses = alphabet.classes();
+        failMatchLength = new int[nodeCount];
+        failMatchOffset = new int[nodeCount];
+        if (!caseSensitive) {
+            // Input isn't lower cased when matching, so word character flags have to be.
+            this.wordChars = WordCharacters.lowerCaseFlags(wordChars);
+        }
         // Go through nodes breadth first, swap any hashmap nodes,
         // whose size is close to the size of range of keys with
         // flat array based nodes.
@@ -269,29 +775,35 @@ public class WholeWordLongestMatchSet implements StringSet {
         // calculating for a 3 letter word requires having done the calculation
         // for all 2 letter words.
         //
-        final Queue<TrieNode> queue = new Queue<TrieNode>();
-        root = root.optimizeNode(0, thresholdStrategy);
+        final Thresholder plannedStrategy = plan((HashmapNode<Void>) root, !thresholdStrategy.isOverRootTableThreshold(alphabet.size()), thresholdStrategy);
+        final Queue<TrieNode<Void>> queue = new Queue<TrieNode<Void>>();
+        if (thresholdStrategy.isOverRootTableThreshold(alphabet.size())) {
+            // Root table has a slot for every class id, so root lookups never miss the range.
+            root = new RangeNode<Void>((HashmapNode<Void>) root, (char) 0, (char) (alphabet.size() - 1));
+        } else {
+            root = root.optimizeNode(0, plannedStrategy);
+        }
         queue.push(root);
         queue.push(null);
         // Need to use array to get mutateable state for anonymous class
         final int[] level = new int[] { 1 };
 
-        EntryVisitor optimizeNodesAndFailTransitions = new EntryVisitor() {
+        EntryVisitor<Void> optimizeNodesAndFailTransitions = new EntryVisitor<Void>() {
 
-            public void visit(TrieNode parent, char key, TrieNode value) {
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
                 // First optimize node
-                value = value.optimizeNode(level[0], thresholdStrategy);
+                value = value.optimizeNode(level[0], plannedStrategy);
                 parent.updateTransition(key, value);
                 // Fill the fail match variables. We do that by carrying the last match up the tree
                 // and increasing the offset.
                 // If the 'parent' node has a match and the transition is a non-word character
                 // we carry that match as a fail match to children after that transition.
-                if (parent.matchLength != 0 && !wordChars[key]) {
-                    value.failMatchLength = parent.matchLength;
-                    value.failMatchOffset = 1;
+                if (parent.matchLength != 0 && !wordChars[alphabet.charOf(key)]) {
+                    failMatchLength[value.id] = parent.matchLength;
+                    failMatchOffset[value.id] = 1;
                 } else {
-                    value.failMatchLength = parent.failMatchLength;
-                    value.failMatchOffset = parent.failMatchOffset + 1;
+                    failMatchLength[value.id] = failMatchLength[parent.id];
+                    failMatchOffset[value.id] = failMatchOffset[parent.id] + 1;
                 }
                 // Queue the non-leaf node.
                 if (!value.isEmpty()) {
@@ -301,7 +813,7 @@ public class WholeWordLongestMatchSet implements StringSet {
             }
         };
         while (!queue.isEmpty()) {
-            TrieNode n = queue.take();
+            TrieNode<Void> n = queue.take();
             if (n == null) {
                 if (!queue.isEmpty()) {
                     queue.push(null);
@@ -311,277 +823,199 @@ public class WholeWordLongestMatchSet implements StringSet {
                 n.mapEntries(optimizeNodesAndFailTransitions);
             }
         }
-
     }
 
-    private interface EntryVisitor {
-        void visit(TrieNode parent, char key, TrieNode value);
-    }
-
-    // An open addressing hashmap implementation with linear probing
-    // and capacity of 2^n
-    private final static class HashmapNode extends TrieNode {
-
-        // Start with capacity of 1 and resize as needed.
-        private TrieNode[] children = new TrieNode[1];
-
-        private char[] keys = new char[1];
-        // Since capacity is a power of 2, we calculate mod by just
-        // bitwise AND with the right mask.
-        private int modulusMask = keys.length - 1;
-        private int numEntries = 0;
-
-        @Override
-        public void clear() {
-            children = new TrieNode[1];
-            keys = new char[1];
-            modulusMask = keys.length - 1;
-            numEntries = 0;
-        }
-
-        @Override
-        public TrieNode getTransition(final char key) {
-            int defaultSlot = hash(key) & modulusMask;
-            int currentSlot = defaultSlot;
-            // Linear probing to find the entry for key.
-            do {
-                if (keys[currentSlot] == key) {
-                    return children[currentSlot];
-                } else if (children[currentSlot] == null) {
-                    return null;
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
+    // Walk the sample like the match loop does and count lookups on each node (index 0 of the counts) and
+    // transitions taken to it (index 1), see train. Walks stop at the first character without a transition
+    // and continue at the next word.
+    private IdentityHashMap<TrieNode<Void>, long[]> profile(String sample) {
+        final TrieCursor.Profile<Void> cursor = new TrieCursor.Profile<Void>(root);
+        int idx = 0;
+        final int len = sample.length();
+        while (idx < len) {
+            final char c = sample.charAt(idx);
+            final boolean advanced = cursor.advance(charClasses[c]);
+            if (!advanced) {
+                if (wordChars[c]) {
+                    while (++idx < len && wordChars[sample.charAt(idx)]) {
+                        ;
+                    }
                 }
-            } while (currentSlot != defaultSlot);
-            return null;
-        }
-
-        @Override
-        public boolean isEmpty() {
-            return numEntries == 0;
-        }
-
-        @Override
-        public void mapEntries(EntryVisitor visitor) {
-            for (int i = 0; i < keys.length; i++) {
-                if (children[i] != null) {
-                    visitor.visit(this, keys[i], children[i]);
+                while (++idx < len && !wordChars[sample.charAt(idx)]) {
+                    ;
                 }
+                cursor.reset();
+            } else {
+                ++idx;
             }
         }
+        return cursor.hits;
+    }
 
-        @Override
-        public void updateTransition(char c, TrieNode node) {
-            int defaultSlot = hash(c) & modulusMask;
-            int currentSlot = defaultSlot;
-            do {
-                if (children[currentSlot] == null) {
-                    throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
-                } else if (keys[currentSlot] == c) {
-                    children[currentSlot] = node;
-                    return;
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
-                }
-            } while (currentSlot != defaultSlot);
-            throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
-        }
-
-        @Override
-        protected TrieNode optimizeNode(int level, Thresholder thresholdStrategy) {
-            char minKey = '\uffff';
-            char maxKey = 0;
-            // Find you the min and max key on the node.
-            int size = numEntries;
-            for (int i = 0; i < children.length; i++) {
-                if (children[i] != null) {
-                    if (keys[i] > maxKey) {
-                        maxKey = keys[i];
+    // Let the thresholder plan node types with a view of the whole trie, see Thresholder.plan. Reports
+    // every node with at least 2 children, the root only if it's optimized like the other nodes.
+    private static Thresholder plan(HashmapNode<Void> root, boolean optimizeRoot, Thresholder thresholdStrategy) {
+        int[] sizes = new int[16];
+        int[] levels = new int[16];
+        int[] keyIntervalSizes = new int[16];
+        int count = 0;
+        ArrayList<HashmapNode<Void>> layer = new ArrayList<HashmapNode<Void>>();
+        layer.add(root);
+        for (int level = 0; !layer.isEmpty(); level++) {
+            ArrayList<HashmapNode<Void>> nextLayer = new ArrayList<HashmapNode<Void>>();
+            for (HashmapNode<Void> node : layer) {
+                char minKey = '\uffff';
+                char maxKey = 0;
+                for (int i = 0; i < node.children.length; i++) {
+                    if (node.children[i] != null) {
+                        minKey = (char) Math.min(minKey, node.keys[i]);
+                        maxKey = (char) Math.max(maxKey, node.keys[i]);
+                        nextLayer.add((HashmapNode<Void>) node.children[i]);
                     }
-                    if (keys[i] < minKey) {
-                        minKey = keys[i];
+                }
+                if (node.numEntries > 1 && (level > 0 || optimizeRoot)) {
+                    if (count == sizes.length) {
+                        sizes = Arrays.copyOf(sizes, count * 2);
+                        levels = Arrays.copyOf(levels, count * 2);
+                        keyIntervalSizes = Arrays.copyOf(keyIntervalSizes, count * 2);
                     }
+                    sizes[count] = node.numEntries;
+                    levels[count] = level;
+                    keyIntervalSizes[count++] = maxKey - minKey + 1;
                 }
             }
-            // If difference between min and max key are small
-            // or only slightly larger than number of entries, use a range node
-            int keyIntervalSize = maxKey - minKey + 1;
-            if (thresholdStrategy.isOverThreshold(size, level, keyIntervalSize)) {
-                return new RangeNode(this, minKey, maxKey);
-            } else {
-                return this;
-            }
+            layer = nextLayer;
         }
+        return thresholdStrategy.plan(Arrays.copyOf(sizes, count), Arrays.copyOf(levels, count), Arrays.copyOf(keyIntervalSizes, count));
+    }
 
-        // Double the capacity of the node, calculate the new mask,
-        // rehash and reinsert the entries
-        private void enlarge() {
-            char[] biggerKeys = new char[keys.length * 2];
-            TrieNode[] biggerChildren = new TrieNode[children.length * 2];
-            int biggerMask = biggerKeys.length - 1;
-            for (int i = 0; i < children.length; i++) {
-                char key = keys[i];
-                TrieNode node = children[i];
-                if (node != null) {
-                    int defaultSlot = hash(key) & biggerMask;
-                    int currentSlot = defaultSlot;
-                    do {
-                        if (biggerChildren[currentSlot] == null) {
-                            biggerKeys[currentSlot] = key;
-                            biggerChildren[currentSlot] = node;
-                            break;
-                        } else if (biggerKeys[currentSlot] == key) {
-                            throw new IllegalStateException();
-                        } else {
-                            currentSlot = ++currentSlot & biggerMask;
-                        }
-                    } while (currentSlot != defaultSlot);
-                }
-            }
-            this.keys = biggerKeys;
-            this.children = biggerChildren;
-            this.modulusMask = biggerMask;
+    // State of the match loop between chunks. Scrolling through the rest of a word and the non-word
+    // characters after it, or through a run of whitespace, can go on in the next chunk.
+    private final class StreamMatcher implements Matcher {
+
+        private final TrieCursor<Void> cursor = new TrieCursor<Void>(root);
+        private final StreamSetMatchListener listener;
+        // Position of the next character in the text.
+        private long position = 0;
+        private boolean scrollNonWord = false;
+        private boolean scrollWord = false;
+        private int skipped = 0;
+        private boolean stopped = false;
+        private boolean whitespaceRun = false;
+
+        private StreamMatcher(StreamSetMatchListener listener) {
+            this.listener = listener;
         }
 
-        // Return the node for a key or create a new hashmap node for that key
-        // and return that.
-        private HashmapNode getOrAddChild(char key) {
-            // Check if we need to resize. Capacity of 2^16 doesn't need to resize.
-            // If capacity is <16 and arrays are full or capacity is >16 and
-            // arrays are 90% full, resize
-            if (keys.length < 0x10000 && ((numEntries >= keys.length) || (numEntries > 16 && (numEntries >= keys.length * 0.90f)))) {
-                enlarge();
+        public boolean feed(final char[] chunk, final int off, final int len) {
+            if (stopped) {
+                return false;
             }
-            int defaultSlot = hash(key) & modulusMask;
-            int currentSlot = defaultSlot;
-            do {
-                if (children[currentSlot] == null) {
-                    keys[currentSlot] = key;
-                    HashmapNode newChild = new HashmapNode();
-                    children[currentSlot] = newChild;
-                    ++numEntries;
-                    return newChild;
-                } else if (keys[currentSlot] == key) {
-                    return (HashmapNode) children[currentSlot];
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
+            // Local copies of the state for the loop.
+            final int[] failMatchLength = WholeWordLongestMatchSet.this.failMatchLength;
+            final int[] failMatchOffset = WholeWordLongestMatchSet.this.failMatchOffset;
+            final boolean skipWhitespace = whitespaceReader.enabled();
+            // Case insensitive matching puts fail matches before the skipped whitespace.
+            final boolean failSkipped = !caseSensitive;
+            boolean scrollNonWord = this.scrollNonWord;
+            boolean scrollWord = this.scrollWord;
+            int skipped = this.skipped;
+            boolean whitespaceRun = this.whitespaceRun;
+            // Position of the chunk array start in the text.
+            final long base = position - off;
+            final int end = off + len;
+            int idx = off;
+            while (idx < end) {
+                char c = chunk[idx];
+                if (scrollWord) {
+                    // Scroll through word characters and the non-word character after them.
+                    if (!wordChars[c]) {
+                        scrollWord = false;
+                        scrollNonWord = true;
+                    }
+                    ++idx;
+                    continue;
+                } else if (scrollNonWord) {
+                    // Scroll to the first word character, which starts the next word.
+                    if (!wordChars[c]) {
+                        ++idx;
+                        continue;
+                    }
+                    scrollNonWord = false;
                 }
-            } while (currentSlot != defaultSlot);
-            throw new IllegalStateException();
-        }
-
-        // FNV-1a hash
-        private int hash(char c) {
-            // HASH_BASIS = 0x811c9dc5;
-            final int HASH_PRIME = 16777619;
-            return (((0x811c9dc5 ^ (c >> 8)) * HASH_PRIME) ^ (c & 0xff)) * HASH_PRIME;
-        }
-
-    }
-
-    // This node is good at representing dense ranges of keys.
-    // It has a single array of nodes and a base key value.
-    // Child at array index 3 has key of baseChar + 3.
-    private static final class RangeNode extends TrieNode {
-
-        private char baseChar = 0;
-        private TrieNode[] children;
-        private int size = 0;
-
-        private RangeNode(HashmapNode oldNode, char from, char to) {
-            // Value of the first character
-            this.baseChar = from;
-            this.size = to - from + 1;
-            this.matchLength = oldNode.matchLength;
-            // Avoid even allocating a children array if size is 0.
-            if (size <= 0) {
-                size = 0;
-            } else {
-                this.children = new TrieNode[size];
-                // Grab the children of the old node.
-                for (int i = 0; i < oldNode.children.length; i++) {
-                    if (oldNode.children[i] != null) {
-                        children[oldNode.keys[i] - from] = oldNode.children[i];
+                boolean skippedWhitespace = skipWhitespace && whitespaceReader.isWhitespace(c);
+                if (whitespaceRun) {
+                    if (skippedWhitespace) {
+                        ++skipped;
+                        ++idx;
+                        continue;
                     }
+                    whitespaceRun = false;
                 }
-            }
-        }
-
-        @Override
-        public void clear() {
-            children = null;
-            size = 0;
-        }
-
-        @Override
-        public TrieNode getTransition(char c) {
-            // First check if the key is between max and min value.
-            // Here we use the fact that char type is unsigned to figure it out
-            // with a single condition.
-            int idx = (char) (c - baseChar);
-            if (idx < size) {
-                return children[idx];
-            }
-            return null;
-        }
-
-        @Override
-        public boolean isEmpty() {
-            return size == 0;
-        }
-
-        @Override
-        public void mapEntries(EntryVisitor visitor) {
-            if (children != null) {
-                for (int i = 0; i < children.length; i++) {
-                    if (children[i] != null && children[i] != this) {
-                        visitor.visit(this, (char) (baseChar + i), children[i]);
+                if (skippedWhitespace) {
+                    c = ' ';
+                }
+                final boolean advanced = cursor.advance(charClasses[c]);
+                if (!advanced) {
+                    final long at = base + idx;
+                    if (!wordChars[c]) {
+                        if (cursor.node.matchLength != 0) {
+                            if (!listener.match(at - skipped - cursor.node.matchLength, at)) {
+                                stopped = true;
+                                return false;
+                            }
+                        } else if (failMatchLength[cursor.node.id] != 0) {
+                            long failMatchEnd = at - failMatchOffset[cursor.node.id];
+                            if (!listener.match(failMatchEnd - (failSkipped ? skipped : 0) - failMatchLength[cursor.node.id], failMatchEnd)) {
+                                stopped = true;
+                                return false;
+                            }
+                        }
+                        scrollNonWord = true;
+                    } else {
+                        if (failMatchLength[cursor.node.id] != 0) {
+                            long failMatchEnd = at - failMatchOffset[cursor.node.id];
+                            if (!listener.match(failMatchEnd - (failSkipped ? skipped : 0) - failMatchLength[cursor.node.id], failMatchEnd)) {
+                                stopped = true;
+                                return false;
+                            }
+                        }
+                        scrollWord = true;
                     }
+                    skipped = 0;
+                    cursor.reset();
+                } else {
+                    // The whitespace after this one is skipped.
+                    whitespaceRun = skippedWhitespace;
                 }
+                ++idx;
             }
+            this.scrollNonWord = scrollNonWord;
+            this.scrollWord = scrollWord;
+            this.skipped = skipped;
+            this.whitespaceRun = whitespaceRun;
+            position = base + end;
+            return true;
         }
 
-        @Override
-        public void updateTransition(char c, TrieNode node) {
-            // First check if the key is between max and min value.
-            // Here we use the fact that char type is unsigned to figure it out
-            // with a single condition.
-            int idx = (char) (c - baseChar);
-            if (idx < size) {
-                if (children[idx] != null) {
-                    children[idx] = node;
-                    return;
-                } else {
-                    throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+        public void finish() {
+            if (!stopped) {
+                // Output any matches on the last node, either a normal match or fail match.
+                if (cursor.node.matchLength != 0) {
+                    listener.match(position - skipped - cursor.node.matchLength, position);
+                } else if (failMatchLength[cursor.node.id] != 0) {
+                    long failMatchEnd = position - failMatchOffset[cursor.node.id];
+                    listener.match(failMatchEnd - (caseSensitive ? 0 : skipped) - failMatchLength[cursor.node.id], failMatchEnd);
                 }
             }
-            throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
-        }
-
-    }
-
-    // Basic node for both
-    private static abstract class TrieNode {
-
-        protected int failMatchLength = 0;
-        protected int failMatchOffset = 0;
-        protected int matchLength = 0;
-
-        public abstract void clear();
-
-        // Get transition (root node returns something non-null for all characters - itself)
-        public abstract TrieNode getTransition(char c);
-
-        public abstract boolean isEmpty();
-
-        public abstract void mapEntries(final EntryVisitor visitor);
-
-        public abstract void updateTransition(char c, TrieNode node);
-
-        protected TrieNode optimizeNode(int level, Thresholder thresholdStrategy) {
-            return this;
+            cursor.reset();
+            position = 0;
+            scrollNonWord = false;
+            scrollWord = false;
+            skipped = 0;
+            stopped = false;
+            whitespaceRun = false;
         }
-
     }
 
     protected interface WhitespaceReader {
@@ -2,18 +2,29 @@ package com.roklenarcic.util.strings;
 
 import java.io.IOException;
 import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
 
+import com.roklenarcic.util.strings.threshold.ProfileThreshold;
 import com.roklenarcic.util.strings.threshold.RangeNodeThreshold;
 import com.roklenarcic.util.strings.threshold.Thresholder;
 
 // A set that matches only whole word matches. Non-word characters are user defined (with a default).
 // Any non-word characters around input strings get trimmed. Non-word characters not allowed in the keywords
 // and they will produce an IllegalArgumentException.
-public class WholeWordMatchMap<T> implements StringMap<T> {
+public class WholeWordMatchMap<T> implements StringMap<T>, MemoryAccountable {
 
-    private boolean caseSensitive = true;
+    private Alphabet alphabet;
     private int charBufferSize = 0;
+    private char[] charClasses;
+    // Values of the nodes, by node id. Values are all T.
+    private Object[] values = new Object[16];
     private TrieNode<T> root;
     private boolean[] wordChars;
 
@@ -52,191 +63,360 @@ public class WholeWordMatchMap<T> implements StringMap<T> {
         init(keywords, values, caseSensitive, WordCharacters.generateWordCharsFlags(), thresholdStrategy);
     }
 
-    public void match(final Readable haystack, final ReadableMatchListener<T> listener) throws IOException {
+    // Node statistics for tuning the thresholder, see TrieDiagnostics.
+    public TrieDiagnostics diagnostics() {
+        final TrieDiagnostics diagnostics = new TrieDiagnostics();
+        final ArrayList<TrieNode<T>> nodes = new ArrayList<TrieNode<T>>();
+        final IdentityHashMap<TrieNode<T>, Integer> levels = new IdentityHashMap<TrieNode<T>, Integer>();
+        // Number of children, smallest and largest key of the visited node.
+        final int[] entries = new int[3];
+        EntryVisitor<T> visitor = new EntryVisitor<T>() {
 
-        // Start with the root node.
-        TrieNode<T> currentNode = root;
-        // For each character.
+            public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
+                entries[0]++;
+                entries[1] = Math.min(entries[1], key);
+                entries[2] = Math.max(entries[2], key);
+                if (!levels.containsKey(value)) {
+                    levels.put(value, levels.get(parent) + 1);
+                    nodes.add(value);
+                }
+            }
 
-        CharBuffer buf = CharBuffer.allocate(charBufferSize);
+        };
+        levels.put(root, 0);
+        nodes.add(root);
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieNode<T> node = nodes.get(i);
+            int level = levels.get(node);
+            entries[0] = 0;
+            entries[1] = Character.MAX_VALUE;
+            entries[2] = 0;
+            node.mapEntries(visitor);
+            int slots = node instanceof RangeNode ? ((RangeNode<T>) node).size : 0;
+            diagnostics.add(node.getClass().getSimpleName(), level, entries[0], entries[2] - entries[1] + 1, -1, slots);
+        }
+        return diagnostics;
+    }
 
-        // Putting this if into the loop worsens the performance so we'll sadly
-        // have to deal with duplicated code.
-        if (caseSensitive) {
-            MAIN_LOOP: while (haystack.read(buf) != -1) {
-                buf.flip();
-                while (buf.hasRemaining()) {
-                    final char c = buf.get();
-                    TrieNode<T> nextNode = currentNode.getTransition(c);
-                    // Regardless of the type of the character, we keep moving till we run into
-                    // a situation where there's no transition available.
-                    if (nextNode == null) {
-                        if (!wordChars[c]) {
-                            // If we ran into no-transition scenario on non-word character we can
-                            // output the match on the current node if there is one.
-                            // Later we will run through non-word characters to the start of the next word.
-                            if (currentNode.matchLength != 0) {
-                                if (!listener.match(currentNode.value)) {
-                                    return;
-                                }
-                            }
-                        } else {
-                            // If we ran into no-transition situation on a word character, we scroll through
-                            // word
-                            // characters to a non-word character.
-                            // Scroll to the first non-word character
-                            if (scroll(haystack, buf, true, true)) {
-                                currentNode = root;
-                                break MAIN_LOOP;
-                            }
-                        }
-                        // Scroll to the first word character
-                        currentNode = root;
-                        if (scroll(haystack, buf, false, true)) {
-                            break MAIN_LOOP;
+    @SuppressWarnings("unchecked")
+    public void matchChars(final char[] haystack, final int from, final int to, final CharSequenceMapMatchListener<T> listener) {
+        // Listeners see the array as a char sequence, positions are array indexes.
+        final CharSequence sequence = CharBuffer.wrap(haystack);
+
+        // Local copies of the node fields for the loop.
+        final Object[] values = this.values;
+        // Start with the root node.
+        final TrieCursor<T> cursor = new TrieCursor<T>(root);
+
+        int idx = from;
+        // Start of the current word, nodes can be shared by keywords of different lengths.
+        int start = from;
+        // For each character.
+        final int len = to;
+        while (idx < len) {
+            char c = haystack[idx];
+            final boolean advanced = cursor.advance(charClasses[c]);
+            // Regardless of the type of the character, we keep moving till we run into
+            // a situation where there's no transition available.
+            if (!advanced) {
+                if (!wordChars[c]) {
+                    // If we ran into no-transition scenario on non-word character we can
+                    // output the match on the current node if there is one.
+                    // Later we will run through non-word characters to the start of the next word.
+                    if (cursor.node.matchLength != 0) {
+                        if (!listener.match(sequence, start, idx, (T) values[cursor.node.id])) {
+                            return;
                         }
-                    } else {
-                        currentNode = nextNode;
                     }
-                }
-                buf.clear();
-            }
-            if (currentNode.matchLength != 0) {
-                // Output any matches on the last node
-                listener.match(currentNode.value);
-            }
-        } else {
-            MAIN_LOOP2: while (haystack.read(buf) != -1) {
-                buf.flip();
-                while (buf.hasRemaining()) {
-                    final char c = Character.toLowerCase(buf.get());
-                    TrieNode<T> nextNode = currentNode.getTransition(c);
-                    // Regardless of the type of the character, we keep moving till we run into
-                    // a situation where there's no transition available.
-                    if (nextNode == null) {
-                        if (!wordChars[c]) {
-                            // If we ran into no-transition scenario on non-word character we can
-                            // output the match on the current node if there is one.
-                            // Later we will run through non-word characters to the start of the next word.
-                            if (currentNode.matchLength != 0) {
-                                if (!listener.match(currentNode.value)) {
-                                    return;
-                                }
-                            }
-                        } else {
-                            // If we ran into no-transition situation on a word character, we scroll through
-                            // word
-                            // characters to a non-word character.
-                            // Scroll to the first non-word character
-                            if (scroll(haystack, buf, true, false)) {
-                                currentNode = root;
-                                break MAIN_LOOP2;
-                            }
-                        }
-                        // Scroll to the first word character
-                        currentNode = root;
-                        if (scroll(haystack, buf, false, false)) {
-                            break MAIN_LOOP2;
-                        }
-                        currentNode = root;
-                    } else {
-                        currentNode = nextNode;
+                } else {
+                    // If we ran into no-transition situation on a word character, we scroll through word
+                    // characters to a non-word character.
+                    while (++idx < len && wordChars[haystack[idx]]) {
+                        ;
                     }
                 }
-                buf.clear();
-            }
-            if (currentNode.matchLength != 0) {
-                // Output any matches on the last node
-                listener.match(currentNode.value);
+                // Scroll to the first word character
+                while (++idx < len && !wordChars[haystack[idx]]) {
+                    ;
+                }
+                start = idx;
+                cursor.reset();
+            } else {
+                ++idx;
             }
         }
+        if (cursor.node.matchLength != 0) {
+            // Output any matches on the last node
+            listener.match(sequence, start, idx, (T) values[cursor.node.id]);
+        }
     }
 
-    public void match(final String haystack, final MapMatchListener<T> listener) {
+    @SuppressWarnings("unchecked")
+    public void matchSequence(final CharSequence haystack, final CharSequenceMapMatchListener<T> listener) {
 
+        // Local copies of the node fields for the loop.
+        final Object[] values = this.values;
         // Start with the root node.
-        TrieNode<T> currentNode = root;
+        final TrieCursor<T> cursor = new TrieCursor<T>(root);
 
         int idx = 0;
+        // Start of the current word, nodes can be shared by keywords of different lengths.
+        int start = 0;
         // For each character.
         final int len = haystack.length();
-        // Putting this if into the loop worsens the performance so we'll sadly
-        // have to deal with duplicated code.
-        if (caseSensitive) {
-            while (idx < len) {
-                char c = haystack.charAt(idx);
-                TrieNode<T> nextNode = currentNode.getTransition(c);
-                // Regardless of the type of the character, we keep moving till we run into
-                // a situation where there's no transition available.
-                if (nextNode == null) {
-                    if (!wordChars[c]) {
-                        // If we ran into no-transition scenario on non-word character we can
-                        // output the match on the current node if there is one.
-                        // Later we will run through non-word characters to the start of the next word.
-                        if (currentNode.matchLength != 0) {
-                            if (!listener.match(haystack, idx - currentNode.matchLength, idx, currentNode.value)) {
-                                return;
-                            }
-                        }
-                    } else {
-                        // If we ran into no-transition situation on a word character, we scroll through word
-                        // characters to a non-word character.
-                        while (++idx < len && wordChars[haystack.charAt(idx)]) {
-                            ;
+        while (idx < len) {
+            char c = haystack.charAt(idx);
+            final boolean advanced = cursor.advance(charClasses[c]);
+            // Regardless of the type of the character, we keep moving till we run into
+            // a situation where there's no transition available.
+            if (!advanced) {
+                if (!wordChars[c]) {
+                    // If we ran into no-transition scenario on non-word character we can
+                    // output the match on the current node if there is one.
+                    // Later we will run through non-word characters to the start of the next word.
+                    if (cursor.node.matchLength != 0) {
+                        if (!listener.match(haystack, start, idx, (T) values[cursor.node.id])) {
+                            return;
                         }
                     }
-                    // Scroll to the first word character
-                    while (++idx < len && !wordChars[haystack.charAt(idx)]) {
+                } else {
+                    // If we ran into no-transition situation on a word character, we scroll through word
+                    // characters to a non-word character.
+                    while (++idx < len && wordChars[haystack.charAt(idx)]) {
                         ;
                     }
-                    currentNode = root;
-                } else {
-                    ++idx;
-                    currentNode = nextNode;
                 }
+                // Scroll to the first word character
+                while (++idx < len && !wordChars[haystack.charAt(idx)]) {
+                    ;
+                }
+                start = idx;
+                cursor.reset();
+            } else {
+                ++idx;
             }
-            if (currentNode.matchLength != 0) {
-                // Output any matches on the last node
-                listener.match(haystack, idx - currentNode.matchLength, idx, currentNode.value);
-            }
-        } else {
-            while (idx < len) {
-                char c = Character.toLowerCase(haystack.charAt(idx));
-                TrieNode<T> nextNode = currentNode.getTransition(c);
+        }
+        if (cursor.node.matchLength != 0) {
+            // Output any matches on the last node
+            listener.match(haystack, start, idx, (T) values[cursor.node.id]);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void match(final Readable haystack, final ReadableMatchListener<T> listener) throws IOException {
+
+        // Local copies of the node fields for the loop.
+        final Object[] values = this.values;
+        // Start with the root node.
+        final TrieCursor<T> cursor = new TrieCursor<T>(root);
+        // For each character.
+
+        CharBuffer buf = CharBuffer.allocate(charBufferSize);
+
+        MAIN_LOOP: while (haystack.read(buf) != -1) {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                final char c = buf.get();
+                final boolean advanced = cursor.advance(charClasses[c]);
                 // Regardless of the type of the character, we keep moving till we run into
                 // a situation where there's no transition available.
-                if (nextNode == null) {
+                if (!advanced) {
                     if (!wordChars[c]) {
                         // If we ran into no-transition scenario on non-word character we can
                         // output the match on the current node if there is one.
                         // Later we will run through non-word characters to the start of the next word.
-                        if (currentNode.matchLength != 0) {
-                            if (!listener.match(haystack, idx - currentNode.matchLength, idx, currentNode.value)) {
+                        if (cursor.node.matchLength != 0) {
+                            if (!listener.match((T) values[cursor.node.id])) {
                                 return;
                             }
                         }
                     } else {
-                        // If we ran into no-transition situation on a word character, we scroll through word
+                        // If we ran into no-transition situation on a word character, we scroll through
+                        // word
                         // characters to a non-word character.
-                        while (++idx < len && wordChars[haystack.charAt(idx)]) {
-                            ;
+                        // Scroll to the first non-word character
+                        if (scroll(haystack, buf, true)) {
+                            cursor.reset();
+                            break MAIN_LOOP;
                         }
                     }
                     // Scroll to the first word character
-                    while (++idx < len && !wordChars[haystack.charAt(idx)]) {
-                        ;
+                    cursor.reset();
+                    if (scroll(haystack, buf, false)) {
+                        break MAIN_LOOP;
                     }
-                    currentNode = root;
                 } else {
-                    ++idx;
-                    currentNode = nextNode;
                 }
             }
-            if (currentNode.matchLength != 0) {
-                // Output any matches on the last node
-                listener.match(haystack, idx - currentNode.matchLength, idx, currentNode.value);
+            buf.clear();
+        }
+        if (cursor.node.matchLength != 0) {
+            // Output any matches on the last node
+            listener.match((T) values[cursor.node.id]);
+        }
+    }
+
+    public void match(final String haystack, final MapMatchListener<T> listener) {
+        match(haystack, 0, haystack.length(), listener);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void match(final String haystack, final int offset, final int len, final MapMatchListener<T> listener) {
+
+        // Local copies of the node fields for the loop.
+        final Object[] values = this.values;
+        // Start with the root node.
+        final TrieCursor<T> cursor = new TrieCursor<T>(root);
+
+        int idx = offset;
+        // Start of the current word, nodes can be shared by keywords of different lengths.
+        int start = offset;
+        // For each character.
+        while (idx < len) {
+            char c = haystack.charAt(idx);
+            final boolean advanced = cursor.advance(charClasses[c]);
+            // Regardless of the type of the character, we keep moving till we run into
+            // a situation where there's no transition available.
+            if (!advanced) {
+                if (!wordChars[c]) {
+                    // If we ran into no-transition scenario on non-word character we can
+                    // output the match on the current node if there is one.
+                    // Later we will run through non-word characters to the start of the next word.
+                    if (cursor.node.matchLength != 0) {
+                        if (!listener.match(haystack, start, idx, (T) values[cursor.node.id])) {
+                            return;
+                        }
+                    }
+                } else {
+                    // If we ran into no-transition situation on a word character, we scroll through word
+                    // characters to a non-word character.
+                    while (++idx < len && wordChars[haystack.charAt(idx)]) {
+                        ;
+                    }
+                }
+                // Scroll to the first word character
+                while (++idx < len && !wordChars[haystack.charAt(idx)]) {
+                    ;
+                }
+                start = idx;
+                cursor.reset();
+            } else {
+                ++idx;
+            }
+        }
+        if (cursor.node.matchLength != 0) {
+            // Output any matches on the last node
+            listener.match(haystack, start, idx, (T) values[cursor.node.id]);
+        }
+    }
+
+    // Matches the haystack in chunks on the common pool, with the same matches as match. Ordered matches come
+    // in the same order, otherwise they come as chunks finish, from the pool threads but one at a time.
+    public void matchParallel(final String haystack, final MapMatchListener<T> listener, boolean ordered) {
+        matchParallel(haystack, listener, ordered, ForkJoinPool.commonPool());
+    }
+
+    public void matchParallel(final String haystack, final MapMatchListener<T> listener, boolean ordered, ForkJoinPool pool) {
+        matchParallel(haystack, listener, ordered, pool, ParallelScan.CHUNK_CHARS);
+    }
+
+    @SuppressWarnings("unchecked")
+    void matchParallel(final String haystack, final MapMatchListener<T> listener, boolean ordered, ForkJoinPool pool, int chunkChars) {
+        new ParallelScan(new ParallelScan.Scanner() {
+
+            public void scan(String haystack, int from, int to, final ParallelScan.Matches matches) {
+                match(haystack, from, to, new MapMatchListener<T>() {
+
+                    public boolean match(String haystack, int startPosition, int endPosition, T value) {
+                        return matches.add(startPosition, endPosition, value);
+                    }
+                });
+            }
+        }, 0, false, ParallelScan.separators(wordChars, null)).match(haystack, new ParallelScan.Listener() {
+
+            public boolean match(int startPosition, int endPosition, Object value) {
+                return listener.match(haystack, startPosition, endPosition, (T) value);
             }
+        }, ordered, pool, chunkChars);
+    }
+
+    // Matcher for text that arrives in chunks, it finds the same matches as match would in all of the text.
+    public Matcher matcher(final StreamMapMatchListener<T> listener) {
+        return new StreamMatcher(listener);
+    }
+
+    // Match the file decoded with the charset. The file is memory mapped a window at a time, so it can be
+    // larger than 2GB, and positions are char offsets into the decoded text.
+    public void matchFile(final Path file, final Charset charset, final StreamMapMatchListener<T> listener) throws IOException {
+        MappedText.feed(file, charset, matcher(listener));
+    }
+
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = new MemoryUsage();
+        usage.addTrie(root, TrieNode.class);
+        usage.addArray(MemoryUsage.VALUES, values);
+        usage.addObject(MemoryUsage.ALPHABET, alphabet);
+        usage.addArray(MemoryUsage.ALPHABET, charClasses);
+        usage.addArray(MemoryUsage.WORD_CHARACTERS, wordChars);
+        return usage;
+    }
+
+    // Re-optimize the trie for text like the sample, which is walked like it would be matched. Nodes with
+    // many lookups become range nodes when the thresholder finds them over the profile threshold, hashmap
+    // nodes get the keys with the most transitions taken moved to their default slots. Nodes the sample
+    // doesn't reach don't change. Matches don't change either. Don't train while other threads match.
+    public void train(String sample) {
+        train(sample, new ProfileThreshold());
+    }
+
+    public void train(String sample, Thresholder thresholdStrategy) {
+        final IdentityHashMap<TrieNode<T>, long[]> hits = profile(sample);
+        long totalLookups = 0;
+        for (long[] count : hits.values()) {
+            totalLookups += count[0];
         }
+        final IdentityHashMap<TrieNode<T>, TrieNode<T>> replacements = new IdentityHashMap<TrieNode<T>, TrieNode<T>>();
+        final ArrayList<TrieNode<T>> nodes = new ArrayList<TrieNode<T>>();
+        EntryVisitor<T> collectNodesVisitor = new EntryVisitor<T>() {
+
+            public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
+                if (!replacements.containsKey(value)) {
+                    replacements.put(value, value);
+                    nodes.add(value);
+                }
+            }
+
+        };
+        collectNodesVisitor.visit(null, (char) 0, root);
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieNode<T> node = nodes.get(i);
+            node.mapEntries(collectNodesVisitor);
+        }
+        for (TrieNode<T> node : nodes) {
+            long[] count = hits.get(node);
+            // Leaf, single and range nodes are as fast as they get.
+            if (count != null && !(node instanceof LeafNode || node instanceof SingleNode || node instanceof RangeNode)) {
+                // Number of children, smallest and largest key.
+                final int[] entries = { 0, Character.MAX_VALUE, 0 };
+                node.mapEntries(new EntryVisitor<T>() {
+
+                    public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
+                        entries[0]++;
+                        entries[1] = Math.min(entries[1], key);
+                        entries[2] = Math.max(entries[2], key);
+                    }
+                });
+                if (thresholdStrategy.isOverProfileThreshold(entries[0], entries[2] - entries[1] + 1, count[0], totalLookups)) {
+                    replacements.put(node, new RangeNode<T>(node, (char) entries[1], (char) entries[2]));
+                } else if (node instanceof HashmapNode) {
+                    ((HashmapNode<T>) node).reorder(hits);
+                }
+            }
+        }
+        for (TrieNode<T> node : nodes) {
+            replacements.get(node).relink(replacements);
+        }
+        root = replacements.get(root);
     }
 
     boolean[] getWordChars() {
@@ -245,13 +425,14 @@ public class WholeWordMatchMap<T> implements StringMap<T> {
 
     private void init(final Iterable<String> keywords, final Iterable<? extends T> values, boolean caseSensitive, boolean[] wordChars,
             final Thresholder thresholdStrategy) {
-        this.caseSensitive = caseSensitive;
+        alphabet = new Alphabet(caseSensitive);
         Iterator<String> keywordsIter = keywords.iterator();
         Iterator<? extends T> valuesIter = values.iterator();
         this.wordChars = wordChars;
         int longestKeyword = 0;
         // Create the root node
         root = new HashmapNode<T>();
+        int nodeCount = 1;
         // Add all keywords
         while (keywordsIter.hasNext() && valuesIter.hasNext()) {
             String keyword = keywordsIter.next();
@@ -274,15 +455,24 @@ public class WholeWordMatchMap<T> implements StringMap<T> {
                     // fill out the tree.
                     HashmapNode<T> currentNode = (HashmapNode<T>) root;
                     for (int idx = 0; idx < keyword.length(); idx++) {
-                        currentNode = currentNode.getOrAddChild(caseSensitive ? keyword.charAt(idx) : Character.toLowerCase(keyword.charAt(idx)));
+                        currentNode = currentNode.getOrAddChild(alphabet.add(keyword.charAt(idx)), nodeCount);
+                        if (currentNode.id == nodeCount && ++nodeCount > this.values.length) {
+                            this.values = Arrays.copyOf(this.values, nodeCount * 2);
+                        }
                     }
-                    // Last node will contains the keyword as a match.
-                    // Suffix matches will be added later.
+                    // Last node will contains the keyword as a match. The match loop only checks if there is one,
+                    // minimized nodes can end keywords of different lengths.
                     currentNode.matchLength = keyword.length();
-                    currentNode.value = value;
+                    this.values[currentNode.id] = value;
                 }
             }
         }
+        charClasses = alphabet.classes();
+        this.values = Arrays.copyOf(this.values, nodeCount);
+        if (!caseSensitive) {
+            // Input isn't lower cased when matching, so word character flags have to be.
+            this.wordChars = WordCharacters.lowerCaseFlags(wordChars);
+        }
         charBufferSize = longestKeyword > 2048 ? longestKeyword * 2 : 4096;
         // Go through nodes breadth first, swap any hashmap nodes,
         // whose size is close to the size of range of keys with
@@ -293,8 +483,14 @@ public class WholeWordMatchMap<T> implements StringMap<T> {
         // calculating for a 3 letter word requires having done the calculation
         // for all 2 letter words.
         //
+        final Thresholder plannedStrategy = plan((HashmapNode<T>) root, !thresholdStrategy.isOverRootTableThreshold(alphabet.size()), thresholdStrategy);
         final Queue<TrieNode<T>> queue = new Queue<TrieNode<T>>();
-        root = root.optimizeNode(0, thresholdStrategy);
+        if (thresholdStrategy.isOverRootTableThreshold(alphabet.size())) {
+            // Root table has a slot for every class id, so root lookups never miss the range.
+            root = new RangeNode<T>((HashmapNode<T>) root, (char) 0, (char) (alphabet.size() - 1));
+        } else {
+            root = root.optimizeNode(0, plannedStrategy);
+        }
         queue.push(root);
         queue.push(null);
         // Need to use array to get mutateable state for anonymous class
@@ -304,8 +500,12 @@ public class WholeWordMatchMap<T> implements StringMap<T> {
 
             public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
                 // First optimize node
-                value = value.optimizeNode(level[0], thresholdStrategy);
+                value = value.optimizeNode(level[0], plannedStrategy);
                 parent.updateTransition(key, value);
+                // Queue the non-leaf node.
+                if (!value.isEmpty()) {
+                    queue.push(value);
+                }
             }
         };
         while (!queue.isEmpty()) {
@@ -319,13 +519,13 @@ public class WholeWordMatchMap<T> implements StringMap<T> {
                 n.mapEntries(optimizeNodesVisitor);
             }
         }
-
+        minimize(thresholdStrategy);
     }
 
-    private boolean scroll(Readable haystack, CharBuffer buf, boolean wordChars, boolean caseSensitive) throws IOException {
+    private boolean scroll(Readable haystack, CharBuffer buf, boolean wordChars) throws IOException {
         do {
             while (buf.hasRemaining()) {
-                if (this.wordChars[caseSensitive ? buf.get() : Character.toLowerCase(buf.get())] != wordChars) {
+                if (this.wordChars[buf.get()] != wordChars) {
                     buf.position(buf.position() - 1);
                     return false;
                 }
@@ -338,275 +538,250 @@ public class WholeWordMatchMap<T> implements StringMap<T> {
         } while (true);
     }
 
-    private interface EntryVisitor<T> {
-        void visit(TrieNode<T> parent, char key, TrieNode<T> value);
-    }
-
-    // An open addressing hashmap implementation with linear probing
-    // and capacity of 2^n
-    private final static class HashmapNode<T> extends TrieNode<T> {
+    // Merge equivalent subtrees, which turns the trie into a minimal automaton. Nodes are processed
+    // deepest first, so the children of a node are merged before the node's signature is taken.
+    // Nodes are only equivalent if their values are equal.
+    private void minimize(final Thresholder thresholdStrategy) {
+        final ArrayList<TrieNode<T>> nodes = new ArrayList<TrieNode<T>>();
+        EntryVisitor<T> collectNodesVisitor = new EntryVisitor<T>() {
 
-        // Start with capacity of 1 and resize as needed.
-        @SuppressWarnings("unchecked")
-        private TrieNode<T>[] children = new TrieNode[1];
-        private char[] keys = new char[1];
-        // Since capacity is a power of 2, we calculate mod by just
-        // bitwise AND with the right mask.
-        private int modulusMask = keys.length - 1;
-        private int numEntries = 0;
-
-        @SuppressWarnings("unchecked")
-        @Override
-        public void clear() {
-            children = new TrieNode[1];
-            keys = new char[1];
-            modulusMask = keys.length - 1;
-            numEntries = 0;
-        }
+            public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
+                nodes.add(value);
+            }
 
-        @Override
-        public TrieNode<T> getTransition(final char key) {
-            int defaultSlot = hash(key) & modulusMask;
-            int currentSlot = defaultSlot;
-            // Linear probing to find the entry for key.
-            do {
-                if (keys[currentSlot] == key) {
-                    return children[currentSlot];
-                } else if (children[currentSlot] == null) {
-                    return null;
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
-                }
-            } while (currentSlot != defaultSlot);
-            return null;
+        };
+        // Still a tree, so every node is reached once.
+        nodes.add(root);
+        for (int i = 0; i < nodes.size(); i++) {
+            nodes.get(i).mapEntries(collectNodesVisitor);
         }
-
-        @Override
-        public boolean isEmpty() {
-            return numEntries == 0;
+        if (!thresholdStrategy.isOverDawgThreshold(nodes.size())) {
+            return;
         }
+        final IdentityHashMap<TrieNode<T>, TrieNode<T>> merged = new IdentityHashMap<TrieNode<T>, TrieNode<T>>();
+        final IdentityHashMap<TrieNode<T>, Integer> ids = new IdentityHashMap<TrieNode<T>, Integer>();
+        final HashMap<NodeSignature, TrieNode<T>> signatures = new HashMap<NodeSignature, TrieNode<T>>();
+        final char[] keys = new char[alphabet.size()];
+        final TrieNode<T>[] children = TrieNode.newArray(alphabet.size());
+        final int[] size = new int[1];
+        EntryVisitor<T> entriesVisitor = new EntryVisitor<T>() {
 
-        @Override
-        public void mapEntries(EntryVisitor<T> visitor) {
-            for (int i = 0; i < keys.length; i++) {
-                if (children[i] != null) {
-                    visitor.visit(this, keys[i], children[i]);
+            public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
+                // Insertion sort by key, most nodes have very few children.
+                int i = size[0]++;
+                for (; i > 0 && keys[i - 1] > key; i--) {
+                    keys[i] = keys[i - 1];
+                    children[i] = children[i - 1];
                 }
+                keys[i] = key;
+                children[i] = merged.get(value);
             }
-        }
 
-        @Override
-        public void updateTransition(char c, TrieNode<T> node) {
-            int defaultSlot = hash(c) & modulusMask;
-            int currentSlot = defaultSlot;
-            do {
-                if (children[currentSlot] == null) {
-                    throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
-                } else if (keys[currentSlot] == c) {
-                    children[currentSlot] = node;
-                    return;
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
-                }
-            } while (currentSlot != defaultSlot);
-            throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
-        }
-
-        @Override
-        protected TrieNode<T> optimizeNode(int level, Thresholder thresholdStrategy) {
-            char minKey = '\uffff';
-            char maxKey = 0;
-            // Find you the min and max key on the node.
-            int size = numEntries;
-            for (int i = 0; i < children.length; i++) {
-                if (children[i] != null) {
-                    if (keys[i] > maxKey) {
-                        maxKey = keys[i];
-                    }
-                    if (keys[i] < minKey) {
-                        minKey = keys[i];
-                    }
-                }
+        };
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            TrieNode<T> node = nodes.get(i);
+            size[0] = 0;
+            node.mapEntries(entriesVisitor);
+            int[] childIds = new int[size[0]];
+            for (int j = 0; j < size[0]; j++) {
+                // Point the node at the merged children.
+                node.updateTransition(keys[j], children[j]);
+                childIds[j] = ids.get(children[j]);
             }
-            // If difference between min and max key are small
-            // or only slightly larger than number of entries, use a range node
-            int keyIntervalSize = maxKey - minKey + 1;
-            if (thresholdStrategy.isOverThreshold(size, level, keyIntervalSize)) {
-                return new RangeNode<T>(this, minKey, maxKey);
-            } else {
-                return this;
+            NodeSignature signature = new NodeSignature(node.matchLength != 0, values[node.id], Arrays.copyOf(keys, size[0]), childIds);
+            TrieNode<T> equivalent = signatures.get(signature);
+            if (equivalent == null) {
+                signatures.put(signature, node);
+                ids.put(node, ids.size());
+                equivalent = node;
             }
+            merged.put(node, equivalent);
         }
+    }
 
-        // Double the capacity of the node, calculate the new mask,
-        // rehash and reinsert the entries
-        @SuppressWarnings("unchecked")
-        private void enlarge() {
-            char[] biggerKeys = new char[keys.length * 2];
-            TrieNode<T>[] biggerChildren = new TrieNode[children.length * 2];
-            int biggerMask = biggerKeys.length - 1;
-            for (int i = 0; i < children.length; i++) {
-                char key = keys[i];
-                TrieNode<T> node = children[i];
-                if (node != null) {
-                    int defaultSlot = hash(key) & biggerMask;
-                    int currentSlot = defaultSlot;
-                    do {
-                        if (biggerChildren[currentSlot] == null) {
-                            biggerKeys[currentSlot] = key;
-                            biggerChildren[currentSlot] = node;
-                            break;
-                        } else if (biggerKeys[currentSlot] == key) {
-                            throw new IllegalStateException();
-                        } else {
-                            currentSlot = ++currentSlot & biggerMask;
-                        }
-                    } while (currentSlot != defaultSlot);
-                }
-            }
-            this.keys = biggerKeys;
-            this.children = biggerChildren;
-            this.modulusMask = biggerMask;
-        }
+    // Snapshot the trie into flat arrays, compact engines are compiled from that.
+    FlatTrie flatten() {
+        final FlatTrie trie = new FlatTrie();
+        final ArrayList<TrieNode<T>> nodes = new ArrayList<TrieNode<T>>();
+        final int[] parentState = new int[1];
+        trie.addState(0);
+        nodes.add(root);
+        EntryVisitor<T> childrenVisitor = new EntryVisitor<T>() {
 
-        // Return the node for a key or create a new hashmap node for that key
-        // and return that.
-        private HashmapNode<T> getOrAddChild(char key) {
-            // Check if we need to resize. Capacity of 2^16 doesn't need to resize.
-            // If capacity is <16 and arrays are full or capacity is >16 and
-            // arrays are 90% full, resize
-            if (keys.length < 0x10000 && ((numEntries >= keys.length) || (numEntries > 16 && (numEntries >= keys.length * 0.90f)))) {
-                enlarge();
+            public void visit(TrieNode<T> parent, char key, TrieNode<T> value) {
+                // Nodes are numbered breadth first. A minimized trie shares nodes, every
+                // edge gets its own state, which expands it back into a trie.
+                int state = trie.addState(trie.depth[parentState[0]] + 1);
+                nodes.add(value);
+                trie.addChild(alphabet.charOf(key), state);
             }
-            int defaultSlot = hash(key) & modulusMask;
-            int currentSlot = defaultSlot;
-            do {
-                if (children[currentSlot] == null) {
-                    keys[currentSlot] = key;
-                    HashmapNode<T> newChild = new HashmapNode<T>();
-                    children[currentSlot] = newChild;
-                    ++numEntries;
-                    return newChild;
-                } else if (keys[currentSlot] == key) {
-                    return (HashmapNode<T>) children[currentSlot];
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
-                }
-            } while (currentSlot != defaultSlot);
-            throw new IllegalStateException();
-        }
 
-        // FNV-1a hash
-        private int hash(char c) {
-            // HASH_BASIS = 0x811c9dc5;
-            final int HASH_PRIME = 16777619;
-            return (((0x811c9dc5 ^ (c >> 8)) * HASH_PRIME) ^ (c & 0xff)) * HASH_PRIME;
+        };
+        for (int i = 0; i < nodes.size(); i++) {
+            parentState[0] = i;
+            trie.startChildren(i);
+            nodes.get(i).mapEntries(childrenVisitor);
         }
-
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieNode<T> node = nodes.get(i);
+            trie.setOutput(i, FlatTrie.NONE, node.matchLength != 0 ? trie.depth[i] : 0, FlatTrie.NONE, node.matchLength != 0 ? values[node.id] : null);
+        }
+        return trie;
     }
 
-    // This node is good at representing dense ranges of keys.
-    // It has a single array of nodes and a base key value.
-    // Child at array index 3 has key of baseChar + 3.
-    private static final class RangeNode<T> extends TrieNode<T> {
-
-        private char baseChar = 0;
-        private TrieNode<T>[] children;
-        private int size = 0;
-
-        @SuppressWarnings("unchecked")
-        private RangeNode(HashmapNode<T> oldNode, char from, char to) {
-            // Value of the first character
-            this.baseChar = from;
-            this.size = to - from + 1;
-            this.value = oldNode.value;
-            this.matchLength = oldNode.matchLength;
-            // Avoid even allocating a children array if size is 0.
-            if (size <= 0) {
-                size = 0;
-            } else {
-                this.children = new TrieNode[size];
-                // Grab the children of the old node.
-                for (int i = 0; i < oldNode.children.length; i++) {
-                    if (oldNode.children[i] != null) {
-                        children[oldNode.keys[i] - from] = oldNode.children[i];
+    // Walk the sample like the match loop does and count lookups on each node (index 0 of the counts) and
+    // transitions taken to it (index 1), see train. Walks stop at the first character without a transition
+    // and continue at the next word.
+    private IdentityHashMap<TrieNode<T>, long[]> profile(String sample) {
+        final TrieCursor.Profile<T> cursor = new TrieCursor.Profile<T>(root);
+        int idx = 0;
+        final int len = sample.length();
+        while (idx < len) {
+            final char c = sample.charAt(idx);
+            final boolean advanced = cursor.advance(charClasses[c]);
+            if (!advanced) {
+                if (wordChars[c]) {
+                    while (++idx < len && wordChars[sample.charAt(idx)]) {
+                        ;
                     }
                 }
+                while (++idx < len && !wordChars[sample.charAt(idx)]) {
+                    ;
+                }
+                cursor.reset();
+            } else {
+                ++idx;
             }
         }
+        return cursor.hits;
+    }
 
-        @Override
-        public void clear() {
-            children = null;
-            size = 0;
-        }
-
-        @Override
-        public TrieNode<T> getTransition(char c) {
-            // First check if the key is between max and min value.
-            // Here we use the fact that char type is unsigned to figure it out
-            // with a single condition.
-            int idx = (char) (c - baseChar);
-            if (idx < size) {
-                return children[idx];
+    // Let the thresholder plan node types with a view of the whole trie, see Thresholder.plan. Reports
+    // every node with at least 2 children, the root only if it's optimized like the other nodes.
+    private static <T> Thresholder plan(HashmapNode<T> root, boolean optimizeRoot, Thresholder thresholdStrategy) {
+        int[] sizes = new int[16];
+        int[] levels = new int[16];
+        int[] keyIntervalSizes = new int[16];
+        int count = 0;
+        ArrayList<HashmapNode<T>> layer = new ArrayList<HashmapNode<T>>();
+        layer.add(root);
+        for (int level = 0; !layer.isEmpty(); level++) {
+            ArrayList<HashmapNode<T>> nextLayer = new ArrayList<HashmapNode<T>>();
+            for (HashmapNode<T> node : layer) {
+                char minKey = '\uffff';
+                char maxKey = 0;
+                for (int i = 0; i < node.children.length; i++) {
+                    if (node.children[i] != null) {
+                        minKey = (char) Math.min(minKey, node.keys[i]);
+                        maxKey = (char) Math.max(maxKey, node.keys[i]);
+                        nextLayer.add((HashmapNode<T>) node.children[i]);
+                    }
+                }
+                if (node.numEntries > 1 && (level > 0 || optimizeRoot)) {
+                    if (count == sizes.length) {
+                        sizes = Arrays.copyOf(sizes, count * 2);
+                        levels = Arrays.copyOf(levels, count * 2);
+                        keyIntervalSizes = Arrays.copyOf(keyIntervalSizes, count * 2);
+                    }
+                    sizes[count] = node.numEntries;
+                    levels[count] = level;
+                    keyIntervalSizes[count++] = maxKey - minKey + 1;
+                }
             }
-            return null;
+            layer = nextLayer;
         }
+        return thresholdStrategy.plan(Arrays.copyOf(sizes, count), Arrays.copyOf(levels, count), Arrays.copyOf(keyIntervalSizes, count));
+    }
 
-        @Override
-        public boolean isEmpty() {
-            return size == 0;
+    // State of the match loop between chunks. Scrolling through the rest of a word and the non-word
+    // characters after it can go on in the next chunk.
+    private final class StreamMatcher implements Matcher {
+
+        private final TrieCursor<T> cursor = new TrieCursor<T>(root);
+        private final StreamMapMatchListener<T> listener;
+        // Position of the next character in the text.
+        private long position = 0;
+        private boolean scrollNonWord = false;
+        private boolean scrollWord = false;
+        // Start of the current word.
+        private long start = 0;
+        private boolean stopped = false;
+
+        private StreamMatcher(StreamMapMatchListener<T> listener) {
+            this.listener = listener;
         }
 
-        @Override
-        public void mapEntries(EntryVisitor<T> visitor) {
-            if (children != null) {
-                for (int i = 0; i < children.length; i++) {
-                    if (children[i] != null && children[i] != this) {
-                        visitor.visit(this, (char) (baseChar + i), children[i]);
+        @SuppressWarnings("unchecked")
+        public boolean feed(final char[] chunk, final int off, final int len) {
+            if (stopped) {
+                return false;
+            }
+            // Local copies of the state for the loop.
+            final Object[] values = WholeWordMatchMap.this.values;
+            boolean scrollNonWord = this.scrollNonWord;
+            boolean scrollWord = this.scrollWord;
+            long start = this.start;
+            // Position of the chunk array start in the text.
+            final long base = position - off;
+            final int end = off + len;
+            int idx = off;
+            while (idx < end) {
+                char c = chunk[idx];
+                if (scrollWord) {
+                    // Scroll through word characters and the non-word character after them.
+                    if (!wordChars[c]) {
+                        scrollWord = false;
+                        scrollNonWord = true;
                     }
+                    ++idx;
+                    continue;
+                } else if (scrollNonWord) {
+                    // Scroll to the first word character, which starts the next word.
+                    if (!wordChars[c]) {
+                        ++idx;
+                        continue;
+                    }
+                    scrollNonWord = false;
+                    start = base + idx;
                 }
-            }
-        }
-
-        @Override
-        public void updateTransition(char c, TrieNode<T> node) {
-            // First check if the key is between max and min value.
-            // Here we use the fact that char type is unsigned to figure it out
-            // with a single condition.
-            int idx = (char) (c - baseChar);
-            if (idx < size) {
-                if (children[idx] != null) {
-                    children[idx] = node;
-                    return;
+                final boolean advanced = cursor.advance(charClasses[c]);
+                if (!advanced) {
+                    if (!wordChars[c]) {
+                        if (cursor.node.matchLength != 0) {
+                            if (!listener.match(start, base + idx, (T) values[cursor.node.id])) {
+                                stopped = true;
+                                return false;
+                            }
+                        }
+                        scrollNonWord = true;
+                    } else {
+                        scrollWord = true;
+                    }
+                    ++idx;
+                    cursor.reset();
                 } else {
-                    throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+                    ++idx;
                 }
             }
-            throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+            this.scrollNonWord = scrollNonWord;
+            this.scrollWord = scrollWord;
+            this.start = start;
+            position = base + end;
+            return true;
         }
 
-    }
-
-    // Basic node for both
-    private static abstract class TrieNode<T> {
-
-        protected int matchLength;
-        protected T value;
-
-        public abstract void clear();
-
-        // Get transition (root node returns something non-null for all characters - itself)
-        public abstract TrieNode<T> getTransition(char c);
-
-        public abstract boolean isEmpty();
-
-        public abstract void mapEntries(final EntryVisitor<T> visitor);
-
-        public abstract void updateTransition(char c, TrieNode<T> node);
-
-        protected TrieNode<T> optimizeNode(int level, Thresholder thresholdStrategy) {
-            return this;
+        @SuppressWarnings("unchecked")
+        public void finish() {
+            if (cursor.node.matchLength != 0 && !stopped) {
+                // Output any matches on the last node
+                listener.match(start, position, (T) values[cursor.node.id]);
+            }
+            cursor.reset();
+            position = 0;
+            scrollNonWord = false;
+            scrollWord = false;
+            start = 0;
+            stopped = false;
         }
     }
 
@@ -1,15 +1,27 @@
 package com.roklenarcic.util.strings;
 
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import com.roklenarcic.util.strings.threshold.ProfileThreshold;
 import com.roklenarcic.util.strings.threshold.RangeNodeThreshold;
 import com.roklenarcic.util.strings.threshold.Thresholder;
 
 // A set that matches only whole word matches. Non-word characters are user defined (with a default).
 // Any non-word characters around input strings get trimmed. Non-word characters not allowed in the keywords
 // and they will produce an IllegalArgumentException.
-public class WholeWordMatchSet implements StringSet {
+public class WholeWordMatchSet implements StringSet, MemoryAccountable {
 
-    private boolean caseSensitive = true;
-    private TrieNode root;
+    private Alphabet alphabet;
+    private char[] charClasses;
+    private TrieNode<Void> root;
     private boolean[] wordChars;
 
     // Set where digits and letters, '-' and '_' are considered word characters.
@@ -44,91 +56,310 @@ public class WholeWordMatchSet implements StringSet {
         init(keywords, caseSensitive, WordCharacters.generateWordCharsFlags(), thresholdStrategy);
     }
 
-    public void match(final String haystack, final SetMatchListener listener) {
+    // Node statistics for tuning the thresholder, see TrieDiagnostics.
+    public TrieDiagnostics diagnostics() {
+        final TrieDiagnostics diagnostics = new TrieDiagnostics();
+        final ArrayList<TrieNode<Void>> nodes = new ArrayList<TrieNode<Void>>();
+        final IdentityHashMap<TrieNode<Void>, Integer> levels = new IdentityHashMap<TrieNode<Void>, Integer>();
+        // Number of children, smallest and largest key of the visited node.
+        final int[] entries = new int[3];
+        EntryVisitor<Void> visitor = new EntryVisitor<Void>() {
+
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                entries[0]++;
+                entries[1] = Math.min(entries[1], key);
+                entries[2] = Math.max(entries[2], key);
+                if (!levels.containsKey(value)) {
+                    levels.put(value, levels.get(parent) + 1);
+                    nodes.add(value);
+                }
+            }
+
+        };
+        levels.put(root, 0);
+        nodes.add(root);
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieNode<Void> node = nodes.get(i);
+            int level = levels.get(node);
+            entries[0] = 0;
+            entries[1] = Character.MAX_VALUE;
+            entries[2] = 0;
+            if (node instanceof ChainNode) {
+                // Chain stands in for a run of single child nodes, its child is at the end of the run.
+                ChainNode<Void> chain = (ChainNode<Void>) node;
+                entries[0] = 1;
+                entries[1] = entries[2] = chain.label[0];
+                if (!levels.containsKey(chain.child)) {
+                    levels.put(chain.child, level + chain.label.length);
+                    nodes.add(chain.child);
+                }
+            } else {
+                node.mapEntries(visitor);
+            }
+            int slots = node instanceof RangeNode ? ((RangeNode<Void>) node).size : 0;
+            diagnostics.add(node.getClass().getSimpleName(), level, entries[0], entries[2] - entries[1] + 1, -1, slots);
+        }
+        return diagnostics;
+    }
+
+    public void matchChars(final char[] haystack, final int from, final int to, final CharSequenceSetMatchListener listener) {
+        // Listeners see the array as a char sequence, positions are array indexes.
+        final CharSequence sequence = CharBuffer.wrap(haystack);
+
+        // Start with the root node.
+        final TrieCursor<Void> cursor = new TrieCursor<Void>(root);
+
+        int idx = from;
+        // Start of the current word, nodes can be shared by keywords of different lengths.
+        int start = from;
+        // For each character.
+        final int len = to;
+        while (idx < len) {
+            char c = haystack[idx];
+            final boolean advanced = cursor.advance(charClasses[c]);
+            // Regardless of the type of the character, we keep moving till we run into
+            // a situation where there's no transition available.
+            if (!advanced) {
+                if (!wordChars[c]) {
+                    // If we ran into no-transition scenario on non-word character we can
+                    // output the match on the current node if there is one.
+                    // Later we will run through non-word characters to the start of the next word.
+                    if (cursor.node.matchLength != 0) {
+                        if (!listener.match(sequence, start, idx)) {
+                            return;
+                        }
+                    }
+                } else {
+                    // If we ran into no-transition situation on a word character, we scroll through word
+                    // characters to a non-word character.
+                    while (++idx < len && wordChars[haystack[idx]]) {
+                        ;
+                    }
+                }
+                // Scroll to the first word character
+                while (++idx < len && !wordChars[haystack[idx]]) {
+                    ;
+                }
+                start = idx;
+                cursor.reset();
+            } else {
+                ++idx;
+            }
+        }
+        if (cursor.node.matchLength != 0) {
+            // Output any matches on the last node
+            listener.match(sequence, start, idx);
+        }
+    }
+
+    public void matchSequence(final CharSequence haystack, final CharSequenceSetMatchListener listener) {
 
         // Start with the root node.
-        TrieNode currentNode = root;
+        final TrieCursor<Void> cursor = new TrieCursor<Void>(root);
 
         int idx = 0;
+        // Start of the current word, nodes can be shared by keywords of different lengths.
+        int start = 0;
         // For each character.
         final int len = haystack.length();
-        // Putting this if into the loop worsens the performance so we'll sadly
-        // have to deal with duplicated code.
-        if (caseSensitive) {
-            while (idx < len) {
-                char c = haystack.charAt(idx);
-                TrieNode nextNode = currentNode.getTransition(c);
-                // Regardless of the type of the character, we keep moving till we run into
-                // a situation where there's no transition available.
-                if (nextNode == null) {
-                    if (!wordChars[c]) {
-                        // If we ran into no-transition scenario on non-word character we can
-                        // output the match on the current node if there is one.
-                        // Later we will run through non-word characters to the start of the next word.
-                        if (currentNode.matchLength != 0) {
-                            if (!listener.match(haystack, idx - currentNode.matchLength, idx)) {
-                                return;
-                            }
-                        }
-                    } else {
-                        // If we ran into no-transition situation on a word character, we scroll through word
-                        // characters to a non-word character.
-                        while (++idx < len && wordChars[haystack.charAt(idx)]) {
-                            ;
+        while (idx < len) {
+            char c = haystack.charAt(idx);
+            final boolean advanced = cursor.advance(charClasses[c]);
+            // Regardless of the type of the character, we keep moving till we run into
+            // a situation where there's no transition available.
+            if (!advanced) {
+                if (!wordChars[c]) {
+                    // If we ran into no-transition scenario on non-word character we can
+                    // output the match on the current node if there is one.
+                    // Later we will run through non-word characters to the start of the next word.
+                    if (cursor.node.matchLength != 0) {
+                        if (!listener.match(haystack, start, idx)) {
+                            return;
                         }
                     }
-                    // Scroll to the first word character
-                    while (++idx < len && !wordChars[haystack.charAt(idx)]) {
+                } else {
+                    // If we ran into no-transition situation on a word character, we scroll through word
+                    // characters to a non-word character.
+                    while (++idx < len && wordChars[haystack.charAt(idx)]) {
                         ;
                     }
-                    currentNode = root;
-                } else {
-                    ++idx;
-                    currentNode = nextNode;
                 }
+                // Scroll to the first word character
+                while (++idx < len && !wordChars[haystack.charAt(idx)]) {
+                    ;
+                }
+                start = idx;
+                cursor.reset();
+            } else {
+                ++idx;
             }
-            if (currentNode.matchLength != 0) {
-                // Output any matches on the last node
-                listener.match(haystack, idx - currentNode.matchLength, idx);
-            }
-        } else {
-            while (idx < len) {
-                char c = Character.toLowerCase(haystack.charAt(idx));
-                TrieNode nextNode = currentNode.getTransition(c);
-                // Regardless of the type of the character, we keep moving till we run into
-                // a situation where there's no transition available.
-                if (nextNode == null) {
-                    if (!wordChars[c]) {
-                        // If we ran into no-transition scenario on non-word character we can
-                        // output the match on the current node if there is one.
-                        // Later we will run through non-word characters to the start of the next word.
-                        if (currentNode.matchLength != 0) {
-                            if (!listener.match(haystack, idx - currentNode.matchLength, idx)) {
-                                return;
-                            }
-                        }
-                    } else {
-                        // If we ran into no-transition situation on a word character, we scroll through word
-                        // characters to a non-word character.
-                        while (++idx < len && wordChars[haystack.charAt(idx)]) {
-                            ;
+        }
+        if (cursor.node.matchLength != 0) {
+            // Output any matches on the last node
+            listener.match(haystack, start, idx);
+        }
+    }
+
+    public void match(final String haystack, final SetMatchListener listener) {
+        match(haystack, 0, haystack.length(), listener);
+    }
+
+    public void match(final String haystack, final int offset, final int len, final SetMatchListener listener) {
+
+        // Start with the root node.
+        final TrieCursor<Void> cursor = new TrieCursor<Void>(root);
+
+        int idx = offset;
+        // Start of the current word, nodes can be shared by keywords of different lengths.
+        int start = offset;
+        // For each character.
+        while (idx < len) {
+            char c = haystack.charAt(idx);
+            final boolean advanced = cursor.advance(charClasses[c]);
+            // Regardless of the type of the character, we keep moving till we run into
+            // a situation where there's no transition available.
+            if (!advanced) {
+                if (!wordChars[c]) {
+                    // If we ran into no-transition scenario on non-word character we can
+                    // output the match on the current node if there is one.
+                    // Later we will run through non-word characters to the start of the next word.
+                    if (cursor.node.matchLength != 0) {
+                        if (!listener.match(haystack, start, idx)) {
+                            return;
                         }
                     }
-                    // Scroll to the first word character
-                    while (++idx < len && !wordChars[haystack.charAt(idx)]) {
+                } else {
+                    // If we ran into no-transition situation on a word character, we scroll through word
+                    // characters to a non-word character.
+                    while (++idx < len && wordChars[haystack.charAt(idx)]) {
                         ;
                     }
-                    currentNode = root;
-                } else {
-                    ++idx;
-                    currentNode = nextNode;
                 }
+                // Scroll to the first word character
+                while (++idx < len && !wordChars[haystack.charAt(idx)]) {
+                    ;
+                }
+                start = idx;
+                cursor.reset();
+            } else {
+                ++idx;
             }
-            if (currentNode.matchLength != 0) {
-                // Output any matches on the last node
-                listener.match(haystack, idx - currentNode.matchLength, idx);
+        }
+        if (cursor.node.matchLength != 0) {
+            // Output any matches on the last node
+            listener.match(haystack, start, idx);
+        }
+    }
+
+    // Matches the haystack in chunks on the common pool, with the same matches as match. Ordered matches come
+    // in the same order, otherwise they come as chunks finish, from the pool threads but one at a time.
+    public void matchParallel(final String haystack, final SetMatchListener listener, boolean ordered) {
+        matchParallel(haystack, listener, ordered, ForkJoinPool.commonPool());
+    }
+
+    public void matchParallel(final String haystack, final SetMatchListener listener, boolean ordered, ForkJoinPool pool) {
+        matchParallel(haystack, listener, ordered, pool, ParallelScan.CHUNK_CHARS);
+    }
+
+    void matchParallel(final String haystack, final SetMatchListener listener, boolean ordered, ForkJoinPool pool, int chunkChars) {
+        new ParallelScan(new ParallelScan.Scanner() {
+
+            public void scan(String haystack, int from, int to, final ParallelScan.Matches matches) {
+                match(haystack, from, to, new SetMatchListener() {
+
+                    public boolean match(String haystack, int startPosition, int endPosition) {
+                        return matches.add(startPosition, endPosition, null);
+                    }
+                });
+            }
+        }, 0, false, ParallelScan.separators(wordChars, null)).match(haystack, new ParallelScan.Listener() {
+
+            public boolean match(int startPosition, int endPosition, Object value) {
+                return listener.match(haystack, startPosition, endPosition);
+            }
+        }, ordered, pool, chunkChars);
+    }
+
+    // Matcher for text that arrives in chunks, it finds the same matches as match would in all of the text.
+    public Matcher matcher(final StreamSetMatchListener listener) {
+        return new StreamMatcher(listener);
+    }
+
+    // Match the file decoded with the charset. The file is memory mapped a window at a time, so it can be
+    // larger than 2GB, and positions are char offsets into the decoded text.
+    public void matchFile(final Path file, final Charset charset, final StreamSetMatchListener listener) throws IOException {
+        MappedText.feed(file, charset, matcher(listener));
+    }
+
+    public MemoryUsage memoryUsage() {
+        MemoryUsage usage = new MemoryUsage();
+        usage.addTrie(root, TrieNode.class);
+        usage.addObject(MemoryUsage.ALPHABET, alphabet);
+        usage.addArray(MemoryUsage.ALPHABET, charClasses);
+        usage.addArray(MemoryUsage.WORD_CHARACTERS, wordChars);
+        return usage;
+    }
+
+    // Re-optimize the trie for text like the sample, which is walked like it would be matched. Nodes with
+    // many lookups become range nodes when the thresholder finds them over the profile threshold, hashmap
+    // nodes get the keys with the most transitions taken moved to their default slots. Nodes the sample
+    // doesn't reach don't change. Matches don't change either. Don't train while other threads match.
+    public void train(String sample) {
+        train(sample, new ProfileThreshold());
+    }
+
+    public void train(String sample, Thresholder thresholdStrategy) {
+        final IdentityHashMap<TrieNode<Void>, long[]> hits = profile(sample);
+        long totalLookups = 0;
+        for (long[] count : hits.values()) {
+            totalLookups += count[0];
+        }
+        final IdentityHashMap<TrieNode<Void>, TrieNode<Void>> replacements = new IdentityHashMap<TrieNode<Void>, TrieNode<Void>>();
+        final ArrayList<TrieNode<Void>> nodes = new ArrayList<TrieNode<Void>>();
+        EntryVisitor<Void> collectNodesVisitor = new EntryVisitor<Void>() {
+
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                if (!replacements.containsKey(value)) {
+                    replacements.put(value, value);
+                    nodes.add(value);
+                }
+            }
+
+        };
+        collectNodesVisitor.visit(null, (char) 0, root);
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieNode<Void> node = nodes.get(i);
+            if (node instanceof ChainNode) {
+                collectNodesVisitor.visit(node, (char) 0, ((ChainNode<Void>) node).child);
+            } else {
+                node.mapEntries(collectNodesVisitor);
             }
         }
+        for (TrieNode<Void> node : nodes) {
+            long[] count = hits.get(node);
+            // Leaf, single, range and chain nodes are as fast as they get.
+            if (count != null && !(node instanceof LeafNode || node instanceof SingleNode || node instanceof RangeNode || node instanceof ChainNode)) {
+                // Number of children, smallest and largest key.
+                final int[] entries = { 0, Character.MAX_VALUE, 0 };
+                node.mapEntries(new EntryVisitor<Void>() {
+
+                    public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                        entries[0]++;
+                        entries[1] = Math.min(entries[1], key);
+                        entries[2] = Math.max(entries[2], key);
+                    }
+                });
+                if (thresholdStrategy.isOverProfileThreshold(entries[0], entries[2] - entries[1] + 1, count[0], totalLookups)) {
+                    replacements.put(node, new RangeNode<Void>(node, (char) entries[1], (char) entries[2]));
+                } else if (node instanceof HashmapNode) {
+                    ((HashmapNode<Void>) node).reorder(hits);
+                }
+            }
+        }
+        for (TrieNode<Void> node : nodes) {
+            replacements.get(node).relink(replacements);
+        }
+        root = replacements.get(root);
     }
 
     boolean[] getWordChars() {
@@ -136,10 +367,10 @@ public class WholeWordMatchSet implements StringSet {
     }
 
     private void init(final Iterable<String> keywords, boolean caseSensitive, boolean[] wordChars, final Thresholder thresholdStrategy) {
-        this.caseSensitive = caseSensitive;
+        alphabet = new Alphabet(caseSensitive);
         this.wordChars = wordChars;
         // Create the root node
-        root = new HashmapNode();
+        root = new HashmapNode<Void>();
         // Add all keywords
         for (String keyword : keywords) {
             // Skip any empty keywords
@@ -155,17 +386,23 @@ public class WholeWordMatchSet implements StringSet {
                     // Start with the current node and traverse the tree
                     // character by character. Add nodes as needed to
                     // fill out the tree.
-                    HashmapNode currentNode = (HashmapNode) root;
+                    HashmapNode<Void> currentNode = (HashmapNode<Void>) root;
                     for (int idx = 0; idx < keyword.length(); idx++) {
-                        currentNode = currentNode.getOrAddChild(caseSensitive ? keyword.charAt(idx) : Character.toLowerCase(keyword.charAt(idx)));
+                        // The set keeps nothing by node id.
+                        currentNode = currentNode.getOrAddChild(alphabet.add(keyword.charAt(idx)), 0);
                     }
-                    // Last node will contains the keyword as a match.
-                    // Suffix matches will be added later.
+                    // Last node will contains the keyword as a match. The match loop only checks if there is one,
+                    // minimized nodes can end keywords of different lengths.
                     currentNode.matchLength = keyword.length();
                 }
             }
         }
 
+        charClasses = alphabet.classes();
+        if (!caseSensitive) {
+            // Input isn't lower cased when matching, so word character flags have to be.
+            this.wordChars = WordCharacters.lowerCaseFlags(wordChars);
+        }
         // Go through nodes breadth first, swap any hashmap nodes,
         // whose size is close to the size of range of keys with
         // flat array based nodes.
@@ -175,23 +412,33 @@ public class WholeWordMatchSet implements StringSet {
         // calculating for a 3 letter word requires having done the calculation
         // for all 2 letter words.
         //
-        final Queue<TrieNode> queue = new Queue<TrieNode>();
-        root = root.optimizeNode(0, thresholdStrategy);
+        final Thresholder plannedStrategy = plan((HashmapNode<Void>) root, !thresholdStrategy.isOverRootTableThreshold(alphabet.size()), thresholdStrategy);
+        final Queue<TrieNode<Void>> queue = new Queue<TrieNode<Void>>();
+        if (thresholdStrategy.isOverRootTableThreshold(alphabet.size())) {
+            // Root table has a slot for every class id, so root lookups never miss the range.
+            root = new RangeNode<Void>((HashmapNode<Void>) root, (char) 0, (char) (alphabet.size() - 1));
+        } else {
+            root = root.optimizeNode(0, plannedStrategy);
+        }
         queue.push(root);
         queue.push(null);
         // Need to use array to get mutateable state for anonymous class
         final int[] level = new int[] { 1 };
 
-        EntryVisitor optimizeNodesVisitor = new EntryVisitor() {
+        EntryVisitor<Void> optimizeNodesVisitor = new EntryVisitor<Void>() {
 
-            public void visit(TrieNode parent, char key, TrieNode value) {
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
                 // First optimize node
-                value = value.optimizeNode(level[0], thresholdStrategy);
+                value = value.optimizeNode(level[0], plannedStrategy);
                 parent.updateTransition(key, value);
+                // Queue the non-leaf node.
+                if (!value.isEmpty()) {
+                    queue.push(value);
+                }
             }
         };
         while (!queue.isEmpty()) {
-            TrieNode n = queue.take();
+            TrieNode<Void> n = queue.take();
             if (n == null) {
                 if (!queue.isEmpty()) {
                     queue.push(null);
@@ -201,274 +448,262 @@ public class WholeWordMatchSet implements StringSet {
                 n.mapEntries(optimizeNodesVisitor);
             }
         }
-
+        minimize(thresholdStrategy);
+        compressChains(thresholdStrategy);
     }
 
-    private interface EntryVisitor {
-        void visit(TrieNode parent, char key, TrieNode value);
-    }
+    // Merge equivalent subtrees, which turns the trie into a minimal automaton. Nodes are processed
+    // deepest first, so the children of a node are merged before the node's signature is taken.
+    // The match loop doesn't care how it got to a node, it only needs to know whether the node matches.
+    private void minimize(final Thresholder thresholdStrategy) {
+        final ArrayList<TrieNode<Void>> nodes = new ArrayList<TrieNode<Void>>();
+        EntryVisitor<Void> collectNodesVisitor = new EntryVisitor<Void>() {
 
-    // An open addressing hashmap implementation with linear probing
-    // and capacity of 2^n
-    private final static class HashmapNode extends TrieNode {
-
-        // Start with capacity of 1 and resize as needed.
-        private TrieNode[] children = new TrieNode[1];
-        private char[] keys = new char[1];
-        // Since capacity is a power of 2, we calculate mod by just
-        // bitwise AND with the right mask.
-        private int modulusMask = keys.length - 1;
-        private int numEntries = 0;
-
-        @Override
-        public void clear() {
-            children = new TrieNode[1];
-            keys = new char[1];
-            modulusMask = keys.length - 1;
-            numEntries = 0;
-        }
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                nodes.add(value);
+            }
 
-        @Override
-        public TrieNode getTransition(final char key) {
-            int defaultSlot = hash(key) & modulusMask;
-            int currentSlot = defaultSlot;
-            // Linear probing to find the entry for key.
-            do {
-                if (keys[currentSlot] == key) {
-                    return children[currentSlot];
-                } else if (children[currentSlot] == null) {
-                    return null;
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
-                }
-            } while (currentSlot != defaultSlot);
-            return null;
+        };
+        // Still a tree, so every node is reached once.
+        nodes.add(root);
+        for (int i = 0; i < nodes.size(); i++) {
+            nodes.get(i).mapEntries(collectNodesVisitor);
         }
-
-        @Override
-        public boolean isEmpty() {
-            return numEntries == 0;
+        if (!thresholdStrategy.isOverDawgThreshold(nodes.size())) {
+            return;
         }
-
-        @Override
-        public void mapEntries(EntryVisitor visitor) {
-            for (int i = 0; i < keys.length; i++) {
-                if (children[i] != null) {
-                    visitor.visit(this, keys[i], children[i]);
+        final IdentityHashMap<TrieNode<Void>, TrieNode<Void>> merged = new IdentityHashMap<TrieNode<Void>, TrieNode<Void>>();
+        final IdentityHashMap<TrieNode<Void>, Integer> ids = new IdentityHashMap<TrieNode<Void>, Integer>();
+        final HashMap<NodeSignature, TrieNode<Void>> signatures = new HashMap<NodeSignature, TrieNode<Void>>();
+        final char[] keys = new char[alphabet.size()];
+        final TrieNode<Void>[] children = TrieNode.newArray(alphabet.size());
+        final int[] size = new int[1];
+        EntryVisitor<Void> entriesVisitor = new EntryVisitor<Void>() {
+
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                // Insertion sort by key, most nodes have very few children.
+                int i = size[0]++;
+                for (; i > 0 && keys[i - 1] > key; i--) {
+                    keys[i] = keys[i - 1];
+                    children[i] = children[i - 1];
                 }
+                keys[i] = key;
+                children[i] = merged.get(value);
             }
-        }
-
-        @Override
-        public void updateTransition(char c, TrieNode node) {
-            int defaultSlot = hash(c) & modulusMask;
-            int currentSlot = defaultSlot;
-            do {
-                if (children[currentSlot] == null) {
-                    throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
-                } else if (keys[currentSlot] == c) {
-                    children[currentSlot] = node;
-                    return;
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
-                }
-            } while (currentSlot != defaultSlot);
-            throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
-        }
 
-        @Override
-        protected TrieNode optimizeNode(int level, Thresholder thresholdStrategy) {
-            char minKey = '\uffff';
-            char maxKey = 0;
-            // Find you the min and max key on the node.
-            int size = numEntries;
-            for (int i = 0; i < children.length; i++) {
-                if (children[i] != null) {
-                    if (keys[i] > maxKey) {
-                        maxKey = keys[i];
-                    }
-                    if (keys[i] < minKey) {
-                        minKey = keys[i];
-                    }
-                }
+        };
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            TrieNode<Void> node = nodes.get(i);
+            size[0] = 0;
+            node.mapEntries(entriesVisitor);
+            int[] childIds = new int[size[0]];
+            for (int j = 0; j < size[0]; j++) {
+                // Point the node at the merged children.
+                node.updateTransition(keys[j], children[j]);
+                childIds[j] = ids.get(children[j]);
             }
-            // If difference between min and max key are small
-            // or only slightly larger than number of entries, use a range node
-            int keyIntervalSize = maxKey - minKey + 1;
-            if (thresholdStrategy.isOverThreshold(size, level, keyIntervalSize)) {
-                return new RangeNode(this, minKey, maxKey);
-            } else {
-                return this;
+            NodeSignature signature = new NodeSignature(node.matchLength != 0, null, Arrays.copyOf(keys, size[0]), childIds);
+            TrieNode<Void> equivalent = signatures.get(signature);
+            if (equivalent == null) {
+                signatures.put(signature, node);
+                ids.put(node, ids.size());
+                equivalent = node;
             }
+            merged.put(node, equivalent);
         }
+    }
 
-        // Double the capacity of the node, calculate the new mask,
-        // rehash and reinsert the entries
-        private void enlarge() {
-            char[] biggerKeys = new char[keys.length * 2];
-            TrieNode[] biggerChildren = new TrieNode[children.length * 2];
-            int biggerMask = biggerKeys.length - 1;
-            for (int i = 0; i < children.length; i++) {
-                char key = keys[i];
-                TrieNode node = children[i];
-                if (node != null) {
-                    int defaultSlot = hash(key) & biggerMask;
-                    int currentSlot = defaultSlot;
-                    do {
-                        if (biggerChildren[currentSlot] == null) {
-                            biggerKeys[currentSlot] = key;
-                            biggerChildren[currentSlot] = node;
-                            break;
-                        } else if (biggerKeys[currentSlot] == key) {
-                            throw new IllegalStateException();
-                        } else {
-                            currentSlot = ++currentSlot & biggerMask;
-                        }
-                    } while (currentSlot != defaultSlot);
+    // Replace runs of single child nodes without matches by chain nodes. Nodes can be shared
+    // after minimizing, so each node is visited once and a run gets one chain node.
+    private void compressChains(final Thresholder thresholdStrategy) {
+        final Queue<TrieNode<Void>> queue = new Queue<TrieNode<Void>>();
+        final IdentityHashMap<TrieNode<Void>, ChainNode<Void>> chains = new IdentityHashMap<TrieNode<Void>, ChainNode<Void>>();
+        final IdentityHashMap<TrieNode<Void>, TrieNode<Void>> queued = new IdentityHashMap<TrieNode<Void>, TrieNode<Void>>();
+        EntryVisitor<Void> compressVisitor = new EntryVisitor<Void>() {
+
+            public void visit(TrieNode<Void> parent, char key, TrieNode<Void> value) {
+                int length = 0;
+                TrieNode<Void> n = value;
+                for (; isChainLink(n); n = ((SingleNode<Void>) n).child) {
+                    length++;
                 }
-            }
-            this.keys = biggerKeys;
-            this.children = biggerChildren;
-            this.modulusMask = biggerMask;
-        }
-
-        // Return the node for a key or create a new hashmap node for that key
-        // and return that.
-        private HashmapNode getOrAddChild(char key) {
-            // Check if we need to resize. Capacity of 2^16 doesn't need to resize.
-            // If capacity is <16 and arrays are full or capacity is >16 and
-            // arrays are 90% full, resize
-            if (keys.length < 0x10000 && ((numEntries >= keys.length) || (numEntries > 16 && (numEntries >= keys.length * 0.90f)))) {
-                enlarge();
-            }
-            int defaultSlot = hash(key) & modulusMask;
-            int currentSlot = defaultSlot;
-            do {
-                if (children[currentSlot] == null) {
-                    keys[currentSlot] = key;
-                    HashmapNode newChild = new HashmapNode();
-                    children[currentSlot] = newChild;
-                    ++numEntries;
-                    return newChild;
-                } else if (keys[currentSlot] == key) {
-                    return (HashmapNode) children[currentSlot];
-                } else {
-                    currentSlot = ++currentSlot & modulusMask;
+                if (length > 0 && thresholdStrategy.isOverChainThreshold(length)) {
+                    ChainNode<Void> chain = chains.get(value);
+                    if (chain == null) {
+                        chain = new ChainNode<Void>((SingleNode<Void>) value, length, false);
+                        chains.put(value, chain);
+                    }
+                    parent.updateTransition(key, chain);
                 }
-            } while (currentSlot != defaultSlot);
-            throw new IllegalStateException();
-        }
+                // Continue after the run.
+                if (!n.isEmpty() && !queued.containsKey(n)) {
+                    queued.put(n, n);
+                    queue.push(n);
+                }
+            }
 
-        // FNV-1a hash
-        private int hash(char c) {
-            // HASH_BASIS = 0x811c9dc5;
-            final int HASH_PRIME = 16777619;
-            return (((0x811c9dc5 ^ (c >> 8)) * HASH_PRIME) ^ (c & 0xff)) * HASH_PRIME;
+        };
+        queue.push(root);
+        while (!queue.isEmpty()) {
+            queue.take().mapEntries(compressVisitor);
         }
+    }
 
+    private boolean isChainLink(TrieNode<Void> node) {
+        return node instanceof SingleNode && !node.isEmpty() && node.matchLength == 0;
     }
 
-    // This node is good at representing dense ranges of keys.
-    // It has a single array of nodes and a base key value.
-    // Child at array index 3 has key of baseChar + 3.
-    private static final class RangeNode extends TrieNode {
-
-        private char baseChar = 0;
-        private TrieNode[] children;
-        private int size = 0;
-
-        private RangeNode(HashmapNode oldNode, char from, char to) {
-            // Value of the first character
-            this.baseChar = from;
-            this.size = to - from + 1;
-            this.matchLength = oldNode.matchLength;
-            // Avoid even allocating a children array if size is 0.
-            if (size <= 0) {
-                size = 0;
-            } else {
-                this.children = new TrieNode[size];
-                // Grab the children of the old node.
-                for (int i = 0; i < oldNode.children.length; i++) {
-                    if (oldNode.children[i] != null) {
-                        children[oldNode.keys[i] - from] = oldNode.children[i];
+    // Walk the sample like the match loop does and count lookups on each node (index 0 of the counts) and
+    // transitions taken to it (index 1), see train. Walks stop at the first character without a transition
+    // and continue at the next word.
+    private IdentityHashMap<TrieNode<Void>, long[]> profile(String sample) {
+        final TrieCursor.Profile<Void> cursor = new TrieCursor.Profile<Void>(root);
+        int idx = 0;
+        final int len = sample.length();
+        while (idx < len) {
+            final char c = sample.charAt(idx);
+            final boolean advanced = cursor.advance(charClasses[c]);
+            if (!advanced) {
+                if (wordChars[c]) {
+                    while (++idx < len && wordChars[sample.charAt(idx)]) {
+                        ;
                     }
                 }
+                while (++idx < len && !wordChars[sample.charAt(idx)]) {
+                    ;
+                }
+                cursor.reset();
+            } else {
+                ++idx;
             }
         }
+        return cursor.hits;
+    }
 
-        @Override
-        public void clear() {
-            children = null;
-            size = 0;
-        }
-
-        @Override
-        public TrieNode getTransition(char c) {
-            // First check if the key is between max and min value.
-            // Here we use the fact that char type is unsigned to figure it out
-            // with a single condition.
-            int idx = (char) (c - baseChar);
-            if (idx < size) {
-                return children[idx];
+    // Let the thresholder plan node types with a view of the whole trie, see Thresholder.plan. Reports
+    // every node with at least 2 children, the root only if it's optimized like the other nodes.
+    private static Thresholder plan(HashmapNode<Void> root, boolean optimizeRoot, Thresholder thresholdStrategy) {
+        int[] sizes = new int[16];
+        int[] levels = new int[16];
+        int[] keyIntervalSizes = new int[16];
+        int count = 0;
+        ArrayList<HashmapNode<Void>> layer = new ArrayList<HashmapNode<Void>>();
+        layer.add(root);
+        for (int level = 0; !layer.isEmpty(); level++) {
+            ArrayList<HashmapNode<Void>> nextLayer = new ArrayList<HashmapNode<Void>>();
+            for (HashmapNode<Void> node : layer) {
+                char minKey = '\uffff';
+                char maxKey = 0;
+                for (int i = 0; i < node.children.length; i++) {
+                    if (node.children[i] != null) {
+                        minKey = (char) Math.min(minKey, node.keys[i]);
+                        maxKey = (char) Math.max(maxKey, node.keys[i]);
+                        nextLayer.add((HashmapNode<Void>) node.children[i]);
+                    }
+                }
+                if (node.numEntries > 1 && (level > 0 || optimizeRoot)) {
+                    if (count == sizes.length) {
+                        sizes = Arrays.copyOf(sizes, count * 2);
+                        levels = Arrays.copyOf(levels, count * 2);
+                        keyIntervalSizes = Arrays.copyOf(keyIntervalSizes, count * 2);
+                    }
+                    sizes[count] = node.numEntries;
+                    levels[count] = level;
+                    keyIntervalSizes[count++] = maxKey - minKey + 1;
+                }
             }
-            return null;
+            layer = nextLayer;
         }
+        return thresholdStrategy.plan(Arrays.copyOf(sizes, count), Arrays.copyOf(levels, count), Arrays.copyOf(keyIntervalSizes, count));
+    }
 
-        @Override
-        public boolean isEmpty() {
-            return size == 0;
+    // State of the match loop between chunks. Scrolling through the rest of a word and the non-word
+    // characters after it can go on in the next chunk.
+    private final class StreamMatcher implements Matcher {
+
+        private final TrieCursor<Void> cursor = new TrieCursor<Void>(root);
+        private final StreamSetMatchListener listener;
+        // Position of the next character in the text.
+        private long position = 0;
+        private boolean scrollNonWord = false;
+        private boolean scrollWord = false;
+        // Start of the current word.
+        private long start = 0;
+        private boolean stopped = false;
+
+        private StreamMatcher(StreamSetMatchListener listener) {
+            this.listener = listener;
         }
 
-        @Override
-        public void mapEntries(EntryVisitor visitor) {
-            if (children != null) {
-                for (int i = 0; i < children.length; i++) {
-                    if (children[i] != null && children[i] != this) {
-                        visitor.visit(this, (char) (baseChar + i), children[i]);
+        public boolean feed(final char[] chunk, final int off, final int len) {
+            if (stopped) {
+                return false;
+            }
+            // Local copies of the state for the loop.
+            boolean scrollNonWord = this.scrollNonWord;
+            boolean scrollWord = this.scrollWord;
+            long start = this.start;
+            // Position of the chunk array start in the text.
+            final long base = position - off;
+            final int end = off + len;
+            int idx = off;
+            while (idx < end) {
+                char c = chunk[idx];
+                if (scrollWord) {
+                    // Scroll through word characters and the non-word character after them.
+                    if (!wordChars[c]) {
+                        scrollWord = false;
+                        scrollNonWord = true;
                     }
+                    ++idx;
+                    continue;
+                } else if (scrollNonWord) {
+                    // Scroll to the first word character, which starts the next word.
+                    if (!wordChars[c]) {
+                        ++idx;
+                        continue;
+                    }
+                    scrollNonWord = false;
+                    start = base + idx;
                 }
-            }
-        }
-
-        @Override
-        public void updateTransition(char c, TrieNode node) {
-            // First check if the key is between max and min value.
-            // Here we use the fact that char type is unsigned to figure it out
-            // with a single condition.
-            int idx = (char) (c - baseChar);
-            if (idx < size) {
-                if (children[idx] != null) {
-                    children[idx] = node;
-                    return;
+                final boolean advanced = cursor.advance(charClasses[c]);
+                if (!advanced) {
+                    if (!wordChars[c]) {
+                        if (cursor.node.matchLength != 0) {
+                            if (!listener.match(start, base + idx)) {
+                                stopped = true;
+                                return false;
+                            }
+                        }
+                        scrollNonWord = true;
+                    } else {
+                        scrollWord = true;
+                    }
+                    ++idx;
+                    cursor.reset();
                 } else {
-                    throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+                    ++idx;
                 }
             }
-            throw new IllegalArgumentException("Transition for " + c + " doesn't exist.");
+            this.scrollNonWord = scrollNonWord;
+            this.scrollWord = scrollWord;
+            this.start = start;
+            position = base + end;
+            return true;
         }
 
-    }
-
-    // Basic node for both
-    private static abstract class TrieNode {
-
-        protected int matchLength;
-
-        public abstract void clear();
-
-        // Get transition (root node returns something non-null for all characters - itself)
-        public abstract TrieNode getTransition(char c);
-
-        public abstract boolean isEmpty();
-
-        public abstract void mapEntries(final EntryVisitor visitor);
-
-        public abstract void updateTransition(char c, TrieNode node);
-
-        protected TrieNode optimizeNode(int level, Thresholder thresholdStrategy) {
-            return this;
+        public void finish() {
+            if (cursor.node.matchLength != 0 && !stopped) {
+                // Output any matches on the last node
+                listener.match(start, position);
+            }
+            cursor.reset();
+            position = 0;
+            scrollNonWord = false;
+            scrollWord = false;
+            start = 0;
+            stopped = false;
         }
-
     }
 
 }
@@ -38,6 +38,15 @@ class WordCharacters {
         return characterFlags;
     }
 
+    // Flags for matching input that isn't lower cased, each character gets the flag of its lower case.
+    public static boolean[] lowerCaseFlags(boolean[] wordChars) {
+        boolean[] characterFlags = new boolean[65536];
+        for (int i = 0; i < characterFlags.length; i++) {
+            characterFlags[i] = wordChars[Character.toLowerCase((char) i)];
+        }
+        return characterFlags;
+    }
+
     public static String trim(String keyword, boolean[] wordChars) {
         // Trim any non-word chars from the start and the end.
         int wordStart = 0;
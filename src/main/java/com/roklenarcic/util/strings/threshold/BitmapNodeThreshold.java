@@ -0,0 +1,32 @@
+package com.roklenarcic.util.strings.threshold;
+
+// Thresholder that turns nodes which are too sparse for a range node into bitmap nodes
+// instead of leaving them as hashmap nodes. Bitmap node takes two bits per key in the interval plus a
+// reference per child and a lookup needs no hashing or probing, so it is used for nodes with
+// at least minNodeSize children whose key interval is at most maxSpread times the number of children.
+public class BitmapNodeThreshold extends DelegatingThreshold {
+
+    private int maxSpread, minNodeSize;
+
+    public BitmapNodeThreshold() {
+        this(4, 32);
+    }
+
+    public BitmapNodeThreshold(int minNodeSize, int maxSpread) {
+        super();
+        this.minNodeSize = minNodeSize;
+        this.maxSpread = maxSpread;
+    }
+
+    public BitmapNodeThreshold(int minNodeSize, int maxSpread, Thresholder delegate) {
+        super(delegate);
+        this.minNodeSize = minNodeSize;
+        this.maxSpread = maxSpread;
+    }
+
+    @Override
+    public boolean isOverBitmapThreshold(int nodeSize, int nodeLevel, int keyIntervalSize) {
+        return nodeSize >= minNodeSize && keyIntervalSize <= (long) nodeSize * maxSpread;
+    }
+
+}
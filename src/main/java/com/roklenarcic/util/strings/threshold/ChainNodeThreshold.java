@@ -0,0 +1,30 @@
+package com.roklenarcic.util.strings.threshold;
+
+// Thresholder that also replaces runs of at least minChainLength single child nodes
+// with chain nodes. Long keywords (URLs, product codes, phrases) are mostly such runs. A run node
+// costs an object with a child reference, a chain costs 6 bytes per node in the run plus
+// two arrays, so short runs are better left alone.
+public class ChainNodeThreshold extends DelegatingThreshold {
+
+    private int minChainLength;
+
+    public ChainNodeThreshold() {
+        this(4);
+    }
+
+    public ChainNodeThreshold(int minChainLength) {
+        super();
+        this.minChainLength = minChainLength;
+    }
+
+    public ChainNodeThreshold(int minChainLength, Thresholder delegate) {
+        super(delegate);
+        this.minChainLength = minChainLength;
+    }
+
+    @Override
+    public boolean isOverChainThreshold(int chainLength) {
+        return chainLength >= minChainLength;
+    }
+
+}
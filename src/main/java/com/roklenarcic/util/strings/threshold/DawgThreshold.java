@@ -0,0 +1,29 @@
+package com.roklenarcic.util.strings.threshold;
+
+// Thresholder that also merges equivalent subtrees of tries with at least minTrieSize nodes,
+// so keywords with common endings (inflections, compounds) share the nodes of the ending. Merging
+// takes a hashed signature per node at construction, small tries aren't worth it.
+public class DawgThreshold extends DelegatingThreshold {
+
+    private int minTrieSize;
+
+    public DawgThreshold() {
+        this(0);
+    }
+
+    public DawgThreshold(int minTrieSize) {
+        super();
+        this.minTrieSize = minTrieSize;
+    }
+
+    public DawgThreshold(int minTrieSize, Thresholder delegate) {
+        super(delegate);
+        this.minTrieSize = minTrieSize;
+    }
+
+    @Override
+    public boolean isOverDawgThreshold(int trieSize) {
+        return trieSize >= minTrieSize;
+    }
+
+}
@@ -0,0 +1,71 @@
+package com.roklenarcic.util.strings.threshold;
+
+// Thresholder that passes every decision to another thresholder. The feature thresholders extend it
+// and only make their own decision, so they can be stacked:
+// new ChainNodeThreshold(4, new BitmapNodeThreshold(4, 32, new RangeNodeThreshold(2))).
+// The default delegate is a range node threshold.
+public class DelegatingThreshold implements Thresholder, Cloneable {
+
+    private Thresholder delegate;
+
+    public DelegatingThreshold() {
+        this(new RangeNodeThreshold());
+    }
+
+    public DelegatingThreshold(Thresholder delegate) {
+        super();
+        if (delegate == null) {
+            throw new IllegalArgumentException("Delegate thresholder can't be null.");
+        }
+        this.delegate = delegate;
+    }
+
+    public Thresholder getDelegate() {
+        return delegate;
+    }
+
+    public SparseNodeType getSparseNodeType(int nodeSize, int nodeLevel, int keyIntervalSize) {
+        return delegate.getSparseNodeType(nodeSize, nodeLevel, keyIntervalSize);
+    }
+
+    public boolean isOverBitmapThreshold(int nodeSize, int nodeLevel, int keyIntervalSize) {
+        return delegate.isOverBitmapThreshold(nodeSize, nodeLevel, keyIntervalSize);
+    }
+
+    public boolean isOverChainThreshold(int chainLength) {
+        return delegate.isOverChainThreshold(chainLength);
+    }
+
+    public boolean isOverDawgThreshold(int trieSize) {
+        return delegate.isOverDawgThreshold(trieSize);
+    }
+
+    public boolean isOverProfileThreshold(int nodeSize, int keyIntervalSize, long lookups, long totalLookups) {
+        return delegate.isOverProfileThreshold(nodeSize, keyIntervalSize, lookups, totalLookups);
+    }
+
+    public boolean isOverRootTableThreshold(int alphabetSize) {
+        return delegate.isOverRootTableThreshold(alphabetSize);
+    }
+
+    public boolean isOverThreshold(int nodeSize, int nodeLevel, int keyIntervalSize) {
+        return delegate.isOverThreshold(nodeSize, nodeLevel, keyIntervalSize);
+    }
+
+    // The delegate plans, if it returns a different thresholder the result is a copy of this
+    // thresholder over the planned one, so decisions made here stay the same.
+    public Thresholder plan(int[] nodeSizes, int[] nodeLevels, int[] keyIntervalSizes) {
+        Thresholder planned = delegate.plan(nodeSizes, nodeLevels, keyIntervalSizes);
+        if (planned == delegate) {
+            return this;
+        }
+        try {
+            DelegatingThreshold copy = (DelegatingThreshold) clone();
+            copy.delegate = planned;
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
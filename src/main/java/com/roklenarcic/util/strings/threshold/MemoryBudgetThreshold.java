@@ -0,0 +1,100 @@
+package com.roklenarcic.util.strings.threshold;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+// Thresholder that spends a fixed number of bytes on range nodes for the whole trie, instead of deciding
+// one node at a time. A range node is the fastest node, but takes a reference for every key in its key
+// interval. Nodes get range nodes shallowest first, since shallow nodes are passed by the most lookups,
+// and within a level densest first, since those cost the least per child. Nodes that aren't bigger as a
+// range node don't take from the budget. The trie then takes at most about budgetBytes more than it
+// would without range nodes. Other decisions, and range nodes in engines that don't plan (see Thresholder.plan),
+// are left to the delegate.
+public class MemoryBudgetThreshold extends DelegatingThreshold {
+
+    private long budgetBytes;
+
+    public MemoryBudgetThreshold(long budgetBytes) {
+        this(budgetBytes, new RangeNodeThreshold());
+    }
+
+    public MemoryBudgetThreshold(long budgetBytes, Thresholder delegate) {
+        super(delegate);
+        if (budgetBytes < 0) {
+            throw new IllegalArgumentException("Budget can't be negative.");
+        }
+        this.budgetBytes = budgetBytes;
+    }
+
+    // Extra bytes a range node takes over the node the trie would use otherwise, small node or trimmed
+    // hashmap node, with compressed references.
+    private static long rangeNodeCost(int nodeSize, int keyIntervalSize) {
+        long rangeBytes = align(16 + 4L * keyIntervalSize);
+        if (nodeSize <= 4) {
+            // Small node keeps its children in fields, that's 16 bytes more than a range node's fields.
+            return rangeBytes - 16;
+        } else {
+            int capacity = 1;
+            while (capacity < nodeSize || (nodeSize > 16 && nodeSize >= capacity * 0.90f)) {
+                capacity *= 2;
+            }
+            return rangeBytes - align(16 + 2L * capacity) - align(16 + 4L * capacity);
+        }
+    }
+
+    private static long align(long size) {
+        return (size + 7) / 8 * 8;
+    }
+
+    private static long key(int nodeSize, int nodeLevel, int keyIntervalSize) {
+        return ((long) nodeLevel << 34) | ((long) nodeSize << 17) | keyIntervalSize;
+    }
+
+    @Override
+    public Thresholder plan(final int[] nodeSizes, final int[] nodeLevels, final int[] keyIntervalSizes) {
+        Integer[] order = new Integer[nodeSizes.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            public int compare(Integer a, Integer b) {
+                if (nodeLevels[a] != nodeLevels[b]) {
+                    return nodeLevels[a] < nodeLevels[b] ? -1 : 1;
+                }
+                return Double.compare((double) nodeSizes[b] / keyIntervalSizes[b], (double) nodeSizes[a] / keyIntervalSizes[a]);
+            }
+        });
+        // Nodes can't be told apart by the thresholder, so the plan is the number of range nodes
+        // for each combination of node size, level and key interval size.
+        final HashMap<Long, int[]> rangeNodes = new HashMap<Long, int[]>();
+        long remaining = budgetBytes;
+        for (int i : order) {
+            long cost = rangeNodeCost(nodeSizes[i], keyIntervalSizes[i]);
+            if (cost <= remaining) {
+                remaining -= Math.max(0, cost);
+                long key = key(nodeSizes[i], nodeLevels[i], keyIntervalSizes[i]);
+                int[] count = rangeNodes.get(key);
+                if (count == null) {
+                    rangeNodes.put(key, new int[] { 1 });
+                } else {
+                    count[0]++;
+                }
+            }
+        }
+        return new DelegatingThreshold(getDelegate().plan(nodeSizes, nodeLevels, keyIntervalSizes)) {
+
+            @Override
+            public boolean isOverThreshold(int nodeSize, int nodeLevel, int keyIntervalSize) {
+                int[] count = rangeNodes.get(key(nodeSize, nodeLevel, keyIntervalSize));
+                if (count != null && count[0] > 0) {
+                    count[0]--;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,30 @@
+package com.roklenarcic.util.strings.threshold;
+
+// Thresholder for training engines on sample text. Nodes that take at least minLookupShare of
+// all lookups while matching the sample become range nodes, whatever their density. Lookups on the hot nodes
+// get faster and the cold nodes, which are most of the trie, keep their size. Since the shares add up to 1,
+// at most 1 / minLookupShare nodes are turned into range nodes.
+public class ProfileThreshold extends DelegatingThreshold {
+
+    private double minLookupShare;
+
+    public ProfileThreshold() {
+        this(0.001);
+    }
+
+    public ProfileThreshold(double minLookupShare) {
+        super();
+        this.minLookupShare = minLookupShare;
+    }
+
+    public ProfileThreshold(double minLookupShare, Thresholder delegate) {
+        super(delegate);
+        this.minLookupShare = minLookupShare;
+    }
+
+    @Override
+    public boolean isOverProfileThreshold(int nodeSize, int keyIntervalSize, long lookups, long totalLookups) {
+        return lookups > 0 && lookups >= totalLookups * minLookupShare;
+    }
+
+}
@@ -0,0 +1,30 @@
+package com.roklenarcic.util.strings.threshold;
+
+// Thresholder that makes the root a table with a slot for every character class of the
+// dictionary. The root is looked up for every input character that doesn't continue a match, so for
+// text in a large script (CJK) or mixed scripts a table pays off even when the root is too sparse for
+// a range node. The table takes a reference per class, up to maxAlphabetSize classes.
+public class RootTableThreshold extends DelegatingThreshold {
+
+    private int maxAlphabetSize;
+
+    public RootTableThreshold() {
+        this(0x10000);
+    }
+
+    public RootTableThreshold(int maxAlphabetSize) {
+        super();
+        this.maxAlphabetSize = maxAlphabetSize;
+    }
+
+    public RootTableThreshold(int maxAlphabetSize, Thresholder delegate) {
+        super(delegate);
+        this.maxAlphabetSize = maxAlphabetSize;
+    }
+
+    @Override
+    public boolean isOverRootTableThreshold(int alphabetSize) {
+        return alphabetSize <= maxAlphabetSize;
+    }
+
+}
@@ -0,0 +1,24 @@
+package com.roklenarcic.util.strings.threshold;
+
+// Thresholder that builds the sparse nodes, the ones that get neither range, bitmap nor small
+// nodes, as the given type. NodeTypeTest.main compares the types on a few dictionary shapes.
+public class SparseNodeThreshold extends DelegatingThreshold {
+
+    private SparseNodeType sparseNodeType;
+
+    public SparseNodeThreshold(SparseNodeType sparseNodeType) {
+        super();
+        this.sparseNodeType = sparseNodeType;
+    }
+
+    public SparseNodeThreshold(SparseNodeType sparseNodeType, Thresholder delegate) {
+        super(delegate);
+        this.sparseNodeType = sparseNodeType;
+    }
+
+    @Override
+    public SparseNodeType getSparseNodeType(int nodeSize, int nodeLevel, int keyIntervalSize) {
+        return sparseNodeType;
+    }
+
+}
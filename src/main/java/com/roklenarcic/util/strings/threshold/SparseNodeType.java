@@ -0,0 +1,20 @@
+package com.roklenarcic.util.strings.threshold;
+
+// Implementations of nodes that are too sparse for range and bitmap nodes and too big for small nodes.
+public enum SparseNodeType {
+
+    // Open addressing with linear probing and FNV-1a hashing, the node the trie is built with.
+    HASHMAP,
+
+    // Linear probing with a multiply-shift hash, cheaper to compute than FNV-1a. Keys of a dense run of
+    // characters (CJK, emoji) land in different slots.
+    MULTIPLICATIVE_HASH,
+
+    // Open addressing with Robin Hood hashing. Probe lengths are even and lookups of missing keys stop early,
+    // which helps with long probe chains.
+    ROBIN_HOOD,
+
+    // Sorted keys with binary search, no empty slots and no hashing, log2(size) comparisons per lookup.
+    SORTED
+
+}
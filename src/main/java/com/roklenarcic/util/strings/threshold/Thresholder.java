@@ -2,4 +2,47 @@ package com.roklenarcic.util.strings.threshold;
 
 public interface Thresholder {
     boolean isOverThreshold(int nodeSize, int nodeLevel, int keyIntervalSize);
+
+    // Nodes that don't get a range node can get a bitmap node instead of staying hashmap nodes.
+    default boolean isOverBitmapThreshold(int nodeSize, int nodeLevel, int keyIntervalSize) {
+        return false;
+    }
+
+    // Nodes that get none of the above are sparse nodes, hashmap nodes unless another implementation
+    // is chosen here.
+    default SparseNodeType getSparseNodeType(int nodeSize, int nodeLevel, int keyIntervalSize) {
+        return SparseNodeType.HASHMAP;
+    }
+
+    // Runs of single child nodes without matches can be replaced by a chain node that holds the
+    // keys of the run in an array. Supported by the engines that build chain nodes.
+    default boolean isOverChainThreshold(int chainLength) {
+        return false;
+    }
+
+    // Root can be a table with a slot for every character class of the dictionary, instead of a node
+    // chosen by the thresholds above. Most input characters are looked up on the root.
+    default boolean isOverRootTableThreshold(int alphabetSize) {
+        return false;
+    }
+
+    // Tries without fail transitions can have equivalent subtrees merged, which turns them into a minimal
+    // automaton (DAWG). Supported by the whole word match engines, trieSize is the number of nodes.
+    default boolean isOverDawgThreshold(int trieSize) {
+        return false;
+    }
+
+    // Engines trained on sample text (see train on the node engines) turn nodes into range nodes when
+    // they're hot, lookups is the number of lookups on the node while matching the sample and totalLookups
+    // the number of lookups on all nodes.
+    default boolean isOverProfileThreshold(int nodeSize, int keyIntervalSize, long lookups, long totalLookups) {
+        return false;
+    }
+
+    // Thresholders can plan node types with a view of the whole trie instead of one node at a time. Before
+    // any node is optimized, engines pass the size, level and key interval size of every node with at least
+    // 2 children (the nodes isOverThreshold will be asked about) and use the returned thresholder for them.
+    default Thresholder plan(int[] nodeSizes, int[] nodeLevels, int[] keyIntervalSizes) {
+        return this;
+    }
 }
@@ -3,6 +3,8 @@ package com.roklenarcic.util.strings;
 import java.io.IOException;
 import java.util.List;
 
+import org.junit.Test;
+
 public class AhoCorasickMapTest extends MapTest {
 
     public static void main(final String[] args) throws IOException {
@@ -24,6 +26,12 @@ public class AhoCorasickMapTest extends MapTest {
         super(printTimesOnly, testLoopSize);
     }
 
+    @Test
+    public void testSuffixSharing() throws IOException {
+        test("abcdabcd xbcd zcd", "abcd", "bcd", "cd", "d", "xbcd", "zcd", "c", "bc", "abc");
+        test("aaaaaaaaaaaaaaaaaaaa", "a", "aa", "aaa", "aaaa", "aaaaa", "aaaaaaaaaa", "aaaaaaaaaaaaaaaaaaaa");
+    }
+
     @Override
     protected int getCorrectCount(List<String> keywords, String haystack, StringMap<String> map) {
         int normalCount = 0;
@@ -156,6 +156,12 @@ public class AhoCorasickTest extends SetTest {
         normalizeWhitespace = false;
     }
 
+    @Test
+    public void testSuffixSharing() {
+        test("abcdabcd xbcd zcd", "abcd", "bcd", "cd", "d", "xbcd", "zcd", "c", "bc", "abc");
+        test("aaaaaaaaaaaaaaaaaaaa", "a", "aa", "aaa", "aaaa", "aaaaa", "aaaaaaaaaa", "aaaaaaaaaaaaaaaaaaaa");
+    }
+
     @Override
     protected StringSet instantiateSet(List<String> keywords, boolean caseSensitive) {
         AhoCorasickSet set = new AhoCorasickSet(keywords, isCaseSensitive, normalizeWhitespace);
@@ -0,0 +1,74 @@
+package com.roklenarcic.util.strings;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.roklenarcic.util.strings.threshold.Thresholder;
+
+public class AlphabetTest {
+
+    @Test
+    public void testCaseInsensitiveClasses() {
+        Alphabet a = new Alphabet(false);
+        Assert.assertEquals(1, a.add('A'));
+        Assert.assertEquals(1, a.add('a'));
+        Assert.assertEquals(2, a.add('b'));
+        char[] classes = a.classes();
+        Assert.assertEquals(1, classes['A']);
+        Assert.assertEquals(1, classes['a']);
+        Assert.assertEquals(2, classes['B']);
+        Assert.assertEquals(0, classes['c']);
+        Assert.assertEquals('a', a.charOf((char) 1));
+    }
+
+    @Test
+    public void testCaseSensitiveClasses() {
+        Alphabet a = new Alphabet(true);
+        Assert.assertEquals(1, a.add('\u4e2d'));
+        Assert.assertEquals(2, a.add('A'));
+        Assert.assertEquals(3, a.add('a'));
+        Assert.assertEquals(1, a.add('\u4e2d'));
+        char[] classes = a.classes();
+        Assert.assertEquals(1, classes['\u4e2d']);
+        Assert.assertEquals(0, classes['\u4e2e']);
+        Assert.assertEquals('\u4e2d', a.charOf((char) 1));
+    }
+
+    @Test
+    public void testFullAlphabet() {
+        Alphabet a = new Alphabet(true);
+        for (int c = 65535; c >= 0; c--) {
+            a.add((char) c);
+        }
+        char[] classes = a.classes();
+        boolean[] seen = new boolean[65536];
+        for (int c = 0; c < 65536; c++) {
+            Assert.assertFalse(seen[classes[c]]);
+            seen[classes[c]] = true;
+            Assert.assertEquals((char) c, a.charOf(classes[c]));
+        }
+    }
+
+    @Test
+    public void testUnknownCharactersInHashmapRoot() {
+        // Characters that aren't in any keyword must not hit empty hashmap slots.
+        AhoCorasickSet set = new AhoCorasickSet(Arrays.asList("ab", "b"), true, false, new Thresholder() {
+
+            public boolean isOverThreshold(int nodeSize, int nodeLevel, int keyIntervalSize) {
+                return false;
+            }
+        });
+        final int[] count = new int[1];
+        set.match("x ab?b", new SetMatchListener() {
+
+            public boolean match(String haystack, int startPosition, int endPosition) {
+                count[0]++;
+                return true;
+            }
+        });
+        Assert.assertEquals(3, count[0]);
+    }
+
+}
@@ -0,0 +1,246 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ByteEngineTest {
+
+    private static List<String> byteMatches(ByteMap<String> map, byte[] haystack) {
+        final List<String> matches = new ArrayList<String>();
+        map.match(haystack, new ByteMapMatchListener<String>() {
+
+            public boolean match(int startPosition, int endPosition, String value) {
+                matches.add(startPosition + "-" + endPosition + ":" + value);
+                return true;
+            }
+        });
+        return matches;
+    }
+
+    private static List<String> charMatches(StringMap<String> map, final String haystack) {
+        final List<String> matches = new ArrayList<String>();
+        map.match(haystack, new MapMatchListener<String>() {
+
+            public boolean match(String haystack, int startPosition, int endPosition, String value) {
+                // Translate to UTF-8 byte offsets.
+                matches.add(utf8Length(haystack.substring(0, startPosition)) + "-" + utf8Length(haystack.substring(0, endPosition)) + ":" + value);
+                return true;
+            }
+        });
+        return matches;
+    }
+
+    private static List<String> fileMatches(ByteMap<String> map, Path file, int windowBytes) throws IOException {
+        final List<String> matches = new ArrayList<String>();
+        FileMapMatchListener<String> listener = new FileMapMatchListener<String>() {
+
+            public boolean match(long startPosition, long endPosition, String value) {
+                matches.add(startPosition + "-" + endPosition + ":" + value);
+                return true;
+            }
+        };
+        if (map instanceof ByteAhoCorasickMap) {
+            ((ByteAhoCorasickMap<String>) map).matchFile(file, listener, windowBytes);
+        } else if (map instanceof ByteLongestMatchMap) {
+            ((ByteLongestMatchMap<String>) map).matchFile(file, listener, windowBytes);
+        } else if (map instanceof ByteWholeWordLongestMatchMap) {
+            ((ByteWholeWordLongestMatchMap<String>) map).matchFile(file, listener, windowBytes);
+        } else {
+            ((ByteWholeWordMatchMap<String>) map).matchFile(file, listener, windowBytes);
+        }
+        return matches;
+    }
+
+    private static String random(Random r, String alphabet, int length) {
+        char[] c = new char[length];
+        for (int i = 0; i < c.length; i++) {
+            c[i] = alphabet.charAt(r.nextInt(alphabet.length()));
+        }
+        return new String(c);
+    }
+
+    private static List<String> randomKeywords(Random r, String alphabet) {
+        List<String> keywords = new ArrayList<String>();
+        for (int i = 0; i < 30; i++) {
+            keywords.add(random(r, alphabet, 1 + r.nextInt(4)));
+        }
+        return keywords;
+    }
+
+    private static int utf8Length(String s) {
+        return s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    @Test
+    public void testAhoCorasick() {
+        Random r = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            boolean caseSensitive = r.nextBoolean();
+            List<String> keywords = randomKeywords(r, "aAb\u00e9\u20ac ");
+            String haystack = random(r, "aAbB\u00e9\u20ac ", 200);
+            byte[] bytes = haystack.getBytes(StandardCharsets.UTF_8);
+            Assert.assertEquals(charMatches(new AhoCorasickMap<String>(keywords, keywords, caseSensitive), haystack),
+                    byteMatches(new ByteAhoCorasickMap<String>(keywords, keywords, caseSensitive), bytes));
+            // Small table, so most states take the slow path.
+            Assert.assertEquals(charMatches(new AhoCorasickMap<String>(keywords, keywords, caseSensitive), haystack),
+                    byteMatches(new ByteAhoCorasickMap<String>(keywords, keywords, caseSensitive, 1024), bytes));
+        }
+    }
+
+    @Test
+    public void testBuffers() {
+        List<String> keywords = Arrays.asList("he", "she", "hers");
+        ByteAhoCorasickMap<String> map = new ByteAhoCorasickMap<String>(keywords, keywords, true);
+        byte[] bytes = "ushers".getBytes(StandardCharsets.UTF_8);
+        List<String> expected = Arrays.asList("1-4:she", "2-4:he", "2-6:hers");
+        Assert.assertEquals(expected, byteMatches(map, bytes));
+        // Heap buffer that doesn't start at the start of its array, positions are buffer indexes.
+        ByteBuffer padded = ByteBuffer.wrap(("xx" + "ushers").getBytes(StandardCharsets.UTF_8));
+        padded.position(2);
+        ByteBuffer slice = padded.slice();
+        final List<String> matches = new ArrayList<String>();
+        ByteMapMatchListener<String> listener = new ByteMapMatchListener<String>() {
+
+            public boolean match(int startPosition, int endPosition, String value) {
+                matches.add(startPosition + "-" + endPosition + ":" + value);
+                return true;
+            }
+        };
+        map.match(slice, listener);
+        Assert.assertEquals(expected, matches);
+        matches.clear();
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        map.match(direct, listener);
+        Assert.assertEquals(expected, matches);
+        Assert.assertEquals(0, direct.position());
+        matches.clear();
+        // Range of the array.
+        map.match(bytes, 1, 4, listener);
+        Assert.assertEquals(Arrays.asList("1-4:she", "2-4:he"), matches);
+    }
+
+    @Test
+    public void testFiles() throws IOException {
+        Random r = new Random(5);
+        Path file = Files.createTempFile("haystack", ".txt");
+        try {
+            for (int i = 0; i < 50; i++) {
+                List<String> keywords = randomKeywords(r, "aAb\u00e9");
+                byte[] haystack = random(r, "aAbB\u00e9 -", 300).getBytes(StandardCharsets.UTF_8);
+                Files.write(file, haystack);
+                // Small windows, so matches and words go over window boundaries.
+                for (ByteMap<String> map : Arrays.<ByteMap<String>> asList(new ByteAhoCorasickMap<String>(keywords, keywords, false),
+                        new ByteLongestMatchMap<String>(keywords, keywords, false), new ByteWholeWordMatchMap<String>(keywords, keywords, false),
+                        new ByteWholeWordLongestMatchMap<String>(keywords, keywords, false))) {
+                    Assert.assertEquals(byteMatches(map, haystack), fileMatches(map, file, 7));
+                    Assert.assertEquals(byteMatches(map, haystack), fileMatches(map, file, 1 << 20));
+                }
+            }
+        } finally {
+            // Mapped files can't be deleted on some platforms.
+            file.toFile().deleteOnExit();
+        }
+    }
+
+    @Test
+    public void testLongestMatch() {
+        Random r = new Random(2);
+        for (int i = 0; i < 200; i++) {
+            boolean caseSensitive = r.nextBoolean();
+            List<String> keywords = randomKeywords(r, "aAb\u00e9\u20ac ");
+            String haystack = random(r, "aAbB\u00e9\u20ac ", 200);
+            Assert.assertEquals(charMatches(new LongestMatchMap<String>(keywords, keywords, caseSensitive), haystack),
+                    byteMatches(new ByteLongestMatchMap<String>(keywords, keywords, caseSensitive), haystack.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    @Test
+    public void testPatterns() {
+        Random r = new Random(3);
+        for (int i = 0; i < 100; i++) {
+            List<byte[]> patterns = new ArrayList<byte[]>();
+            for (int j = 0; j < 10; j++) {
+                byte[] pattern = new byte[1 + r.nextInt(3)];
+                for (int k = 0; k < pattern.length; k++) {
+                    pattern[k] = (byte) (r.nextBoolean() ? 0 : 255 - r.nextInt(2));
+                }
+                patterns.add(pattern);
+            }
+            byte[] haystack = new byte[100];
+            for (int k = 0; k < haystack.length; k++) {
+                haystack[k] = (byte) (r.nextBoolean() ? 0 : 255 - r.nextInt(2));
+            }
+            final int[] count = new int[1];
+            new ByteAhoCorasickSet(patterns).match(haystack, new ByteSetMatchListener() {
+
+                public boolean match(int startPosition, int endPosition) {
+                    count[0]++;
+                    return true;
+                }
+            });
+            // Every occurrence of every distinct pattern.
+            int expected = 0;
+            String text = new String(haystack, StandardCharsets.ISO_8859_1);
+            for (String pattern : new HashSet<String>(ByteKeywords.patterns(patterns))) {
+                for (int k = text.indexOf(pattern); k != -1; k = text.indexOf(pattern, k + 1)) {
+                    expected++;
+                }
+            }
+            Assert.assertEquals(expected, count[0]);
+        }
+    }
+
+    @Test
+    public void testWholeWord() {
+        Random r = new Random(4);
+        for (int i = 0; i < 200; i++) {
+            boolean caseSensitive = r.nextBoolean();
+            List<String> keywords = randomKeywords(r, "aAb\u00e9");
+            String haystack = random(r, "aAbB\u00e9 -", 200);
+            Assert.assertEquals(charMatches(new WholeWordMatchMap<String>(keywords, keywords, caseSensitive), haystack),
+                    byteMatches(new ByteWholeWordMatchMap<String>(keywords, keywords, caseSensitive), haystack.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    @Test
+    public void testWholeWordKeywords() {
+        // The message has the keyword as given, not its UTF-8 bytes.
+        try {
+            new ByteWholeWordMatchMap<String>(Arrays.asList("caf\u00e9 bar"), Arrays.asList("x"), true);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("caf\u00e9 bar contains non-word characters.", e.getMessage());
+        }
+        try {
+            new ByteWholeWordLongestMatchMap<String>(Arrays.asList("\u20ac bar"), Arrays.asList("x"), true);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("\u20ac bar contains non-word characters.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testWholeWordLongest() {
+        Random r = new Random(6);
+        for (int i = 0; i < 200; i++) {
+            boolean caseSensitive = r.nextBoolean();
+            List<String> keywords = randomKeywords(r, "aAb\u00e9");
+            String haystack = random(r, "aAbB\u00e9 -", 200);
+            Assert.assertEquals(charMatches(new WholeWordLongestMatchMap<String>(keywords, keywords, caseSensitive), haystack),
+                    byteMatches(new ByteWholeWordLongestMatchMap<String>(keywords, keywords, caseSensitive), haystack.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+}
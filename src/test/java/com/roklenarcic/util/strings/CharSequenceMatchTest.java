@@ -0,0 +1,283 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CharSequenceMatchTest {
+
+    // Matches of the haystack between from and to in a bigger array, with positions moved to the start of the range.
+    private static List<String> arrayMatches(StringMap<String> map, char[] haystack, final int from, int to) {
+        final List<String> matches = new ArrayList<String>();
+        map.matchChars(haystack, from, to, new CharSequenceMapMatchListener<String>() {
+
+            public boolean match(CharSequence haystack, int startPosition, int endPosition, String value) {
+                matches.add((startPosition - from) + "-" + (endPosition - from) + ":" + value);
+                return true;
+            }
+        });
+        return matches;
+    }
+
+    private static List<String> arrayMatches(StringSet set, char[] haystack, final int from, int to) {
+        final List<String> matches = new ArrayList<String>();
+        set.matchChars(haystack, from, to, new CharSequenceSetMatchListener() {
+
+            public boolean match(CharSequence haystack, int startPosition, int endPosition) {
+                matches.add((startPosition - from) + "-" + (endPosition - from) + ":" + haystack.subSequence(startPosition, endPosition));
+                return true;
+            }
+        });
+        return matches;
+    }
+
+    private static List<String> matches(StringMap<String> map, CharSequence haystack) {
+        final List<String> matches = new ArrayList<String>();
+        map.matchSequence(haystack, new CharSequenceMapMatchListener<String>() {
+
+            public boolean match(CharSequence haystack, int startPosition, int endPosition, String value) {
+                matches.add(startPosition + "-" + endPosition + ":" + value);
+                return true;
+            }
+        });
+        return matches;
+    }
+
+    private static List<String> matches(StringMap<String> map, String haystack) {
+        final List<String> matches = new ArrayList<String>();
+        map.match(haystack, new MapMatchListener<String>() {
+
+            public boolean match(String haystack, int startPosition, int endPosition, String value) {
+                matches.add(startPosition + "-" + endPosition + ":" + value);
+                return true;
+            }
+        });
+        return matches;
+    }
+
+    private static List<String> matches(StringSet set, CharSequence haystack) {
+        final List<String> matches = new ArrayList<String>();
+        set.matchSequence(haystack, new CharSequenceSetMatchListener() {
+
+            public boolean match(CharSequence haystack, int startPosition, int endPosition) {
+                matches.add(startPosition + "-" + endPosition + ":" + haystack.subSequence(startPosition, endPosition));
+                return true;
+            }
+        });
+        return matches;
+    }
+
+    private static List<String> matches(StringSet set, String haystack) {
+        final List<String> matches = new ArrayList<String>();
+        set.match(haystack, new SetMatchListener() {
+
+            public boolean match(String haystack, int startPosition, int endPosition) {
+                matches.add(startPosition + "-" + endPosition + ":" + haystack.substring(startPosition, endPosition));
+                return true;
+            }
+        });
+        return matches;
+    }
+
+    // Set that only implements String matching, so it gets the default char[] and CharSequence methods.
+    private static StringSet stringOnly(final StringSet set) {
+        return new StringSet() {
+
+            public void match(String haystack, SetMatchListener listener) {
+                set.match(haystack, listener);
+            }
+        };
+    }
+
+    private static StringMap<String> stringOnly(final StringMap<String> map) {
+        return new StringMap<String>() {
+
+            public void match(Readable haystack, ReadableMatchListener<String> listener) throws IOException {
+                map.match(haystack, listener);
+            }
+
+            public void match(String haystack, MapMatchListener<String> listener) {
+                map.match(haystack, listener);
+            }
+        };
+    }
+
+    private static String random(Random r, String alphabet, int length) {
+        char[] c = new char[length];
+        for (int i = 0; i < c.length; i++) {
+            c[i] = alphabet.charAt(r.nextInt(alphabet.length()));
+        }
+        return new String(c);
+    }
+
+    private static List<String> randomKeywords(Random r, String alphabet) {
+        List<String> keywords = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            keywords.add(random(r, alphabet, 1 + r.nextInt(5)));
+        }
+        return keywords;
+    }
+
+    // The haystack in the middle of an array with word characters around it.
+    private static char[] padded(String haystack, int from) {
+        char[] array = new char[from + haystack.length() + 2];
+        Arrays.fill(array, 'a');
+        haystack.getChars(0, haystack.length(), array, from);
+        return array;
+    }
+
+    @Test
+    public void testMaps() {
+        Random r = new Random(1);
+        for (int i = 0; i < 300; i++) {
+            boolean caseSensitive = r.nextBoolean();
+            // Whole word keywords can't have non-word characters.
+            List<String> keywords = randomKeywords(r, i % 2 == 0 ? "aAb\u00e9" : "aAb\u00e9 ");
+            String haystack = random(r, "aAbB\u00e9\u00c9 -", 200);
+            List<StringMap<String>> maps = new ArrayList<StringMap<String>>();
+            maps.add(new AhoCorasickMap<String>(keywords, keywords, caseSensitive));
+            maps.add(new DfaAhoCorasickMap<String>(keywords, keywords, caseSensitive));
+            maps.add(new DoubleArrayAhoCorasickMap<String>(keywords, keywords, caseSensitive));
+            maps.add(new LongestMatchMap<String>(keywords, keywords, caseSensitive));
+            maps.add(new OffHeapAhoCorasickMap<String>(keywords, keywords, caseSensitive));
+            maps.add(new OffHeapLongestMatchMap<String>(keywords, keywords, caseSensitive));
+            maps.add(new OffHeapWholeWordLongestMatchMap<String>(keywords, keywords, caseSensitive));
+            maps.add(new ShortestMatchMap<String>(keywords, keywords, caseSensitive));
+            maps.add(new WholeWordLongestMatchMap<String>(keywords, keywords, caseSensitive));
+            if (i % 2 == 0) {
+                maps.add(new OffHeapWholeWordMatchMap<String>(keywords, keywords, caseSensitive));
+                maps.add(new WholeWordMatchMap<String>(keywords, keywords, caseSensitive));
+            }
+            maps.add(stringOnly(maps.get(0)));
+            int from = r.nextInt(4);
+            for (StringMap<String> map : maps) {
+                List<String> expected = matches(map, haystack);
+                String name = map.getClass().getSimpleName();
+                Assert.assertEquals(name, expected, matches(map, new StringBuilder(haystack)));
+                Assert.assertEquals(name, expected, matches(map, CharBuffer.wrap(haystack)));
+                Assert.assertEquals(name, expected, arrayMatches(map, padded(haystack, from), from, from + haystack.length()));
+            }
+        }
+    }
+
+    @Test
+    public void testPrimitiveMaps() {
+        Random r = new Random(3);
+        for (int i = 0; i < 100; i++) {
+            boolean caseSensitive = r.nextBoolean();
+            List<String> keywords = randomKeywords(r, "aAb\u00e9 ");
+            int[] ids = new int[keywords.size()];
+            long[] longIds = new long[keywords.size()];
+            for (int j = 0; j < ids.length; j++) {
+                ids[j] = j;
+                longIds[j] = j + (1L << 40);
+            }
+            String haystack = random(r, "aAbB\u00e9\u00c9 -", 200);
+            int from = r.nextInt(4);
+            char[] array = padded(haystack, from);
+            for (StringIntMap map : new StringIntMap[] { new AhoCorasickIntMap(keywords, ids, caseSensitive),
+                    new LongestMatchIntMap(keywords, ids, caseSensitive) }) {
+                final List<String> expected = new ArrayList<String>();
+                map.match(haystack, new IntMapMatchListener() {
+
+                    public boolean match(String haystack, int startPosition, int endPosition, int value) {
+                        expected.add(startPosition + "-" + endPosition + ":" + value);
+                        return true;
+                    }
+                });
+                final List<String> sequenceMatches = new ArrayList<String>();
+                map.matchSequence(new StringBuilder(haystack), new CharSequenceIntMapMatchListener() {
+
+                    public boolean match(CharSequence haystack, int startPosition, int endPosition, int value) {
+                        sequenceMatches.add(startPosition + "-" + endPosition + ":" + value);
+                        return true;
+                    }
+                });
+                Assert.assertEquals(expected, sequenceMatches);
+                final List<String> arrayMatches = new ArrayList<String>();
+                final int offset = from;
+                map.matchChars(array, from, from + haystack.length(), new CharSequenceIntMapMatchListener() {
+
+                    public boolean match(CharSequence haystack, int startPosition, int endPosition, int value) {
+                        arrayMatches.add((startPosition - offset) + "-" + (endPosition - offset) + ":" + value);
+                        return true;
+                    }
+                });
+                Assert.assertEquals(expected, arrayMatches);
+            }
+            for (StringLongMap map : new StringLongMap[] { new AhoCorasickLongMap(keywords, longIds, caseSensitive),
+                    new LongestMatchLongMap(keywords, longIds, caseSensitive) }) {
+                final List<String> expected = new ArrayList<String>();
+                map.match(haystack, new LongMapMatchListener() {
+
+                    public boolean match(String haystack, int startPosition, int endPosition, long value) {
+                        expected.add(startPosition + "-" + endPosition + ":" + value);
+                        return true;
+                    }
+                });
+                final List<String> arrayMatches = new ArrayList<String>();
+                final int offset = from;
+                map.matchChars(array, from, from + haystack.length(), new CharSequenceLongMapMatchListener() {
+
+                    public boolean match(CharSequence haystack, int startPosition, int endPosition, long value) {
+                        arrayMatches.add((startPosition - offset) + "-" + (endPosition - offset) + ":" + value);
+                        return true;
+                    }
+                });
+                Assert.assertEquals(expected, arrayMatches);
+            }
+        }
+    }
+
+    @Test
+    public void testSets() {
+        Random r = new Random(2);
+        for (int i = 0; i < 300; i++) {
+            boolean caseSensitive = r.nextBoolean();
+            List<String> keywords = randomKeywords(r, i % 2 == 0 ? "aAb\u00e9" : "aAb\u00e9 \t");
+            String haystack = random(r, "aAbB\u00e9\u00c9 -\t", 200);
+            List<StringSet> sets = new ArrayList<StringSet>();
+            sets.add(new AhoCorasickSet(keywords, caseSensitive, false));
+            sets.add(new AhoCorasickSet(keywords, caseSensitive, true));
+            sets.add(new DfaAhoCorasickSet(keywords, caseSensitive, false));
+            sets.add(new DfaAhoCorasickSet(keywords, caseSensitive, true));
+            sets.add(new DoubleArrayAhoCorasickSet(keywords, caseSensitive, false));
+            sets.add(new DoubleArrayAhoCorasickSet(keywords, caseSensitive, true));
+            sets.add(new LongestMatchSet(keywords, caseSensitive));
+            sets.add(new ShortestMatchSet(keywords, caseSensitive));
+            sets.add(new WholeWordLongestMatchSet(keywords, caseSensitive, false));
+            sets.add(new WholeWordLongestMatchSet(keywords, caseSensitive, true));
+            if (i % 2 == 0) {
+                sets.add(new WholeWordMatchSet(keywords, caseSensitive));
+            }
+            sets.add(stringOnly(sets.get(0)));
+            int from = r.nextInt(4);
+            for (StringSet set : sets) {
+                List<String> expected = matches(set, haystack);
+                String name = set.getClass().getSimpleName();
+                Assert.assertEquals(name, expected, matches(set, new StringBuilder(haystack)));
+                Assert.assertEquals(name, expected, arrayMatches(set, padded(haystack, from), from, from + haystack.length()));
+            }
+        }
+    }
+
+    @Test
+    public void testStop() {
+        final List<String> matches = new ArrayList<String>();
+        new WholeWordMatchSet(Arrays.asList("ab"), true).matchChars("xab ab ab ab".toCharArray(), 1, 12, new CharSequenceSetMatchListener() {
+
+            public boolean match(CharSequence haystack, int startPosition, int endPosition) {
+                matches.add(startPosition + "-" + endPosition);
+                return matches.size() < 2;
+            }
+        });
+        Assert.assertEquals(Arrays.asList("1-3", "4-6"), matches);
+    }
+
+}
@@ -0,0 +1,47 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.util.List;
+
+public class DfaAhoCorasickTest extends SetTest {
+
+    public static void main(final String[] args) throws IOException {
+        System.in.read();
+        new DfaAhoCorasickTest(true, 1000000).testFullNode();
+        new DfaAhoCorasickTest(true, 1000000).testLiteral();
+        new DfaAhoCorasickTest(true, 1000000).testOverlap();
+        new DfaAhoCorasickTest(true, 1000000).testLongKeywords();
+        new DfaAhoCorasickTest(true, 1000000).testFullRandom();
+        new DfaAhoCorasickTest(true, 1000000).testFailureTransitions();
+        new DfaAhoCorasickTest(true, 1000000).testDictionary();
+        new DfaAhoCorasickTest(true, 1000000).testShortestMatch();
+    }
+
+    public DfaAhoCorasickTest() {
+        super();
+    }
+
+    private DfaAhoCorasickTest(boolean printTimesOnly, int testLoopSize) {
+        super(printTimesOnly, testLoopSize);
+    }
+
+    @Override
+    protected int getCorrectCount(List<String> keywords, String haystack, StringSet set) {
+        int normalCount = 0;
+        for (final String needle : keywords) {
+            for (int i = 0; i + needle.length() <= haystack.length(); i++) {
+                if (haystack.substring(i, i + needle.length()).equals(needle)) {
+                    normalCount++;
+                }
+            }
+        }
+        return normalCount;
+    }
+
+    @Override
+    protected StringSet instantiateSet(List<String> keywords, boolean caseSensitive) {
+        // Small table cap, so deeper states take the slow path.
+        return new DfaAhoCorasickSet(keywords, caseSensitive, false, 1 << 16);
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.util.List;
+
+public class DoubleArrayAhoCorasickMapTest extends MapTest {
+
+    public static void main(final String[] args) throws IOException {
+        System.in.read();
+        new DoubleArrayAhoCorasickMapTest(true, 1000000).testLiteral();
+        new DoubleArrayAhoCorasickMapTest(true, 1000000).testOverlap();
+        new DoubleArrayAhoCorasickMapTest(true, 1000000).testLongKeywords();
+        new DoubleArrayAhoCorasickMapTest(true, 1000000).testFullRandom();
+        new DoubleArrayAhoCorasickMapTest(true, 1000000).testFailureTransitions();
+        new DoubleArrayAhoCorasickMapTest(true, 1000000).testDictionary();
+        new DoubleArrayAhoCorasickMapTest(true, 1000000).testShortestMatch();
+    }
+
+    public DoubleArrayAhoCorasickMapTest() {
+        super();
+    }
+
+    private DoubleArrayAhoCorasickMapTest(boolean printTimesOnly, int testLoopSize) {
+        super(printTimesOnly, testLoopSize);
+    }
+
+    @Override
+    protected int getCorrectCount(List<String> keywords, String haystack, StringMap<String> map) {
+        int normalCount = 0;
+        for (final String needle : keywords) {
+            for (int i = 0; i + needle.length() <= haystack.length(); i++) {
+                if (haystack.substring(i, i + needle.length()).equals(needle)) {
+                    normalCount++;
+                }
+            }
+        }
+        return normalCount;
+    }
+
+    @Override
+    protected StringMap<String> instantiateMap(List<String> keywords, boolean caseSensitive) {
+        return new DoubleArrayAhoCorasickMap<String>(keywords, keywords, caseSensitive);
+    }
+
+}
@@ -0,0 +1,46 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.util.List;
+
+public class DoubleArrayAhoCorasickTest extends SetTest {
+
+    public static void main(final String[] args) throws IOException {
+        System.in.read();
+        new DoubleArrayAhoCorasickTest(true, 1000000).testFullNode();
+        new DoubleArrayAhoCorasickTest(true, 1000000).testLiteral();
+        new DoubleArrayAhoCorasickTest(true, 1000000).testOverlap();
+        new DoubleArrayAhoCorasickTest(true, 1000000).testLongKeywords();
+        new DoubleArrayAhoCorasickTest(true, 1000000).testFullRandom();
+        new DoubleArrayAhoCorasickTest(true, 1000000).testFailureTransitions();
+        new DoubleArrayAhoCorasickTest(true, 1000000).testDictionary();
+        new DoubleArrayAhoCorasickTest(true, 1000000).testShortestMatch();
+    }
+
+    public DoubleArrayAhoCorasickTest() {
+        super();
+    }
+
+    private DoubleArrayAhoCorasickTest(boolean printTimesOnly, int testLoopSize) {
+        super(printTimesOnly, testLoopSize);
+    }
+
+    @Override
+    protected int getCorrectCount(List<String> keywords, String haystack, StringSet set) {
+        int normalCount = 0;
+        for (final String needle : keywords) {
+            for (int i = 0; i + needle.length() <= haystack.length(); i++) {
+                if (haystack.substring(i, i + needle.length()).equals(needle)) {
+                    normalCount++;
+                }
+            }
+        }
+        return normalCount;
+    }
+
+    @Override
+    protected StringSet instantiateSet(List<String> keywords, boolean caseSensitive) {
+        return new DoubleArrayAhoCorasickSet(keywords, caseSensitive, false);
+    }
+
+}
@@ -144,7 +144,7 @@ public abstract class MapTest {
         return Arrays.asList(keywords);
     }
 
-    private void test(final String haystack, final String... needles) throws IOException {
+    protected void test(final String haystack, final String... needles) throws IOException {
         final List<String> keywords = prepareKeywords(needles);
         long constructionStart = System.nanoTime();
         final StringMap<String> map = instantiateMap(keywords, true);
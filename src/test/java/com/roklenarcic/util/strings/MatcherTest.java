@@ -0,0 +1,275 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MatcherTest {
+
+    // Feeds the haystack in random chunks, some of them empty, at random offsets of bigger arrays.
+    private static void feed(Random r, Matcher matcher, String haystack) {
+        int idx = 0;
+        while (idx < haystack.length()) {
+            int len = Math.min(haystack.length() - idx, r.nextInt(8));
+            int off = r.nextInt(3);
+            char[] chunk = new char[off + len + r.nextInt(3)];
+            haystack.getChars(idx, idx + len, chunk, off);
+            matcher.feed(chunk, off, len);
+            idx += len;
+        }
+        matcher.finish();
+    }
+
+    // Maps in this test have String values.
+    @SuppressWarnings("unchecked")
+    private static Matcher matcher(Object engine, final List<String> matches) {
+        StreamMapMatchListener<String> mapListener = new StreamMapMatchListener<String>() {
+
+            public boolean match(long startPosition, long endPosition, String value) {
+                matches.add(startPosition + "-" + endPosition + ":" + value);
+                return true;
+            }
+        };
+        StreamSetMatchListener setListener = new StreamSetMatchListener() {
+
+            public boolean match(long startPosition, long endPosition) {
+                matches.add(startPosition + "-" + endPosition);
+                return true;
+            }
+        };
+        StreamIntMapMatchListener intListener = new StreamIntMapMatchListener() {
+
+            public boolean match(long startPosition, long endPosition, int value) {
+                matches.add(startPosition + "-" + endPosition + ":" + value);
+                return true;
+            }
+        };
+        StreamLongMapMatchListener longListener = new StreamLongMapMatchListener() {
+
+            public boolean match(long startPosition, long endPosition, long value) {
+                matches.add(startPosition + "-" + endPosition + ":" + value);
+                return true;
+            }
+        };
+        if (engine instanceof AhoCorasickIntMap) {
+            return ((AhoCorasickIntMap) engine).matcher(intListener);
+        } else if (engine instanceof AhoCorasickLongMap) {
+            return ((AhoCorasickLongMap) engine).matcher(longListener);
+        } else if (engine instanceof LongestMatchIntMap) {
+            return ((LongestMatchIntMap) engine).matcher(intListener);
+        } else if (engine instanceof LongestMatchLongMap) {
+            return ((LongestMatchLongMap) engine).matcher(longListener);
+        } else if (engine instanceof DfaAhoCorasickMap) {
+            return ((DfaAhoCorasickMap<String>) engine).matcher(mapListener);
+        } else if (engine instanceof DfaAhoCorasickSet) {
+            return ((DfaAhoCorasickSet) engine).matcher(setListener);
+        } else if (engine instanceof DoubleArrayAhoCorasickMap) {
+            return ((DoubleArrayAhoCorasickMap<String>) engine).matcher(mapListener);
+        } else if (engine instanceof DoubleArrayAhoCorasickSet) {
+            return ((DoubleArrayAhoCorasickSet) engine).matcher(setListener);
+        } else if (engine instanceof OffHeapAhoCorasickMap) {
+            return ((OffHeapAhoCorasickMap<String>) engine).matcher(mapListener);
+        } else if (engine instanceof OffHeapLongestMatchMap) {
+            return ((OffHeapLongestMatchMap<String>) engine).matcher(mapListener);
+        } else if (engine instanceof OffHeapWholeWordLongestMatchMap) {
+            return ((OffHeapWholeWordLongestMatchMap<String>) engine).matcher(mapListener);
+        } else if (engine instanceof OffHeapWholeWordMatchMap) {
+            return ((OffHeapWholeWordMatchMap<String>) engine).matcher(mapListener);
+        } else if (engine instanceof AhoCorasickMap) {
+            return ((AhoCorasickMap<String>) engine).matcher(mapListener);
+        } else if (engine instanceof AhoCorasickSet) {
+            return ((AhoCorasickSet) engine).matcher(setListener);
+        } else if (engine instanceof LongestMatchMap) {
+            return ((LongestMatchMap<String>) engine).matcher(mapListener);
+        } else if (engine instanceof LongestMatchSet) {
+            return ((LongestMatchSet) engine).matcher(setListener);
+        } else if (engine instanceof ShortestMatchMap) {
+            return ((ShortestMatchMap<String>) engine).matcher(mapListener);
+        } else if (engine instanceof ShortestMatchSet) {
+            return ((ShortestMatchSet) engine).matcher(setListener);
+        } else if (engine instanceof WholeWordLongestMatchMap) {
+            return ((WholeWordLongestMatchMap<String>) engine).matcher(mapListener);
+        } else if (engine instanceof WholeWordLongestMatchSet) {
+            return ((WholeWordLongestMatchSet) engine).matcher(setListener);
+        } else if (engine instanceof WholeWordMatchMap) {
+            return ((WholeWordMatchMap<String>) engine).matcher(mapListener);
+        } else {
+            return ((WholeWordMatchSet) engine).matcher(setListener);
+        }
+    }
+
+    // Maps in this test have String values.
+    @SuppressWarnings("unchecked")
+    private static List<String> matches(Object engine, String haystack) {
+        final List<String> matches = new ArrayList<String>();
+        if (engine instanceof StringIntMap) {
+            ((StringIntMap) engine).match(haystack, new IntMapMatchListener() {
+
+                public boolean match(String haystack, int startPosition, int endPosition, int value) {
+                    matches.add(startPosition + "-" + endPosition + ":" + value);
+                    return true;
+                }
+            });
+        } else if (engine instanceof StringLongMap) {
+            ((StringLongMap) engine).match(haystack, new LongMapMatchListener() {
+
+                public boolean match(String haystack, int startPosition, int endPosition, long value) {
+                    matches.add(startPosition + "-" + endPosition + ":" + value);
+                    return true;
+                }
+            });
+        } else if (engine instanceof StringMap) {
+            ((StringMap<String>) engine).match(haystack, new MapMatchListener<String>() {
+
+                public boolean match(String haystack, int startPosition, int endPosition, String value) {
+                    matches.add(startPosition + "-" + endPosition + ":" + value);
+                    return true;
+                }
+            });
+        } else {
+            ((StringSet) engine).match(haystack, new SetMatchListener() {
+
+                public boolean match(String haystack, int startPosition, int endPosition) {
+                    matches.add(startPosition + "-" + endPosition);
+                    return true;
+                }
+            });
+        }
+        return matches;
+    }
+
+    private static String random(Random r, String alphabet, int length) {
+        char[] c = new char[length];
+        for (int i = 0; i < c.length; i++) {
+            c[i] = alphabet.charAt(r.nextInt(alphabet.length()));
+        }
+        return new String(c);
+    }
+
+    private static List<String> randomKeywords(Random r, String alphabet) {
+        List<String> keywords = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            keywords.add(random(r, alphabet, 1 + r.nextInt(5)));
+        }
+        return keywords;
+    }
+
+    @Test
+    public void testChunks() {
+        Random r = new Random(1);
+        for (int i = 0; i < 500; i++) {
+            boolean caseSensitive = r.nextBoolean();
+            // Whole word keywords can't have non-word characters.
+            List<String> keywords = randomKeywords(r, i % 2 == 0 ? "aAb" : "aAb \t");
+            String haystack = random(r, "aAbB -\t", 200);
+            int[] ints = new int[keywords.size()];
+            long[] longs = new long[keywords.size()];
+            for (int j = 0; j < ints.length; j++) {
+                ints[j] = j;
+                longs[j] = j + (1L << 40);
+            }
+            List<Object> engines = new ArrayList<Object>();
+            engines.add(new AhoCorasickSet(keywords, caseSensitive, false));
+            engines.add(new AhoCorasickSet(keywords, caseSensitive, true));
+            engines.add(new AhoCorasickMap<String>(keywords, keywords, caseSensitive));
+            engines.add(new LongestMatchSet(keywords, caseSensitive));
+            engines.add(new LongestMatchMap<String>(keywords, keywords, caseSensitive));
+            engines.add(new ShortestMatchSet(keywords, caseSensitive));
+            engines.add(new ShortestMatchMap<String>(keywords, keywords, caseSensitive));
+            engines.add(new WholeWordLongestMatchSet(keywords, caseSensitive, false));
+            engines.add(new WholeWordLongestMatchSet(keywords, caseSensitive, true));
+            engines.add(new WholeWordLongestMatchMap<String>(keywords, keywords, caseSensitive));
+            engines.add(new AhoCorasickIntMap(keywords, ints, caseSensitive));
+            engines.add(new AhoCorasickLongMap(keywords, longs, caseSensitive));
+            engines.add(new LongestMatchIntMap(keywords, ints, caseSensitive));
+            engines.add(new LongestMatchLongMap(keywords, longs, caseSensitive));
+            engines.add(new DfaAhoCorasickSet(keywords, caseSensitive, false));
+            engines.add(new DfaAhoCorasickSet(keywords, caseSensitive, true));
+            engines.add(new DfaAhoCorasickMap<String>(keywords, keywords, caseSensitive));
+            engines.add(new DoubleArrayAhoCorasickSet(keywords, caseSensitive, false));
+            engines.add(new DoubleArrayAhoCorasickSet(keywords, caseSensitive, true));
+            engines.add(new DoubleArrayAhoCorasickMap<String>(keywords, keywords, caseSensitive));
+            engines.add(new OffHeapAhoCorasickMap<String>(keywords, keywords, caseSensitive));
+            engines.add(new OffHeapLongestMatchMap<String>(keywords, keywords, caseSensitive));
+            engines.add(new OffHeapWholeWordLongestMatchMap<String>(keywords, keywords, caseSensitive));
+            if (i % 2 == 0) {
+                engines.add(new WholeWordMatchSet(keywords, caseSensitive));
+                engines.add(new WholeWordMatchMap<String>(keywords, keywords, caseSensitive));
+                engines.add(new OffHeapWholeWordMatchMap<String>(keywords, keywords, caseSensitive));
+            }
+            for (Object engine : engines) {
+                List<String> expected = matches(engine, haystack);
+                List<String> actual = new ArrayList<String>();
+                Matcher matcher = matcher(engine, actual);
+                feed(r, matcher, haystack);
+                Assert.assertEquals(engine.getClass().getSimpleName(), expected, actual);
+                // The matcher starts over after finish.
+                actual.clear();
+                feed(r, matcher, haystack);
+                Assert.assertEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testMatchFile() throws IOException {
+        Random r = new Random(2);
+        Path file = Files.createTempFile("haystack", ".txt");
+        try {
+            for (int i = 0; i < 100; i++) {
+                // Characters of one, two and three bytes in UTF-8.
+                List<String> keywords = randomKeywords(r, "a\u00e9\u4e2d");
+                String haystack = random(r, "a\u00e9\u4e2d -", 300);
+                Files.write(file, haystack.getBytes(StandardCharsets.UTF_8));
+                List<Object> engines = new ArrayList<Object>();
+                engines.add(new AhoCorasickMap<String>(keywords, keywords, true));
+                engines.add(new LongestMatchSet(keywords, true));
+                engines.add(new DfaAhoCorasickSet(keywords, true, false));
+                engines.add(new OffHeapWholeWordLongestMatchMap<String>(keywords, keywords, true));
+                for (Object engine : engines) {
+                    List<String> actual = new ArrayList<String>();
+                    // Small windows cut characters in half.
+                    MappedText.feed(file, StandardCharsets.UTF_8, matcher(engine, actual), 3 + r.nextInt(20));
+                    Assert.assertEquals(engine.getClass().getSimpleName(), matches(engine, haystack), actual);
+                }
+                final List<String> actual = new ArrayList<String>();
+                new AhoCorasickMap<String>(keywords, keywords, true).matchFile(file, StandardCharsets.UTF_8, new StreamMapMatchListener<String>() {
+
+                    public boolean match(long startPosition, long endPosition, String value) {
+                        actual.add(startPosition + "-" + endPosition + ":" + value);
+                        return true;
+                    }
+                });
+                Assert.assertEquals(matches(engines.get(0), haystack), actual);
+            }
+        } finally {
+            // Mapped files can't be deleted on some platforms.
+            file.toFile().deleteOnExit();
+        }
+    }
+
+    @Test
+    public void testStop() {
+        final List<String> matches = new ArrayList<String>();
+        Matcher matcher = new AhoCorasickSet(Arrays.asList("ab"), true, false).matcher(new StreamSetMatchListener() {
+
+            public boolean match(long startPosition, long endPosition) {
+                matches.add(startPosition + "-" + endPosition);
+                return matches.size() < 2;
+            }
+        });
+        Assert.assertTrue(matcher.feed("ab a".toCharArray(), 0, 4));
+        Assert.assertFalse(matcher.feed("b ab ab".toCharArray(), 0, 7));
+        Assert.assertFalse(matcher.feed("ab".toCharArray(), 0, 2));
+        Assert.assertEquals(Arrays.asList("0-2", "3-5"), matches);
+    }
+
+}
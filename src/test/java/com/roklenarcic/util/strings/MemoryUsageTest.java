@@ -0,0 +1,130 @@
+package com.roklenarcic.util.strings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.roklenarcic.util.strings.threshold.DawgThreshold;
+import com.roklenarcic.util.strings.threshold.RangeNodeThreshold;
+
+// Memory accounting of sets and maps. Main method prints the memory footprint of every engine.
+public class MemoryUsageTest {
+
+    public static void main(String[] args) {
+        List<String> keywords = keywords(args.length > 0 ? Integer.parseInt(args[0]) : 235886);
+        System.out.println(keywords.size() + " keywords");
+        for (MemoryAccountable engine : engines(keywords)) {
+            MemoryUsage usage = engine.memoryUsage();
+            System.out.println(String.format("%-32s %6.1f MB  %s", engine.getClass().getSimpleName(), usage.ramBytesUsed() / 1048576.0, usage));
+        }
+    }
+
+    private static List<MemoryAccountable> engines(List<String> keywords) {
+        int[] ids = new int[keywords.size()];
+        long[] longIds = new long[keywords.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+            longIds[i] = i;
+        }
+        return Arrays.<MemoryAccountable> asList(new AhoCorasickSet(keywords, true, false), new AhoCorasickMap<String>(keywords, keywords, true),
+                new AhoCorasickIntMap(keywords, ids, true), new AhoCorasickLongMap(keywords, longIds, true), new LongestMatchSet(keywords, true),
+                new LongestMatchMap<String>(keywords, keywords, true), new LongestMatchIntMap(keywords, ids, true),
+                new LongestMatchLongMap(keywords, longIds, true), new ShortestMatchSet(keywords, true), new ShortestMatchMap<String>(keywords, keywords, true),
+                new WholeWordMatchSet(keywords, true), new WholeWordMatchMap<String>(keywords, keywords, true), new WholeWordLongestMatchSet(keywords, true, false),
+                new WholeWordLongestMatchMap<String>(keywords, keywords, true), new DoubleArrayAhoCorasickSet(keywords, true, false),
+                new DoubleArrayAhoCorasickMap<String>(keywords, keywords, true), new DfaAhoCorasickSet(keywords, true, false),
+                new DfaAhoCorasickMap<String>(keywords, keywords, true), new OffHeapAhoCorasickMap<String>(keywords, keywords, true),
+                new OffHeapLongestMatchMap<String>(keywords, keywords, true), new OffHeapWholeWordMatchMap<String>(keywords, keywords, true),
+                new OffHeapWholeWordLongestMatchMap<String>(keywords, keywords, true));
+    }
+
+    private static List<String> keywords(int count) {
+        Random r = new Random(1);
+        List<String> keywords = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            char[] c = new char[3 + r.nextInt(10)];
+            for (int j = 0; j < c.length; j++) {
+                c[j] = (char) ('a' + r.nextInt(26));
+            }
+            keywords.add(new String(c));
+        }
+        return keywords;
+    }
+
+    @Test
+    public void testAllEngines() {
+        List<MemoryAccountable> small = engines(keywords(1000));
+        List<MemoryAccountable> large = engines(keywords(10000));
+        for (int i = 0; i < small.size(); i++) {
+            MemoryUsage usage = small.get(i).memoryUsage();
+            long total = 0;
+            for (long bytes : usage.getParts().values()) {
+                Assert.assertTrue(bytes > 0);
+                total += bytes;
+            }
+            Assert.assertEquals(total, usage.ramBytesUsed());
+            Assert.assertTrue(usage.toString(), large.get(i).memoryUsage().ramBytesUsed() > usage.ramBytesUsed());
+        }
+    }
+
+    @Test
+    public void testBreakdown() {
+        List<String> keywords = keywords(1000);
+        MemoryUsage usage = new AhoCorasickMap<String>(keywords, keywords, true).memoryUsage();
+        Map<String, Long> parts = usage.getParts();
+        Assert.assertTrue(parts.containsKey("RangeNode"));
+        Assert.assertTrue(parts.containsKey("LeafNode"));
+        Assert.assertTrue(usage.getBytes(MemoryUsage.CHILD_ARRAYS) > 0);
+        Assert.assertTrue(usage.getBytes(MemoryUsage.VALUES) > 0);
+        // Class table has a char for every character.
+        Assert.assertTrue(usage.getBytes(MemoryUsage.ALPHABET) >= 131072);
+        Assert.assertEquals(0, usage.getBytes(MemoryUsage.OFF_HEAP));
+        usage = new OffHeapWholeWordMatchMap<String>(keywords, keywords, true).memoryUsage();
+        Assert.assertTrue(usage.getBytes(MemoryUsage.OFF_HEAP) > 0);
+        Assert.assertTrue(usage.getBytes(MemoryUsage.WORD_CHARACTERS) >= 65536);
+    }
+
+    @Test
+    public void testDawg() {
+        List<String> keywords = new ArrayList<String>();
+        for (String stem : keywords(2000)) {
+            for (String suffix : new String[] { "", "s", "ed", "ing" }) {
+                keywords.add(stem + suffix);
+            }
+        }
+        long trie = new WholeWordMatchSet(keywords, true, new RangeNodeThreshold()).memoryUsage().ramBytesUsed();
+        long dawg = new WholeWordMatchSet(keywords, true, new DawgThreshold()).memoryUsage().ramBytesUsed();
+        Assert.assertTrue(dawg < trie);
+    }
+
+    @Test
+    public void testEstimate() {
+        List<String> keywords = keywords(50000);
+        Function<List<String>, MemoryAccountable> builder = new Function<List<String>, MemoryAccountable>() {
+
+            public MemoryAccountable apply(List<String> sample) {
+                return new LongestMatchMap<String>(sample, sample, true, new RangeNodeThreshold());
+            }
+        };
+        long actual = builder.apply(keywords).memoryUsage().ramBytesUsed();
+        long estimate = MemoryUsage.estimate(keywords.subList(0, 5000), keywords.size(), builder).ramBytesUsed();
+        Assert.assertTrue(estimate + " vs " + actual, Math.abs(estimate - actual) < actual / 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEstimateEmptySample() {
+        MemoryUsage.estimate(new ArrayList<String>(), 1000, new Function<List<String>, MemoryAccountable>() {
+
+            public MemoryAccountable apply(List<String> sample) {
+                return new AhoCorasickSet(sample, true, false);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.roklenarcic.util.strings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.roklenarcic.util.strings.threshold.RangeNodeThreshold;
+import com.roklenarcic.util.strings.threshold.Thresholder;
+
+// Matching speed of the node engines over a large dictionary, which doesn't fit in the CPU caches.
+// Nodes are allocated in breadth first order when the trie is optimized, see HashmapNode.optimizeNode.
+// With hashmap nodes only every node goes through that copy, with the default nodes most nodes are
+// replaced by other node types anyway.
+public class NodeLayoutBenchmark {
+
+    private static final Thresholder HASHMAP_NODES_ONLY = new Thresholder() {
+
+        public boolean isOverThreshold(int nodeSize, int nodeLevel, int keyIntervalSize) {
+            return false;
+        }
+    };
+
+    public static void main(String[] args) {
+        Random r = new Random(1);
+        String alphabet = "abcdefghijklmnopqrstuvwxyz";
+        List<String> keywords = new ArrayList<String>();
+        for (int i = 0; i < 200000; i++) {
+            StringBuilder b = new StringBuilder();
+            for (int j = 3 + r.nextInt(8); j > 0; j--) {
+                b.append(alphabet.charAt(r.nextInt(alphabet.length())));
+            }
+            keywords.add(b.toString());
+        }
+        // Keywords and random letters, with spaces so whole word engines find words too.
+        StringBuilder b = new StringBuilder();
+        while (b.length() < 4000000) {
+            if (r.nextInt(4) == 0) {
+                b.append(keywords.get(r.nextInt(keywords.size())));
+            } else {
+                b.append(alphabet.charAt(r.nextInt(alphabet.length())));
+            }
+            if (r.nextInt(6) == 0) {
+                b.append(' ');
+            }
+        }
+        String haystack = b.toString();
+        final long[] count = new long[1];
+        SetMatchListener listener = new SetMatchListener() {
+
+            public boolean match(String haystack, int startPosition, int endPosition) {
+                count[0]++;
+                return true;
+            }
+        };
+        String[] names = new String[] { "hashmap", "default" };
+        Thresholder[] thresholders = new Thresholder[] { HASHMAP_NODES_ONLY, new RangeNodeThreshold() };
+        for (int i = 0; i < thresholders.length; i++) {
+            for (StringSet set : new StringSet[] { new AhoCorasickSet(keywords, true, false, thresholders[i]),
+                    new LongestMatchSet(keywords, true, thresholders[i]), new ShortestMatchSet(keywords, true, thresholders[i]),
+                    new WholeWordMatchSet(keywords, true, thresholders[i]), new WholeWordLongestMatchSet(keywords, true, false, thresholders[i]) }) {
+                long best = Long.MAX_VALUE;
+                for (int j = 0; j < 15; j++) {
+                    long start = System.nanoTime();
+                    set.match(haystack, listener);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                System.out.println(set.getClass().getSimpleName() + ", " + names[i] + " nodes: " + (double) best / haystack.length() + "ns per char");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,420 @@
+package com.roklenarcic.util.strings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.roklenarcic.util.strings.threshold.BitmapNodeThreshold;
+import com.roklenarcic.util.strings.threshold.ChainNodeThreshold;
+import com.roklenarcic.util.strings.threshold.DawgThreshold;
+import com.roklenarcic.util.strings.threshold.MemoryBudgetThreshold;
+import com.roklenarcic.util.strings.threshold.ProfileThreshold;
+import com.roklenarcic.util.strings.threshold.RangeNodeThreshold;
+import com.roklenarcic.util.strings.threshold.RootTableThreshold;
+import com.roklenarcic.util.strings.threshold.SparseNodeThreshold;
+import com.roklenarcic.util.strings.threshold.SparseNodeType;
+import com.roklenarcic.util.strings.threshold.Thresholder;
+
+// All node types must produce the same matches. Main method compares matching speed of node types.
+public class NodeTypeTest {
+
+    private static final Thresholder BITMAP_NODES_ONLY = new Thresholder() {
+
+        @Override
+        public boolean isOverBitmapThreshold(int nodeSize, int nodeLevel, int keyIntervalSize) {
+            return true;
+        }
+
+        public boolean isOverThreshold(int nodeSize, int nodeLevel, int keyIntervalSize) {
+            return false;
+        }
+    };
+
+    private static final Thresholder HASHMAP_NODES_ONLY = new Thresholder() {
+
+        public boolean isOverThreshold(int nodeSize, int nodeLevel, int keyIntervalSize) {
+            return false;
+        }
+    };
+
+    private static final Thresholder[] THRESHOLDERS = new Thresholder[] { HASHMAP_NODES_ONLY, new RangeNodeThreshold(), BITMAP_NODES_ONLY,
+            new BitmapNodeThreshold(), new ChainNodeThreshold(1), new RootTableThreshold(), new DawgThreshold(),
+            new MemoryBudgetThreshold(10000), sparseNodesOnly(SparseNodeType.MULTIPLICATIVE_HASH), sparseNodesOnly(SparseNodeType.ROBIN_HOOD),
+            sparseNodesOnly(SparseNodeType.SORTED),
+            new ChainNodeThreshold(1, new BitmapNodeThreshold(4, 32, new MemoryBudgetThreshold(10000, new SparseNodeThreshold(SparseNodeType.ROBIN_HOOD)))) };
+
+    public static void main(String[] args) {
+        // Dictionary shapes: random characters, latin words, CJK words, emoji sequences and code identifiers.
+        String[] shapes = new String[] { "random", "latin", "CJK", "emoji", "identifiers" };
+        String[][] units = new String[][] { null, units("abcdefghijklmnopqrstuvwxyz"), units('\u4e00', 3000), emoji(80),
+                units("abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789_") };
+        String[] names = new String[] { "hashmap", "range", "bitmap", "bitmap threshold", "chain", "root table", "dawg", "memory budget",
+                "multiplicative hash", "robin hood", "sorted", "combined" };
+        for (int shape = 0; shape < shapes.length; shape++) {
+            Random r = new Random(1);
+            List<String> keywords = units[shape] == null ? Arrays.asList(Generator.randomStrings(100000, 3, 10)) : keywords(units[shape], 100000, 2, 8);
+            StringBuilder b = new StringBuilder();
+            for (int i = 0; i < 20000; i++) {
+                b.append(keywords.get(r.nextInt(keywords.size())));
+                b.append(units[shape] == null ? Generator.randomStrings(1, 1, 5)[0] : keywords(units[shape], 1, 1, 3).get(0));
+            }
+            String haystack = b.toString();
+            for (int i = 0; i < THRESHOLDERS.length; i++) {
+                StringSet set = new AhoCorasickSet(keywords, true, false, THRESHOLDERS[i]);
+                final int[] count = new int[1];
+                SetMatchListener listener = new SetMatchListener() {
+
+                    public boolean match(String haystack, int startPosition, int endPosition) {
+                        count[0]++;
+                        return true;
+                    }
+                };
+                for (int j = 0; j < 20; j++) {
+                    set.match(haystack, listener);
+                }
+                long start = System.nanoTime();
+                for (int j = 0; j < 100; j++) {
+                    set.match(haystack, listener);
+                }
+                System.out.println(shapes[shape] + ", " + names[i] + " nodes: " + (System.nanoTime() - start) / 100 + "ns per match, " + count[0]
+                        + " matches");
+            }
+        }
+    }
+
+    @Test
+    public void testAhoCorasick() {
+        for (boolean caseSensitive : new boolean[] { true, false }) {
+            // Greek letters widen the key range over several bitmap words.
+            List<String> keywords = keywords("abcdefghijklmnopqrstuvwxyzABC\u03b1\u03b2\u03b3\u03b4\u03b5\u03b6\u03b7\u03b8\u03b9\u03ba\u03bb\u03bc"
+                    + "\u03bd\u03be\u03bf\u03c0\u03c1\u03c3\u03c4\u03c5\u03c6\u03c7\u03c8\u03c9", 1, 5);
+            List<String> results = new ArrayList<String>();
+            for (Thresholder t : THRESHOLDERS) {
+                StringBuilder b = new StringBuilder();
+                b.append(matches(new AhoCorasickSet(keywords, caseSensitive, false, t), keywords));
+                b.append(matches(new AhoCorasickMap<String>(keywords, keywords, caseSensitive, t), keywords));
+                b.append(matches(new AhoCorasickIntMap(keywords, ids(keywords), caseSensitive, t), keywords));
+                b.append(matches(new LongestMatchSet(keywords, caseSensitive, t), keywords));
+                b.append(matches(new LongestMatchMap<String>(keywords, keywords, caseSensitive, t), keywords));
+                b.append(matches(new ShortestMatchSet(keywords, caseSensitive, t), keywords));
+                b.append(matches(new ShortestMatchMap<String>(keywords, keywords, caseSensitive, t), keywords));
+                results.add(b.toString());
+            }
+            assertAllSame(results);
+        }
+    }
+
+    @Test
+    public void testChains() {
+        for (boolean caseSensitive : new boolean[] { true, false }) {
+            // Long keywords are mostly runs of single child nodes.
+            List<String> keywords = keywords("abcAB", 1, 30);
+            List<String> results = new ArrayList<String>();
+            for (Thresholder t : new Thresholder[] { new RangeNodeThreshold(), HASHMAP_NODES_ONLY, new ChainNodeThreshold(1), new ChainNodeThreshold() }) {
+                StringBuilder b = new StringBuilder();
+                b.append(matches(new AhoCorasickSet(keywords, caseSensitive, false, t), keywords));
+                b.append(matches(new AhoCorasickMap<String>(keywords, keywords, caseSensitive, t), keywords));
+                b.append(matches(new DoubleArrayAhoCorasickSet(keywords, caseSensitive, false, t), keywords));
+                b.append(matches(new ShortestMatchSet(keywords, caseSensitive, t), keywords));
+                b.append(matches(new WholeWordMatchSet(keywords, caseSensitive, t), keywords));
+                results.add(b.toString());
+            }
+            assertAllSame(results);
+        }
+    }
+
+    @Test
+    public void testWholeWord() {
+        for (boolean caseSensitive : new boolean[] { true, false }) {
+            List<String> words = keywords("abcdefghijklmnopqrstuvwxyzABC", 1, 4);
+            List<String> phrases = keywords("abcdefghijklmnopqABC  ", 1, 8);
+            List<String> results = new ArrayList<String>();
+            for (Thresholder t : THRESHOLDERS) {
+                StringBuilder b = new StringBuilder();
+                b.append(matches(new WholeWordMatchSet(words, caseSensitive, t), words));
+                b.append(matches(new WholeWordMatchMap<String>(words, words, caseSensitive, t), words));
+                b.append(matches(new OffHeapWholeWordMatchMap<String>(words, words, caseSensitive, t), words));
+                b.append(matches(new WholeWordLongestMatchSet(phrases, caseSensitive, false, t), phrases));
+                b.append(matches(new WholeWordLongestMatchMap<String>(phrases, phrases, caseSensitive, t), phrases));
+                results.add(b.toString());
+            }
+            assertAllSame(results);
+        }
+    }
+
+    @Test
+    public void testDawg() {
+        for (boolean caseSensitive : new boolean[] { true, false }) {
+            // Few distinct values, so subtrees with values can be merged too.
+            List<String> words = keywords("abcdeABC", 1, 8);
+            List<String> values = new ArrayList<String>();
+            for (String word : words) {
+                values.add(word.substring(word.length() - 1).toLowerCase());
+            }
+            List<String> results = new ArrayList<String>();
+            for (Thresholder t : new Thresholder[] { new RangeNodeThreshold(), new DawgThreshold(), new DawgThreshold(1000000),
+                    new ChainNodeThreshold(1, new DawgThreshold()) }) {
+                StringBuilder b = new StringBuilder();
+                b.append(matches(new WholeWordMatchSet(words, caseSensitive, t), words));
+                b.append(values(new WholeWordMatchMap<String>(words, values, caseSensitive, t), words));
+                b.append(values(new OffHeapWholeWordMatchMap<String>(words, values, caseSensitive, t), words));
+                results.add(b.toString());
+            }
+            assertAllSame(results);
+        }
+    }
+
+    @Test
+    public void testMemoryBudget() {
+        // Sparse nodes over a large alphabet make range nodes expensive.
+        List<String> keywords = keywords("abcdefghijklmnopqrstuvwxyz\u03b1\u03b2\u03b3\u03b4\u4e00\u4e01\u4e02", 2, 6);
+        long noBudget = new AhoCorasickSet(keywords, true, false, new MemoryBudgetThreshold(0)).memoryUsage().ramBytesUsed();
+        long previous = noBudget;
+        for (int budget : new int[] { 2000, 20000, 200000 }) {
+            long bytes = new AhoCorasickSet(keywords, true, false, new MemoryBudgetThreshold(budget)).memoryUsage().ramBytesUsed();
+            Assert.assertTrue(bytes <= noBudget + budget);
+            Assert.assertTrue(bytes >= previous);
+            previous = bytes;
+        }
+        Assert.assertTrue(previous > noBudget);
+    }
+
+    @Test
+    public void testCombined() {
+        Thresholder t = new ChainNodeThreshold(2, new DawgThreshold(10, new SparseNodeThreshold(SparseNodeType.ROBIN_HOOD, new MemoryBudgetThreshold(0))));
+        Assert.assertTrue(t.isOverChainThreshold(2));
+        Assert.assertTrue(t.isOverDawgThreshold(10));
+        Assert.assertFalse(t.isOverDawgThreshold(9));
+        Assert.assertEquals(SparseNodeType.ROBIN_HOOD, t.getSparseNodeType(20, 1, 100));
+        // Range node threshold until the budget plans.
+        Assert.assertTrue(t.isOverThreshold(2, 1, 8));
+        Thresholder planned = t.plan(new int[] { 2 }, new int[] { 1 }, new int[] { 8 });
+        Assert.assertFalse(planned.isOverThreshold(2, 1, 8));
+        Assert.assertTrue(planned.isOverChainThreshold(2));
+        Assert.assertTrue(planned.isOverDawgThreshold(10));
+        Assert.assertEquals(SparseNodeType.ROBIN_HOOD, planned.getSparseNodeType(20, 1, 100));
+        // Planning doesn't change the thresholder.
+        Assert.assertTrue(t.isOverThreshold(2, 1, 8));
+    }
+
+    @Test
+    public void testTrain() {
+        for (boolean caseSensitive : new boolean[] { true, false }) {
+            List<String> keywords = keywords("abcdefghijklmnopqrstuvwxyzABC", 1, 5);
+            List<String> phrases = keywords("abcdefghijklmnopqABC  ", 1, 8);
+            String sample = haystack(keywords.subList(0, 100));
+            List<String> results = new ArrayList<String>();
+            // Hashmap nodes that only get reordered, every node the sample reaches turned into a range node.
+            for (Thresholder t : new Thresholder[] { null, HASHMAP_NODES_ONLY, new ProfileThreshold(0),
+                    new ChainNodeThreshold(1, new ProfileThreshold(0)) }) {
+                Thresholder build = t == null ? HASHMAP_NODES_ONLY : t;
+                AhoCorasickSet acSet = new AhoCorasickSet(keywords, caseSensitive, false, build);
+                AhoCorasickMap<String> acMap = new AhoCorasickMap<String>(keywords, keywords, caseSensitive, build);
+                AhoCorasickIntMap acIntMap = new AhoCorasickIntMap(keywords, ids(keywords), caseSensitive, build);
+                AhoCorasickLongMap acLongMap = new AhoCorasickLongMap(keywords, longIds(keywords), caseSensitive, build);
+                LongestMatchSet longestSet = new LongestMatchSet(keywords, caseSensitive, build);
+                LongestMatchMap<String> longestMap = new LongestMatchMap<String>(keywords, keywords, caseSensitive, build);
+                LongestMatchIntMap longestIntMap = new LongestMatchIntMap(keywords, ids(keywords), caseSensitive, build);
+                LongestMatchLongMap longestLongMap = new LongestMatchLongMap(keywords, longIds(keywords), caseSensitive, build);
+                ShortestMatchSet shortestSet = new ShortestMatchSet(keywords, caseSensitive, build);
+                ShortestMatchMap<String> shortestMap = new ShortestMatchMap<String>(keywords, keywords, caseSensitive, build);
+                WholeWordMatchSet wwSet = new WholeWordMatchSet(keywords, caseSensitive, build);
+                WholeWordMatchMap<String> wwMap = new WholeWordMatchMap<String>(keywords, keywords, caseSensitive, build);
+                WholeWordLongestMatchSet wwLongestSet = new WholeWordLongestMatchSet(phrases, caseSensitive, false, build);
+                WholeWordLongestMatchMap<String> wwLongestMap = new WholeWordLongestMatchMap<String>(phrases, phrases, caseSensitive, build);
+                if (t != null) {
+                    acSet.train(sample, t);
+                    acMap.train(sample, t);
+                    acIntMap.train(sample, t);
+                    acLongMap.train(sample, t);
+                    longestSet.train(sample, t);
+                    longestMap.train(sample, t);
+                    longestIntMap.train(sample, t);
+                    longestLongMap.train(sample, t);
+                    shortestSet.train(sample, t);
+                    shortestMap.train(sample, t);
+                    wwSet.train(sample, t);
+                    wwMap.train(sample, t);
+                    wwLongestSet.train(sample, t);
+                    wwLongestMap.train(sample, t);
+                }
+                StringBuilder b = new StringBuilder();
+                b.append(matches(acSet, keywords)).append(values(acMap, keywords)).append(matches(acIntMap, keywords));
+                b.append(matches(acLongMap, keywords)).append(matches(longestSet, keywords)).append(values(longestMap, keywords));
+                b.append(matches(longestIntMap, keywords)).append(matches(longestLongMap, keywords)).append(matches(shortestSet, keywords));
+                b.append(values(shortestMap, keywords)).append(matches(wwSet, keywords)).append(values(wwMap, keywords));
+                b.append(matches(wwLongestSet, phrases)).append(values(wwLongestMap, phrases));
+                results.add(b.toString());
+            }
+            assertAllSame(results);
+        }
+    }
+
+    private void assertAllSame(List<String> results) {
+        for (String result : results) {
+            Assert.assertEquals(results.get(0), result);
+        }
+    }
+
+    // Sparse nodes of the type for all nodes that aren't small.
+    private static Thresholder sparseNodesOnly(final SparseNodeType type) {
+        return new Thresholder() {
+
+            @Override
+            public SparseNodeType getSparseNodeType(int nodeSize, int nodeLevel, int keyIntervalSize) {
+                return type;
+            }
+
+            public boolean isOverThreshold(int nodeSize, int nodeLevel, int keyIntervalSize) {
+                return false;
+            }
+        };
+    }
+
+    // Emoji from U+1F600 on, as surrogate pairs.
+    private static String[] emoji(int count) {
+        String[] units = new String[count];
+        for (int i = 0; i < count; i++) {
+            units[i] = "\ud83d" + (char) ('\ude00' + i);
+        }
+        return units;
+    }
+
+    // Consecutive characters from the first one on.
+    private static String[] units(char first, int count) {
+        String[] units = new String[count];
+        for (int i = 0; i < count; i++) {
+            units[i] = String.valueOf((char) (first + i));
+        }
+        return units;
+    }
+
+    private static String[] units(String characters) {
+        String[] units = new String[characters.length()];
+        for (int i = 0; i < units.length; i++) {
+            units[i] = characters.substring(i, i + 1);
+        }
+        return units;
+    }
+
+    private String haystack(List<String> keywords) {
+        Random r = new Random(2);
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            String keyword = keywords.get(r.nextInt(keywords.size()));
+            b.append(r.nextBoolean() ? keyword : keyword.toUpperCase()).append(r.nextInt(3) == 0 ? "z" : " ");
+        }
+        return b.toString();
+    }
+
+    private int[] ids(List<String> keywords) {
+        int[] ids = new int[keywords.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+        }
+        return ids;
+    }
+
+    // Keywords made of the units, which can be more than one character, like surrogate pairs.
+    private static List<String> keywords(String[] units, int count, int minSize, int maxSize) {
+        Random r = new Random(count);
+        List<String> keywords = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            StringBuilder b = new StringBuilder();
+            for (int j = minSize + r.nextInt(maxSize - minSize + 1); j > 0; j--) {
+                b.append(units[r.nextInt(units.length)]);
+            }
+            keywords.add(b.toString());
+        }
+        return keywords;
+    }
+
+    private long[] longIds(List<String> keywords) {
+        long[] ids = new long[keywords.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+        }
+        return ids;
+    }
+
+    private List<String> keywords(String alphabet, int minSize, int maxSize) {
+        Random r = new Random(3);
+        List<String> keywords = new ArrayList<String>();
+        for (int i = 0; i < 3000; i++) {
+            char[] c = new char[minSize + r.nextInt(maxSize - minSize + 1)];
+            for (int j = 0; j < c.length; j++) {
+                c[j] = alphabet.charAt(r.nextInt(alphabet.length()));
+            }
+            String keyword = new String(c).trim();
+            if (keyword.length() > 0) {
+                keywords.add(keyword);
+            }
+        }
+        return keywords;
+    }
+
+    private String matches(StringIntMap map, List<String> keywords) {
+        final StringBuilder b = new StringBuilder();
+        map.match(haystack(keywords), new IntMapMatchListener() {
+
+            public boolean match(String haystack, int startPosition, int endPosition, int value) {
+                b.append(startPosition).append(':').append(endPosition).append(' ');
+                return true;
+            }
+        });
+        return b.append('\n').toString();
+    }
+
+    private String matches(StringLongMap map, List<String> keywords) {
+        final StringBuilder b = new StringBuilder();
+        map.match(haystack(keywords), new LongMapMatchListener() {
+
+            public boolean match(String haystack, int startPosition, int endPosition, long value) {
+                b.append(startPosition).append(':').append(endPosition).append(' ');
+                return true;
+            }
+        });
+        return b.append('\n').toString();
+    }
+
+    private String matches(StringMap<String> map, List<String> keywords) {
+        final StringBuilder b = new StringBuilder();
+        map.match(haystack(keywords), new MapMatchListener<String>() {
+
+            public boolean match(String haystack, int startPosition, int endPosition, String value) {
+                b.append(startPosition).append(':').append(endPosition).append(' ');
+                return true;
+            }
+        });
+        return b.append('\n').toString();
+    }
+
+    private String values(StringMap<String> map, List<String> keywords) {
+        final StringBuilder b = new StringBuilder();
+        map.match(haystack(keywords), new MapMatchListener<String>() {
+
+            public boolean match(String haystack, int startPosition, int endPosition, String value) {
+                b.append(startPosition).append(':').append(endPosition).append('=').append(value).append(' ');
+                return true;
+            }
+        });
+        return b.append('\n').toString();
+    }
+
+    private String matches(StringSet set, List<String> keywords) {
+        final StringBuilder b = new StringBuilder();
+        set.match(haystack(keywords), new SetMatchListener() {
+
+            public boolean match(String haystack, int startPosition, int endPosition) {
+                b.append(startPosition).append(':').append(endPosition).append(' ');
+                return true;
+            }
+        });
+        return b.append('\n').toString();
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+// Runs the map tests against automata that went through a file.
+public class OffHeapWholeWordLongestMatchMapFileTest extends OffHeapWholeWordLongestMatchMapTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotAnAutomaton() throws IOException {
+        Path file = Files.createTempFile("automaton", ".bin");
+        try {
+            Files.write(file, new byte[] { 1, 2, 3, 4 });
+            OffHeapWholeWordLongestMatchMap.load(file, new StringValueCodec());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testNullValues() throws IOException {
+        List<String> keywords = prepareKeywords(new String[] { "ab", "cd" });
+        OffHeapWholeWordLongestMatchMap<String> map = saveAndLoad(new OffHeapWholeWordLongestMatchMap<String>(keywords,
+                Arrays.asList(null, "x"), false));
+        final StringBuilder out = new StringBuilder();
+        map.match("AB cd", new MapMatchListener<String>() {
+
+            public boolean match(String haystack, int startPosition, int endPosition, String value) {
+                out.append(value).append(';');
+                return true;
+            }
+        });
+        Assert.assertEquals("null;x;", out.toString());
+    }
+
+    @Override
+    protected StringMap<String> instantiateMap(List<String> keywords, boolean caseSensitive) {
+        OffHeapWholeWordLongestMatchMap<String> s = (OffHeapWholeWordLongestMatchMap<String>) super.instantiateMap(keywords, caseSensitive);
+        try {
+            return saveAndLoad(s);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private OffHeapWholeWordLongestMatchMap<String> saveAndLoad(OffHeapWholeWordLongestMatchMap<String> map) throws IOException {
+        Path file = Files.createTempFile("automaton", ".bin");
+        try {
+            map.save(file, new StringValueCodec());
+            return OffHeapWholeWordLongestMatchMap.load(file, new StringValueCodec());
+        } finally {
+            // Mapped files can't be deleted on some platforms.
+            file.toFile().deleteOnExit();
+        }
+    }
+
+}
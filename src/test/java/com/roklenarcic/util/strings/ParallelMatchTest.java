@@ -0,0 +1,180 @@
+package com.roklenarcic.util.strings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelMatchTest {
+
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    private static List<String> matches(StringMap<String> map, String haystack) {
+        final List<String> matches = new ArrayList<String>();
+        map.match(haystack, new MapMatchListener<String>() {
+
+            public boolean match(String haystack, int startPosition, int endPosition, String value) {
+                matches.add(startPosition + "-" + endPosition + ":" + value);
+                return true;
+            }
+        });
+        return matches;
+    }
+
+    private static List<String> matches(StringSet set, String haystack) {
+        final List<String> matches = new ArrayList<String>();
+        set.match(haystack, new SetMatchListener() {
+
+            public boolean match(String haystack, int startPosition, int endPosition) {
+                matches.add(startPosition + "-" + endPosition);
+                return true;
+            }
+        });
+        return matches;
+    }
+
+    private List<String> parallelMatches(StringMap<String> map, String haystack, boolean ordered, int chunkChars) {
+        final List<String> matches = new ArrayList<String>();
+        MapMatchListener<String> listener = new MapMatchListener<String>() {
+
+            public boolean match(String haystack, int startPosition, int endPosition, String value) {
+                matches.add(startPosition + "-" + endPosition + ":" + value);
+                return true;
+            }
+        };
+        if (map instanceof AhoCorasickMap) {
+            ((AhoCorasickMap<String>) map).matchParallel(haystack, listener, ordered, pool, chunkChars);
+        } else if (map instanceof LongestMatchMap) {
+            ((LongestMatchMap<String>) map).matchParallel(haystack, listener, ordered, pool, chunkChars);
+        } else if (map instanceof WholeWordMatchMap) {
+            ((WholeWordMatchMap<String>) map).matchParallel(haystack, listener, ordered, pool, chunkChars);
+        } else {
+            ((WholeWordLongestMatchMap<String>) map).matchParallel(haystack, listener, ordered, pool, chunkChars);
+        }
+        return matches;
+    }
+
+    private List<String> parallelMatches(StringSet set, String haystack, boolean ordered, int chunkChars) {
+        final List<String> matches = new ArrayList<String>();
+        SetMatchListener listener = new SetMatchListener() {
+
+            public boolean match(String haystack, int startPosition, int endPosition) {
+                matches.add(startPosition + "-" + endPosition);
+                return true;
+            }
+        };
+        if (set instanceof AhoCorasickSet) {
+            ((AhoCorasickSet) set).matchParallel(haystack, listener, ordered, pool, chunkChars);
+        } else if (set instanceof LongestMatchSet) {
+            ((LongestMatchSet) set).matchParallel(haystack, listener, ordered, pool, chunkChars);
+        } else if (set instanceof WholeWordMatchSet) {
+            ((WholeWordMatchSet) set).matchParallel(haystack, listener, ordered, pool, chunkChars);
+        } else {
+            ((WholeWordLongestMatchSet) set).matchParallel(haystack, listener, ordered, pool, chunkChars);
+        }
+        return matches;
+    }
+
+    private static String random(Random r, String alphabet, int length) {
+        char[] c = new char[length];
+        for (int i = 0; i < c.length; i++) {
+            c[i] = alphabet.charAt(r.nextInt(alphabet.length()));
+        }
+        return new String(c);
+    }
+
+    private static List<String> randomKeywords(Random r, String alphabet) {
+        List<String> keywords = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            keywords.add(random(r, alphabet, 1 + r.nextInt(5)));
+        }
+        return keywords;
+    }
+
+    private static List<String> sorted(List<String> matches) {
+        Collections.sort(matches);
+        return matches;
+    }
+
+    @Test
+    public void testMaps() {
+        Random r = new Random(1);
+        for (int i = 0; i < 300; i++) {
+            boolean caseSensitive = r.nextBoolean();
+            // Whole word keywords can't have non-word characters.
+            List<String> keywords = randomKeywords(r, i % 2 == 0 ? "aAb" : "aAb ");
+            String haystack = random(r, "aAbB -", 300);
+            List<StringMap<String>> maps = new ArrayList<StringMap<String>>();
+            maps.add(new AhoCorasickMap<String>(keywords, keywords, caseSensitive));
+            maps.add(new LongestMatchMap<String>(keywords, keywords, caseSensitive));
+            maps.add(new WholeWordLongestMatchMap<String>(keywords, keywords, caseSensitive));
+            if (i % 2 == 0) {
+                maps.add(new WholeWordMatchMap<String>(keywords, keywords, caseSensitive));
+            }
+            for (StringMap<String> map : maps) {
+                List<String> expected = matches(map, haystack);
+                // Chunks shorter than keywords too.
+                for (int chunkChars : new int[] { 1, 3, 17, 1000 }) {
+                    Assert.assertEquals(expected, parallelMatches(map, haystack, true, chunkChars));
+                    Assert.assertEquals(sorted(new ArrayList<String>(expected)), sorted(parallelMatches(map, haystack, false, chunkChars)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testNonWordKeywords() {
+        // Matching doesn't reset after the dot, the space keyword is part of the non-word run that follows.
+        List<String> keywords = Arrays.asList(" ");
+        String haystack = "ab.  x";
+        WholeWordLongestMatchSet set = new WholeWordLongestMatchSet(keywords, true, false);
+        WholeWordLongestMatchMap<String> map = new WholeWordLongestMatchMap<String>(keywords, keywords, true);
+        Assert.assertEquals(matches(set, haystack), parallelMatches(set, haystack, true, 2));
+        Assert.assertEquals(matches(map, haystack), parallelMatches(map, haystack, true, 2));
+    }
+
+    @Test
+    public void testSets() {
+        Random r = new Random(2);
+        for (int i = 0; i < 300; i++) {
+            boolean caseSensitive = r.nextBoolean();
+            List<String> keywords = randomKeywords(r, i % 2 == 0 ? "aAb" : "aAb ");
+            String haystack = random(r, "aAbB -", 300);
+            List<StringSet> sets = new ArrayList<StringSet>();
+            sets.add(new AhoCorasickSet(keywords, caseSensitive, false));
+            sets.add(new AhoCorasickSet(keywords, caseSensitive, true));
+            sets.add(new LongestMatchSet(keywords, caseSensitive));
+            sets.add(new WholeWordLongestMatchSet(keywords, caseSensitive, false));
+            sets.add(new WholeWordLongestMatchSet(keywords, caseSensitive, true));
+            if (i % 2 == 0) {
+                sets.add(new WholeWordMatchSet(keywords, caseSensitive));
+            }
+            for (StringSet set : sets) {
+                List<String> expected = matches(set, haystack);
+                for (int chunkChars : new int[] { 1, 3, 17, 1000 }) {
+                    Assert.assertEquals(expected, parallelMatches(set, haystack, true, chunkChars));
+                    Assert.assertEquals(sorted(new ArrayList<String>(expected)), sorted(parallelMatches(set, haystack, false, chunkChars)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testStop() {
+        List<String> keywords = Arrays.asList("ab");
+        final int[] count = new int[1];
+        new AhoCorasickSet(keywords, true, false).matchParallel("ab ab ab ab ab ab", new SetMatchListener() {
+
+            public boolean match(String haystack, int startPosition, int endPosition) {
+                return ++count[0] < 2;
+            }
+        }, true, pool, 4);
+        Assert.assertEquals(2, count[0]);
+    }
+
+}
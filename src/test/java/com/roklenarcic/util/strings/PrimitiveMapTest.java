@@ -0,0 +1,162 @@
+package com.roklenarcic.util.strings;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+// Primitive value maps must report the same matches as the generic maps.
+public class PrimitiveMapTest {
+
+    @Test
+    public void testAhoCorasick() throws IOException {
+        for (boolean caseSensitive : new boolean[] { true, false }) {
+            List<String> keywords = keywords();
+            String haystack = haystack(keywords);
+            AhoCorasickMap<Integer> map = new AhoCorasickMap<Integer>(keywords, ids(keywords), caseSensitive);
+            assertSame(map, new AhoCorasickIntMap(keywords, intIds(keywords), caseSensitive), haystack);
+            assertSame(map, new AhoCorasickLongMap(keywords, longIds(keywords), caseSensitive), haystack);
+        }
+    }
+
+    @Test
+    public void testLongestMatch() throws IOException {
+        for (boolean caseSensitive : new boolean[] { true, false }) {
+            List<String> keywords = keywords();
+            String haystack = haystack(keywords);
+            LongestMatchMap<Integer> map = new LongestMatchMap<Integer>(keywords, ids(keywords), caseSensitive);
+            assertSame(map, new LongestMatchIntMap(keywords, intIds(keywords), caseSensitive), haystack);
+            assertSame(map, new LongestMatchLongMap(keywords, longIds(keywords), caseSensitive), haystack);
+        }
+    }
+
+    @Test
+    public void testStopMatching() {
+        AhoCorasickIntMap map = new AhoCorasickIntMap(Arrays.asList("a", "aa"), new int[] { 1, 2 }, true);
+        final int[] count = new int[1];
+        map.match("aaaa", new IntMapMatchListener() {
+
+            public boolean match(String haystack, int startPosition, int endPosition, int value) {
+                return ++count[0] < 3;
+            }
+        });
+        Assert.assertEquals(3, count[0]);
+    }
+
+    private void assertSame(StringMap<Integer> expected, StringIntMap map, String haystack) throws IOException {
+        final List<String> expectedMatches = new ArrayList<String>();
+        final List<String> matches = new ArrayList<String>();
+        expected.match(haystack, new MapMatchListener<Integer>() {
+
+            public boolean match(String haystack, int startPosition, int endPosition, Integer value) {
+                expectedMatches.add(startPosition + ":" + endPosition + "=" + value);
+                return true;
+            }
+        });
+        map.match(haystack, new IntMapMatchListener() {
+
+            public boolean match(String haystack, int startPosition, int endPosition, int value) {
+                matches.add(startPosition + ":" + endPosition + "=" + value);
+                return true;
+            }
+        });
+        Assert.assertEquals(expectedMatches, matches);
+        expectedMatches.clear();
+        matches.clear();
+        expected.match(new StringReader(haystack), new ReadableMatchListener<Integer>() {
+
+            public boolean match(Integer value) {
+                expectedMatches.add(String.valueOf(value));
+                return true;
+            }
+        });
+        map.match(new StringReader(haystack), new ReadableIntMatchListener() {
+
+            public boolean match(int value) {
+                matches.add(String.valueOf(value));
+                return true;
+            }
+        });
+        Assert.assertEquals(expectedMatches, matches);
+    }
+
+    private void assertSame(StringMap<Integer> expected, StringLongMap map, String haystack) throws IOException {
+        final List<String> expectedMatches = new ArrayList<String>();
+        final List<String> matches = new ArrayList<String>();
+        expected.match(haystack, new MapMatchListener<Integer>() {
+
+            public boolean match(String haystack, int startPosition, int endPosition, Integer value) {
+                expectedMatches.add(startPosition + ":" + endPosition + "=" + (value + (1L << 32)));
+                return true;
+            }
+        });
+        map.match(haystack, new LongMapMatchListener() {
+
+            public boolean match(String haystack, int startPosition, int endPosition, long value) {
+                matches.add(startPosition + ":" + endPosition + "=" + value);
+                return true;
+            }
+        });
+        Assert.assertEquals(expectedMatches, matches);
+        expectedMatches.clear();
+        matches.clear();
+        expected.match(new StringReader(haystack), new ReadableMatchListener<Integer>() {
+
+            public boolean match(Integer value) {
+                expectedMatches.add(String.valueOf(value + (1L << 32)));
+                return true;
+            }
+        });
+        map.match(new StringReader(haystack), new ReadableLongMatchListener() {
+
+            public boolean match(long value) {
+                matches.add(String.valueOf(value));
+                return true;
+            }
+        });
+        Assert.assertEquals(expectedMatches, matches);
+    }
+
+    private String haystack(List<String> keywords) {
+        StringBuilder b = new StringBuilder();
+        String[] noise = Generator.randomStrings(200, 1, 4);
+        for (int i = 0; i < noise.length; i++) {
+            b.append(noise[i]).append(i % 3 == 0 ? keywords.get(i % keywords.size()).toUpperCase() : keywords.get(i % keywords.size()));
+        }
+        return b.toString();
+    }
+
+    private List<Integer> ids(List<String> keywords) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < keywords.size(); i++) {
+            ids.add(i);
+        }
+        return ids;
+    }
+
+    private int[] intIds(List<String> keywords) {
+        int[] ids = new int[keywords.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+        }
+        return ids;
+    }
+
+    private List<String> keywords() {
+        return Arrays.asList(Generator.randomStrings(500, 1, 6));
+    }
+
+    // Long ids are over the int range.
+    private long[] longIds(List<String> keywords) {
+        long[] ids = new long[keywords.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i + (1L << 32);
+        }
+        return ids;
+    }
+
+}
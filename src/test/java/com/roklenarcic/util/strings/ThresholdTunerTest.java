@@ -0,0 +1,75 @@
+package com.roklenarcic.util.strings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.roklenarcic.util.strings.threshold.RangeNodeThreshold;
+import com.roklenarcic.util.strings.threshold.Thresholder;
+
+public class ThresholdTunerTest {
+
+    private final List<String> keywords = keywords(5000);
+
+    private final Function<Thresholder, AhoCorasickSet> builder = new Function<Thresholder, AhoCorasickSet>() {
+
+        public AhoCorasickSet apply(Thresholder thresholdStrategy) {
+            return new AhoCorasickSet(keywords, true, false, thresholdStrategy);
+        }
+    };
+
+    private final BiConsumer<AhoCorasickSet, String> matcher = new BiConsumer<AhoCorasickSet, String>() {
+
+        public void accept(AhoCorasickSet set, String text) {
+            set.match(text, new SetMatchListener() {
+
+                public boolean match(String haystack, int startPosition, int endPosition) {
+                    return true;
+                }
+            });
+        }
+    };
+
+    private final String sample = keywords(2000).toString();
+
+    private static List<String> keywords(int count) {
+        Random r = new Random(1);
+        List<String> keywords = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            char[] c = new char[2 + r.nextInt(8)];
+            for (int j = 0; j < c.length; j++) {
+                c[j] = (char) ('a' + r.nextInt(26));
+            }
+            keywords.add(new String(c));
+        }
+        return keywords;
+    }
+
+    @Test
+    public void testFastest() {
+        long defaultBytes = builder.apply(new RangeNodeThreshold()).memoryUsage().ramBytesUsed();
+        ThresholdTuner.Result result = ThresholdTuner.fastest(builder, matcher, sample, defaultBytes);
+        Assert.assertTrue(result.getBytes() <= defaultBytes);
+        Assert.assertEquals(result.getBytes(), builder.apply(result.getThresholder()).memoryUsage().ramBytesUsed());
+        Assert.assertTrue(result.toString().startsWith("new RangeNodeThreshold("));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNothingFits() {
+        ThresholdTuner.fastest(builder, matcher, sample, 1000);
+    }
+
+    @Test
+    public void testSmallest() {
+        long defaultBytes = builder.apply(new RangeNodeThreshold()).memoryUsage().ramBytesUsed();
+        ThresholdTuner.Result result = ThresholdTuner.smallest(builder, matcher, sample, Double.MAX_VALUE);
+        Assert.assertTrue(result.getBytes() <= defaultBytes);
+        Assert.assertEquals(result.getBytes(), builder.apply(result.getThresholder()).memoryUsage().ramBytesUsed());
+    }
+
+}
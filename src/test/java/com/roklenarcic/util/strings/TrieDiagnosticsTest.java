@@ -0,0 +1,116 @@
+package com.roklenarcic.util.strings;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.roklenarcic.util.strings.threshold.ChainNodeThreshold;
+import com.roklenarcic.util.strings.threshold.ProfileThreshold;
+import com.roklenarcic.util.strings.threshold.RootTableThreshold;
+import com.roklenarcic.util.strings.threshold.SparseNodeType;
+import com.roklenarcic.util.strings.threshold.Thresholder;
+
+public class TrieDiagnosticsTest {
+
+    private static final Thresholder HASHMAP_NODES_ONLY = new Thresholder() {
+
+        public boolean isOverThreshold(int nodeSize, int nodeLevel, int keyIntervalSize) {
+            return false;
+        }
+    };
+
+    private List<String> keywords = Arrays.asList("he", "she", "his", "hers", "ha", "hz");
+
+    @Test
+    public void testChains() {
+        List<String> keywords = Arrays.asList("abcdefgh", "abcxyz");
+        TrieDiagnostics diagnostics = new AhoCorasickSet(keywords, true, false, new ChainNodeThreshold(1)).diagnostics();
+        // Chains "a" -> "abc", "abcd" -> "abcdefgh" and "abcx" -> "abcxyz".
+        Assert.assertEquals(1, diagnostics.getNodeTypes().get("ChainNode").getCount(1));
+        Assert.assertEquals(2, diagnostics.getNodeTypes().get("ChainNode").getCount(4));
+        Assert.assertEquals(1, diagnostics.getLevels().getCount(3));
+        Assert.assertEquals(1, diagnostics.getLevels().getCount(6));
+        Assert.assertEquals(1, diagnostics.getLevels().getCount(8));
+        Assert.assertEquals(7, diagnostics.getNodeCount());
+    }
+
+    @Test
+    public void testFailChains() {
+        TrieDiagnostics diagnostics = new AhoCorasickSet(keywords, true, false).diagnostics();
+        // "she" fails to "he", which fails to root.
+        Assert.assertEquals(1, diagnostics.getFailChainLengths().getCount(0));
+        Assert.assertEquals(diagnostics.getNodeCount(), diagnostics.getFailChainLengths().getTotal());
+        Assert.assertEquals(2, diagnostics.getFailChainLengths().getMax());
+        Assert.assertEquals(0, new WholeWordMatchSet(keywords, true).diagnostics().getFailChainLengths().getTotal());
+    }
+
+    @Test
+    public void testNodes() {
+        // Same trie in every engine.
+        for (TrieDiagnostics diagnostics : new TrieDiagnostics[] { new AhoCorasickSet(keywords, true, false).diagnostics(),
+                new AhoCorasickMap<String>(keywords, keywords, true).diagnostics(), new LongestMatchSet(keywords, true).diagnostics(),
+                new LongestMatchMap<String>(keywords, keywords, true).diagnostics(), new WholeWordMatchSet(keywords, true).diagnostics(),
+                new WholeWordLongestMatchMap<String>(keywords, keywords, true).diagnostics() }) {
+            Assert.assertEquals(12, diagnostics.getNodeCount());
+            Assert.assertEquals(2, diagnostics.getLevels().getCount(1));
+            Assert.assertEquals(5, diagnostics.getLevels().getCount(2));
+            Assert.assertEquals(3, diagnostics.getLevels().getCount(3));
+            Assert.assertEquals(5, diagnostics.getFanout().getCount(0));
+            // Children of "h" are a, e, i and z.
+            Assert.assertEquals(1, diagnostics.getFanout().getCount(4));
+            Assert.assertEquals(4, diagnostics.getFanout().getMax());
+        }
+    }
+
+    @Test
+    public void testRangeSlots() {
+        // Root table has a slot for each of the 7 keyword characters and one for the other characters.
+        TrieDiagnostics hashmap = new AhoCorasickSet(keywords, true, false, new RootTableThreshold(0x10000, HASHMAP_NODES_ONLY)).diagnostics();
+        Assert.assertEquals(1, hashmap.getNodeTypes().get("RangeNode").getTotal());
+        Assert.assertEquals(8, hashmap.getRangeSlots());
+        Assert.assertEquals(6, hashmap.getWastedRangeSlots());
+        // Without the root table root is a hashmap node too.
+        Assert.assertEquals(0, new AhoCorasickSet(keywords, true, false, HASHMAP_NODES_ONLY).diagnostics().getRangeSlots());
+        // Children of "h" get a range node over class ids of e, i, a, z, which are 2, 4, 6 and 7.
+        TrieDiagnostics range = new AhoCorasickSet(keywords, true, false, new RootTableThreshold()).diagnostics();
+        Assert.assertEquals(2, range.getNodeTypes().get("RangeNode").getTotal());
+        Assert.assertEquals(14, range.getRangeSlots());
+        Assert.assertEquals(8, range.getWastedRangeSlots());
+        Assert.assertTrue(range.toString().contains("range slots: 14, wasted: 8"));
+    }
+
+    @Test
+    public void testSparseNodes() {
+        List<String> keywords = Arrays.asList("ha", "hb", "hc", "hd", "he", "hf");
+        for (final SparseNodeType type : SparseNodeType.values()) {
+            TrieDiagnostics diagnostics = new AhoCorasickSet(keywords, true, false, new Thresholder() {
+
+                @Override
+                public SparseNodeType getSparseNodeType(int nodeSize, int nodeLevel, int keyIntervalSize) {
+                    return type;
+                }
+
+                public boolean isOverThreshold(int nodeSize, int nodeLevel, int keyIntervalSize) {
+                    return false;
+                }
+            }).diagnostics();
+            String name = type == SparseNodeType.HASHMAP ? "HashmapNode" : type == SparseNodeType.MULTIPLICATIVE_HASH ? "MultiplicativeHashNode"
+                    : type == SparseNodeType.ROBIN_HOOD ? "RobinHoodNode" : "SortedNode";
+            Assert.assertEquals(1, diagnostics.getNodeTypes().get(name).getCount(1));
+        }
+    }
+
+    @Test
+    public void testTrain() {
+        AhoCorasickSet set = new AhoCorasickSet(keywords, true, false, HASHMAP_NODES_ONLY);
+        set.train("sea shells", new ProfileThreshold(0.1));
+        // The sample never gets to "h", so it stays a small node.
+        Assert.assertEquals(1, set.diagnostics().getNodeTypes().get("RangeNode").getTotal());
+        set.train("his hat", new ProfileThreshold(0.1));
+        Assert.assertEquals(1, set.diagnostics().getNodeTypes().get("RangeNode").getCount(1));
+        Assert.assertNull(set.diagnostics().getNodeTypes().get("SmallNode"));
+    }
+
+}